@@ -11,9 +11,12 @@ import java.io.FileWriter;
 import java.io.IOException;
 import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashSet;
 import java.util.List;
-import java.util.Objects;
-import java.util.stream.Collectors;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  *
@@ -37,50 +40,17 @@ public class CQMinimizer {
     }
 
     public static void minimizeCQ(String inputFile, String outputFile) {
-        // TODO: add your implementation
         try {
             Query query = QueryParser.parse(Paths.get(inputFile));
-            List<Term> head = query.getHead().getTerms();
-            List<Atom> body =query.getBody();
 
-
-            //List<Variable> outputVariables = new ArrayList<Variable>();
-            //for (Term term : head) outputVariables.add((Variable) term);
-
-            // List<RelationalAtom> bodyAtom = new ArrayList<RelationalAtom>();
-            //for (Atom atom : body) bodyAtom.add((RelationalAtom) atom);
-
-            // convert type of output variables to Variable
-            List<Variable> outputVariables = head.stream()
-                    .map(term -> (Variable) term)
-                    .collect(Collectors.toList());
-
-            // convert type of atoms in query body to RelationalAtom
-            List<RelationalAtom> bodyAtom = body.stream()
-                    .map(atom -> (RelationalAtom) atom)
-                    .collect(Collectors.toList());
-
-            // to remove Atom, we need to check for removability for each atom
-            // iterate from the tail to the head, so deleting the previous atom will not affect the fetch of the next atom
-            for (int i = bodyAtom.size(); i > 0; i--) {
-                int currentAtomIndex = bodyAtom.size() - i;
-
-                // check whether this Atom contains output variable that is unique in body
-                if (containUniqueOutputVariable(currentAtomIndex, bodyAtom, outputVariables)) {
-                    continue; // if so, we shouldn't remove it
-                }
-
-                // check if the current atom is a homomorphism to any other atom
-                if (hasHomomorphism(currentAtomIndex, bodyAtom)) {
-                    bodyAtom.remove(currentAtomIndex);
-                }
-            }
+            // without time limit, the result is the core of the query
+            Minimization minimization = minimize(query, Long.MAX_VALUE);
+            Query miniQuery = minimization.query;
 
             // print minimal CQ to output file
-            System.out.println("Minimal: " + bodyAtom);
+            System.out.println("Minimal: " + miniQuery.getBody());
+            System.out.println(minimization);
 
-            List<Atom> reducedBodyAtoms = new ArrayList<>(bodyAtom);
-            Query miniQuery = new Query(query.getHead(), reducedBodyAtoms);
             try(BufferedWriter writer = new BufferedWriter(new FileWriter(outputFile))){
                 writer.write(miniQuery.toString());
             }catch (IOException e){
@@ -94,88 +64,184 @@ public class CQMinimizer {
     }
 
     /**
-     * Check whether an atom contains some output variables that never appear in any other atom.
-     * @param currentAtomIndex index of the atom that is being checked
-     * @param bodyAtom  list of atoms
-     * @param outputVariables list of output variables
-     * @return true if atom contains unique output variable, false if doesn't contain
+     * The outcome of {@link #minimize(Query, long)}.
      */
-    private static boolean containUniqueOutputVariable(int currentAtomIndex, List<RelationalAtom> bodyAtom, List<Variable> outputVariables) {
-        for (Term term : bodyAtom.get(currentAtomIndex).getTerms()) {
-            if (!(term instanceof Variable)) continue;
-            // whether this term appears in other atoms
-            if (outputVariables.contains(term)) {
-                boolean isDuplicate = false;
-                for (RelationalAtom atom : bodyAtom) {
-                    // compare with other atoms except itself
-                    if (bodyAtom.indexOf(atom) == currentAtomIndex) continue;
-                    if (atom.getTerms().contains(term)) {
-                        isDuplicate = true;
-                        break;
-                    }
-                }
-                if (!isDuplicate) {
-                    return true;
+    public static class Minimization {
+        public final Query query;
+        // the minimized query
+        public final int removedAtoms;
+        public final long elapsedNanos;
+        public final boolean complete;
+        // false if the time budget ran out before every atom was checked, the query may still have redundant atoms
+
+        Minimization(Query query, int removedAtoms, long elapsedNanos, boolean complete) {
+            this.query = query;
+            this.removedAtoms = removedAtoms;
+            this.elapsedNanos = elapsedNanos;
+            this.complete = complete;
+        }
+
+        @Override
+        public String toString() {
+            return "Minimization: " + this.removedAtoms + " atoms removed in " + String.format("%.3f", this.elapsedNanos / 1e6) + " ms"
+                    + (this.complete ? "" : " (time budget exceeded)");
+        }
+    }
+
+    /**
+     * The totals of the minimizations of many queries, e.g. all the queries of a batch, updated concurrently.
+     */
+    public static class Statistics {
+        private final AtomicLong queries = new AtomicLong();
+        private final AtomicLong removedAtoms = new AtomicLong();
+        private final AtomicLong elapsedNanos = new AtomicLong();
+        private final AtomicLong incomplete = new AtomicLong();
+
+        /**
+         * @param minimization the outcome of the minimization of a query.
+         */
+        public void record(Minimization minimization) {
+            this.queries.incrementAndGet();
+            this.removedAtoms.addAndGet(minimization.removedAtoms);
+            this.elapsedNanos.addAndGet(minimization.elapsedNanos);
+            if (!minimization.complete)
+                this.incomplete.incrementAndGet();
+        }
+
+        @Override
+        public String toString() {
+            return "Minimization: " + this.queries.get() + " queries, " + this.removedAtoms.get() + " atoms removed in "
+                    + String.format("%.3f", this.elapsedNanos.get() / 1e6) + " ms, "
+                    + this.incomplete.get() + " queries exceeded the time budget";
+        }
+    }
+
+    /**
+     * Remove the redundant relational atoms from the body of a query, before it is planned.
+     * An atom is redundant if there is a homomorphism from the body into the body without this atom,
+     * which maps the head variables, the variables of comparison atoms and the constants to themselves:
+     * the comparison atoms are then kept unchanged, and the query without the atom is equivalent.
+     * Once a homomorphism is found (by {@link HomomorphismSolver}), every atom outside its image is removed at once.
+     * The atoms are checked from the head of the body, so of two atoms mapped to each other the later one is kept.
+     * Each atom is checked at most once: an atom that cannot be removed from the body cannot be removed from a smaller
+     * equivalent body either, so the result is the core of the query if the time budget is not exceeded.
+     * An atom found not to be redundant is also propagated to the atoms that an automorphism maps to it (see keepSymmetricAtoms).
+     * The search for a homomorphism is NP-hard, but each step is a sound rewriting, so the query is still
+     * partly minimized when the budget runs out.
+     * A query with an aggregate in its head is not minimized, since removing atoms changes the multiplicities it sums.
+     * @param query the query, which is not modified.
+     * @param timeBudgetMillis the time budget of minimization, {@link Long#MAX_VALUE} for no limit.
+     * @return the minimized query, with the number of removed atoms and the time spent.
+     */
+    public static Minimization minimize(Query query, long timeBudgetMillis) {
+        long start = System.nanoTime();
+        long budgetNanos = timeBudgetMillis >= Long.MAX_VALUE / 1000000L ? Long.MAX_VALUE : timeBudgetMillis * 1000000L;
+        List<RelationalAtom> relationalAtoms = new ArrayList<>();
+        List<ComparisonAtom> comparisonAtoms = new ArrayList<>();
+        for (Atom atom : query.getBody()) {
+            if (atom instanceof RelationalAtom)
+                relationalAtoms.add((RelationalAtom) atom);
+            else
+                comparisonAtoms.add((ComparisonAtom) atom);
+        }
+        Set<String> fixedVariables = new HashSet<>();
+        for (Term term : query.getHead().getTerms()) {
+            if (term instanceof AggregationTerm)
+                return new Minimization(query, 0, System.nanoTime() - start, true);
+            if (term instanceof Variable)
+                fixedVariables.add(((Variable) term).getName());
+        }
+        for (ComparisonAtom comparisonAtom : comparisonAtoms)
+            for (Term term : new Term[]{comparisonAtom.getTerm1(), comparisonAtom.getTerm2()})
+                if (term instanceof Variable)
+                    fixedVariables.add(((Variable) term).getName());
+
+        BitSet core = new BitSet();
+        core.set(0, relationalAtoms.size());
+        // the atoms not removed yet
+        BitSet kept = new BitSet();
+        // the atoms known not to be redundant
+        boolean complete = true;
+        try {
+            HomomorphismSolver solver = new HomomorphismSolver(relationalAtoms, relationalAtoms, fixedVariables);
+            // check from the head, so the later atoms are kept when two atoms are mapped to each other
+            for (int i = core.nextSetBit(0); i >= 0; i = core.nextSetBit(i + 1)) {
+                if (kept.get(i))
+                    continue;
+                int[] images = solver.findWithout(core, i, start, budgetNanos);
+                if (images == null) {
+                    kept.set(i);
+                    core = keepSymmetricAtoms(solver, core, kept, i, start, budgetNanos);
+                    continue;
                 }
+                // the body folds into the image of the homomorphism, the other components are mapped to themselves
+                BitSet image = (BitSet) core.clone();
+                for (int a = 0; a < images.length; a++)
+                    if (images[a] >= 0)
+                        image.clear(a);
+                for (int a = 0; a < images.length; a++)
+                    if (images[a] >= 0)
+                        image.set(images[a]);
+                core = image;
             }
+        } catch (HomomorphismSolver.TimeBudgetExceeded e) {
+            complete = false;
         }
-        return false;
+        int removedAtoms = relationalAtoms.size() - core.cardinality();
+        if (removedAtoms == 0)
+            return new Minimization(query, 0, System.nanoTime() - start, complete);
+        List<Atom> body = new ArrayList<>();
+        for (int a = core.nextSetBit(0); a >= 0; a = core.nextSetBit(a + 1))
+            body.add(relationalAtoms.get(a));
+        body.addAll(comparisonAtoms);
+        return new Minimization(new Query(query.getHead(), body), removedAtoms, System.nanoTime() - start, complete);
     }
 
     /**
-     *
-     * @param currentAtomIndex
-     * @param bodyAtom
-     * @return
+     * Propagate the atom found not to be redundant to the atoms an automorphism of the body maps to it.
+     * If a homomorphism h from the body into itself is a bijection of the atoms, it is an automorphism, and an atom
+     * is not redundant if its image by h is not: otherwise h, a homomorphism removing the atom, and the inverse of h
+     * compose into a homomorphism removing the image. So once an automorphism mapping an atom j to the atom i is found,
+     * every atom whose orbit under h reaches a kept atom is kept, e.g. all the atoms of a cycle for a rotation.
+     * A homomorphism which is not a bijection folds the body instead.
+     * The automorphisms are only searched briefly (see {@link HomomorphismSolver#findSymmetry}), and no more after
+     * the first failure; the atoms left are still checked by the main loop, so the result is the same, this only saves
+     * a search for each atom of a symmetric body.
+     * @param solver the solver from the body into itself.
+     * @param core the atoms not removed yet.
+     * @param kept the atoms known not to be redundant, which is updated.
+     * @param i the atom just found not to be redundant.
+     * @return the atoms not removed yet, after the folds.
      */
-    private static boolean hasHomomorphism(int currentAtomIndex, List<RelationalAtom> bodyAtom) {
-        RelationalAtom currentAtom = bodyAtom.get(currentAtomIndex);
-        for (RelationalAtom targetAtom : bodyAtom) {
-            if (bodyAtom.indexOf(targetAtom) == currentAtomIndex) continue;
-            if (!Objects.equals(targetAtom.getName(), currentAtom.getName())) continue;
-
-            // homomorphism exists if:
-            // 1. the non-variable terms in the being checked atom matches the value in corresponding place of that atom
-            // 2. the variables in the being checked atom not appear in any other atoms
-            boolean foundHomomorphism = true;
-            for (int i = 0; i < currentAtom.getTerms().size(); i++) {
-                Term currentTerm = currentAtom.getTerms().get(i);
-                if (currentTerm instanceof Constant) {
-                    if (!currentTerm.equals(targetAtom.getTerms().get(i))) {
-                        foundHomomorphism = false;
-                        break;
-                    }
-                } else { // this term is variable
-                    if (!currentTerm.equals(targetAtom.getTerms().get(i))) {
-                        // if the variable names are not the same, check whether there is a mapping
-                        for (RelationalAtom otherAtom : bodyAtom) {
-                            if (otherAtom.getTerms().contains(currentTerm)) {
-                                // once we found an atom contains this term, there are 3 situations:
-                                if (bodyAtom.indexOf(otherAtom) == currentAtomIndex) {
-                                    // ignore the current atom itself
-                                } else if (bodyAtom.indexOf(otherAtom) == bodyAtom.indexOf(targetAtom)) {
-                                    // in the target term, the being checked term should only appear at the corresponding place
-                                    if (currentTerm != targetAtom.getTerms().get(i)) {
-                                        foundHomomorphism = false;
-                                        break;
-                                    }
-                                } else {
-                                    // if an atom is neither the current atom nor the target atom (that we are trying to build homomorphism with),
-                                    // it should not contain this variable; otherwise the mapping of this variable will change other parts of the query body
-                                    foundHomomorphism = false;
-                                    break;
-                                }
-                            }
-                        }
-                    }
+    private static BitSet keepSymmetricAtoms(HomomorphismSolver solver, BitSet core, BitSet kept, int i, long start, long budgetNanos) {
+        for (int j = core.nextSetBit(0); j >= 0; j = core.nextSetBit(j + 1)) {
+            if (kept.get(j) || !solver.similar(j, i, core))
+                continue;
+            int[] images = solver.findSymmetry(core, j, i, start, budgetNanos);
+            if (images == null)
+                break;
+            // the other components of the body are mapped to themselves
+            BitSet image = (BitSet) core.clone();
+            for (int a = 0; a < images.length; a++)
+                if (images[a] >= 0)
+                    image.clear(a);
+            int[] preimages = new int[images.length];
+            Arrays.fill(preimages, -1);
+            for (int a = 0; a < images.length; a++) {
+                if (images[a] >= 0) {
+                    image.set(images[a]);
+                    preimages[images[a]] = a;
                 }
             }
-            if (foundHomomorphism) {
-                return true;
+            if (image.cardinality() < core.cardinality()) {
+                core = image;
+                continue;
             }
+            for (int k = kept.nextSetBit(0); k >= 0; k = kept.nextSetBit(k + 1))
+                for (int a = preimages[k]; a >= 0 && !kept.get(a); a = preimages[a])
+                    kept.set(a);
         }
-        // don't find homomorphism
-        return false;
+        return core;
     }
 
     /**
@@ -205,9 +271,9 @@ public class CQMinimizer {
 /**
  * The code is a Java implementation of the chase algorithm, which is used to find the minimal equivalent conjunctive query (CQ) of a given CQ. The chase algorithm operates by adding new facts to the knowledge base until no new facts can be added. The given CQ is minimal if no atoms can be removed from it without changing its answers.
  *
- * The minimizeCQ method reads a CQ from a file specified by the inputFile parameter, applies the chase algorithm to minimize it, and writes the resulting CQ to a file specified by the outputFile parameter. The method first parses the input file into a Query object, which contains the head and body of the CQ. It then converts the types of output variables to Variable and the types of atoms in the body to RelationalAtom.
+ * The minimizeCQ method reads a CQ from a file specified by the inputFile parameter, applies the chase algorithm to minimize it, and writes the resulting CQ to a file specified by the outputFile parameter. The method first parses the input file into a Query object, which contains the head and body of the CQ.
  *
- * The method then iterates through the atoms in the body from the tail to the head, trying to remove atoms that can be removed without changing the answers of the CQ. An atom can be removed if it contains no unique output variables and holds a homomorphism to another atom. The contain_unique_output_variable method checks whether an atom contains some output variables that never appeared in any other atoms. The has_homomorphism method checks whether an atom holds homomorphism to any other atoms in the given list.
+ * The method then removes the atoms that can be removed without changing the answers of the CQ (see the minimize method). The body without an atom is equivalent if there is a homomorphism from the body into it, which keeps the output variables and the constants; the homomorphism is found by the backtracking search of HomomorphismSolver, and every atom outside its image is removed at once. An atom that cannot be removed is not checked again, nor are the atoms an automorphism of the body maps to it.
  *
  * Finally, the method prints the minimal CQ to the console and writes it to the output file.
  *
@@ -0,0 +1,865 @@
+package ed.inf.adbs.minibase;
+
+import ed.inf.adbs.minibase.base.*;
+
+import java.util.*;
+
+/**
+ * Search a homomorphism between the relational atoms of two query bodies, for the minimization of {@link CQMinimizer}.
+ * A homomorphism maps each source atom to a target atom of the same relation, mapping the constants and the fixed variables
+ * to themselves and each other variable consistently to a single term.
+ *
+ * The search is a backtracking over the source atoms, with:
+ *      (1) an index from each (relation, position, term) of the target atoms to the bitmask of atoms holding the term there,
+ *          so the candidates of a source atom are the intersection of the masks of its constants and bound variables;
+ *      (2) arc consistency before the search: a candidate is dropped if it holds a term at a variable that no candidate
+ *          of another atom with the variable holds there, until no candidate can be dropped. This alone proves that
+ *          there is no homomorphism in most cases, e.g. from a cycle into a body without the cycle. For the minimization,
+ *          it is computed once and only narrowed as atoms are removed (see {@link #findWithout});
+ *      (3) forward checking: binding the variables of an atom narrows the candidates of the unassigned atoms sharing them,
+ *          and the search backtracks as soon as some atom has no candidate left;
+ *      (4) the most constrained atom (with the fewest candidates) is assigned next, trying first the target atoms
+ *          that are already the image of another atom, then the atom itself, so that the image is kept small
+ *          and a minimization folds many atoms at once.
+ * The terms are numbered, so the search compares and indexes ints instead of {@link Term} instances.
+ * The problem is NP-hard, so the search is abandoned after a time budget.
+ */
+public class HomomorphismSolver {
+
+    /**
+     * Thrown when the time budget of a search is exceeded.
+     */
+    public static class TimeBudgetExceeded extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        TimeBudgetExceeded() {
+            super("Time budget exceeded", null, false, false);
+        }
+    }
+
+    private final List<RelationalAtom> source;
+    private final List<RelationalAtom> target;
+
+    private final int[][] targetTerms;
+    // targetTerms[t][i] is the number of the term at position i of target atom t
+    private final int termCount;
+    // the number of distinct terms in the target atoms
+    private final List<BitSet[]> atomPositions = new ArrayList<>();
+    // for each source atom, the index of its relation: index[i * termCount + term] holds the target atoms with the term at position i,
+    // null if the relation has no target atom
+    private final BitSet[] atomCandidates;
+    // the target atoms matching the relation, the constants and the fixed variables of each source atom
+    private final int[][] atomVariables;
+    // atomVariables[a][i] is the variable at position i of source atom a, or -1 for a constant or a fixed variable
+    private final int[][] firstPositions;
+    // firstPositions[a][i] is the first position of source atom a holding the variable at position i
+    private final List<List<Integer>> variableAtoms = new ArrayList<>();
+    // the source atoms containing each variable
+    private final int[] identities;
+    // the index of each source atom in the target atoms, -1 if it is not a target atom
+
+    private long start;
+    private long budgetNanos;
+    private int nodeCount = 0;
+    // the search is abandoned if the time since start exceeds the budget, the clock is checked every few nodes
+
+    private ArcConsistency folding = null;
+    // the arc consistent candidates of the source atoms in the atoms of the last call of findWithout()
+
+    private static final int SYMMETRY_SEARCH_NODES_PER_ATOM = 1;
+    // the number of nodes per atom of the search of findSymmetry(), which is only a shortcut
+
+    /**
+     * Index the target atoms and the variables of source atoms.
+     * @param source the atoms to be mapped.
+     * @param target the atoms the source atoms may be mapped to.
+     * @param fixedVariables the variables mapped to themselves.
+     */
+    public HomomorphismSolver(List<RelationalAtom> source, List<RelationalAtom> target, Set<String> fixedVariables) {
+        this.source = source;
+        this.target = target;
+        Map<Term, Integer> termNumbers = new HashMap<>();
+        this.targetTerms = new int[target.size()][];
+        for (int t = 0; t < target.size(); t++) {
+            List<Term> terms = target.get(t).getTerms();
+            this.targetTerms[t] = new int[terms.size()];
+            for (int i = 0; i < terms.size(); i++)
+                this.targetTerms[t][i] = termNumbers.computeIfAbsent(terms.get(i), k -> termNumbers.size());
+        }
+        this.termCount = termNumbers.size();
+
+        Map<String, BitSet> relationAtoms = new HashMap<>();
+        // <relation name and arity : target atoms of the relation>
+        Map<String, BitSet[]> relationIndexes = new HashMap<>();
+        Map<RelationalAtom, Integer> targetIndices = new IdentityHashMap<>();
+        for (int t = 0; t < target.size(); t++) {
+            RelationalAtom atom = target.get(t);
+            String relation = relationKey(atom);
+            relationAtoms.computeIfAbsent(relation, k -> new BitSet()).set(t);
+            BitSet[] index = relationIndexes.computeIfAbsent(relation, k -> new BitSet[atom.getTerms().size() * this.termCount]);
+            for (int i = 0; i < this.targetTerms[t].length; i++) {
+                int slot = i * this.termCount + this.targetTerms[t][i];
+                if (index[slot] == null)
+                    index[slot] = new BitSet();
+                index[slot].set(t);
+            }
+            targetIndices.put(atom, t);
+        }
+
+        Map<String, Integer> variableIds = new HashMap<>();
+        this.atomCandidates = new BitSet[source.size()];
+        this.atomVariables = new int[source.size()][];
+        this.firstPositions = new int[source.size()][];
+        this.identities = new int[source.size()];
+        for (int a = 0; a < source.size(); a++) {
+            RelationalAtom atom = source.get(a);
+            String relation = relationKey(atom);
+            BitSet candidates = relationAtoms.containsKey(relation) ? (BitSet) relationAtoms.get(relation).clone() : new BitSet();
+            BitSet[] index = relationIndexes.get(relation);
+            this.atomPositions.add(index);
+            List<Term> terms = atom.getTerms();
+            this.atomVariables[a] = new int[terms.size()];
+            this.firstPositions[a] = new int[terms.size()];
+            for (int i = 0; i < terms.size(); i++) {
+                Term term = terms.get(i);
+                this.firstPositions[a][i] = terms.indexOf(term);
+                if (term instanceof Variable && !fixedVariables.contains(((Variable) term).getName())) {
+                    Integer id = variableIds.get(((Variable) term).getName());
+                    if (id == null) {
+                        id = variableIds.size();
+                        variableIds.put(((Variable) term).getName(), id);
+                        this.variableAtoms.add(new ArrayList<>());
+                    }
+                    List<Integer> atoms = this.variableAtoms.get(id);
+                    if (atoms.isEmpty() || atoms.get(atoms.size() - 1) != a)
+                        atoms.add(a);
+                    this.atomVariables[a][i] = id;
+                } else {
+                    this.atomVariables[a][i] = -1;
+                    Integer number = termNumbers.get(term);
+                    BitSet atoms = index == null || number == null ? null : index[i * this.termCount + number];
+                    if (atoms == null)
+                        candidates.clear();
+                    else
+                        candidates.and(atoms);
+                }
+            }
+            this.atomCandidates[a] = candidates;
+            this.identities[a] = targetIndices.getOrDefault(atom, -1);
+        }
+    }
+
+    private static String relationKey(RelationalAtom atom) {
+        return atom.getName() + "/" + atom.getTerms().size();
+    }
+
+    /**
+     * @return the target atoms holding a term at a position of the relation of a source atom, or {@code null} if there is none.
+     */
+    private BitSet indexedAtoms(int a, int position, int term) {
+        BitSet[] index = this.atomPositions.get(a);
+        if (index == null)
+            return null;
+        return index[position * this.termCount + term];
+    }
+
+    /**
+     * Collect the connected component of a source atom, where two atoms are connected if they share a variable that is not fixed.
+     * A homomorphism from the other components may map them to themselves, so only the component of an atom has to be searched.
+     * @param atom the index of a source atom.
+     * @param activeSources the indices of the source atoms the component is restricted to.
+     * @return the indices of the atoms of the component.
+     */
+    public BitSet component(int atom, BitSet activeSources) {
+        BitSet component = new BitSet();
+        Deque<Integer> stack = new ArrayDeque<>();
+        component.set(atom);
+        stack.push(atom);
+        while (!stack.isEmpty()) {
+            int a = stack.pop();
+            for (int v : this.atomVariables[a]) {
+                if (v < 0)
+                    continue;
+                for (int b : this.variableAtoms.get(v)) {
+                    if (activeSources.get(b) && !component.get(b)) {
+                        component.set(b);
+                        stack.push(b);
+                    }
+                }
+            }
+        }
+        return component;
+    }
+
+    /**
+     * Search a homomorphism from some of the source atoms into some of the target atoms.
+     * The indexes are reused across searches, e.g. the minimization maps a smaller body into a different part of it in each search.
+     * @param activeSources the indices of the source atoms to be mapped.
+     * @param allowedTargets the indices of the target atoms they may be mapped to.
+     * @param start the {@link System#nanoTime()} the time budget is counted from.
+     * @param budgetNanos the time budget, in nanoseconds.
+     * @return for each active source atom the index of its image in the target atoms (-1 for the other ones),
+     *      or {@code null} if there is no homomorphism.
+     * @throws TimeBudgetExceeded if the time budget is exceeded.
+     */
+    public int[] find(BitSet activeSources, BitSet allowedTargets, long start, long budgetNanos) {
+        this.start = start;
+        this.budgetNanos = budgetNanos;
+        ArcConsistency arcConsistency = new ArcConsistency(activeSources, allowedTargets);
+        if (!arcConsistency.propagate())
+            return null;
+        return new Search(activeSources, arcConsistency.candidates, allowedTargets, Long.MAX_VALUE).run();
+    }
+
+    /**
+     * Search a homomorphism from some atoms into the same atoms without one of them, when the source and target atoms
+     * are the same list (e.g. to check whether an atom of a body is redundant).
+     * The given atoms must be the image of a homomorphism from all the source atoms, and a subset of the atoms of the previous call,
+     * as the atoms left by a minimization. Then there is a homomorphism from the given atoms into a part of them
+     * if and only if there is one from all the source atoms (through the given atoms), whose values are never dropped
+     * by the arc consistency of any of the previous calls. So the arc consistency is kept across the calls: it is only narrowed
+     * by the atoms removed since the previous call (from the targets and the sources), and by the removed atom until the end
+     * of the call. Only the component of the removed atom is then searched, the other atoms are mapped to themselves.
+     * @param atoms the indices of the atoms.
+     * @param removed the index of the atom left out of the targets.
+     * @param start the {@link System#nanoTime()} the time budget is counted from.
+     * @param budgetNanos the time budget, in nanoseconds.
+     * @return for each atom of the component of {@code removed} the index of its image (-1 for the other atoms),
+     *      or {@code null} if there is no homomorphism.
+     * @throws TimeBudgetExceeded if the time budget is exceeded.
+     */
+    public int[] findWithout(BitSet atoms, int removed, long start, long budgetNanos) {
+        this.start = start;
+        this.budgetNanos = budgetNanos;
+        if (this.folding == null) {
+            BitSet allSources = new BitSet();
+            allSources.set(0, this.source.size());
+            this.folding = new ArcConsistency(allSources, atoms);
+        } else {
+            this.folding.restrict(atoms);
+        }
+        if (!this.folding.propagate())
+            return null;
+        int mark = this.folding.mark();
+        try {
+            this.folding.dropTarget(removed);
+            if (!this.folding.propagate())
+                return null;
+            BitSet targets = (BitSet) atoms.clone();
+            targets.clear(removed);
+            return new Search(this.component(removed, atoms), this.folding.candidates, targets, Long.MAX_VALUE).run();
+        } finally {
+            this.folding.undo(mark);
+        }
+    }
+
+    /**
+     * Search a homomorphism from the component of a source atom into some atoms which maps the source atom to a given atom,
+     * when the source and target atoms are the same list (e.g. to find the automorphisms of a body).
+     * This is a shortcut for the minimization, so the search is only a forward checking abandoned after as many nodes
+     * as atoms in the component: it finds the homomorphisms where each atom is left with a single candidate,
+     * as the rotations of a cycle. It is only worth calling for {@link #similar(int, int, BitSet)} atoms.
+     * @param atoms the indices of the atoms, the sources are the component of {@code from} among them.
+     * @param from the index of the source atom.
+     * @param to the index of its image.
+     * @param start the {@link System#nanoTime()} the time budget is counted from.
+     * @param budgetNanos the time budget, in nanoseconds.
+     * @return for each atom of the component of {@code from} the index of its image (-1 for the other atoms),
+     *      or {@code null} if none has been found.
+     * @throws TimeBudgetExceeded if the time budget is exceeded.
+     */
+    public int[] findSymmetry(BitSet atoms, int from, int to, long start, long budgetNanos) {
+        this.start = start;
+        this.budgetNanos = budgetNanos;
+        BitSet component = this.component(from, atoms);
+        Search search = new Search(component, this.atomCandidates, atoms, SYMMETRY_SEARCH_NODES_PER_ATOM * (long) component.cardinality());
+        search.pin(from, to);
+        return search.run();
+    }
+
+    /**
+     * Check the necessary conditions for an automorphism of some atoms to map atom {@code a} to atom {@code b}, when the source
+     * and target atoms are the same list: both atoms must hold the same constants and fixed variables, and their variables
+     * must be repeated at the same positions and appear in as many of the given atoms.
+     * @param a the index of an atom.
+     * @param b the index of another atom.
+     * @param atoms the indices of the atoms.
+     * @return {@code false} if no automorphism of the atoms maps {@code a} to {@code b}.
+     */
+    public boolean similar(int a, int b, BitSet atoms) {
+        if (!this.atomCandidates[a].get(b) || !this.atomCandidates[b].get(a))
+            return false;
+        int[] aVariables = this.atomVariables[a];
+        int[] bVariables = this.atomVariables[b];
+        for (int i = 0; i < aVariables.length; i++) {
+            if ((aVariables[i] < 0) != (bVariables[i] < 0) || this.firstPositions[a][i] != this.firstPositions[b][i])
+                return false;
+            if (aVariables[i] >= 0 && this.degree(aVariables[i], atoms) != this.degree(bVariables[i], atoms))
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return the number of the given atoms containing a variable.
+     */
+    private int degree(int variable, BitSet atoms) {
+        int degree = 0;
+        for (int a : this.variableAtoms.get(variable))
+            if (atoms.get(a))
+                degree++;
+        return degree;
+    }
+
+    /**
+     * The state of one search.
+     */
+    private class Search {
+        private final BitSet activeSources;
+        private final int[] images = new int[variableAtoms.size()];
+        // the number of the image of each variable, -1 while it is unbound
+        private final BitSet[] candidates = new BitSet[source.size()];
+        private final int[] candidateCounts = new int[source.size()];
+        // the candidate target atoms of each source atom, and their number
+        private final int[] assignment = new int[source.size()];
+        // the image of each source atom, -1 while unassigned
+        private final int[] targetUses = new int[target.size()];
+        // the number of source atoms assigned to each target atom
+        private final int[] unassigned;
+        // the unassigned active atoms are the first ones, the atom assigned at each depth is moved after them
+        private final int[] unassignedIndices = new int[source.size()];
+        // the index of each active atom in this.unassigned
+        private int[] forced = new int[16];
+        private int forcedCount = 0;
+        // the atoms narrowed to a single candidate, assigned before the others
+        private final long nodeLimit;
+        private long nodes = 0;
+
+        Search(BitSet activeSources, BitSet[] initialCandidates, BitSet allowedTargets, long nodeLimit) {
+            this.activeSources = activeSources;
+            this.nodeLimit = nodeLimit;
+            this.unassigned = new int[activeSources.cardinality()];
+            int count = 0;
+            Arrays.fill(this.images, -1);
+            Arrays.fill(this.assignment, -1);
+            for (int a = activeSources.nextSetBit(0); a >= 0; a = activeSources.nextSetBit(a + 1)) {
+                this.candidates[a] = (BitSet) initialCandidates[a].clone();
+                this.candidates[a].and(allowedTargets);
+                this.candidateCounts[a] = this.candidates[a].cardinality();
+                this.unassignedIndices[a] = count;
+                this.unassigned[count++] = a;
+            }
+        }
+
+        /**
+         * Only allow one candidate for a source atom.
+         */
+        void pin(int a, int t) {
+            boolean allowed = this.candidates[a].get(t);
+            this.candidates[a].clear();
+            if (allowed)
+                this.candidates[a].set(t);
+            this.candidateCounts[a] = this.candidates[a].cardinality();
+            this.force(a);
+        }
+
+        /**
+         * Push an atom left with a single candidate, so it is assigned next.
+         */
+        private void force(int a) {
+            if (this.candidateCounts[a] != 1)
+                return;
+            if (this.forcedCount == this.forced.length)
+                this.forced = Arrays.copyOf(this.forced, 2 * this.forced.length);
+            this.forced[this.forcedCount++] = a;
+        }
+
+        /**
+         * @return the assignment, or {@code null} if there is none (or the node limit is exceeded).
+         */
+        int[] run() {
+            for (int a : this.unassigned)
+                if (this.candidateCounts[a] == 0)
+                    return null;
+            try {
+                return this.extend(this.unassigned.length) ? this.assignment : null;
+            } catch (NodeLimitExceeded e) {
+                return null;
+            }
+        }
+
+        /**
+         * Assign the remaining source atoms, the bindings and candidates are restored if it fails.
+         * @param unassignedCount the number of unassigned atoms, at the start of {@code this.unassigned}.
+         */
+        private boolean extend(int unassignedCount) {
+            if (unassignedCount == 0)
+                return true;
+            checkBudget();
+            if (++this.nodes > this.nodeLimit)
+                throw NODE_LIMIT_EXCEEDED;
+
+            // the most constrained atom first, an atom with a single candidate is found without a scan
+            int nextIndex = -1;
+            while (nextIndex < 0 && this.forcedCount > 0) {
+                int a = this.forced[--this.forcedCount];
+                if (this.isOpen(a) && this.candidateCounts[a] == 1)
+                    nextIndex = this.unassignedIndices[a];
+            }
+            if (nextIndex < 0) {
+                nextIndex = 0;
+                for (int i = 1; i < unassignedCount && this.candidateCounts[this.unassigned[nextIndex]] > 1; i++)
+                    if (this.candidateCounts[this.unassigned[i]] < this.candidateCounts[this.unassigned[nextIndex]])
+                        nextIndex = i;
+            }
+            int next = this.unassigned[nextIndex];
+            int last = this.unassigned[unassignedCount - 1];
+            this.unassigned[nextIndex] = last;
+            this.unassignedIndices[last] = nextIndex;
+            this.unassigned[unassignedCount - 1] = next;
+            this.unassignedIndices[next] = unassignedCount - 1;
+
+            // the targets already in the image first, then the atom itself, then the other targets
+            BitSet nextCandidates = this.candidates[next];
+            for (int t = nextCandidates.nextSetBit(0); t >= 0; t = nextCandidates.nextSetBit(t + 1))
+                if (this.targetUses[t] > 0 && this.tryAssign(next, t, unassignedCount - 1))
+                    return true;
+            int identity = identities[next];
+            boolean identityTried = identity >= 0 && nextCandidates.get(identity) && this.targetUses[identity] == 0;
+            if (identityTried && this.tryAssign(next, identity, unassignedCount - 1))
+                return true;
+            for (int t = nextCandidates.nextSetBit(0); t >= 0; t = nextCandidates.nextSetBit(t + 1))
+                if (this.targetUses[t] == 0 && !(identityTried && t == identity) && this.tryAssign(next, t, unassignedCount - 1))
+                    return true;
+            return false;
+        }
+
+        /**
+         * Map a source atom to a target atom, binding its unbound variables and narrowing the candidates of the atoms sharing them.
+         */
+        private boolean tryAssign(int a, int t, int unassignedCount) {
+            int[] terms = targetTerms[t];
+            int[] variables = atomVariables[a];
+            List<Integer> bound = new ArrayList<>();
+            boolean consistent = true;
+            // the candidates already narrowed through the index, only a variable repeated in the atom is left to check
+            for (int i = 0; i < variables.length && consistent; i++) {
+                int v = variables[i];
+                if (v < 0)
+                    continue;
+                if (this.images[v] < 0) {
+                    this.images[v] = terms[i];
+                    bound.add(v);
+                } else {
+                    consistent = this.images[v] == terms[i];
+                }
+            }
+            this.assignment[a] = t;
+            this.targetUses[t]++;
+
+            Map<Integer, BitSet> narrowed = new HashMap<>();
+            // <source atom : its candidates before this assignment>
+            for (int k = 0; k < bound.size() && consistent; k++) {
+                int v = bound.get(k);
+                for (int b : variableAtoms.get(v)) {
+                    if (!this.isOpen(b))
+                        continue;
+                    BitSet retained = (BitSet) this.candidates[b].clone();
+                    int[] bVariables = atomVariables[b];
+                    for (int i = 0; i < bVariables.length; i++) {
+                        if (bVariables[i] != v)
+                            continue;
+                        BitSet atoms = indexedAtoms(b, i, this.images[v]);
+                        if (atoms == null)
+                            retained.clear();
+                        else
+                            retained.and(atoms);
+                    }
+                    if (!this.narrow(b, retained, narrowed)) {
+                        consistent = false;
+                        break;
+                    }
+                }
+            }
+
+            if (consistent && this.extend(unassignedCount))
+                return true;
+            this.assignment[a] = -1;
+            this.targetUses[t]--;
+            for (Map.Entry<Integer, BitSet> entry : narrowed.entrySet()) {
+                this.candidates[entry.getKey()] = entry.getValue();
+                this.candidateCounts[entry.getKey()] = entry.getValue().cardinality();
+            }
+            for (int v : bound)
+                this.images[v] = -1;
+            return false;
+        }
+
+        /**
+         * @return whether a source atom is active and still unassigned.
+         */
+        private boolean isOpen(int a) {
+            return this.assignment[a] < 0 && this.activeSources.get(a);
+        }
+
+        /**
+         * Restrict the candidates of an atom, saving them first in {@code narrowed} so they can be restored.
+         * @return {@code false} if no candidate is left.
+         */
+        private boolean narrow(int a, BitSet retained, Map<Integer, BitSet> narrowed) {
+            int count = retained.cardinality();
+            if (count == this.candidateCounts[a])
+                return true;
+            if (!narrowed.containsKey(a))
+                narrowed.put(a, this.candidates[a]);
+            this.candidates[a] = retained;
+            this.candidateCounts[a] = count;
+            this.force(a);
+            return count > 0;
+        }
+    }
+
+    /**
+     * The arc consistent candidates of some source atoms in some target atoms.
+     * The terms a variable may be mapped to (its domain) are those held at its positions by some candidate of every atom
+     * containing it. For each atom, position and term, the candidates holding the term there are counted (their support):
+     * a term whose support falls to zero in some atom is removed from the domain of the variable, and a removed term
+     * drops the candidates holding it at the other atoms of the variable, which may in turn remove other terms.
+     * Each candidate is dropped at most once, so the time is linear in the number of candidates of all atoms,
+     * however far the removals propagate along the body.
+     * The dropped candidates and removed terms are recorded in a trail, so the candidates can be narrowed for a search
+     * and restored afterwards by {@link #undo(int)}.
+     */
+    private class ArcConsistency {
+        private final BitSet activeSources;
+        private BitSet allowedTargets;
+        // the targets not dropped by restrict()
+        private final BitSet[] candidates = new BitSet[source.size()];
+        private final int[] candidateCounts = new int[source.size()];
+        // the candidate target atoms of each active source atom, and their number
+        private final BitSet[] domains = new BitSet[variableAtoms.size()];
+        // the domain of each variable, null until the first active atom containing it is counted
+        private final int[][][] supports = new int[source.size()][][];
+        // supports[a][i][term] is the number of candidates of atom a holding the term at position i,
+        // only for the first position of each variable of an active atom
+        private int[] trail;
+        private int trailSize = 0;
+        // the pairs {atom, target} of the dropped candidates and {-1 - variable, term} of the removed terms, in order
+        private int propagated = 0;
+        // the entries of the trail before this one have been propagated
+        private boolean wipedOut = false;
+        // whether some active atom has no candidate left
+
+        ArcConsistency(BitSet activeSources, BitSet allowedTargets) {
+            this.activeSources = (BitSet) activeSources.clone();
+            this.allowedTargets = (BitSet) allowedTargets.clone();
+            for (int a = activeSources.nextSetBit(0); a >= 0; a = activeSources.nextSetBit(a + 1)) {
+                int[] aVariables = atomVariables[a];
+                BitSet aCandidates = (BitSet) atomCandidates[a].clone();
+                aCandidates.and(allowedTargets);
+                // a candidate holding different terms at the positions of a repeated variable has no support
+                for (int t = aCandidates.nextSetBit(0); t >= 0; t = aCandidates.nextSetBit(t + 1))
+                    for (int i = 0; i < aVariables.length; i++)
+                        if (aVariables[i] >= 0 && targetTerms[t][i] != targetTerms[t][firstPositions[a][i]])
+                            aCandidates.clear(t);
+                this.candidates[a] = aCandidates;
+                this.candidateCounts[a] = aCandidates.cardinality();
+                this.wipedOut |= this.candidateCounts[a] == 0;
+                this.supports[a] = new int[aVariables.length][];
+                for (int i = 0; i < aVariables.length; i++) {
+                    int v = aVariables[i];
+                    if (v < 0 || firstPositions[a][i] != i)
+                        continue;
+                    this.supports[a][i] = new int[termCount];
+                    BitSet held = new BitSet();
+                    for (int t = aCandidates.nextSetBit(0); t >= 0; t = aCandidates.nextSetBit(t + 1)) {
+                        this.supports[a][i][targetTerms[t][i]]++;
+                        held.set(targetTerms[t][i]);
+                    }
+                    if (this.domains[v] == null)
+                        this.domains[v] = held;
+                    else
+                        this.domains[v].and(held);
+                }
+            }
+            // room for a pair per candidate, most of the candidates are dropped when the removals propagate far
+            int candidateTotal = 0;
+            for (int a = activeSources.nextSetBit(0); a >= 0; a = activeSources.nextSetBit(a + 1))
+                candidateTotal += this.candidateCounts[a];
+            this.trail = new int[2 * candidateTotal + 64];
+
+            // the candidates holding a term outside a domain, the terms they were the last support of are propagated later
+            for (int a = activeSources.nextSetBit(0); a >= 0; a = activeSources.nextSetBit(a + 1)) {
+                int[] aVariables = atomVariables[a];
+                BitSet aCandidates = this.candidates[a];
+                for (int t = aCandidates.nextSetBit(0); t >= 0; t = aCandidates.nextSetBit(t + 1)) {
+                    for (int i = 0; i < aVariables.length; i++) {
+                        if (this.supports[a][i] != null && !this.domains[aVariables[i]].get(targetTerms[t][i])) {
+                            this.drop(a, t);
+                            break;
+                        }
+                    }
+                }
+            }
+        }
+
+        /**
+         * Drop the candidates of the terms removed from the domains, until none is left to propagate or an atom has no candidate.
+         * @return {@code false} if some active atom has no candidate left.
+         */
+        boolean propagate() {
+            while (!this.wipedOut && this.propagated < this.trailSize) {
+                int entry = this.trail[this.propagated];
+                int term = this.trail[this.propagated + 1];
+                this.propagated += 2;
+                if (entry >= 0)
+                    continue;
+                checkBudget();
+                int v = -1 - entry;
+                for (int b : variableAtoms.get(v)) {
+                    if (!this.activeSources.get(b))
+                        continue;
+                    int[] bVariables = atomVariables[b];
+                    for (int i = 0; i < bVariables.length; i++) {
+                        if (bVariables[i] != v || this.supports[b][i] == null || this.supports[b][i][term] == 0)
+                            continue;
+                        BitSet holding = indexedAtoms(b, i, term);
+                        for (int t = holding.nextSetBit(0); t >= 0; t = holding.nextSetBit(t + 1))
+                            if (this.candidates[b].get(t))
+                                this.drop(b, t);
+                    }
+                }
+            }
+            return !this.wipedOut;
+        }
+
+        /**
+         * Drop a target atom from the candidates of all active atoms, to be propagated.
+         */
+        void dropTarget(int t) {
+            for (int a = this.activeSources.nextSetBit(0); a >= 0; a = this.activeSources.nextSetBit(a + 1))
+                if (this.candidates[a].get(t))
+                    this.drop(a, t);
+        }
+
+        /**
+         * Restrict the active source atoms and the target atoms to the given ones, when the source and target atoms
+         * are the same list. The candidates of the target atoms left out are dropped, to be propagated.
+         */
+        void restrict(BitSet atoms) {
+            this.activeSources.and(atoms);
+            BitSet dropped = (BitSet) this.allowedTargets.clone();
+            dropped.andNot(atoms);
+            for (int t = dropped.nextSetBit(0); t >= 0; t = dropped.nextSetBit(t + 1))
+                this.dropTarget(t);
+            this.allowedTargets.and(atoms);
+        }
+
+        /**
+         * Drop a candidate of an atom, removing the terms it was the last support of.
+         */
+        private void drop(int a, int t) {
+            this.candidates[a].clear(t);
+            if (--this.candidateCounts[a] == 0)
+                this.wipedOut = true;
+            this.record(a, t);
+            int[] aVariables = atomVariables[a];
+            for (int i = 0; i < aVariables.length; i++) {
+                if (this.supports[a][i] == null)
+                    continue;
+                int term = targetTerms[t][i];
+                if (--this.supports[a][i][term] == 0 && this.domains[aVariables[i]].get(term)) {
+                    this.domains[aVariables[i]].clear(term);
+                    this.record(-1 - aVariables[i], term);
+                }
+            }
+        }
+
+        private void record(int first, int second) {
+            if (this.trailSize == this.trail.length)
+                this.trail = Arrays.copyOf(this.trail, 2 * this.trail.length);
+            this.trail[this.trailSize++] = first;
+            this.trail[this.trailSize++] = second;
+        }
+
+        /**
+         * @return the current state, to be restored by {@link #undo(int)}; all the changes must have been propagated.
+         */
+        int mark() {
+            return this.trailSize;
+        }
+
+        /**
+         * Restore the candidates and domains of a state returned by {@link #mark()}.
+         */
+        void undo(int mark) {
+            while (this.trailSize > mark) {
+                int second = this.trail[--this.trailSize];
+                int first = this.trail[--this.trailSize];
+                if (first < 0) {
+                    this.domains[-1 - first].set(second);
+                    continue;
+                }
+                this.candidates[first].set(second);
+                this.candidateCounts[first]++;
+                int[] variables = atomVariables[first];
+                for (int i = 0; i < variables.length; i++)
+                    if (this.supports[first][i] != null)
+                        this.supports[first][i][targetTerms[second][i]]++;
+            }
+            this.propagated = mark;
+            this.wipedOut = false;
+        }
+    }
+
+    /**
+     * Throw {@link TimeBudgetExceeded} if the time budget is exceeded, the clock is only read every 256 calls.
+     */
+    private void checkBudget() {
+        if ((++this.nodeCount & 0xFF) == 0 && System.nanoTime() - this.start > this.budgetNanos)
+            throw new TimeBudgetExceeded();
+    }
+
+    /**
+     * Thrown (as a single instance, without stack trace) when a search exceeds its node limit.
+     */
+    private static class NodeLimitExceeded extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        NodeLimitExceeded() {
+            super(null, null, false, false);
+        }
+    }
+
+    private static final NodeLimitExceeded NODE_LIMIT_EXCEEDED = new NodeLimitExceeded();
+
+    /**
+     * Unit test of HomomorphismSolver, output is printed to the console.
+     * First, random small bodies are minimized by {@link CQMinimizer#minimize(Query, long)}, and the result is checked
+     * with a plain backtracking: the body must map into its core, and the core must not map into itself without one of its atoms.
+     * Then the minimization of large bodies is timed, and the size of their core is checked:
+     *      a directed cycle (its own core), a directed cycle with a pendant edge at each node (which fold into the cycle),
+     *      a path and a fan-out next to a labelled cycle of 7 atoms (which fold into the cycle, the core has 8 atoms),
+     *      and random graphs with redundant edges (the size of the core is only printed).
+     * @param args Command line inputs, can be empty.
+     */
+    public static void main(String[] args) {
+        Random random = new Random(42);
+        int checked = 0;
+        int removed = 0;
+        for (int n = 0; n < 5000; n++) {
+            int variableCount = 2 + random.nextInt(5);
+            List<Atom> body = new ArrayList<>();
+            for (int a = 1 + random.nextInt(8); a > 0; a--) {
+                List<Term> terms = new ArrayList<>();
+                for (int i = random.nextBoolean() ? 3 : 2; i > 0; i--)
+                    terms.add(random.nextInt(8) == 0 ? new IntegerConstant(random.nextInt(2)) : new Variable("v" + random.nextInt(variableCount)));
+                body.add(new RelationalAtom(terms.size() == 3 ? "S" : "R", terms));
+            }
+            List<Term> head = new ArrayList<>();
+            Set<String> fixedVariables = new HashSet<>();
+            for (int v = 0; v < variableCount; v++) {
+                if (random.nextInt(4) == 0) {
+                    head.add(new Variable("v" + v));
+                    fixedVariables.add("v" + v);
+                }
+            }
+            CQMinimizer.Minimization minimization = CQMinimizer.minimize(new Query(new RelationalAtom("Q", head), body), Long.MAX_VALUE);
+            List<RelationalAtom> atoms = relationalAtoms(body);
+            List<RelationalAtom> core = relationalAtoms(minimization.query.getBody());
+            if (!mapsInto(atoms, core, fixedVariables, 0, new HashMap<>()))
+                System.out.println("Not equivalent: " + body + " -> " + core);
+            for (int a = 0; a < core.size(); a++) {
+                List<RelationalAtom> smaller = new ArrayList<>(core);
+                smaller.remove(a);
+                if (mapsInto(core, smaller, fixedVariables, 0, new HashMap<>()))
+                    System.out.println("Not minimal: " + body + " -> " + core);
+            }
+            checked++;
+            removed += minimization.removedAtoms;
+        }
+        System.out.println(checked + " random bodies checked, " + removed + " atoms removed");
+
+        for (int size : new int[]{100, 300}) {
+            List<Atom> body = new ArrayList<>();
+            for (int i = 0; i < size; i++)
+                body.add(edge("c" + i, "c" + (i + 1) % size));
+            printMinimization("Cycle of " + size, body, new ArrayList<>(), size);
+
+            for (int i = 0; i < size; i++)
+                body.add(edge("c" + i, "p" + i));
+            Collections.shuffle(body, random);
+            printMinimization("Cycle of " + size + " with pendant edges", body, new ArrayList<>(), size);
+
+            body = new ArrayList<>();
+            for (int i = 0; i < 7; i++)
+                body.add(edge("c" + i, "c" + (i + 1) % 7));
+            for (int i = 0; i < size; i++)
+                body.add(edge("p" + i, "p" + (i + 1)));
+            for (int i = 0; i < size / 2; i++)
+                body.add(edge("c" + i % 7, "f" + i));
+            body.add(new RelationalAtom("L", Arrays.asList(new Variable("c0"), new IntegerConstant(3))));
+            Collections.shuffle(body, random);
+            printMinimization("Path and fan-out of " + body.size(), body, Collections.singletonList(new Variable("c0")), 8);
+
+            body = new ArrayList<>();
+            for (int i = 0; i < size; i++)
+                body.add(edge("g" + random.nextInt(size / 2), "g" + random.nextInt(size / 2)));
+            for (int i = 0; i < size / 3; i++)
+                body.add(edge("g" + random.nextInt(size / 2), "h" + i));
+            printMinimization("Random graph of " + body.size(), body, Arrays.asList(new Variable("g0"), new Variable("g1")), -1);
+        }
+    }
+
+    private static RelationalAtom edge(String from, String to) {
+        return new RelationalAtom("E", Arrays.asList(new Variable(from), new Variable(to)));
+    }
+
+    private static List<RelationalAtom> relationalAtoms(List<Atom> body) {
+        List<RelationalAtom> atoms = new ArrayList<>();
+        for (Atom atom : body)
+            if (atom instanceof RelationalAtom)
+                atoms.add((RelationalAtom) atom);
+        return atoms;
+    }
+
+    /**
+     * Minimize a body, and print the time spent and the size of its core.
+     * @param expectedSize the expected number of atoms in the core, or -1 if it is unknown.
+     */
+    private static void printMinimization(String name, List<Atom> body, List<Term> head, int expectedSize) {
+        CQMinimizer.Minimization minimization = CQMinimizer.minimize(new Query(new RelationalAtom("Q", head), body), Long.MAX_VALUE);
+        int size = body.size() - minimization.removedAtoms;
+        System.out.println(name + ": " + minimization + ", " + size + " atoms left"
+                + (expectedSize < 0 || size == expectedSize ? "" : " (expected " + expectedSize + ")"));
+    }
+
+    /**
+     * A plain backtracking search of a homomorphism, which maps the source atoms in order.
+     */
+    private static boolean mapsInto(List<RelationalAtom> source, List<RelationalAtom> target, Set<String> fixedVariables,
+                                    int index, Map<String, Term> images) {
+        if (index == source.size())
+            return true;
+        RelationalAtom atom = source.get(index);
+        for (RelationalAtom image : target) {
+            if (!image.getName().equals(atom.getName()) || image.getTerms().size() != atom.getTerms().size())
+                continue;
+            Map<String, Term> extended = new HashMap<>(images);
+            boolean consistent = true;
+            for (int i = 0; i < atom.getTerms().size() && consistent; i++) {
+                Term term = atom.getTerms().get(i);
+                Term imageTerm = image.getTerms().get(i);
+                if (term instanceof Variable && !fixedVariables.contains(((Variable) term).getName())) {
+                    Term previous = extended.putIfAbsent(((Variable) term).getName(), imageTerm);
+                    consistent = previous == null || previous.equals(imageTerm);
+                } else {
+                    consistent = term.equals(imageTerm);
+                }
+            }
+            if (consistent && mapsInto(source, target, fixedVariables, index + 1, extended))
+                return true;
+        }
+        return false;
+    }
+}
@@ -0,0 +1,321 @@
+package ed.inf.adbs.minibase;
+
+import ed.inf.adbs.minibase.base.*;
+import ed.inf.adbs.minibase.operator.CompiledComparison;
+import ed.inf.adbs.minibase.operator.DBCatalog;
+
+import java.util.*;
+
+/**
+ * Choose the order in which the relational atoms of a query body are joined in the left-deep plan of {@link Minibase}.
+ *
+ * The cost of an order is the sum of the estimated sizes of its intermediate join results.
+ * The size of a set of atoms is estimated from the relation cardinalities and the number of distinct values of columns
+ * provided by {@link DBCatalog}:
+ *      (1) each atom is reduced by the conditions on its own variables: the comparisons with a constant are estimated
+ *          by {@link DBCatalog#estimateSelectivity} (using the histograms of analyzed relations), the other ones
+ *          by {@code 1 / ndv} for '=' (including a variable repeated in the atom) and {@link #INEQUALITY_SELECTIVITY} otherwise;
+ *      (2) a variable shared by k atoms divides the product of their sizes by the k-1 largest ndv of that variable;
+ *      (3) the explicit join conditions across atoms are applied in the same way as (1).
+ * Since the estimation only depends on the set of atoms, the best order of each set can be found by dynamic programming
+ * over the subsets of atoms (for at most {@link #DP_ATOM_LIMIT} atoms). Larger queries are ordered greedily,
+ * always appending the atom that produces the smallest intermediate result.
+ *
+ * In both cases an atom can only be appended if it is connected to the previous atoms (by a shared variable or a join condition),
+ * unless no remaining atom is connected, so a cross product is only planned when the join graph is disconnected.
+ * Notice the output columns are aligned by variable names (see {@link ed.inf.adbs.minibase.operator.ProjectOperator}),
+ * so the query result does not depend on the chosen order.
+ */
+public class JoinOrderPlanner {
+
+    /**
+     * The maximum number of atoms ordered by dynamic programming.
+     */
+    public static final int DP_ATOM_LIMIT = 12;
+
+    private static final double INEQUALITY_SELECTIVITY = 1.0 / 3;
+
+    private final List<RelationalAtom> atoms;
+
+    private final double[] atomSizes;
+    // the estimated number of tuples of each atom, after the conditions on its own variables
+    private final List<Map<String, Double>> atomDistinctValues = new ArrayList<>();
+    // the estimated number of distinct values of each variable in each atom
+    private final long[] variableAtoms;
+    private final List<String> variables = new ArrayList<>();
+    // variableAtoms[v] is the bitmask of atoms containing variables[v]
+    private final long[] neighbours;
+    // neighbours[i] is the bitmask of atoms connected to atom i
+    private final List<ComparisonAtom> joinConditions = new ArrayList<>();
+    private final List<long[]> joinConditionAtoms = new ArrayList<>();
+    // the conditions over variables of more than one atom, and the bitmasks of atoms containing each of their terms
+
+    /**
+     * Collect the statistics of all atoms.
+     * @param atoms the relational atoms in query body, where the constants have been replaced by variables.
+     * @param conditions the comparison atoms in query body.
+     */
+    public JoinOrderPlanner(List<RelationalAtom> atoms, List<ComparisonAtom> conditions) {
+        this.atoms = atoms;
+        this.atomSizes = new double[atoms.size()];
+        this.neighbours = new long[atoms.size()];
+
+        DBCatalog catalog = DBCatalog.getInstance();
+        for (int i = 0; i < atoms.size(); i++) {
+            RelationalAtom atom = atoms.get(i);
+            double size = catalog.estimateCardinality(atom.getName());
+            // the ndv of each variable in this atom, a repeated variable is an equality condition within the atom
+            Map<String, Double> distinctValues = new HashMap<>();
+            for (int c = 0; c < atom.getTerms().size(); c++) {
+                String var = ((Variable) atom.getTerms().get(c)).getName();
+                double ndv = catalog.estimateDistinctValues(atom.getName(), c);
+                Double previous = distinctValues.get(var);
+                if (previous != null) {
+                    size /= Math.max(previous, ndv);
+                    ndv = Math.min(previous, ndv);
+                }
+                distinctValues.put(var, ndv);
+            }
+            this.atomDistinctValues.add(distinctValues);
+            this.atomSizes[i] = size;
+        }
+
+        // split the conditions into the ones on a single atom and the join conditions
+        for (ComparisonAtom condition : conditions) {
+            long atoms1 = this.atomsOf(condition.getTerm1());
+            long atoms2 = this.atomsOf(condition.getTerm2());
+            int single = this.singleAtomContaining(condition);
+            if (single >= 0) {
+                this.atomSizes[single] *= this.selectivityInAtom(condition, single);
+            } else if (atoms1 != 0 && atoms2 != 0) {
+                this.joinConditions.add(condition);
+                this.joinConditionAtoms.add(new long[]{atoms1, atoms2});
+                for (int i = 0; i < atoms.size(); i++) {
+                    if ((atoms1 & (1L << i)) != 0)
+                        this.neighbours[i] |= atoms2;
+                    if ((atoms2 & (1L << i)) != 0)
+                        this.neighbours[i] |= atoms1;
+                }
+            }
+        }
+        for (int i = 0; i < atoms.size(); i++) {
+            this.atomSizes[i] = Math.max(1, this.atomSizes[i]);
+            for (Map.Entry<String, Double> entry : this.atomDistinctValues.get(i).entrySet())
+                entry.setValue(Math.max(1, Math.min(entry.getValue(), this.atomSizes[i])));
+        }
+
+        // collect the atoms containing each variable, the atoms sharing a variable are connected
+        for (RelationalAtom atom : atoms)
+            for (Term term : atom.getTerms())
+                if (!this.variables.contains(((Variable) term).getName()))
+                    this.variables.add(((Variable) term).getName());
+        this.variableAtoms = new long[this.variables.size()];
+        for (int v = 0; v < this.variables.size(); v++) {
+            for (int i = 0; i < atoms.size(); i++)
+                if (this.atomDistinctValues.get(i).containsKey(this.variables.get(v)))
+                    this.variableAtoms[v] |= 1L << i;
+            for (int i = 0; i < atoms.size(); i++)
+                if ((this.variableAtoms[v] & (1L << i)) != 0)
+                    this.neighbours[i] |= this.variableAtoms[v] & ~(1L << i);
+        }
+    }
+
+    /**
+     * Find the join order with the minimal estimated cost.
+     * @return the relational atoms in join order, a new list.
+     */
+    public List<RelationalAtom> order() {
+        int n = this.atoms.size();
+        if (n <= 2 || n > Long.SIZE - 1)
+            return n == 2 ? this.orderPair() : new ArrayList<>(this.atoms);
+        int[] order = n <= DP_ATOM_LIMIT ? this.orderByDynamicProgramming() : this.orderGreedily();
+        List<RelationalAtom> result = new ArrayList<>();
+        for (int i : order)
+            result.add(this.atoms.get(i));
+        return result;
+    }
+
+    /**
+     * Estimate the number of tuples in the join result of a set of atoms.
+     * @param atomSet the bitmask of atoms.
+     * @return the estimated number of tuples, at least 1.
+     */
+    public double estimateSize(long atomSet) {
+        double size = 1;
+        for (int i = 0; i < this.atoms.size(); i++)
+            if ((atomSet & (1L << i)) != 0)
+                size *= this.atomSizes[i];
+        // each shared variable keeps one value out of the ndv of all but the atom with the fewest values
+        for (int v = 0; v < this.variables.size(); v++) {
+            long containing = this.variableAtoms[v] & atomSet;
+            if (Long.bitCount(containing) < 2)
+                continue;
+            double minimum = Double.MAX_VALUE;
+            for (int i = 0; i < this.atoms.size(); i++) {
+                if ((containing & (1L << i)) == 0)
+                    continue;
+                double ndv = this.atomDistinctValues.get(i).get(this.variables.get(v));
+                size /= ndv;
+                minimum = Math.min(minimum, ndv);
+            }
+            size *= minimum;
+        }
+        // a join condition applies once both of its variables are available
+        for (int k = 0; k < this.joinConditions.size(); k++) {
+            long[] required = this.joinConditionAtoms.get(k);
+            if ((required[0] & atomSet) != 0 && (required[1] & atomSet) != 0)
+                size *= this.selectivity(this.joinConditions.get(k), atomSet);
+        }
+        return Math.max(1, size);
+    }
+
+    /**
+     * Two atoms are joined by a single join, start from the smaller one (whose output is produced first by the join).
+     */
+    private List<RelationalAtom> orderPair() {
+        List<RelationalAtom> result = new ArrayList<>(this.atoms);
+        if (this.atomSizes[1] < this.atomSizes[0])
+            Collections.reverse(result);
+        return result;
+    }
+
+    private int[] orderByDynamicProgramming() {
+        int n = this.atoms.size();
+        int full = (1 << n) - 1;
+        double[] cost = new double[full + 1];
+        int[] last = new int[full + 1];
+        Arrays.fill(cost, Double.MAX_VALUE);
+        for (int i = 0; i < n; i++)
+            cost[1 << i] = 0;
+        for (int set = 1; set <= full; set++) {
+            if (Integer.bitCount(set) < 2)
+                continue;
+            double size = -1;
+            for (int i = 0; i < n; i++) {
+                int previous = set & ~(1 << i);
+                if ((set & (1 << i)) == 0 || cost[previous] == Double.MAX_VALUE || !this.canAppend(previous, i))
+                    continue;
+                if (size < 0)
+                    size = this.estimateSize(set);
+                // the first two atoms are ordered by size, the other sets have the same cost for all last atoms
+                double candidate = cost[previous] + size + (Integer.bitCount(set) == 2 ? this.atomSizes[Integer.numberOfTrailingZeros(previous)] : 0);
+                if (candidate < cost[set]) {
+                    cost[set] = candidate;
+                    last[set] = i;
+                }
+            }
+        }
+        int[] order = new int[n];
+        for (int set = full, k = n - 1; k >= 0; k--) {
+            order[k] = k == 0 ? Integer.numberOfTrailingZeros(set) : last[set];
+            set &= ~(1 << order[k]);
+        }
+        return order;
+    }
+
+    private int[] orderGreedily() {
+        int n = this.atoms.size();
+        int[] order = new int[n];
+        long set = 0;
+        for (int k = 0; k < n; k++) {
+            int best = -1;
+            double bestSize = Double.MAX_VALUE;
+            for (int i = 0; i < n; i++) {
+                if ((set & (1L << i)) != 0 || (k > 0 && !this.canAppend(set, i)))
+                    continue;
+                double size = k == 0 ? this.atomSizes[i] : this.estimateSize(set | (1L << i));
+                if (size < bestSize) {
+                    bestSize = size;
+                    best = i;
+                }
+            }
+            order[k] = best;
+            set |= 1L << best;
+        }
+        return order;
+    }
+
+    /**
+     * An atom can be appended to a set of atoms if it is connected to the set,
+     * or if no atom outside the set is connected to it (then a cross product cannot be avoided).
+     */
+    private boolean canAppend(long atomSet, int atom) {
+        if ((this.neighbours[atom] & atomSet) != 0)
+            return true;
+        for (int i = 0; i < this.atoms.size(); i++)
+            if ((atomSet & (1L << i)) != 0 && (this.neighbours[i] & ~atomSet) != 0)
+                return false;
+        return true;
+    }
+
+    /**
+     * Estimate the fraction of tuples of an atom satisfying a condition on its own variables.
+     * A comparison with a constant is estimated by the statistics of the relation, see {@link DBCatalog#estimateSelectivity}.
+     */
+    private double selectivityInAtom(ComparisonAtom condition, int single) {
+        RelationalAtom atom = this.atoms.get(single);
+        Term variable = condition.getTerm1();
+        Term constant = condition.getTerm2();
+        ComparisonOperator op = condition.getOp();
+        if (constant instanceof Variable && variable instanceof Constant) {
+            // move the variable to the left side, e.g. '5 < x' becomes 'x > 5'
+            variable = condition.getTerm2();
+            constant = condition.getTerm1();
+            op = CompiledComparison.reverse(op);
+        }
+        if (!(variable instanceof Variable) || !(constant instanceof Constant))
+            return this.selectivity(condition, 1L << single);
+        int column = atom.getTerms().indexOf(variable);
+        return DBCatalog.getInstance().estimateSelectivity(atom.getName(), column, op, (Constant) constant);
+    }
+
+    /**
+     * Estimate the fraction of tuples satisfying a condition, in the join result of a set of atoms.
+     */
+    private double selectivity(ComparisonAtom condition, long atomSet) {
+        if (condition.getOp() != ComparisonOperator.EQ)
+            return INEQUALITY_SELECTIVITY;
+        double ndv = Math.max(this.distinctValues(condition.getTerm1(), atomSet), this.distinctValues(condition.getTerm2(), atomSet));
+        return 1 / Math.max(1, ndv);
+    }
+
+    /**
+     * @return the fewest distinct values of a variable among the atoms in the set, 1 for constants.
+     */
+    private double distinctValues(Term term, long atomSet) {
+        if (!(term instanceof Variable))
+            return 1;
+        double ndv = Double.MAX_VALUE;
+        for (int i = 0; i < this.atoms.size(); i++) {
+            Double atomNdv = this.atomDistinctValues.get(i).get(((Variable) term).getName());
+            if ((atomSet & (1L << i)) != 0 && atomNdv != null)
+                ndv = Math.min(ndv, atomNdv);
+        }
+        return ndv == Double.MAX_VALUE ? 1 : ndv;
+    }
+
+    /**
+     * @return the bitmask of atoms containing the variable, 0 for constants.
+     */
+    private long atomsOf(Term term) {
+        long mask = 0;
+        if (term instanceof Variable)
+            for (int i = 0; i < this.atoms.size(); i++)
+                if (this.atomDistinctValues.get(i).containsKey(((Variable) term).getName()))
+                    mask |= 1L << i;
+        return mask;
+    }
+
+    /**
+     * @return an atom containing all variables of the condition, or -1 if there is none.
+     */
+    private int singleAtomContaining(ComparisonAtom condition) {
+        for (int i = 0; i < this.atoms.size(); i++) {
+            Map<String, Double> distinctValues = this.atomDistinctValues.get(i);
+            if ((!(condition.getTerm1() instanceof Variable) || distinctValues.containsKey(((Variable) condition.getTerm1()).getName())) &&
+                    (!(condition.getTerm2() instanceof Variable) || distinctValues.containsKey(((Variable) condition.getTerm2()).getName())))
+                return i;
+        }
+        return -1;
+    }
+}
@@ -4,9 +4,19 @@ import ed.inf.adbs.minibase.base.*;
 import ed.inf.adbs.minibase.operator.*;
 import ed.inf.adbs.minibase.parser.QueryParser;
 
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
 
 /**
  * In-memory database system
@@ -14,10 +24,121 @@ import java.util.List;
  */
 public class Minibase {
 
+    /**
+     * The number of tuples a join operator may keep in memory.
+     * If the smaller join input is estimated to exceed this budget, a {@link SortMergeJoinOperator} is used
+     * (which spills sorted runs to disk) instead of a {@link HashJoinOperator}.
+     * The nested loop {@link JoinOperator} spills the materialized right child beyond this budget.
+     */
+    public static int joinMemoryBudget = SortMergeJoinOperator.DEFAULT_MEMORY_BUDGET;
+
+    /**
+     * The number of distinct tuples the {@link ProjectOperator} may keep in memory for duplicate elimination,
+     * the further distinct tuples are spilled to disk.
+     */
+    public static int distinctMemoryBudget = DistinctFilter.DEFAULT_MEMORY_BUDGET;
+
+    /**
+     * Whether the relational atoms are joined in the order chosen by {@link JoinOrderPlanner},
+     * otherwise they are joined in the order they appear in the query body.
+     */
+    public static boolean costBasedJoinOrder = true;
+
+    /**
+     * Whether the scan and join operators only emit the columns of the variables needed above them
+     * (see {@link #neededVariables}), otherwise every column is carried up to the projection.
+     */
+    public static boolean projectionPushdown = true;
+
+    /**
+     * Whether a query over a single relation is evaluated by a pipeline generated and compiled at query start
+     * (see {@link PipelineCompiler}), falling back to the operator tree if the plan is not supported.
+     */
+    public static boolean compiledPipelines = false;
+
+    /**
+     * The number of worker threads running the scans and hash join probes of a query (see {@link ParallelOperator}),
+     * 1 for serial execution.
+     */
+    public static int parallelism = 1;
+
+    /**
+     * The approximate number of bytes of the morsels a data file is split into for parallel execution.
+     */
+    public static int morselSize = MorselSource.DEFAULT_MORSEL_SIZE;
+
+    /**
+     * Whether the output of a parallel plan keeps the order of serial execution
+     * (the order of the leftmost relation), otherwise the morsels are output as soon as they are done.
+     */
+    public static boolean preserveOrder = false;
+
+    /**
+     * The number of groups each worker of a parallel SUM keeps in memory,
+     * the further partial groups are spilled to disk (see {@link ParallelAggregation}).
+     */
+    public static int aggregationMemoryBudget = ParallelAggregation.DEFAULT_MEMORY_BUDGET;
+
+    /**
+     * The number of threads scanning the build input of each hash join, gathered by an {@link ExchangeOperator},
+     * 1 to scan it on the thread of the join.
+     */
+    public static int exchangeParallelism = 1;
+
+    /**
+     * The number of queries evaluated at the same time in batch mode if virtual threads are not available (before Java 21,
+     * e.g. on the JDK 17 the project is built with), otherwise each query runs on its own virtual thread.
+     */
+    public static int batchThreads = Runtime.getRuntime().availableProcessors();
+
+    /**
+     * The number of bytes of decoded relations kept in memory across the queries of batch and server modes
+     * (see {@link RelationCache}), 0 to read the data files for every query. A single query does not use the cache.
+     */
+    public static long relationCacheBytes = RelationCache.DEFAULT_CAPACITY;
+
+    /**
+     * The number of bytes of query results kept in memory across the queries of batch and server modes
+     * (see {@link QueryResultCache}), 0 to evaluate every query. A single query does not use the cache.
+     */
+    public static long resultCacheBytes = QueryResultCache.DEFAULT_CAPACITY;
+
+    /**
+     * Whether the redundant relational atoms of a query are removed before it is planned (see {@link CQMinimizer#minimize}),
+     * the numbers of removed atoms and the time spent are summed over all the queries of the process
+     * (see {@link #getMinimizationStatistics()}), and printed after a single query or a batch.
+     */
+    public static boolean minimizeQueries = false;
+
+    /**
+     * The time budget of the minimization of a query in milliseconds, minimization is NP-hard in the number of atoms.
+     * The bodies of up to a few hundred atoms are usually minimized within the default budget;
+     * a larger body may be planned only partly minimized, which is counted in the minimization statistics.
+     */
+    public static long minimizationBudgetMillis = 1000;
+
+    private static final QueryResultCache resultCache = new QueryResultCache();
+    private static final CQMinimizer.Statistics minimizationStatistics = new CQMinimizer.Statistics();
+    // shared by all the queries evaluated by this process
+
     public static void main(String[] args) {
 
+        if (args.length == 4 && args[0].equals("--batch")) {
+            evaluateBatch(args[1], listQueryFiles(args[2]), args[3]);
+            return;
+        }
+        if ((args.length == 2 || args.length == 3) && args[0].equals("--server")) {
+            QueryServer server = new QueryServer(args[1]);
+            if (args.length == 3)
+                server.listen(Integer.parseInt(args[2]));
+            else
+                server.serveStandardStreams();
+            return;
+        }
         if (args.length != 3) {
             System.err.println("Usage: Minibase database_dir input_file output_file");
+            System.err.println("       Minibase --batch database_dir input_dir_or_list output_dir");
+            System.err.println("       Minibase --server database_dir [port]");
             return;
         }
 
@@ -26,48 +147,213 @@ public class Minibase {
         String outputFile = args[2];
 
         evaluateCQ(databaseDir, inputFile, outputFile);
+        if (minimizeQueries)
+            System.out.println(minimizationStatistics);
     }
 
     public static void evaluateCQ(String databaseDir, String inputFile, String outputFile) {
+        evaluateCQ(databaseDir, inputFile, outputFile, compiledPipelines);
+    }
+
+    /**
+     * Evaluate a query, choosing whether it may be run by a compiled pipeline.
+     * @param databaseDir the database directory.
+     * @param inputFile the query file.
+     * @param outputFile the output file.
+     * @param compilePipeline whether a query over a single relation is evaluated by a compiled pipeline
+     *                        ({@link PipelineCompiler}) instead of the interpreted operator tree, when supported.
+     */
+    public static void evaluateCQ(String databaseDir, String inputFile, String outputFile, boolean compilePipeline) {
+        DBCatalog.getInstance().init(databaseDir);
+        evaluateQuery(inputFile, outputFile, compilePipeline);
+    }
+
+    /**
+     * Evaluate many queries over the same database concurrently: virtual threads on Java 21+, a fixed pool of
+     * {@link #batchThreads} threads otherwise (see {@link #newBatchExecutor()}). The catalog is initialised once
+     * and shared by all queries, as are its cached estimations, the relation cache ({@link #relationCacheBytes})
+     * and the compiled pipelines, so the schema and the data files are not read again for each query.
+     * The result of a query file {@code name.txt} is written into {@code output_dir/name.csv},
+     * a failed query is reported and does not stop the others.
+     * @param databaseDir the database directory.
+     * @param inputFiles the query files.
+     * @param outputDir the directory of output files, created if it does not exist.
+     */
+    public static void evaluateBatch(String databaseDir, List<String> inputFiles, String outputDir) {
+        DBCatalog.getInstance().init(databaseDir);
+        DBCatalog.getInstance().getRelationCache().setCapacity(relationCacheBytes);
+        resultCache.setCapacity(resultCacheBytes);
+        new File(outputDir).mkdirs();
+        ExecutorService executor = newBatchExecutor();
+        for (String inputFile : inputFiles) {
+            String name = new File(inputFile).getName();
+            if (name.lastIndexOf('.') > 0)
+                name = name.substring(0, name.lastIndexOf('.'));
+            String outputFile = outputDir + File.separator + name + ".csv";
+            executor.submit(() -> evaluateQuery(inputFile, outputFile, compiledPipelines));
+        }
+        executor.shutdown();
         try {
-            DBCatalog dbc = DBCatalog.getInstance();
-            dbc.init(databaseDir);
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            executor.shutdownNow();
+        }
+        if (resultCacheBytes > 0)
+            System.out.println(resultCache);
+        if (minimizeQueries)
+            System.out.println(minimizationStatistics);
+    }
+
+    /**
+     * @return the cache of query results of batch and server modes.
+     */
+    public static QueryResultCache getResultCache() {
+        return resultCache;
+    }
+
+    /**
+     * @return the totals of the minimizations of the queries evaluated by this process (see {@link #minimizeQueries}).
+     */
+    public static CQMinimizer.Statistics getMinimizationStatistics() {
+        return minimizationStatistics;
+    }
+
+    /**
+     * Virtual threads on Java 21+, fixed pool otherwise. The virtual-thread executor is looked up by reflection,
+     * so that the code still compiles on older JDKs; on Java 17 the lookup always fails and the fixed pool is used.
+     * @return an executor running each task on a new virtual thread, or a pool of {@link #batchThreads} threads.
+     */
+    static ExecutorService newBatchExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newFixedThreadPool(Math.max(1, batchThreads));
+        }
+    }
+
+    /**
+     * List the query files of batch mode.
+     * @param input a directory, whose files are all taken in name order,
+     *              or a file listing the paths of query files, one per line.
+     * @return the paths of query files.
+     */
+    private static List<String> listQueryFiles(String input) {
+        List<String> inputFiles = new ArrayList<>();
+        File file = new File(input);
+        if (file.isDirectory()) {
+            File[] files = file.listFiles(File::isFile);
+            if (files != null) {
+                Arrays.sort(files);
+                for (File f : files)
+                    inputFiles.add(f.getPath());
+            }
+            return inputFiles;
+        }
+        try {
+            for (String line : Files.readAllLines(file.toPath()))
+                if (!line.trim().isEmpty())
+                    inputFiles.add(line.trim());
+        } catch (IOException e) {
+            System.err.println("Query list not readable: " + input);
+            e.printStackTrace();
+        }
+        return inputFiles;
+    }
 
+    /**
+     * Evaluate a query over the database of the initialised catalog, and write its result into the output file.
+     * @param inputFile the query file.
+     * @param outputFile the output file.
+     * @param compilePipeline whether the query may be evaluated by a compiled pipeline.
+     */
+    private static void evaluateQuery(String inputFile, String outputFile, boolean compilePipeline) {
+        try {
             Query query = QueryParser.parse(Paths.get(inputFile));
 //            System.out.println("Input query: " + query);
 
             // Build the query plan tree for the input query,
             // then execute the {@link Operator#dump(String)} method on root to get the query result
-            Operator queryPlan = buildQueryPlan(query);
+            Operator queryPlan = buildCachedQueryPlan(query, compilePipeline);
             if (queryPlan != null) {
-                queryPlan.dump(outputFile);
+                try {
+                    queryPlan.dump(outputFile);
+                } finally {
+                    // release the spill files and threads of a plan not run to its end
+                    queryPlan.close();
+                }
             } else {
                 System.out.println("-- Empty query --");
             }
 
         } catch (Exception e) {
-            System.err.println("Exception occurred during parsing");
+            System.err.println("Exception occurred during parsing " + inputFile);
             e.printStackTrace();
         }
     }
 
+    /**
+     * Build the query plan of a query, or an operator replaying its result if an equivalent query has been evaluated
+     * over the same data (see {@link QueryResultCache}). A plan built on a cache miss records its result as it is consumed.
+     * If {@link #minimizeQueries} is enabled, the query is minimized first, so that equivalent queries with redundant atoms
+     * share their cached result and the redundant joins are not evaluated.
+     * @param query a {@link Query} instance, represents a input query.
+     * @param compilePipeline whether a compiled pipeline may be used.
+     * @return the root of the query plan, or {@code null} for an empty query.
+     */
+    static Operator buildCachedQueryPlan(Query query, boolean compilePipeline) {
+        if (minimizeQueries) {
+            CQMinimizer.Minimization minimization = CQMinimizer.minimize(query, minimizationBudgetMillis);
+            minimizationStatistics.record(minimization);
+            query = minimization.query;
+        }
+        // the key is computed first, the planner rewrites the query
+        QueryResultCache.Key key = resultCache.key(query);
+        if (key != null) {
+            Operator cachedResult = resultCache.lookup(key);
+            if (cachedResult != null)
+                return cachedResult;
+        }
+        Operator queryPlan = buildQueryPlan(query, compilePipeline);
+        if (key == null || queryPlan == null)
+            return queryPlan;
+        return resultCache.record(key, queryPlan);
+    }
+
     /**
      * Build a query plan (as a left-deep join tree of {@link Operator} instances) for the input query.
-     * The {@code RelationalAtom} in the query body will be processed from left to right,
-     * building a tree in a Post-Order Traversal.
+     * The {@code RelationalAtom} in the query body will be processed in the join order chosen by {@link JoinOrderPlanner}
+     * (or from left to right if {@link #costBasedJoinOrder} is disabled), building a tree in a Post-Order Traversal.
      * For each {@code RelationalAtom}:
-     *      (1) Generate a {@link ScanOperator} for its target relation;
-     *      (2) Generate a {@link SelectOperator} above it, depending on the {@code ComparisonAtom} related to it;
-     *      (3) Join the roots of current subtree and the previous subtree on the right, using a {@link JoinOperator}.
+     *      (1) Generate a {@link ScanOperator} (or {@link ColumnarScanOperator}) for its target relation;
+     *      (2) Push the {@code ComparisonAtom} related to it only into the scan operator (see {@link ScanPredicate}),
+     *          instead of generating a {@link SelectOperator} above it, so that the rows are filtered on raw fields;
+     *      (3) Join the roots of current subtree and the previous subtree on the right, using a {@link HashJoinOperator}
+     *          if there is at least one equality key between them, or a nested loop {@link JoinOperator} otherwise.
+     *          If the smaller input of an equi-join is estimated (by the cost model of {@link JoinOrderPlanner})
+     *          to exceed {@link #joinMemoryBudget},
+     *          or both inputs are already ordered on a single join variable (see {@link DBCatalog#isSortedOn})
+     *          and the plan is run serially, a {@link SortMergeJoinOperator} is used instead of the hash join
+     *          (an input already ordered on the join variable is merged without being sorted).
+     *          Without equality key, a {@link BandJoinOperator} is used if some join condition is an inequality
+     *          (and the right subtree fits in the memory budget), so that the bounds are found by binary search.
+     * If {@link #projectionPushdown} is enabled, every scan and join only emits the variables still needed above it.
+     * If {@link #parallelism} is above 1, the join tree is built once per worker and run by a {@link ParallelOperator}
+     * (when its left spine is made of hash joins over a memory-mapped scan).
      * After all the body atoms are processed, one of {@link ProjectOperator}/{@link SumOperator}
      * will be built above the root of previous tree, depending on whether the query head contains {@link Sum} terms.
+     * The duplicate elimination of {@link ProjectOperator} is skipped if the projection keeps a key of every relation
+     * (see {@link #projectionKeepsKeys}).
+     * If {@code compilePipeline} is set and the body has a single relational atom, the whole plan is replaced by
+     * a {@link CompiledPipelineOperator} when {@link PipelineCompiler} supports the query.
      * @param query a {@link Query} instance, represents a input query.
+     * @param compilePipeline whether a compiled pipeline may be used.
      * @return the root of the query plan tree (whose nodes are {@link Operator} instances) of input query.
      */
-    private static Operator buildQueryPlan(Query query) {
+    static Operator buildQueryPlan(Query query, boolean compilePipeline) {
         // Use two list to store RelationAtoms and ComparisonAtoms separately
         // Later the script will build a new tree branch (starting from ScanOperator) for each RelationalAtom,
-        // and find the relative ComparisonAtoms for each ComparisonAtom, using these conditions in SelectOperator and JoinOperator.
+        // and find the relative ComparisonAtoms for each ComparisonAtom, using these conditions in ScanOperator and JoinOperator.
         List<RelationalAtom> relationalAtoms = new ArrayList<>();
         List<ComparisonAtom> selectConditions = new ArrayList<>();
 
@@ -109,10 +395,83 @@ public class Minibase {
             }
         }
 
-        // Generate the query plan tree
+        // A query over a single relation may be fused into one compiled loop, if the pipeline compiler supports it
+        if (compilePipeline && relationalAtoms.size() == 1) {
+            boolean distinct = !projectionKeepsKeys(query.getHead(), relationalAtoms, selectConditions);
+            Operator pipeline = PipelineCompiler.compile(relationalAtoms.get(0), selectConditions, query.getHead(),
+                    distinct, distinctMemoryBudget);
+            if (pipeline != null)
+                return pipeline;
+        }
+
+        // Choose the join order of the relational atoms, based on the estimated sizes of intermediate results
+        if (costBasedJoinOrder)
+            relationalAtoms = new JoinOrderPlanner(relationalAtoms, selectConditions).order();
+
+        // The variables needed above the whole plan: the head variables and the SUM argument
+        Set<String> headVariables = new HashSet<>();
+        for (Term term : query.getHead().getTerms()) {
+            if (term instanceof Variable)
+                headVariables.add(((Variable) term).getName());
+            else if (term instanceof AggregationTerm)
+                headVariables.add(((AggregationTerm) term).getVariable());
+        }
+
+        // Generate the query plan tree, copied for each worker if the plan is run in parallel
+        List<RelationalAtom> orderedAtoms = relationalAtoms;
+        Operator root = parallelism > 1
+                ? ParallelOperator.parallelize(() -> buildJoinTree(orderedAtoms, selectConditions, headVariables),
+                        parallelism, morselSize, preserveOrder)
+                : buildJoinTree(orderedAtoms, selectConditions, headVariables);
+
+        // Project operation & Aggregation operations
+        List<Term> headTerms = new ArrayList<>(query.getHead().getTerms());
+        Term lastHeadTerm = headTerms.get(headTerms.size() - 1);
+        // if the last query head term is aggregation, apply corresponding AggOperator (which implements
+        //      the basic functionality of ProjectOperator, and also deals with the aggregation operation)
+        // if the last query head is not aggregation, apply simple ProjectOperator
+        if (lastHeadTerm instanceof Sum) {
+            root = new SumOperator(root, query.getHead(), aggregationMemoryBudget);
+        } else {
+            boolean distinct = !projectionKeepsKeys(query.getHead(), relationalAtoms, selectConditions);
+            root = new ProjectOperator(root, query.getHead(), distinct, distinctMemoryBudget);
+        }
+
+        return root;
+    }
+
+    /**
+     * Scan the build input of a hash join by {@link #exchangeParallelism} threads, each reading a part of the file,
+     * their batches are gathered by an {@link ExchangeOperator}. The build input is read once, so the scans are not restarted.
+     * @param scan the scan operator of the relation.
+     * @param scanBuilder builds a new copy of the scan operator.
+     * @return the exchange, or {@code scan} if it is not scanned in parallel (see {@link ExchangeOperator#splitScan}).
+     */
+    private static Operator parallelScan(Operator scan, Supplier<Operator> scanBuilder) {
+        if (exchangeParallelism <= 1)
+            return scan;
+        List<Operator> producers = ExchangeOperator.splitScan(scan, scanBuilder, exchangeParallelism);
+        return producers.size() > 1 ? ExchangeOperator.gather(producers, ExchangeOperator.DEFAULT_QUEUE_CAPACITY) : scan;
+    }
+
+    /**
+     * Build the left-deep join tree of the relational atoms, in the given order (see {@link #buildQueryPlan}).
+     * @param relationalAtoms the relational atoms of query body, in join order.
+     * @param selectConditions the comparison atoms of query body.
+     * @param headVariables the variables of query head, including the argument of SUM.
+     * @return the root of the join tree.
+     */
+    private static Operator buildJoinTree(List<RelationalAtom> relationalAtoms, List<ComparisonAtom> selectConditions,
+                                          Set<String> headVariables) {
         Operator root = null;
         List<String> previousVariables = new ArrayList<>();
-        for (RelationalAtom rAtom : relationalAtoms) {
+        // the sizes of the join inputs are estimated by the cost model which has chosen the join order
+        JoinOrderPlanner sizeEstimator = relationalAtoms.size() < Long.SIZE
+                ? new JoinOrderPlanner(relationalAtoms, selectConditions) : null;
+        Set<String> leftOrder = new HashSet<>();
+        // the variables the left subtree is known to be ordered on
+        for (int atomIndex = 0; atomIndex < relationalAtoms.size(); atomIndex++) {
+            RelationalAtom rAtom = relationalAtoms.get(atomIndex);
             // subtreeVariables: Stores the appeared variable names in the previous built subtree,
             // it will be updated after each RelationalAtom is processed (i.e. the variables in it will be added into this list).
             // We may check whether some variables in ComparisonAtom are recorded in the list
@@ -122,15 +481,22 @@ public class Minibase {
                 if (term instanceof Variable) subtreeVariables.add(((Variable) term).getName());
             }
 
-            // Scan operation
-            Operator subtree = new ScanOperator(rAtom);
-
-            // Select operation
+            // Scan and select operation: the select conditions on this atom are pushed down into the scan operator,
+            // and checked on the raw fields (reads the columnar file of relation if it has been converted)
             List<ComparisonAtom> selectCompAtomList = new ArrayList<>();
             for (ComparisonAtom cAtom : selectConditions)
                 if (variableAllAppeared(cAtom, subtreeVariables))
                     selectCompAtomList.add(cAtom);
-            subtree = new SelectOperator(subtree, selectCompAtomList);
+            // only the columns needed by the other atoms, the join conditions and the head are emitted by the scan
+            Set<String> scanOutputVariables = null;
+            if (projectionPushdown) {
+                List<RelationalAtom> otherAtoms = new ArrayList<>(relationalAtoms);
+                otherAtoms.remove(atomIndex);
+                scanOutputVariables = neededVariables(headVariables, otherAtoms, selectConditions, subtreeVariables);
+            }
+            Set<String> scanVariables = scanOutputVariables;
+            Supplier<Operator> scanBuilder = () -> DBCatalog.getInstance().getScanOperator(rAtom, selectCompAtomList, scanVariables);
+            Operator subtree = scanBuilder.get();
 
             // Join operation
             List<String> mergedVariables = new ArrayList<>();
@@ -139,6 +505,7 @@ public class Minibase {
             if (root == null) {
                 // if this is the first branch of query plan tree, record it as root
                 root = subtree;
+                leftOrder = sortedVariables(rAtom);
             } else {
                 // if before this branch starting from the current RelationalAtom,
                 // there already exists a subtree at left side,
@@ -150,26 +517,189 @@ public class Minibase {
                             variableAllAppeared(cAtom, mergedVariables))
                         joinCompAtomList.add(cAtom);
                 }
-                root = new JoinOperator(root, subtree, joinCompAtomList);
+                // use a hash join whenever an equality key exists between the two subtrees
+                // (either a shared variable or an explicit '=' join condition), otherwise fall back to nested loop join
+                boolean hasEqualityKey = false;
+                for (String var : subtreeVariables)
+                    if (previousVariables.contains(var))
+                        hasEqualityKey = true;
+                for (ComparisonAtom cAtom : joinCompAtomList)
+                    if (cAtom.getOp() == ComparisonOperator.EQ)
+                        hasEqualityKey = true;
+                // the left subtree is the join of the previous atoms, the right subtree a single filtered relation
+                long leftCardinality = estimateJoinSize(sizeEstimator, relationalAtoms, 0, atomIndex);
+                long rightCardinality = estimateJoinSize(sizeEstimator, relationalAtoms, atomIndex, atomIndex + 1);
+                long smallerInput = Math.min(leftCardinality, rightCardinality);
+                // a merge of inputs already ordered on the join variable neither sorts nor builds a hash table,
+                // and its output stays ordered on the join variable
+                String mergeVariable = singleJoinVariable(rAtom, previousVariables, joinCompAtomList);
+                boolean leftOrdered = mergeVariable != null && leftOrder.contains(mergeVariable);
+                boolean rightOrdered = mergeVariable != null && sortedVariables(rAtom).contains(mergeVariable);
+                Set<String> joinOrder = new HashSet<>();
+                if (hasEqualityKey && (smallerInput > joinMemoryBudget || (leftOrdered && rightOrdered && parallelism <= 1))) {
+                    root = new SortMergeJoinOperator(root, subtree, joinCompAtomList, joinMemoryBudget, leftOrdered, rightOrdered);
+                    if (mergeVariable != null)
+                        joinOrder.add(mergeVariable);
+                } else if (hasEqualityKey) {
+                    // the output order is unknown, the hash table may be built on either input
+                    root = new HashJoinOperator(root, parallelScan(subtree, scanBuilder), joinCompAtomList);
+                } else if (hasInequality(joinCompAtomList) && rightCardinality <= joinMemoryBudget) {
+                    root = new BandJoinOperator(root, subtree, joinCompAtomList);
+                    joinOrder = leftOrder;
+                } else {
+                    root = new JoinOperator(root, subtree, joinCompAtomList, joinMemoryBudget);
+                }
+                leftOrder = joinOrder;
+                // drop the columns only used by this join, and by the previous ones
+                if (projectionPushdown)
+                    ((JoinOperator) root).projectOutput(neededVariables(headVariables,
+                            relationalAtoms.subList(atomIndex + 1, relationalAtoms.size()), selectConditions, mergedVariables));
             }
 
             // update variable list after two subtrees are joined
             previousVariables = mergedVariables;
         }
+        return root;
+    }
 
-        // Project operation & Aggregation operations
-        List<Term> headTerms = new ArrayList<>(query.getHead().getTerms());
-        Term lastHeadTerm = headTerms.get(headTerms.size() - 1);
-        // if the last query head term is aggregation, apply corresponding AggOperator (which implements
-        //      the basic functionality of ProjectOperator, and also deals with the aggregation operation)
-        // if the last query head is not aggregation, apply simple ProjectOperator
-        if (lastHeadTerm instanceof Sum) {
-            root = new SumOperator(root, query.getHead());
-        } else {
-            root = new ProjectOperator(root, query.getHead());
+    /**
+     * Estimate the number of tuples of the join of consecutive atoms, by {@link JoinOrderPlanner#estimateSize}.
+     * Without estimator (for a body of 64 atoms or more), the largest cardinality of their relations is used instead,
+     * since an equi-join usually does not produce more tuples than its larger input.
+     * @param sizeEstimator the estimator built on all the atoms, or {@code null}.
+     * @param relationalAtoms the relational atoms of query body, in join order.
+     * @param from the index of the first atom.
+     * @param to the index after the last atom.
+     * @return the estimated number of tuples.
+     */
+    private static long estimateJoinSize(JoinOrderPlanner sizeEstimator, List<RelationalAtom> relationalAtoms, int from, int to) {
+        if (sizeEstimator == null) {
+            long largest = 0;
+            for (int i = from; i < to; i++)
+                largest = Math.max(largest, DBCatalog.getInstance().estimateCardinality(relationalAtoms.get(i).getName()));
+            return largest;
         }
+        long atomSet = 0;
+        for (int i = from; i < to; i++)
+            atomSet |= 1L << i;
+        return (long) Math.min(Long.MAX_VALUE, sizeEstimator.estimateSize(atomSet));
+    }
 
-        return root;
+    /**
+     * @return the variables of a relational atom whose column the data file is ordered on (see {@link DBCatalog#isSortedOn}).
+     */
+    private static Set<String> sortedVariables(RelationalAtom rAtom) {
+        Set<String> variables = new HashSet<>();
+        List<Term> terms = rAtom.getTerms();
+        for (int c = 0; c < terms.size(); c++)
+            if (terms.get(c) instanceof Variable && DBCatalog.getInstance().isSortedOn(rAtom.getName(), c))
+                variables.add(((Variable) terms.get(c)).getName());
+        return variables;
+    }
+
+    /**
+     * Find the join variable when the only equality key of a join is a single variable shared by both subtrees,
+     * so that an input ordered on that variable is also ordered on the key of a {@link SortMergeJoinOperator}.
+     * @param rAtom the relational atom of the right subtree.
+     * @param previousVariables the variables of the left subtree.
+     * @param joinConditions the explicit join conditions.
+     * @return the join variable, or {@code null} if the equality key is not a single shared variable.
+     */
+    private static String singleJoinVariable(RelationalAtom rAtom, List<String> previousVariables,
+                                             List<ComparisonAtom> joinConditions) {
+        for (ComparisonAtom cAtom : joinConditions)
+            if (cAtom.getOp() == ComparisonOperator.EQ)
+                return null;
+        String joinVariable = null;
+        for (Term term : rAtom.getTerms()) {
+            if (!(term instanceof Variable) || !previousVariables.contains(((Variable) term).getName()))
+                continue;
+            String name = ((Variable) term).getName();
+            if (joinVariable != null && !joinVariable.equals(name))
+                return null;
+            joinVariable = name;
+        }
+        return joinVariable;
+    }
+
+    /**
+     * Check whether the projection on query head cannot produce duplicated tuples.
+     * Each tuple of the join result comes from a unique combination of tuples of the body relations,
+     * so if the head determines the key attributes (declared in {@link DBCatalog#getKey}) of every body relation,
+     * two different join tuples must differ on the head variables.
+     * A key attribute is determined if its variable appears in the head, or is compared to a constant by '='
+     * (this includes the constants replaced by new variables in {@link #buildQueryPlan}).
+     * @param head the query head.
+     * @param relationalAtoms the relational atoms in query body, where constants have been replaced by variables.
+     * @param conditions the comparison atoms of the query body.
+     * @return {@code true} if the duplicate elimination of projection can be skipped.
+     */
+    private static boolean projectionKeepsKeys(RelationalAtom head, List<RelationalAtom> relationalAtoms,
+                                               List<ComparisonAtom> conditions) {
+        List<String> determinedVariables = new ArrayList<>();
+        for (Term term : head.getTerms())
+            if (term instanceof Variable)
+                determinedVariables.add(((Variable) term).getName());
+        for (ComparisonAtom cAtom : conditions) {
+            if (cAtom.getOp() != ComparisonOperator.EQ)
+                continue;
+            if (cAtom.getTerm1() instanceof Variable && cAtom.getTerm2() instanceof Constant)
+                determinedVariables.add(((Variable) cAtom.getTerm1()).getName());
+            if (cAtom.getTerm2() instanceof Variable && cAtom.getTerm1() instanceof Constant)
+                determinedVariables.add(((Variable) cAtom.getTerm2()).getName());
+        }
+
+        for (RelationalAtom rAtom : relationalAtoms) {
+            List<Integer> key = DBCatalog.getInstance().getKey(rAtom.getName());
+            if (key == null)
+                return false;
+            for (int keyIndex : key) {
+                Term term = rAtom.getTerms().get(keyIndex);
+                if (!(term instanceof Variable) || !determinedVariables.contains(((Variable) term).getName()))
+                    return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Check whether some join condition is one of '<', '<=', '>', '>=', i.e. can be used by a {@link BandJoinOperator}.
+     * @param joinConditions the comparison atoms between the variables of two subtrees.
+     * @return {@code true} if an inequality join condition exists.
+     */
+    private static boolean hasInequality(List<ComparisonAtom> joinConditions) {
+        for (ComparisonAtom cAtom : joinConditions)
+            if (cAtom.getOp() != ComparisonOperator.EQ && cAtom.getOp() != ComparisonOperator.NEQ)
+                return true;
+        return false;
+    }
+
+    /**
+     * Compute the variables that have to be emitted by a node of the query plan (projection pushdown):
+     * the variables of query head, the variables of the relational atoms joined above the node,
+     * and the variables of the comparison atoms not yet applied at the node (i.e. not all their variables are below it).
+     * @param headVariables the variables of query head, including the argument of SUM.
+     * @param laterAtoms the relational atoms joined above the node.
+     * @param conditions all the comparison atoms of the query body.
+     * @param appliedVariables the variables of the relational atoms below the node.
+     * @return the needed variables.
+     */
+    private static Set<String> neededVariables(Set<String> headVariables, List<RelationalAtom> laterAtoms,
+                                               List<ComparisonAtom> conditions, List<String> appliedVariables) {
+        Set<String> needed = new HashSet<>(headVariables);
+        for (RelationalAtom rAtom : laterAtoms)
+            for (Term term : rAtom.getTerms())
+                if (term instanceof Variable)
+                    needed.add(((Variable) term).getName());
+        for (ComparisonAtom cAtom : conditions) {
+            if (variableAllAppeared(cAtom, appliedVariables))
+                continue;
+            if (cAtom.getTerm1() instanceof Variable)
+                needed.add(((Variable) cAtom.getTerm1()).getName());
+            if (cAtom.getTerm2() instanceof Variable)
+                needed.add(((Variable) cAtom.getTerm2()).getName());
+        }
+        return needed;
     }
 
     /**
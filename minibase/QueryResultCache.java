@@ -0,0 +1,490 @@
+package ed.inf.adbs.minibase;
+
+import ed.inf.adbs.minibase.base.*;
+import ed.inf.adbs.minibase.operator.CompiledComparison;
+import ed.inf.adbs.minibase.operator.DBCatalog;
+import ed.inf.adbs.minibase.operator.Operator;
+import ed.inf.adbs.minibase.operator.Tuple;
+import ed.inf.adbs.minibase.operator.TupleBatch;
+import ed.inf.adbs.minibase.parser.QueryParser;
+
+import java.io.File;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A cache of query results, so that a query equivalent to one already evaluated over the same data is answered
+ * without being planned or evaluated again (in batch and server modes, see {@link Minibase#resultCacheBytes}).
+ *
+ * A result is keyed by the canonical form of its query (see {@link #canonicalize}): two queries differing only
+ * in the names of their variables, the order of their body atoms or the sides of their comparisons usually have the same key.
+ * The canonical form is a renaming of the query itself, so queries with the same key are always equivalent.
+ * Each result also records the versions (length and modification time) of the data files of the relations it has read,
+ * a result whose files have changed since is discarded on lookup.
+ *
+ * The results are stored as the batches output by the query plan, with the string values as dictionary codes.
+ * The cache is bounded by a number of bytes, the least recently used results are evicted first,
+ * and a result larger than the whole capacity is not cached.
+ */
+public class QueryResultCache {
+
+    /**
+     * The default number of bytes of cached results.
+     */
+    public static final long DEFAULT_CAPACITY = 16L << 20;
+
+    private long capacity = 0;
+    private long usedBytes = 0;
+    private final LinkedHashMap<String, CachedResult> results = new LinkedHashMap<>(16, 0.75f, true);
+    // <canonical query : result>, in access order (the eldest entry is the least recently used)
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    /**
+     * The lookup key of a query: its canonical form, and the versions of its relations when the key was computed.
+     */
+    public static class Key {
+        final String canonicalQuery;
+        final String versions;
+
+        Key(String canonicalQuery, String versions) {
+            this.canonicalQuery = canonicalQuery;
+            this.versions = versions;
+        }
+    }
+
+    private static class CachedResult {
+        final String versions;
+        final List<String> variableMask;
+        final List<TupleBatch> batches;
+        final long byteSize;
+
+        CachedResult(String versions, List<String> variableMask, List<TupleBatch> batches, long byteSize) {
+            this.versions = versions;
+            this.variableMask = variableMask;
+            this.batches = batches;
+            this.byteSize = byteSize;
+        }
+    }
+
+    /**
+     * Set the maximum number of bytes of cached results, evicting results if needed.
+     * @param capacity the number of bytes, 0 disables the cache.
+     */
+    public synchronized void setCapacity(long capacity) {
+        this.capacity = Math.max(0, capacity);
+        this.evict();
+    }
+
+    /**
+     * Compute the key of a query, before the query is planned (the planner rewrites the query).
+     * @param query the query.
+     * @return the key, or {@code null} if the cache is disabled.
+     */
+    public Key key(Query query) {
+        synchronized (this) {
+            if (this.capacity == 0)
+                return null;
+        }
+        return new Key(canonicalize(query), relationVersions(query));
+    }
+
+    /**
+     * Look up the result of a query.
+     * @param key the key of query.
+     * @return an operator returning the cached result, or {@code null} if it is not cached or its relations have changed.
+     */
+    public synchronized Operator lookup(Key key) {
+        CachedResult result = this.results.get(key.canonicalQuery);
+        if (result != null && !result.versions.equals(key.versions)) {
+            this.remove(key.canonicalQuery);
+            result = null;
+        }
+        if (result == null) {
+            this.misses.incrementAndGet();
+            return null;
+        }
+        this.hits.incrementAndGet();
+        return new ReplayOperator(result);
+    }
+
+    /**
+     * Wrap the plan of a query missed by {@link #lookup}, so that its result is cached once the plan is exhausted.
+     * @param key the key of query.
+     * @param plan the query plan.
+     * @return an operator returning the output of plan.
+     */
+    public Operator record(Key key, Operator plan) {
+        return new RecordOperator(this, key, plan);
+    }
+
+    private synchronized void put(Key key, List<String> variableMask, List<TupleBatch> batches, long byteSize) {
+        if (byteSize > this.capacity)
+            return;
+        this.remove(key.canonicalQuery);
+        this.results.put(key.canonicalQuery, new CachedResult(key.versions, variableMask, batches, byteSize));
+        this.usedBytes += byteSize;
+        this.evict();
+    }
+
+    private synchronized long getCapacity() {
+        return this.capacity;
+    }
+
+    private void remove(String canonicalQuery) {
+        CachedResult result = this.results.remove(canonicalQuery);
+        if (result != null)
+            this.usedBytes -= result.byteSize;
+    }
+
+    private void evict() {
+        Iterator<Map.Entry<String, CachedResult>> iterator = this.results.entrySet().iterator();
+        while (this.usedBytes > this.capacity && iterator.hasNext()) {
+            this.usedBytes -= iterator.next().getValue().byteSize;
+            iterator.remove();
+            this.evictions.incrementAndGet();
+        }
+    }
+
+    /**
+     * Drop all results, the metrics are kept.
+     */
+    public synchronized void clear() {
+        this.results.clear();
+        this.usedBytes = 0;
+    }
+
+    /**
+     * @return the number of lookups answered from the cache.
+     */
+    public long getHitCount() {
+        return this.hits.get();
+    }
+
+    /**
+     * @return the number of lookups not answered from the cache.
+     */
+    public long getMissCount() {
+        return this.misses.get();
+    }
+
+    /**
+     * @return the number of results evicted to respect the capacity.
+     */
+    public long getEvictionCount() {
+        return this.evictions.get();
+    }
+
+    /**
+     * @return the number of bytes of cached results.
+     */
+    public synchronized long getUsedBytes() {
+        return this.usedBytes;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "Result cache: " + this.hits.get() + " hits, " + this.misses.get() + " misses, " + this.evictions.get() +
+                " evictions, " + this.results.size() + " results in " + this.usedBytes + " bytes";
+    }
+
+    /**
+     * Rewrite a query into a canonical form:
+     *      (1) the head variables are renamed in the order of the head, the order of output columns;
+     *      (2) the relational atoms are ordered greedily: the next atom is the smallest one once written with the names
+     *          given so far (a variable without name is written by its position in the atom),
+     *          then its variables without name are named in order of appearance;
+     *      (3) each comparison is written with the side giving the smaller text first, and the comparisons are sorted.
+     * Symmetric queries may still have different canonical forms, depending on the ties of (2), which only costs a cache miss.
+     * @param query the query.
+     * @return the canonical form, as text.
+     */
+    public static String canonicalize(Query query) {
+        Map<String, String> names = new HashMap<>();
+        List<String> headTerms = new ArrayList<>();
+        for (Term term : query.getHead().getTerms()) {
+            if (term instanceof Sum)
+                headTerms.add("SUM(" + name(((Sum) term).getVariable(), names) + ")");
+            else if (term instanceof Variable)
+                headTerms.add(name(((Variable) term).getName(), names));
+            else
+                headTerms.add(term.toString());
+        }
+
+        List<RelationalAtom> remaining = new ArrayList<>();
+        List<ComparisonAtom> comparisons = new ArrayList<>();
+        for (Atom atom : query.getBody()) {
+            if (atom instanceof RelationalAtom)
+                remaining.add((RelationalAtom) atom);
+            else
+                comparisons.add((ComparisonAtom) atom);
+        }
+        List<String> bodyAtoms = new ArrayList<>();
+        while (!remaining.isEmpty()) {
+            RelationalAtom next = null;
+            String nextText = null;
+            for (RelationalAtom atom : remaining) {
+                String text = writeAtom(atom, names);
+                if (nextText == null || text.compareTo(nextText) < 0) {
+                    next = atom;
+                    nextText = text;
+                }
+            }
+            remaining.remove(next);
+            for (Term term : next.getTerms())
+                if (term instanceof Variable)
+                    name(((Variable) term).getName(), names);
+            bodyAtoms.add(writeAtom(next, names));
+        }
+
+        List<String> conditions = new ArrayList<>();
+        for (ComparisonAtom comparison : comparisons) {
+            String term1 = writeTerm(comparison.getTerm1(), names);
+            String term2 = writeTerm(comparison.getTerm2(), names);
+            String text = term1 + " " + comparison.getOp() + " " + term2;
+            String reversed = term2 + " " + CompiledComparison.reverse(comparison.getOp()) + " " + term1;
+            conditions.add(text.compareTo(reversed) <= 0 ? text : reversed);
+        }
+        Collections.sort(conditions);
+        bodyAtoms.addAll(conditions);
+        return query.getHead().getName() + "(" + Utils.join(headTerms, ", ") + ") :- " + Utils.join(bodyAtoms, ", ");
+    }
+
+    private static String name(String variable, Map<String, String> names) {
+        return names.computeIfAbsent(variable, v -> "v" + names.size());
+    }
+
+    private static String writeTerm(Term term, Map<String, String> names) {
+        if (term instanceof Variable && names.containsKey(((Variable) term).getName()))
+            return names.get(((Variable) term).getName());
+        return term.toString();
+    }
+
+    /**
+     * Write a relational atom with the names given so far, the other variables are written by their first position in the atom.
+     */
+    private static String writeAtom(RelationalAtom atom, Map<String, String> names) {
+        List<String> unnamed = new ArrayList<>();
+        List<String> terms = new ArrayList<>();
+        for (Term term : atom.getTerms()) {
+            if (term instanceof Variable && !names.containsKey(((Variable) term).getName())) {
+                String variable = ((Variable) term).getName();
+                if (!unnamed.contains(variable))
+                    unnamed.add(variable);
+                terms.add("?" + unnamed.indexOf(variable));
+            } else {
+                terms.add(writeTerm(term, names));
+            }
+        }
+        return atom.getName() + "(" + Utils.join(terms, ", ") + ")";
+    }
+
+    /**
+     * @return the versions of the data files of the relations in the query body.
+     */
+    private static String relationVersions(Query query) {
+        DBCatalog dbc = DBCatalog.getInstance();
+        Set<String> relationNames = new TreeSet<>();
+        for (Atom atom : query.getBody())
+            if (atom instanceof RelationalAtom)
+                relationNames.add(((RelationalAtom) atom).getName());
+        StringBuilder versions = new StringBuilder();
+        for (String relationName : relationNames) {
+            for (String path : new String[]{dbc.getRelationPath(relationName), dbc.getColumnarPath(relationName)}) {
+                File file = new File(path);
+                versions.append(path).append(':').append(file.length()).append(':').append(file.lastModified()).append(';');
+            }
+        }
+        return versions.toString();
+    }
+
+    /**
+     * Return the batches of a cached result, shared by all the queries answered by it (they are only read).
+     */
+    private static class ReplayOperator extends Operator {
+        private final CachedResult result;
+        private int batchIndex = 0;
+        private TupleBatch currentBatch = null;
+        private int currentIndex = 0;
+
+        ReplayOperator(CachedResult result) {
+            this.result = result;
+            this.variableMask = result.variableMask;
+        }
+
+        @Override
+        public void reset() {
+            this.batchIndex = 0;
+            this.currentBatch = null;
+            this.currentIndex = 0;
+        }
+
+        @Override
+        public Tuple getNextTuple() {
+            while (this.currentBatch == null || this.currentIndex >= this.currentBatch.size()) {
+                this.currentBatch = this.getNextBatch();
+                this.currentIndex = 0;
+                if (this.currentBatch == null)
+                    return null;
+            }
+            return this.currentBatch.getTuple(this.currentBatch.getRowIndex(this.currentIndex++), "Cached");
+        }
+
+        @Override
+        public TupleBatch getNextBatch() {
+            return this.batchIndex < this.result.batches.size() ? this.result.batches.get(this.batchIndex++) : null;
+        }
+    }
+
+    /**
+     * Pass the batches of a query plan through, keeping a compact copy of them,
+     * and cache the copies once the plan is exhausted (unless they have exceeded the capacity of the cache).
+     */
+    private static class RecordOperator extends Operator {
+        private final QueryResultCache cache;
+        private final Key key;
+        private final Operator plan;
+        private List<TupleBatch> batches = new ArrayList<>();
+        private long byteSize = 0;
+        // the copied batches, null if the result is too large to be cached
+
+        private TupleBatch currentBatch = null;
+        private int currentIndex = 0;
+
+        RecordOperator(QueryResultCache cache, Key key, Operator plan) {
+            this.cache = cache;
+            this.key = key;
+            this.plan = plan;
+            this.variableMask = plan.getVariableMask();
+        }
+
+        @Override
+        public void reset() {
+            this.plan.reset();
+            this.batches = new ArrayList<>();
+            this.byteSize = 0;
+            this.currentBatch = null;
+            this.currentIndex = 0;
+        }
+
+        @Override
+        public void close() {
+            this.plan.close();
+        }
+
+        @Override
+        public Tuple getNextTuple() {
+            while (this.currentBatch == null || this.currentIndex >= this.currentBatch.size()) {
+                this.currentBatch = this.getNextBatch();
+                this.currentIndex = 0;
+                if (this.currentBatch == null)
+                    return null;
+            }
+            return this.currentBatch.getTuple(this.currentBatch.getRowIndex(this.currentIndex++), "Cached");
+        }
+
+        @Override
+        public TupleBatch getNextBatch() {
+            TupleBatch batch = this.plan.getNextBatch();
+            if (this.batches == null)
+                return batch;
+            if (batch == null) {
+                this.cache.put(this.key, this.variableMask, this.batches, this.byteSize);
+                this.batches = null;
+                return null;
+            }
+            TupleBatch copy = new TupleBatch(batch.getColumnCount(), batch.size());
+            for (int i = 0; i < batch.size(); i++) {
+                int row = copy.addRow();
+                for (int c = 0; c < batch.getColumnCount(); c++)
+                    copy.copyValue(c, row, batch, c, batch.getRowIndex(i));
+            }
+            this.batches.add(copy);
+            this.byteSize += 4L * batch.size() * batch.getColumnCount() + 64;
+            if (this.byteSize > this.cache.getCapacity())
+                this.batches = null;
+            return batch;
+        }
+    }
+
+    /**
+     * Unit test of QueryResultCache, output is printed to the console.
+     * The canonical forms of queries differing only in the names of variables, the order of atoms or the sides of comparisons
+     * must be equal, and those of different queries must differ. Then a query is evaluated through the cache (a miss),
+     * an equivalent query is answered by the cached result (a hit, with the same tuples), and a smaller capacity evicts it.
+     * @param args Command line inputs, can be empty.
+     */
+    public static void main(String[] args) {
+        DBCatalog dbc = DBCatalog.getInstance();
+        dbc.init("data/evaluation/db");
+
+        String[][] equivalentQueries = {
+                {"Q(x, y) :- R(x, y, z), S(y, w, u)", "Q(a, b) :- S(b, c, d), R(a, b, e)"},
+                {"Q(x) :- R(x, y, z), y < 5", "Q(x) :- R(x, y, z), 5 > y"},
+                {"Q(x, y) :- T(x, y), T(y, z), z != x", "Q(p, q) :- T(q, r), T(p, q), p != r"}
+        };
+        String[][] differentQueries = {
+                {"Q(x, y) :- R(x, y, z)", "Q(y, x) :- R(x, y, z)"},
+                {"Q(x) :- R(x, y, 'a')", "Q(x) :- R(x, y, 'b')"},
+                {"Q(x) :- R(x, y, z), S(y, w, u)", "Q(x) :- R(x, y, z), S(z, w, u)"},
+                {"Q(x) :- R(x, y, z), y < 5", "Q(x) :- R(x, y, z), y <= 5"}
+        };
+        for (String[] queries : equivalentQueries) {
+            String key1 = canonicalize(QueryParser.parse(queries[0]));
+            String key2 = canonicalize(QueryParser.parse(queries[1]));
+            System.out.println(queries[0] + "  ~  " + queries[1] + ": " + (key1.equals(key2) ? "same key" : "DIFFERENT KEYS") + ", " + key1);
+        }
+        for (String[] queries : differentQueries) {
+            String key1 = canonicalize(QueryParser.parse(queries[0]));
+            String key2 = canonicalize(QueryParser.parse(queries[1]));
+            System.out.println(queries[0] + "  /  " + queries[1] + ": " + (key1.equals(key2) ? "SAME KEY" : "different keys"));
+        }
+        // the SUM term of the head is added as the parser does
+        String sumKey1 = canonicalize(withSum("Q(x) :- R(x, y, z), T(x, w)", "y"));
+        String sumKey2 = canonicalize(withSum("Q(a) :- T(a, c), R(a, b, d)", "b"));
+        String sumKey3 = canonicalize(withSum("Q(x) :- R(x, y, z), T(x, w)", "w"));
+        System.out.println("Q(x, SUM(y)) :- R(x, y, z), T(x, w)  ~  Q(a, SUM(b)) :- T(a, c), R(a, b, d): "
+                + (sumKey1.equals(sumKey2) ? "same key" : "DIFFERENT KEYS") + ", " + sumKey1);
+        System.out.println("Q(x, SUM(y)) :- R(x, y, z), T(x, w)  /  Q(x, SUM(w)) :- R(x, y, z), T(x, w): "
+                + (sumKey1.equals(sumKey3) ? "SAME KEY" : "different keys"));
+
+        QueryResultCache cache = new QueryResultCache();
+        cache.setCapacity(DEFAULT_CAPACITY);
+        Query query = QueryParser.parse("Q(x, w) :- R(x, y, z), S(x, w, t), y > 3");
+        Key key = cache.key(query);
+        Operator cached = cache.lookup(key);
+        List<String> evaluated = readAll(cache.record(key, Minibase.buildQueryPlan(query, false)));
+        System.out.println("First lookup: " + (cached == null ? "miss" : "HIT") + ", " + evaluated.size() + " tuples evaluated");
+
+        Query equivalentQuery = QueryParser.parse("Q(a, b) :- S(a, b, c), R(a, d, e), 3 < d");
+        cached = cache.lookup(cache.key(equivalentQuery));
+        List<String> replayed = cached == null ? new ArrayList<>() : readAll(cached);
+        System.out.println("Equivalent query: " + (cached == null ? "MISS" : "hit") + ", same tuples: " + replayed.equals(evaluated));
+
+        cache.setCapacity(64);
+        System.out.println("After shrinking the capacity: " + (cache.lookup(key) == null ? "miss" : "HIT"));
+        System.out.println(cache);
+    }
+
+    /**
+     * @return the parsed query, with a SUM of the variable added at the end of its head.
+     */
+    private static Query withSum(String query, String variable) {
+        Query parsed = QueryParser.parse(query);
+        parsed.getHead().getTerms().add(new Sum(variable));
+        return parsed;
+    }
+
+    /**
+     * @return the output tuples of an operator, in order.
+     */
+    private static List<String> readAll(Operator operator) {
+        List<String> tuples = new ArrayList<>();
+        for (TupleBatch batch = operator.getNextBatch(); batch != null; batch = operator.getNextBatch())
+            for (int i = 0; i < batch.size(); i++)
+                tuples.add(batch.rowToString(batch.getRowIndex(i)));
+        return tuples;
+    }
+}
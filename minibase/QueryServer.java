@@ -0,0 +1,177 @@
+package ed.inf.adbs.minibase;
+
+import ed.inf.adbs.minibase.base.Query;
+import ed.inf.adbs.minibase.operator.DBCatalog;
+import ed.inf.adbs.minibase.operator.Operator;
+import ed.inf.adbs.minibase.operator.TupleBatch;
+import ed.inf.adbs.minibase.parser.QueryParser;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * A long-running server evaluating queries over one database, so that a query does not pay the JVM startup,
+ * the initialisation of the catalog and the JIT warm-up: the catalog (schema, keys, statistics and cached estimations),
+ * the decoded relations ({@link ed.inf.adbs.minibase.operator.RelationCache}), the results of queries ({@link QueryResultCache})
+ * and the compiled pipelines stay in memory across requests.
+ *
+ * The protocol is line based, over the standard input/output or over a TCP connection to the loopback interface:
+ *      (1) a request is a line holding a query, e.g. {@code Q(x, z) :- R(x, y, z), y > 3}, blank lines are ignored;
+ *      (2) the response is the result rows, one per line in the format of output files, as they are produced,
+ *          followed by an empty line; a failed query is answered by a single line {@code ERROR message}, then the empty line.
+ * Each connection is served by its own thread, the requests of a connection are evaluated in order.
+ */
+public class QueryServer {
+
+    /**
+     * @param databaseDir the database directory, read once.
+     */
+    public QueryServer(String databaseDir) {
+        DBCatalog.getInstance().init(databaseDir);
+        DBCatalog.getInstance().getRelationCache().setCapacity(Minibase.relationCacheBytes);
+        Minibase.getResultCache().setCapacity(Minibase.resultCacheBytes);
+    }
+
+    /**
+     * Serve the requests read from the standard input until its end, the responses are written to the standard output.
+     * The messages printed by the operators are redirected to the standard error, so that they do not mix with the results.
+     */
+    public void serveStandardStreams() {
+        PrintStream stdout = System.out;
+        System.setOut(System.err);
+        BufferedReader in = new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8));
+        PrintWriter out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(stdout, StandardCharsets.UTF_8)));
+        this.serve(in, out);
+    }
+
+    /**
+     * Accept connections on a port of the loopback interface, until the server thread is interrupted.
+     * @param port the port, 0 for any free port.
+     */
+    public void listen(int port) {
+        ExecutorService executor = Minibase.newBatchExecutor();
+        try (ServerSocket serverSocket = new ServerSocket(port, 50, InetAddress.getLoopbackAddress())) {
+            System.out.println("Minibase server listening on port " + serverSocket.getLocalPort());
+            while (!Thread.currentThread().isInterrupted()) {
+                Socket socket = serverSocket.accept();
+                executor.submit(() -> this.serve(socket));
+            }
+        } catch (IOException e) {
+            System.err.println("Exception occurred in query server");
+            e.printStackTrace();
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private void serve(Socket socket) {
+        try (Socket s = socket;
+             BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream(), StandardCharsets.UTF_8));
+             PrintWriter out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(s.getOutputStream(), StandardCharsets.UTF_8)))) {
+            this.serve(in, out);
+        } catch (IOException e) {
+            System.err.println("Exception occurred on connection " + socket);
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Answer the requests read from a reader until its end.
+     * @param in the requests.
+     * @param out the responses.
+     */
+    public void serve(BufferedReader in, PrintWriter out) {
+        try {
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (line.trim().isEmpty())
+                    continue;
+                this.evaluate(line, out);
+                out.println();
+                out.flush();
+            }
+        } catch (IOException e) {
+            System.err.println("Exception occurred while reading requests");
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Evaluate a query and write its result rows, or an error line.
+     */
+    private void evaluate(String queryText, PrintWriter out) {
+        try {
+            Query query = QueryParser.parse(queryText);
+            Operator queryPlan = Minibase.buildCachedQueryPlan(query, Minibase.compiledPipelines);
+            if (queryPlan == null)
+                return;
+            try {
+                TupleBatch batch = queryPlan.getNextBatch();
+                while (batch != null) {
+                    for (int i = 0; i < batch.size(); i++)
+                        out.println(batch.rowToString(batch.getRowIndex(i)));
+                    batch = queryPlan.getNextBatch();
+                }
+            } finally {
+                // release the spill files and threads of a plan not run to its end
+                queryPlan.close();
+            }
+        } catch (Exception e) {
+            out.println("ERROR " + String.valueOf(e.getMessage()).replace('\n', ' '));
+        }
+    }
+
+    /**
+     * A client of the server: send a query over a connection and read its result rows.
+     * @param in the responses of the connection.
+     * @param out the requests of the connection.
+     * @param queryText the query, on a single line.
+     * @return the result rows.
+     * @throws IOException if the connection fails, or the server answers with an error.
+     */
+    public static List<String> request(BufferedReader in, PrintWriter out, String queryText) throws IOException {
+        out.println(queryText);
+        out.flush();
+        List<String> rows = new ArrayList<>();
+        String line;
+        while ((line = in.readLine()) != null && !line.isEmpty()) {
+            if (line.startsWith("ERROR "))
+                throw new IOException(line.substring("ERROR ".length()));
+            rows.add(line);
+        }
+        return rows;
+    }
+
+    /**
+     * An example client: send each query file to a server on the loopback interface several times,
+     * and print the number of result rows and the latency of each request.
+     * Usage: QueryServer port query_file...
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("Usage: QueryServer port query_file...");
+            return;
+        }
+        try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), Integer.parseInt(args[0]));
+             BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+             PrintWriter out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8)))) {
+            for (int i = 1; i < args.length; i++) {
+                String queryText = new String(Files.readAllBytes(Paths.get(args[i]))).trim()
+                        .replace('\n', ' ');
+                for (int round = 0; round < 5; round++) {
+                    long start = System.nanoTime();
+                    List<String> rows = request(in, out, queryText);
+                    System.out.printf("%s: %d rows in %.2f ms%n", args[i], rows.size(), (System.nanoTime() - start) / 1e6);
+                }
+            }
+        }
+    }
+}
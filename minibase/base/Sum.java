@@ -24,6 +24,11 @@ public class Sum extends AggregationTerm{
         Sum sum = (Sum) obj;
         return Objects.equals(name, sum.name);
     }
+
+    @Override
+    public int hashCode() {
+        return Objects.hashCode(name);
+    }
     /*
     public boolean equals(Object obj) {
         if (obj == null || !(obj instanceof Sum)) return false;
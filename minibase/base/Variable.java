@@ -1,5 +1,7 @@
 package ed.inf.adbs.minibase.base;
 
+import java.util.Objects;
+
 public class Variable extends Term {
     private String name;
 
@@ -15,4 +17,17 @@ public class Variable extends Term {
     public String toString() {
         return name;
     }
+
+    @Override
+    public boolean equals(Object obj){
+        if(this == obj) return true;
+        if(obj == null || getClass()!=obj.getClass()) return false;
+        Variable variable = (Variable) obj;
+        return Objects.equals(name, variable.name);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hashCode(name);
+    }
 }
@@ -1,11 +1,5 @@
 package ed.inf.adbs.minibase.operator;
 
-import ed.inf.adbs.minibase.base.IntegerConstant;
-import ed.inf.adbs.minibase.base.Term;
-
-import java.util.ArrayList;
-import java.util.List;
-
 /**
  * This class is used in {@link AggregateOperator} to support the aggregation operation for both SUM and AVG.
  * The output tuple of aggregation operation is split into two parts:
@@ -14,23 +8,34 @@ import java.util.List;
  *          for every new tuple that grouped to existing one:
  *          the aggregation value will be added to {@code aggSum},
  *          and the {@code aggCount} will be incremented by 1 for preparing for the AVG calculation
- *      (2) the other terms are stored in {@code termList}.
+ *      (2) the other terms are stored in {@code groupKey}, as primitive values (see {@link Tuple}).
  *  After the aggregation process is completed,
  *  each instance of this class will be converted into an output tuple of {@link AggregateOperator}
  *  by calling {@link #getSumTuple()} depending on the use case.
  */
 public class AggBuffer {
 
-    private List<Term> termList;
+    private RowKey groupKey;
+    private boolean[] stringColumns;
     private int aggIndex;
     private String aggVarName;
     private int aggSum = 0; // the accumulated sum for SUM and AVG
     private int aggCount = 0; // the number of rows in this group, for AVG
 
-    public AggBuffer(List<Term> termList, int aggIndex, String aggVarName) {
-        this.termList = new ArrayList<>(termList);
+    /**
+     * @param groupKey the values of the projected columns without aggregation term.
+     * @param groupStringColumns the types of the columns in {@code groupKey}.
+     * @param aggIndex the position of aggregation term in output tuple.
+     * @param aggVarName the aggregated variable.
+     */
+    public AggBuffer(RowKey groupKey, boolean[] groupStringColumns, int aggIndex, String aggVarName) {
+        this.groupKey = groupKey;
         this.aggIndex = aggIndex;
         this.aggVarName = aggVarName;
+        // the aggregation term is an int column inserted at aggIndex
+        this.stringColumns = new boolean[groupStringColumns.length + 1];
+        System.arraycopy(groupStringColumns, 0, this.stringColumns, 0, aggIndex);
+        System.arraycopy(groupStringColumns, aggIndex, this.stringColumns, aggIndex + 1, groupStringColumns.length - aggIndex);
     }
 
     /**
@@ -43,15 +48,36 @@ public class AggBuffer {
         this.aggCount += 1;
     }
 
+    /**
+     * Merge the partial aggregation of the same group computed by another worker (see {@link AggregateOperator}).
+     * @param other the partial aggregation of the same group.
+     */
+    public void merge(AggBuffer other) {
+        this.addPartial(other.aggSum, other.aggCount);
+    }
+
+    /**
+     * Accumulate a partial aggregation of this group, e.g. merged by {@link ParallelAggregation}.
+     * @param sum the sum of the aggregation terms of some rows of the group.
+     * @param count the number of these rows.
+     */
+    public void addPartial(int sum, int count) {
+        this.aggSum += sum;
+        this.aggCount += count;
+    }
+
     /**
      * Used by {@link SumOperator}
-     * Convert the aggregation sum value into a IntegerConstant and add it to the tail of term list,
+     * Insert the aggregation sum value into the group values at {@code aggIndex},
      * then construct an output tuple and return.
      * @return the output tuple after aggregation.
      */
     public Tuple getSumTuple() {
-        List<Term> termList = new ArrayList<>(this.termList);
-        termList.add(this.aggIndex, new IntegerConstant(this.aggSum));
-        return new Tuple("SUM(" + this.aggVarName + ")", termList);
+        int[] groupValues = this.groupKey.getValues();
+        int[] values = new int[groupValues.length + 1];
+        System.arraycopy(groupValues, 0, values, 0, this.aggIndex);
+        values[this.aggIndex] = this.aggSum;
+        System.arraycopy(groupValues, this.aggIndex, values, this.aggIndex + 1, groupValues.length - this.aggIndex);
+        return new Tuple("SUM(" + this.aggVarName + ")", values, this.stringColumns);
     }
 }
@@ -29,12 +29,20 @@ abstract public class AggregateOperator extends Operator {
     // Store the AggBuffer instances, each of which represent an output tuple of this operator,
     // the accumulation of aggregation term will be processed within the AggBuffer
 
-    protected HashMap<String, Integer> tuple2BufferIndex = new HashMap<>();
-    // map a tuple in string format to its index in outputBuffer.
+    protected HashMap<RowKey, Integer> tuple2BufferIndex = new HashMap<>();
+    // map the group columns of a tuple (the projected columns without aggregation term) to its index in outputBuffer.
     // used to check whether a tuple without aggregation term has been observed,
     // if it has been observed, the aggregation term will be accumulated to existing record in outputBuffer
     // otherwise a new record in outputBuffer will be inserted into outputBuffer
 
+    protected boolean[] groupStringColumns = null;
+    // the column types of group columns, shared by all AggBuffer instances
+
+    private final int memoryBudget;
+    // the number of groups a worker of the parallel aggregation keeps in memory, see ParallelAggregation
+    private boolean parallelAggregated = false;
+    // true once the output of a ParallelOperator child has been aggregated
+
     /**
      * Initialise the operator. Process the last aggregation term and other normal terms separately.
      * This main logic is similar as {@link ProjectOperator}: generating a mapping relation of columns for the projection.
@@ -42,6 +50,17 @@ abstract public class AggregateOperator extends Operator {
      * @param queryHead
      */
     public AggregateOperator(Operator childOperator, RelationalAtom queryHead) {
+        this(childOperator, queryHead, ParallelAggregation.DEFAULT_MEMORY_BUDGET);
+    }
+
+    /**
+     * Initialise the operator, with the memory budget of the parallel aggregation.
+     * @param childOperator the child operator.
+     * @param queryHead the relational atom in query head.
+     * @param memoryBudget the number of groups each worker keeps in memory when the child is a {@link ParallelOperator}.
+     */
+    public AggregateOperator(Operator childOperator, RelationalAtom queryHead, int memoryBudget) {
+        this.memoryBudget = memoryBudget;
         this.child = childOperator;
         List<String> childVariableMask = childOperator.getVariableMask(); // the variableMask before projection
         this.projectionName = queryHead.getName();
@@ -71,6 +90,15 @@ abstract public class AggregateOperator extends Operator {
         this.child.reset();
         this.tuple2BufferIndex = new HashMap<>();
         this.outputBuffer = new ArrayList<>();
+        this.parallelAggregated = false;
+    }
+
+    /**
+     * Release the resources of child operator.
+     */
+    @Override
+    public void close() {
+        this.child.close();
     }
 
     /**
@@ -85,41 +113,78 @@ abstract public class AggregateOperator extends Operator {
     abstract public Tuple getNextTuple();
 
     /**
-     * Iterate over all the output tuples from child operator, do aggregation operation over them.
-     * For each child operator tuple:
-     *      (1) extract the term list and remove the aggregation term.
-     *      (2) The rest of term list will be converted to a string as a key in {@code tuple2BufferIndex}.
+     * Iterate over all the output batches from child operator, do aggregation operation over them.
+     * For each selected row of child batches:
+     *      (1) read the aggregation column as a primitive int.
+     *      (2) The other projected columns are extracted as a {@link RowKey}, the key in {@code tuple2BufferIndex}.
      *      (3) Check key duplication to see if it needs a GROUP operation:
      *          If a tuple without aggregation term has already been recorded, a GROUP operation is required,
      *          and the new tuple will be merged into the existing record, i.e. the new aggregation term will be
      *          accumulated on the existing record.
      *          Otherwise, a new buffer record will be created for the new tuple.
+     * If the child is a {@link ParallelOperator}, the aggregation is done by its workers, see {@link #aggregateParallel}.
      */
     protected void aggregate() {
-        Tuple childOutput = this.child.getNextTuple();
-        while (childOutput != null) {
-            // extract the term list and remove the aggregation term
-            List<Term> termList = new ArrayList<>();
-            for (int pi : this.projectIndices) {
-                termList.add(childOutput.getTerms().get(pi));
-            }
-            Tuple newTuple = new Tuple(this.projectionName, termList);
-            IntegerConstant aggTerm = (IntegerConstant) newTuple.getTerms().remove(this.aggIndex);
-
-            // convert the term list (without aggregation term) into string, acting as a key for hashmap
-            String bufferKey = newTuple.getTerms().toString();
-            if (this.tuple2BufferIndex.containsKey(bufferKey)) {
-                // GROUP operation, accumulate the aggregation term
-                int bufferIndex = this.tuple2BufferIndex.get(bufferKey);
-                this.outputBuffer.get(bufferIndex).addSum(aggTerm.getValue());
-            } else {
-                // new tuple, create a new buffer record for it
-                AggBuffer aggBuffer = new AggBuffer(newTuple.getTerms(), this.aggIndex, this.aggVariable);
-                aggBuffer.addSum(aggTerm.getValue());
-                this.outputBuffer.add(aggBuffer);
-                this.tuple2BufferIndex.put(bufferKey, this.outputBuffer.size()-1);
+        if (this.child instanceof ParallelOperator) {
+            if (!this.parallelAggregated)
+                this.aggregateParallel((ParallelOperator) this.child);
+            this.parallelAggregated = true;
+            return;
+        }
+        TupleBatch childBatch = this.child.getNextBatch();
+        List<Integer> groupColumns = this.projectIndices.subList(0, this.aggIndex);
+        int aggColumn = this.projectIndices.get(this.aggIndex);
+        while (childBatch != null) {
+            for (int i = 0; i < childBatch.size(); i++) {
+                int row = childBatch.getRowIndex(i);
+                // the projected columns without aggregation term act as a key for hashmap
+                RowKey bufferKey = RowKey.of(childBatch, row, groupColumns);
+                int aggValue = childBatch.getValue(aggColumn, row);
+
+                Integer bufferIndex = this.tuple2BufferIndex.get(bufferKey);
+                if (bufferIndex != null) {
+                    // GROUP operation, accumulate the aggregation term
+                    this.outputBuffer.get(bufferIndex).addSum(aggValue);
+                } else {
+                    // new tuple, create a new buffer record for it
+                    if (this.groupStringColumns == null) {
+                        this.groupStringColumns = new boolean[this.aggIndex];
+                        for (int c = 0; c < this.aggIndex; c++)
+                            this.groupStringColumns[c] = childBatch.isStringColumn(groupColumns.get(c));
+                    }
+                    AggBuffer aggBuffer = new AggBuffer(bufferKey, this.groupStringColumns, this.aggIndex, this.aggVariable);
+                    aggBuffer.addSum(aggValue);
+                    this.outputBuffer.add(aggBuffer);
+                    this.tuple2BufferIndex.put(bufferKey, this.outputBuffer.size()-1);
+                }
             }
-            childOutput = this.child.getNextTuple();
+            childBatch = this.child.getNextBatch();
+        }
+    }
+
+    /**
+     * Aggregate the output of a parallel child by a {@link ParallelAggregation}: each worker pre-aggregates the batches
+     * it produces into its own partitioned hash tables (spilling them beyond {@code this.memoryBudget} groups),
+     * then the partitions are merged concurrently.
+     * The groups are output in the order of their first rows in the serial order of the child,
+     * i.e. the same order as the serial aggregation over a serial scan of the leftmost relation.
+     * @param parallelChild the child operator.
+     */
+    private void aggregateParallel(ParallelOperator parallelChild) {
+        int[] groupColumns = new int[this.aggIndex];
+        for (int c = 0; c < this.aggIndex; c++)
+            groupColumns[c] = this.projectIndices.get(c);
+        int aggColumn = this.projectIndices.get(this.aggIndex);
+        ParallelAggregation aggregation = new ParallelAggregation(this.aggIndex, parallelChild.getParallelism(), this.memoryBudget);
+        parallelChild.execute((worker, position, batch) -> aggregation.add(worker, position, batch, groupColumns, aggColumn));
+
+        this.groupStringColumns = aggregation.getGroupStringColumns();
+        for (ParallelAggregation.Group group : aggregation.merge(parallelChild.getParallelism())) {
+            RowKey key = new RowKey(group.key);
+            AggBuffer aggBuffer = new AggBuffer(key, this.groupStringColumns, this.aggIndex, this.aggVariable);
+            aggBuffer.addPartial(group.sum, group.count);
+            this.tuple2BufferIndex.put(key, this.outputBuffer.size());
+            this.outputBuffer.add(aggBuffer);
         }
     }
 }
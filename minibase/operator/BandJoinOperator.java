@@ -0,0 +1,255 @@
+package ed.inf.adbs.minibase.operator;
+
+import ed.inf.adbs.minibase.base.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Apply a JOIN whose conditions are inequalities ('<', '<=', '>', '>=') between the two children, e.g. a band join
+ * {@code t1 <= t2, t2 < e1} where {@code t2} is from the right child and {@code t1, e1} are from the left child.
+ *
+ * The right child tuples are sorted on one int column (the band column, chosen as the right column bounded by the most conditions).
+ * Each inequality between a left column and the band column turns into a lower or upper bound of the band column,
+ * so for each left tuple the qualifying right tuples form a contiguous range of the sorted tuples, found by binary search.
+ * The other join conditions (including the inner join conditions inherited from {@link JoinOperator}) are applied
+ * as a residual filter within the range. Therefore the cost grows with the size of output instead of the size of the
+ * cross product, as long as the band conditions are selective.
+ *
+ * The sorted right tuples are kept in memory, the query planner uses the nested loop {@link JoinOperator}
+ * (which can spill) when the right child is estimated to exceed the memory budget.
+ */
+public class BandJoinOperator extends JoinOperator {
+
+    private int bandColumn = -1;
+    // the column of right tuples used as sort key, -1 if no inequality bounds a right int column
+
+    private List<JoinCondition> bandConditions = new ArrayList<>();
+    private List<JoinCondition> residualConditions = new ArrayList<>();
+    // the inequalities on the band column, and the other explicit join conditions
+
+    private Tuple[] sortedTuples = null;
+    private int[] sortedKeys = null;
+    // the right tuples in ascending order of band column, and their band column values; built by the first getNextTuple()
+
+    private Tuple leftTuple = null;
+    private int rangePosition = 0;
+    private int rangeEnd = 0;
+    // the current left tuple, and the range of sorted right tuples still to be checked against it
+
+    /**
+     * Initialise the operator, the variable mask and the join conditions are built by {@link JoinOperator}.
+     * The join conditions are split into the bounds of band column and the residual conditions.
+     * @param leftChild left child operator.
+     * @param rightChild right child operator.
+     * @param comparisonAtoms the explicit join conditions provided by {@link ComparisonAtom} in query body.
+     */
+    public BandJoinOperator(Operator leftChild, Operator rightChild, List<ComparisonAtom> comparisonAtoms) {
+        super(leftChild, rightChild, comparisonAtoms);
+        // choose the right column bounded by the most inequalities
+        int bestCount = 0;
+        for (JoinCondition candidate : this.conditions) {
+            if (!candidate.isInequality())
+                continue;
+            int count = 0;
+            for (JoinCondition condition : this.conditions)
+                if (condition.isInequality() && condition.getRightIndex() == candidate.getRightIndex())
+                    count++;
+            if (count > bestCount) {
+                bestCount = count;
+                this.bandColumn = candidate.getRightIndex();
+            }
+        }
+        for (JoinCondition condition : this.conditions) {
+            if (condition.isInequality() && condition.getRightIndex() == this.bandColumn)
+                this.bandConditions.add(condition);
+            else
+                this.residualConditions.add(condition);
+        }
+    }
+
+    /**
+     * Reset the states of both child operators, the right tuples will be sorted again on the next call of {@link #getNextTuple()}.
+     */
+    @Override
+    public void reset() {
+        super.reset();
+        this.sortedTuples = null;
+        this.sortedKeys = null;
+        this.leftTuple = null;
+        this.rangePosition = 0;
+        this.rangeEnd = 0;
+    }
+
+    /**
+     * Get the next joined tuple. The first call sorts the right child tuples on the band column.
+     * For each left tuple, iterate over the range of right tuples within the bounds and check the residual conditions.
+     * @return the next joined tuple that satisfies the join conditions, or {@code null} if the join is exhausted.
+     */
+    @Override
+    public Tuple getNextTuple() {
+        if (this.sortedTuples == null)
+            this.sort();
+
+        while (true) {
+            while (this.leftTuple != null && this.rangePosition < this.rangeEnd) {
+                Tuple rightTuple = this.sortedTuples[this.rangePosition++];
+                if (this.satisfiesResidual(this.leftTuple, rightTuple))
+                    return this.joinTuples(this.leftTuple, rightTuple);
+            }
+            this.leftTuple = this.leftChild.getNextTuple();
+            if (this.leftTuple == null)
+                return null;
+            this.findRange(this.leftTuple);
+        }
+    }
+
+    /**
+     * The block nested loop inherited from {@link JoinOperator} is not used,
+     * the batches are collected from {@link #getNextTuple()} instead.
+     * @return the next batch of joined tuples, or {@code null} if the join is exhausted.
+     */
+    @Override
+    public TupleBatch getNextBatch() {
+        return this.collectBatch();
+    }
+
+    /**
+     * Read all the right child tuples and sort them on the band column.
+     * If the band column holds strings, no range can be computed on it and all conditions become residual.
+     */
+    private void sort() {
+        List<Tuple> rightTuples = new ArrayList<>();
+        Tuple tuple = this.rightChild.getNextTuple();
+        while (tuple != null) {
+            rightTuples.add(tuple);
+            tuple = this.rightChild.getNextTuple();
+        }
+        if (this.bandColumn >= 0 && !rightTuples.isEmpty() && rightTuples.get(0).isString(this.bandColumn)) {
+            this.residualConditions.addAll(this.bandConditions);
+            this.bandConditions.clear();
+            this.bandColumn = -1;
+        }
+
+        // sort (key, position) pairs packed into longs, the key in the high bits keeps the order of signed ints
+        long[] order = new long[rightTuples.size()];
+        for (int i = 0; i < order.length; i++) {
+            int key = this.bandColumn >= 0 ? rightTuples.get(i).getValue(this.bandColumn) : 0;
+            order[i] = ((long) key << 32) | i;
+        }
+        Arrays.sort(order);
+        this.sortedTuples = new Tuple[order.length];
+        this.sortedKeys = new int[order.length];
+        for (int i = 0; i < order.length; i++) {
+            this.sortedKeys[i] = (int) (order[i] >> 32);
+            this.sortedTuples[i] = rightTuples.get((int) order[i]);
+        }
+    }
+
+    /**
+     * Narrow the range of sorted right tuples by the bound given by each band condition on a left tuple.
+     * @param leftTuple the left tuple to be joined.
+     */
+    private void findRange(Tuple leftTuple) {
+        int low = 0;
+        int high = this.sortedKeys.length;
+        for (JoinCondition condition : this.bandConditions) {
+            if (leftTuple.isString(condition.getLeftIndex())) {
+                // an int never satisfies an inequality with a string
+                high = 0;
+                break;
+            }
+            int value = leftTuple.getValue(condition.getLeftIndex());
+            switch (condition.getOpFromLeft()) {
+                case "<":  low = Math.max(low, upperBound(this.sortedKeys, value)); break;  // key > value
+                case "<=": low = Math.max(low, lowerBound(this.sortedKeys, value)); break;  // key >= value
+                case ">":  high = Math.min(high, lowerBound(this.sortedKeys, value)); break; // key < value
+                default:   high = Math.min(high, upperBound(this.sortedKeys, value)); break; // ">=", key <= value
+            }
+        }
+        this.rangePosition = low;
+        this.rangeEnd = high;
+    }
+
+    private boolean satisfiesResidual(Tuple leftTuple, Tuple rightTuple) {
+        for (Integer leftIndex : this.joinConditionIndices.keySet()) {
+            int rightIndex = this.joinConditionIndices.get(leftIndex);
+            if (leftTuple.getValue(leftIndex) != rightTuple.getValue(rightIndex) ||
+                    leftTuple.isString(leftIndex) != rightTuple.isString(rightIndex))
+                return false;
+        }
+        for (JoinCondition condition : this.residualConditions)
+            if (!condition.check(leftTuple, rightTuple))
+                return false;
+        return true;
+    }
+
+    /**
+     * @return the index of the first key not less than {@code value}.
+     */
+    private static int lowerBound(int[] keys, int value) {
+        int low = 0, high = keys.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (keys[mid] < value)
+                low = mid + 1;
+            else
+                high = mid;
+        }
+        return low;
+    }
+
+    /**
+     * @return the index of the first key greater than {@code value}.
+     */
+    private static int upperBound(int[] keys, int value) {
+        int low = 0, high = keys.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (keys[mid] <= value)
+                low = mid + 1;
+            else
+                high = mid;
+        }
+        return low;
+    }
+
+    /**
+     * Unit test of BandJoinOperator, output is printed to the console.
+     * @param args Command line inputs, can be empty.
+     */
+    public static void main(String[] args) {
+        DBCatalog dbc = DBCatalog.getInstance();
+        dbc.init("data/evaluation/db");
+
+        // Test on query:   Q(x, y, z, u, w, t) :- R(x, y, z), S(u, w, t), x <= u, u < y
+        System.out.println("Testing query: Q(x, y, z, u, w, t) :- R(x, y, z), S(u, w, t), x <= u, u < y");
+
+        List<Term> queryAtomTerms1 = new ArrayList<>();
+        queryAtomTerms1.add( new Variable("x"));
+        queryAtomTerms1.add( new Variable("y"));
+        queryAtomTerms1.add( new Variable("z"));
+        RelationalAtom queryBodyAtomR = new RelationalAtom("R", queryAtomTerms1);
+
+        List<Term> queryAtomTerms2 = new ArrayList<>();
+        queryAtomTerms2.add( new Variable("u"));
+        queryAtomTerms2.add( new Variable("w"));
+        queryAtomTerms2.add( new Variable("t"));
+        RelationalAtom queryBodyAtomS = new RelationalAtom("S", queryAtomTerms2);
+
+        List<ComparisonAtom> compAtomList = new ArrayList<>();
+        compAtomList.add(new ComparisonAtom(
+                new Variable("x"), new Variable("u"), ComparisonOperator.fromString("<=")));
+        compAtomList.add(new ComparisonAtom(
+                new Variable("u"), new Variable("y"), ComparisonOperator.fromString("<")));
+
+        BandJoinOperator joinOp = new BandJoinOperator(
+                new ScanOperator(queryBodyAtomR), new ScanOperator(queryBodyAtomS), compAtomList);
+        System.out.println(joinOp.getVariableMask());
+        joinOp.dump(null);
+        joinOp.reset();
+        System.out.println("-----------------------------------");
+        joinOp.dump(null);
+    }
+}
@@ -0,0 +1,142 @@
+package ed.inf.adbs.minibase.operator;
+
+import ed.inf.adbs.minibase.base.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * This class implements the SCAN operation on a relation held in the {@link RelationCache}, decoded into int columns.
+ * It is a drop-in replacement of {@link MappedScanOperator}, selected by {@link DBCatalog#getScanOperator}
+ * when the relation cache is enabled and the relation fits in it, so nothing is read from disk after the first scan.
+ * The pushed-down select conditions ({@link ScanPredicate}) are checked on the cached columns, a column at a time,
+ * and only the columns of the variables needed by parent operators are copied into batches (projection pushdown).
+ */
+public class CachedScanOperator extends Operator {
+
+    private final String relationName;
+    private final RelationCache.CachedRelation relation;
+    private int rowIndex = 0;
+    // the next row to be read
+    private final int[] outputColumns;
+    private final boolean[] outputStringColumns;
+    // the columns emitted in output tuples and their types
+
+    private final ScanPredicate predicate;
+    // the select conditions pushed down into this scan, null if there is none
+    private final int[] rowValues;
+    private int[] selection = null;
+    // scratch arrays of the row conditions and of the rows passing the conditions
+
+    /**
+     * Read a cached relation, and push the select conditions on the relational atom into the scan.
+     * @param baseQueryAtom a relational atom in query body, providing information like relation name and variable mask.
+     * @param compAtomList the select conditions whose variables all appear in the relational atom.
+     * @param outputVariables the variables needed by the parent operators, only their columns are emitted;
+     *                        {@code null} to emit every column.
+     * @param relation the cached relation.
+     */
+    public CachedScanOperator(RelationalAtom baseQueryAtom, List<ComparisonAtom> compAtomList,
+                              Collection<String> outputVariables, RelationCache.CachedRelation relation) {
+        List<String> atomVariables = new ArrayList<>();
+        for (Term term : baseQueryAtom.getTerms()) {
+            if (term instanceof Variable)
+                atomVariables.add(((Variable) term).getName());
+            else
+                atomVariables.add(null);
+        }
+        this.relationName = baseQueryAtom.getName();
+        this.relation = relation;
+        int columnCount = relation.columns.length;
+        ScanPredicate predicate = new ScanPredicate(compAtomList, atomVariables, relation.stringColumns);
+        this.predicate = predicate.isEmpty() ? null : predicate;
+        this.rowValues = new int[columnCount];
+
+        int[] outputColumns = selectOutputColumns(atomVariables, outputVariables);
+        if (outputColumns == null) {
+            this.variableMask = atomVariables;
+            outputColumns = new int[columnCount];
+            for (int c = 0; c < columnCount; c++)
+                outputColumns[c] = c;
+        } else {
+            for (int column : outputColumns)
+                this.variableMask.add(atomVariables.get(column));
+        }
+        this.outputColumns = outputColumns;
+        this.outputStringColumns = new boolean[outputColumns.length];
+        for (int i = 0; i < outputColumns.length; i++)
+            this.outputStringColumns[i] = relation.stringColumns[outputColumns[i]];
+    }
+
+    /**
+     * Reset the operator state, the next read starts from the first row.
+     */
+    @Override
+    public void reset() {
+        this.rowIndex = 0;
+    }
+
+    /**
+     * @return the next row passing the select conditions as a {@link Tuple}, or {@code null} at the end of relation.
+     */
+    @Override
+    public Tuple getNextTuple() {
+        while (this.rowIndex < this.relation.rowCount) {
+            int row = this.rowIndex++;
+            if (this.predicate != null && this.filterRows(row, row + 1) == 0)
+                continue;
+            int[] values = new int[this.outputColumns.length];
+            for (int i = 0; i < values.length; i++)
+                values[i] = this.relation.columns[this.outputColumns[i]][row];
+            return new Tuple(this.relationName, values, this.outputStringColumns);
+        }
+        return null;
+    }
+
+    /**
+     * Copy the next {@link #batchSize} rows of the emitted columns into a {@link TupleBatch},
+     * the rows failing the select conditions are left out of the selection vector of batch.
+     * @return the next batch, or {@code null} at the end of relation.
+     */
+    @Override
+    public TupleBatch getNextBatch() {
+        while (this.rowIndex < this.relation.rowCount) {
+            int rowCount = Math.min(batchSize, this.relation.rowCount - this.rowIndex);
+            int selected = rowCount;
+            if (this.predicate != null) {
+                selected = this.filterRows(this.rowIndex, this.rowIndex + rowCount);
+                if (selected == 0) {
+                    this.rowIndex += rowCount;
+                    continue;
+                }
+            }
+            TupleBatch batch = new TupleBatch(this.outputColumns.length, rowCount);
+            for (int i = 0; i < this.outputColumns.length; i++) {
+                int[] values = Arrays.copyOfRange(this.relation.columns[this.outputColumns[i]], this.rowIndex, this.rowIndex + rowCount);
+                batch.setColumn(i, values, this.outputStringColumns[i]);
+            }
+            batch.setRowCount(rowCount);
+            if (selected < rowCount) {
+                int[] batchSelection = new int[selected];
+                for (int i = 0; i < selected; i++)
+                    batchSelection[i] = this.selection[i] - this.rowIndex;
+                batch.setSelection(batchSelection, selected);
+            }
+            this.rowIndex += rowCount;
+            return batch;
+        }
+        return null;
+    }
+
+    /**
+     * Check the select conditions on a range of rows (see {@link ScanPredicate#filterRows}),
+     * the passing rows are written into {@code this.selection}.
+     */
+    private int filterRows(int from, int to) {
+        if (this.selection == null || this.selection.length < to - from)
+            this.selection = new int[Math.max(to - from, batchSize)];
+        return this.predicate.filterRows(this.relation.columns, from, to, this.selection, this.rowValues);
+    }
+}
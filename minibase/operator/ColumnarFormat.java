@@ -0,0 +1,219 @@
+package ed.inf.adbs.minibase.operator;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The binary columnar storage format of a relation, stored as {@code files/<R>.col} next to the CSV data file.
+ * The file is produced by {@link ColumnarLoader} and read by {@link ColumnarScanOperator}.
+ *
+ * Layout (all integers are 4-byte big-endian):
+ * <pre>
+ *   file header:       MAGIC, VERSION, column count, one type byte per column (INT_COLUMN or STRING_COLUMN)
+ *   row group header:  row count, byte length of the row group body
+ *   row group body:    for each column in schema order:
+ *                        int column:    row count values
+ *                        string column: dictionary size, each entry as (byte length, UTF-8 bytes),
+ *                                       then row count dictionary codes
+ *   file footer:       a row group header with row count 0
+ * </pre>
+ * Each row group has its own string dictionaries, so a row group can be decoded without reading the others.
+ */
+public class ColumnarFormat {
+
+    public static final int MAGIC = 0x4D424331; // "MBC1"
+    public static final int VERSION = 1;
+    public static final byte INT_COLUMN = 0;
+    public static final byte STRING_COLUMN = 1;
+    public static final int DEFAULT_ROW_GROUP_SIZE = 65536;
+
+    /**
+     * A decoded row group: each column is either an int array, or a string dictionary with an int array of codes.
+     */
+    public static class RowGroup {
+        public int rowCount;
+        public int[][] values;
+        // values[c][r] is the value (int column) or the dictionary code (string column) of column c in row r
+        public String[][] dictionaries;
+        // dictionaries[c] is the dictionary of string column c, or null for int columns
+    }
+
+    /**
+     * Writes a columnar file row by row, buffering one row group in memory.
+     */
+    public static class Writer implements Closeable {
+        private final DataOutputStream out;
+        private final byte[] types;
+        private final int rowGroupSize;
+        private final int[][] values;
+        private final List<Map<String, Integer>> dictionaries = new ArrayList<>();
+        private int rowCount = 0;
+
+        public Writer(File file, List<String> schema, int rowGroupSize) throws IOException {
+            this.out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+            this.rowGroupSize = rowGroupSize;
+            this.types = new byte[schema.size()];
+            this.values = new int[schema.size()][rowGroupSize];
+            for (int c = 0; c < schema.size(); c++) {
+                this.types[c] = schema.get(c).equals("int") ? INT_COLUMN : STRING_COLUMN;
+                this.dictionaries.add(new HashMap<>());
+            }
+            this.out.writeInt(MAGIC);
+            this.out.writeInt(VERSION);
+            this.out.writeInt(this.types.length);
+            this.out.write(this.types);
+        }
+
+        /**
+         * Append a row, the fields are given as raw strings in schema order.
+         * @param fields the fields of the row.
+         */
+        public void writeRow(String[] fields) throws IOException {
+            for (int c = 0; c < this.types.length; c++) {
+                if (this.types[c] == INT_COLUMN) {
+                    this.values[c][this.rowCount] = Integer.parseInt(fields[c]);
+                } else {
+                    Map<String, Integer> dictionary = this.dictionaries.get(c);
+                    Integer code = dictionary.get(fields[c]);
+                    if (code == null) {
+                        code = dictionary.size();
+                        dictionary.put(fields[c], code);
+                    }
+                    this.values[c][this.rowCount] = code;
+                }
+            }
+            this.rowCount++;
+            if (this.rowCount == this.rowGroupSize)
+                this.flushRowGroup();
+        }
+
+        private void flushRowGroup() throws IOException {
+            if (this.rowCount == 0)
+                return;
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream body = new DataOutputStream(bytes);
+            for (int c = 0; c < this.types.length; c++) {
+                if (this.types[c] == STRING_COLUMN) {
+                    Map<String, Integer> dictionary = this.dictionaries.get(c);
+                    String[] entries = new String[dictionary.size()];
+                    for (Map.Entry<String, Integer> entry : dictionary.entrySet())
+                        entries[entry.getValue()] = entry.getKey();
+                    body.writeInt(entries.length);
+                    for (String entry : entries) {
+                        byte[] encoded = entry.getBytes(StandardCharsets.UTF_8);
+                        body.writeInt(encoded.length);
+                        body.write(encoded);
+                    }
+                    dictionary.clear();
+                }
+                for (int r = 0; r < this.rowCount; r++)
+                    body.writeInt(this.values[c][r]);
+            }
+            body.flush();
+            this.out.writeInt(this.rowCount);
+            this.out.writeInt(bytes.size());
+            bytes.writeTo(this.out);
+            this.rowCount = 0;
+        }
+
+        @Override
+        public void close() throws IOException {
+            this.flushRowGroup();
+            this.out.writeInt(0);
+            this.out.writeInt(0);
+            this.out.close();
+        }
+    }
+
+    /**
+     * Reads a columnar file row group by row group.
+     */
+    public static class Reader implements Closeable {
+        private final FileChannel channel;
+        private final byte[] types;
+        private final long dataStart;
+        private ByteBuffer buffer = ByteBuffer.allocate(0);
+
+        public Reader(File file) throws IOException {
+            this.channel = new FileInputStream(file).getChannel();
+            ByteBuffer header = ByteBuffer.allocate(12);
+            readFully(header);
+            if (header.getInt() != MAGIC || header.getInt() != VERSION)
+                throw new IOException("Not a columnar relation file: " + file);
+            this.types = new byte[header.getInt()];
+            ByteBuffer typeBuffer = ByteBuffer.wrap(this.types);
+            readFully(typeBuffer);
+            this.dataStart = this.channel.position();
+        }
+
+        /**
+         * @return the type of each column, {@link #INT_COLUMN} or {@link #STRING_COLUMN}.
+         */
+        public byte[] getTypes() {
+            return this.types;
+        }
+
+        /**
+         * Move back to the first row group.
+         */
+        public void rewind() throws IOException {
+            this.channel.position(this.dataStart);
+        }
+
+        /**
+         * Read and decode the next row group.
+         * @return the row group, or {@code null} if the end of file is reached.
+         */
+        public RowGroup readRowGroup() throws IOException {
+            ByteBuffer header = ByteBuffer.allocate(8);
+            readFully(header);
+            int rowCount = header.getInt();
+            int byteLength = header.getInt();
+            if (rowCount == 0)
+                return null;
+            if (this.buffer.capacity() < byteLength)
+                this.buffer = ByteBuffer.allocate(byteLength);
+            this.buffer.clear();
+            this.buffer.limit(byteLength);
+            readFully(this.buffer);
+
+            RowGroup rowGroup = new RowGroup();
+            rowGroup.rowCount = rowCount;
+            rowGroup.values = new int[this.types.length][rowCount];
+            rowGroup.dictionaries = new String[this.types.length][];
+            for (int c = 0; c < this.types.length; c++) {
+                if (this.types[c] == STRING_COLUMN) {
+                    String[] dictionary = new String[this.buffer.getInt()];
+                    for (int i = 0; i < dictionary.length; i++) {
+                        int length = this.buffer.getInt();
+                        dictionary[i] = new String(this.buffer.array(), this.buffer.position(), length, StandardCharsets.UTF_8);
+                        this.buffer.position(this.buffer.position() + length);
+                    }
+                    rowGroup.dictionaries[c] = dictionary;
+                }
+                this.buffer.asIntBuffer().get(rowGroup.values[c]);
+                this.buffer.position(this.buffer.position() + 4 * rowCount);
+            }
+            return rowGroup;
+        }
+
+        private void readFully(ByteBuffer target) throws IOException {
+            while (target.hasRemaining()) {
+                if (this.channel.read(target) < 0)
+                    throw new EOFException("Unexpected end of columnar relation file");
+            }
+            target.flip();
+        }
+
+        @Override
+        public void close() throws IOException {
+            this.channel.close();
+        }
+    }
+}
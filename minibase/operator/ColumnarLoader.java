@@ -0,0 +1,93 @@
+package ed.inf.adbs.minibase.operator;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A tool converting the CSV data files of a database directory ({@code files/<R>.csv} described by {@code schema.txt})
+ * into the binary {@link ColumnarFormat}. The converted files are written as {@code files/<R>.col},
+ * and {@link DBCatalog#getScanOperator} reads them instead of the CSV files as long as they are up-to-date.
+ *
+ * Usage: ColumnarLoader database_dir [relation_name ...]
+ * If no relation name is given, all relations in the schema are converted.
+ */
+public class ColumnarLoader {
+
+    public static void main(String[] args) {
+        if (args.length < 1) {
+            System.err.println("Usage: ColumnarLoader database_dir [relation_name ...]");
+            return;
+        }
+        DBCatalog dbc = DBCatalog.getInstance();
+        dbc.init(args[0]);
+
+        List<String> relations = new ArrayList<>();
+        if (args.length > 1)
+            relations.addAll(Arrays.asList(args).subList(1, args.length));
+        else
+            relations.addAll(dbc.getRelationNames());
+
+        for (String relationName : relations) {
+            try {
+                long start = System.currentTimeMillis();
+                int rows = convert(relationName, ColumnarFormat.DEFAULT_ROW_GROUP_SIZE);
+                System.out.println("Converted " + relationName + ": " + rows + " tuples in "
+                        + (System.currentTimeMillis() - start) + " ms");
+            } catch (IOException e) {
+                System.err.println("Failed to convert relation " + relationName);
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Convert the CSV data file of a relation into a columnar file.
+     * The file is written under a temporary name first, so that a concurrent query never reads a partial file.
+     * @param relationName the name of relation.
+     * @param rowGroupSize the number of tuples in each row group.
+     * @return the number of converted tuples.
+     */
+    public static int convert(String relationName, int rowGroupSize) throws IOException {
+        DBCatalog dbc = DBCatalog.getInstance();
+        List<String> schema = dbc.getSchema(relationName);
+        File target = new File(dbc.getColumnarPath(relationName));
+        File temp = new File(target.getPath() + ".tmp");
+        int rows = 0;
+        try (BufferedReader reader = new BufferedReader(new FileReader(dbc.getRelationPath(relationName)));
+             ColumnarFormat.Writer writer = new ColumnarFormat.Writer(temp, schema, rowGroupSize)) {
+            String line = reader.readLine();
+            while (line != null) {
+                String[] fields = splitFields(line);
+                if (fields.length > 0) {
+                    writer.writeRow(fields);
+                    rows++;
+                }
+                line = reader.readLine();
+            }
+        }
+        if (!temp.renameTo(target)) {
+            target.delete();
+            if (!temp.renameTo(target))
+                throw new IOException("Cannot move " + temp + " to " + target);
+        }
+        return rows;
+    }
+
+    /**
+     * Split a CSV line into fields, in the same way as {@link ScanOperator}:
+     * a field is a maximal run of letters and digits, the quotes and separators are dropped.
+     * @param line a line of the data file.
+     * @return the fields of the line.
+     */
+    static String[] splitFields(String line) {
+        String[] fields = line.split("[^a-zA-Z0-9]+");
+        if (fields.length > 0 && fields[0].isEmpty())
+            fields = Arrays.copyOfRange(fields, 1, fields.length);
+        return fields;
+    }
+}
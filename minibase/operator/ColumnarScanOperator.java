@@ -0,0 +1,246 @@
+package ed.inf.adbs.minibase.operator;
+
+import ed.inf.adbs.minibase.base.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * This class implements the SCAN operation on a relation stored in the binary {@link ColumnarFormat}.
+ * It is a drop-in replacement of {@link ScanOperator}, selected by {@link DBCatalog#getScanOperator}
+ * when an up-to-date columnar file exists for the relation.
+ * A whole row group is decoded at once, and its dictionary codes are translated into {@link StringDictionary} codes,
+ * the tuples are then built from the decoded column arrays, so no text parsing is needed while scanning.
+ * The pushed-down select conditions ({@link ScanPredicate}) are checked on the decoded arrays, a column at a time,
+ * and only the rows passing all of them are copied into tuples or batches.
+ * Only the columns of the variables needed by parent operators are emitted (projection pushdown),
+ * the dictionary codes of the other string columns are not even translated.
+ */
+public class ColumnarScanOperator extends Operator {
+
+    private final String relationName;
+    private ColumnarFormat.Reader reader = null;
+    private ColumnarFormat.RowGroup rowGroup = null;
+    private int rowIndex = 0;
+    private boolean[] stringColumns;
+    // the column types of the relation, read from the file header
+    private int[] outputColumns;
+    private boolean[] outputStringColumns;
+    // the columns emitted in output tuples and their types
+    private boolean[] usedColumns;
+    // usedColumns[c] is true if column c is emitted or checked by a condition, the string codes of other columns are not translated
+
+    private ScanPredicate predicate = null;
+    // the select conditions pushed down into this scan, null if there is none
+    private int[] rowValues = null;
+    private int[] selection = null;
+    // scratch arrays of the row conditions and of the rows passing the conditions
+
+    /**
+     * Open the columnar file, use the terms in the relational atom to build the variable mask.
+     * @param baseQueryAtom a relational atom in query body, providing information like relation name and variable mask.
+     */
+    public ColumnarScanOperator(RelationalAtom baseQueryAtom) {
+        this(baseQueryAtom, new ArrayList<>(), null);
+    }
+
+    /**
+     * Open the columnar file, and push the select conditions on the relational atom into the scan.
+     * @param baseQueryAtom a relational atom in query body, providing information like relation name and variable mask.
+     * @param compAtomList the select conditions whose variables all appear in the relational atom.
+     * @param outputVariables the variables needed by the parent operators, only their columns are emitted;
+     *                        {@code null} to emit every column.
+     */
+    public ColumnarScanOperator(RelationalAtom baseQueryAtom, List<ComparisonAtom> compAtomList,
+                                Collection<String> outputVariables) {
+        List<String> atomVariables = new ArrayList<>();
+        for (Term term : baseQueryAtom.getTerms()) {
+            if (term instanceof Variable)
+                atomVariables.add(((Variable) term).getName());
+            else
+                atomVariables.add(null);
+        }
+        this.relationName = baseQueryAtom.getName();
+        this.reset();
+        int columnCount = this.stringColumns == null ? 0 : this.stringColumns.length;
+        if (columnCount > 0) {
+            ScanPredicate predicate = new ScanPredicate(compAtomList, atomVariables, this.stringColumns);
+            if (!predicate.isEmpty()) {
+                this.predicate = predicate;
+                this.rowValues = new int[columnCount];
+            }
+        }
+
+        this.outputColumns = selectOutputColumns(atomVariables, outputVariables);
+        this.usedColumns = new boolean[columnCount];
+        if (this.outputColumns == null) {
+            this.variableMask = atomVariables;
+            this.outputColumns = new int[columnCount];
+            for (int c = 0; c < columnCount; c++)
+                this.outputColumns[c] = c;
+        } else {
+            for (int column : this.outputColumns)
+                this.variableMask.add(atomVariables.get(column));
+        }
+        this.outputStringColumns = new boolean[this.outputColumns.length];
+        for (int i = 0; i < this.outputColumns.length && columnCount > 0; i++) {
+            this.outputStringColumns[i] = this.stringColumns[this.outputColumns[i]];
+            this.usedColumns[this.outputColumns[i]] = true;
+        }
+        for (int c = 0; c < columnCount; c++)
+            if (this.predicate != null && (this.predicate.hasColumnConditions(c) || this.predicate.isRowConditionColumn(c)))
+                this.usedColumns[c] = true;
+    }
+
+    /**
+     * Reset the operator state, the next read starts from the first row group.
+     */
+    @Override
+    public void reset() {
+        DBCatalog dbc = DBCatalog.getInstance();
+        try {
+            if (this.reader == null)
+                this.reader = new ColumnarFormat.Reader(new File(dbc.getColumnarPath(relationName)));
+            else
+                this.reader.rewind();
+            byte[] types = this.reader.getTypes();
+            this.stringColumns = new boolean[types.length];
+            for (int c = 0; c < types.length; c++)
+                this.stringColumns[c] = types[c] == ColumnarFormat.STRING_COLUMN;
+        } catch (IOException e) {
+            System.out.println("Columnar relation file not readable: " + dbc.getColumnarPath(relationName));
+            e.printStackTrace();
+        }
+        this.rowGroup = null;
+        this.rowIndex = 0;
+    }
+
+    /**
+     * Release the file handle, it is reopened by {@link #reset()}.
+     */
+    @Override
+    public void close() {
+        this.closeReader();
+    }
+
+    /**
+     * Return the next row of the current row group as a {@link Tuple}, decoding the next row group if needed.
+     * @return the next tuple, or {@code null} if the end of file is reached.
+     */
+    @Override
+    public Tuple getNextTuple() {
+        while (this.ensureRowGroup()) {
+            int row = this.rowIndex++;
+            if (this.predicate != null && this.filterRows(row, row + 1) == 0)
+                continue;
+            int[] values = new int[this.outputColumns.length];
+            for (int i = 0; i < values.length; i++)
+                values[i] = this.rowGroup.values[this.outputColumns[i]][row];
+            return new Tuple(this.relationName, values, this.outputStringColumns);
+        }
+        return null;
+    }
+
+    /**
+     * Return the next rows of the current row group as a {@link TupleBatch}, decoding the next row group if needed.
+     * The columns are copied from the decoded arrays of the row group,
+     * the rows failing the select conditions are left out of the selection vector of batch.
+     * @return the next batch, or {@code null} if the end of file is reached.
+     */
+    @Override
+    public TupleBatch getNextBatch() {
+        while (this.ensureRowGroup()) {
+            int rowCount = Math.min(batchSize, this.rowGroup.rowCount - this.rowIndex);
+            int selected = rowCount;
+            if (this.predicate != null) {
+                selected = this.filterRows(this.rowIndex, this.rowIndex + rowCount);
+                if (selected == 0) {
+                    this.rowIndex += rowCount;
+                    continue;
+                }
+            }
+            TupleBatch batch = new TupleBatch(this.outputColumns.length, rowCount);
+            for (int i = 0; i < this.outputColumns.length; i++) {
+                int[] values = Arrays.copyOfRange(this.rowGroup.values[this.outputColumns[i]], this.rowIndex, this.rowIndex + rowCount);
+                batch.setColumn(i, values, this.outputStringColumns[i]);
+            }
+            batch.setRowCount(rowCount);
+            if (selected < rowCount) {
+                int[] batchSelection = new int[selected];
+                for (int i = 0; i < selected; i++)
+                    batchSelection[i] = this.selection[i] - this.rowIndex;
+                batch.setSelection(batchSelection, selected);
+            }
+            this.rowIndex += rowCount;
+            return batch;
+        }
+        return null;
+    }
+
+    /**
+     * Check the select conditions on a range of rows of the current row group (see {@link ScanPredicate#filterRows}).
+     * The passing rows are written into {@code this.selection}.
+     * @param from the first row of range.
+     * @param to the end of range (exclusive).
+     * @return the number of passing rows.
+     */
+    private int filterRows(int from, int to) {
+        if (this.selection == null || this.selection.length < to - from)
+            this.selection = new int[Math.max(to - from, batchSize)];
+        return this.predicate.filterRows(this.rowGroup.values, from, to, this.selection, this.rowValues);
+    }
+
+    /**
+     * Make sure the current row group has unread rows, decoding the next row group if needed.
+     * @return {@code false} if the end of file is reached.
+     */
+    private boolean ensureRowGroup() {
+        if (this.reader == null)
+            return false;
+        if (this.rowGroup != null && this.rowIndex < this.rowGroup.rowCount)
+            return true;
+        try {
+            this.rowGroup = this.reader.readRowGroup();
+        } catch (IOException e) {
+            System.out.println("Failed to read columnar relation file of " + this.relationName);
+            e.printStackTrace();
+            this.rowGroup = null;
+        }
+        this.rowIndex = 0;
+        if (this.rowGroup == null) {
+            this.closeReader();
+            return false;
+        }
+        // translate the codes of row group dictionaries into the codes of the global dictionary, once per row group
+        StringDictionary dictionary = DBCatalog.getInstance().getDictionary();
+        for (int c = 0; c < this.rowGroup.values.length; c++) {
+            String[] localDictionary = this.rowGroup.dictionaries[c];
+            if (localDictionary == null || !this.usedColumns[c])
+                continue;
+            int[] globalCodes = new int[localDictionary.length];
+            for (int i = 0; i < localDictionary.length; i++)
+                globalCodes[i] = dictionary.encode(localDictionary[i]);
+            int[] values = this.rowGroup.values[c];
+            for (int r = 0; r < this.rowGroup.rowCount; r++)
+                values[r] = globalCodes[values[r]];
+        }
+        return true;
+    }
+
+    /**
+     * Release the file handle once the end of file is reached, it is reopened by {@link #reset()}.
+     */
+    private void closeReader() {
+        try {
+            if (this.reader != null)
+                this.reader.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        this.reader = null;
+    }
+}
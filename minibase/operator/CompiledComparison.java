@@ -0,0 +1,141 @@
+package ed.inf.adbs.minibase.operator;
+
+import ed.inf.adbs.minibase.base.ComparisonOperator;
+
+/**
+ * A comparison between two operands in the primitive representation of {@link Tuple}, specialized once (at plan time,
+ * or on the first row when the column types are only known then) for a {@link ComparisonOperator} and the operand types.
+ * Each combination is a separate final class, so evaluating a condition is a single call of a tiny method without
+ * any test on the operator text or the operand types, which the JIT can inline at a monomorphic call site.
+ * The specialized loops over a column (see {@link SelectCondition#filter}) keep the call sites monomorphic.
+ *
+ * The combinations are:
+ *      (1) two ints, or two strings compared by '=' / '!=': the values (dictionary codes) are compared directly;
+ *      (2) two strings compared by an ordering operator: the decoded strings are compared through the {@link StringDictionary};
+ *      (3) an int and a string: the result is a constant, only '!=' holds.
+ */
+public abstract class CompiledComparison {
+
+    /**
+     * @param operand1 the left operand, an int value or a dictionary code.
+     * @param operand2 the right operand, an int value or a dictionary code.
+     * @return {@code true} if {@code operand1 op operand2} holds.
+     */
+    public abstract boolean test(int operand1, int operand2);
+
+    /**
+     * Compile a comparison {@code operand1 op operand2}.
+     * @param op the comparison operator.
+     * @param isString1 whether the left operand is a string.
+     * @param isString2 whether the right operand is a string.
+     * @return the specialized comparison.
+     */
+    public static CompiledComparison compile(ComparisonOperator op, boolean isString1, boolean isString2) {
+        if (isString1 != isString2) {
+            // an int never equals to a string
+            return op == ComparisonOperator.NEQ ? FixedResult.TRUE : FixedResult.FALSE;
+        }
+        if (isString1 && op != ComparisonOperator.EQ && op != ComparisonOperator.NEQ)
+            return new StringOrder(compile(op, false, false), DBCatalog.getInstance().getDictionary());
+        switch (op) {
+            case EQ: return new IntEq();
+            case NEQ: return new IntNeq();
+            case GT: return new IntGt();
+            case GEQ: return new IntGeq();
+            case LT: return new IntLt();
+            default: return new IntLeq();
+        }
+    }
+
+    /**
+     * @return the operator giving the same result when both sides of a comparison are swapped, e.g. '<' for '>'.
+     */
+    public static ComparisonOperator reverse(ComparisonOperator op) {
+        switch (op) {
+            case LT: return ComparisonOperator.GT;
+            case LEQ: return ComparisonOperator.GEQ;
+            case GT: return ComparisonOperator.LT;
+            case GEQ: return ComparisonOperator.LEQ;
+            default: return op;
+        }
+    }
+
+    static final class IntEq extends CompiledComparison {
+        @Override
+        public boolean test(int operand1, int operand2) {
+            return operand1 == operand2;
+        }
+    }
+
+    static final class IntNeq extends CompiledComparison {
+        @Override
+        public boolean test(int operand1, int operand2) {
+            return operand1 != operand2;
+        }
+    }
+
+    static final class IntGt extends CompiledComparison {
+        @Override
+        public boolean test(int operand1, int operand2) {
+            return operand1 > operand2;
+        }
+    }
+
+    static final class IntGeq extends CompiledComparison {
+        @Override
+        public boolean test(int operand1, int operand2) {
+            return operand1 >= operand2;
+        }
+    }
+
+    static final class IntLt extends CompiledComparison {
+        @Override
+        public boolean test(int operand1, int operand2) {
+            return operand1 < operand2;
+        }
+    }
+
+    static final class IntLeq extends CompiledComparison {
+        @Override
+        public boolean test(int operand1, int operand2) {
+            return operand1 <= operand2;
+        }
+    }
+
+    /**
+     * An ordering comparison of two strings: the codes are decoded and compared, the result is tested against zero.
+     */
+    static final class StringOrder extends CompiledComparison {
+        private final CompiledComparison order;
+        private final StringDictionary dictionary;
+
+        StringOrder(CompiledComparison order, StringDictionary dictionary) {
+            this.order = order;
+            this.dictionary = dictionary;
+        }
+
+        @Override
+        public boolean test(int operand1, int operand2) {
+            return this.order.test(this.dictionary.compare(operand1, operand2), 0);
+        }
+    }
+
+    /**
+     * A comparison whose result does not depend on the operands.
+     */
+    static final class FixedResult extends CompiledComparison {
+        static final FixedResult TRUE = new FixedResult(true);
+        static final FixedResult FALSE = new FixedResult(false);
+
+        private final boolean result;
+
+        private FixedResult(boolean result) {
+            this.result = result;
+        }
+
+        @Override
+        public boolean test(int operand1, int operand2) {
+            return this.result;
+        }
+    }
+}
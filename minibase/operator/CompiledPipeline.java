@@ -0,0 +1,124 @@
+package ed.inf.adbs.minibase.operator;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * The base class of the pipelines generated by {@link PipelineCompiler}: a scan of a CSV data file, its select conditions
+ * and the projection (or the input of SUM) fused into a single method, {@link #run}, which parses the mapped bytes of
+ * the file and hands each passing row straight to a {@link Sink}, without any {@link Tuple} or per-operator call in between.
+ *
+ * A generated subclass only depends on the shape of the query (the schema, the columns, the operators and the operand
+ * types of the conditions, the output columns), the constants of the conditions are read from the arrays bound by
+ * {@link #bind}, so one generated class serves every query of the same shape.
+ * The helpers below follow the parsing rules of {@link MappedScanOperator}.
+ */
+public abstract class CompiledPipeline {
+
+    /**
+     * The consumer of the rows produced by a pipeline, i.e. the blocking operation (or the output) ending the pipeline.
+     */
+    public static abstract class Sink {
+        public final int[] row;
+        // the values of the current output row, written by the pipeline before each call of emit()
+
+        protected Sink(int width) {
+            this.row = new int[width];
+        }
+
+        /**
+         * Consume the row held in {@link #row}.
+         * @return {@code true} if the pipeline should pause and return (e.g. an output batch is full).
+         */
+        public abstract boolean emit();
+    }
+
+    protected int[] intConstants;
+    protected byte[][] stringConstants;
+    // the constants compared with int and string columns, in the order the generated code refers to them
+    protected StringDictionary dictionary;
+    private byte[] fieldBytes = new byte[64];
+
+    /**
+     * Set the constants and the dictionary used by the generated code.
+     * @param intConstants the int constants of the conditions.
+     * @param stringConstants the string constants of the conditions, as bytes.
+     * @param dictionary the dictionary encoding the string values of tuples.
+     */
+    void bind(int[] intConstants, byte[][] stringConstants, StringDictionary dictionary) {
+        this.intConstants = intConstants;
+        this.stringConstants = stringConstants;
+        this.dictionary = dictionary;
+    }
+
+    /**
+     * Process the lines of a data file from a position, until the sink asks to pause or the end of file is reached.
+     * @param buffer the mapped data file.
+     * @param position the offset of the first line to be processed.
+     * @param sink the consumer of the passing rows.
+     * @return the offset of the next line to be processed, {@code buffer.limit()} (or beyond) at the end of file.
+     */
+    public abstract int run(ByteBuffer buffer, int position, Sink sink);
+
+    protected static boolean isFieldByte(byte b) {
+        return (b >= '0' && b <= '9') || (b >= 'a' && b <= 'z') || (b >= 'A' && b <= 'Z');
+    }
+
+    /**
+     * @return the offset of the next field byte or line break from {@code position}, or {@code limit}.
+     */
+    protected static int skipSeparators(ByteBuffer buffer, int position, int limit) {
+        byte b;
+        while (position < limit && (b = buffer.get(position)) != '\n' && !isFieldByte(b))
+            position++;
+        return position;
+    }
+
+    /**
+     * @return the offset of the first byte after the field starting at {@code position}.
+     */
+    protected static int skipField(ByteBuffer buffer, int position, int limit) {
+        while (position < limit && isFieldByte(buffer.get(position)))
+            position++;
+        return position;
+    }
+
+    /**
+     * @return the offset of the first byte of the next line.
+     */
+    protected static int skipLine(ByteBuffer buffer, int position, int limit) {
+        while (position < limit && buffer.get(position) != '\n')
+            position++;
+        return position + 1;
+    }
+
+    /**
+     * Compare the bytes of a field with a string constant, in the order of {@link String#compareTo}
+     * (the fields are letters and digits).
+     * @return a negative, zero or positive number as the field is less than, equal to or greater than the constant.
+     */
+    protected static int compareField(ByteBuffer buffer, int start, int length, byte[] constant) {
+        int common = Math.min(length, constant.length);
+        for (int i = 0; i < common; i++) {
+            int cmp = buffer.get(start + i) - constant[i];
+            if (cmp != 0)
+                return cmp;
+        }
+        return length - constant.length;
+    }
+
+    /**
+     * Encode the bytes of a field into its {@link StringDictionary} code.
+     */
+    protected final int encode(ByteBuffer buffer, int start, int length) {
+        if (length > this.fieldBytes.length)
+            this.fieldBytes = Arrays.copyOf(this.fieldBytes, Math.max(length, this.fieldBytes.length * 2));
+        for (int i = 0; i < length; i++)
+            this.fieldBytes[i] = buffer.get(start + i);
+        return this.dictionary.encode(this.fieldBytes, 0, length);
+    }
+
+    protected static NumberFormatException invalidInt(int position) {
+        return new NumberFormatException("Invalid int field at byte " + position);
+    }
+}
@@ -0,0 +1,257 @@
+package ed.inf.adbs.minibase.operator;
+
+import ed.inf.adbs.minibase.base.*;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Evaluate a query over a single relation by a {@link CompiledPipeline} generated by {@link PipelineCompiler},
+ * in place of the operator tree (scan, project or SUM). The pipeline writes each passing row into a sink:
+ *      (1) for a projection, the rows are checked by a {@link DistinctFilter} (unless the query planner has proved
+ *          the projection free of duplicates) and appended to the output batch, the pipeline pauses when the batch is full;
+ *      (2) for a SUM query, the pipeline runs through the whole file (the blocking point), the rows are grouped
+ *          on the head variables by an open-addressing hash table of primitive values, then the groups are output
+ *          in the order they first appeared, as {@link SumOperator} does.
+ */
+public class CompiledPipelineOperator extends Operator {
+
+    private final String relationName;
+    private final CompiledPipeline pipeline;
+    private final ByteBuffer buffer;
+    private int position = 0;
+    private boolean pipelineExhausted = false;
+    // the offset of the next line processed by the pipeline, and whether the pipeline reached the end of file
+
+    private final boolean[] stringColumns;
+    // the column types of output tuples
+    private final boolean aggregate;
+    private final boolean distinct;
+    private final int memoryBudget;
+
+    private ProjectSink projectSink = null;
+    private SumSink sumSink = null;
+    private int groupPosition = 0;
+    // the sink of the pipeline, and the next group to be output for a SUM query
+
+    private TupleBatch currentBatch = null;
+    private int currentIndex = 0;
+    // the batch whose rows are returned by getNextTuple()
+
+    /**
+     * @param head the query head.
+     * @param pipeline the compiled pipeline, writing the head values (followed by the SUM argument) of each passing row.
+     * @param buffer the mapped data file of relation.
+     * @param pipelineStringColumns the types of the values written by the pipeline.
+     * @param aggregate whether the last head term is a SUM.
+     * @param distinct whether the duplicated output tuples are removed (for a projection).
+     * @param memoryBudget the maximum number of distinct tuples kept in memory for the duplication check.
+     */
+    public CompiledPipelineOperator(RelationalAtom head, CompiledPipeline pipeline, ByteBuffer buffer,
+                                    boolean[] pipelineStringColumns, boolean aggregate, boolean distinct, int memoryBudget) {
+        List<Term> headTerms = head.getTerms();
+        for (Term term : headTerms)
+            this.variableMask.add(term instanceof Variable ? ((Variable) term).getName() : term.toString());
+        this.relationName = aggregate ? headTerms.get(headTerms.size() - 1).toString() : head.getName();
+        this.pipeline = pipeline;
+        this.buffer = buffer;
+        this.stringColumns = pipelineStringColumns.clone();
+        this.aggregate = aggregate;
+        this.distinct = distinct;
+        this.memoryBudget = memoryBudget;
+        if (aggregate)
+            this.stringColumns[this.stringColumns.length - 1] = false; // the sum is an int
+        this.initSink();
+    }
+
+    private void initSink() {
+        if (this.aggregate) {
+            this.sumSink = new SumSink(this.stringColumns.length - 1);
+        } else {
+            if (this.projectSink != null && this.projectSink.distinctFilter != null)
+                this.projectSink.distinctFilter.close();
+            this.projectSink = new ProjectSink();
+        }
+    }
+
+    /**
+     * Rewind the pipeline to the beginning of the data file, and clean the state of the sink.
+     */
+    @Override
+    public void reset() {
+        this.position = 0;
+        this.pipelineExhausted = false;
+        this.groupPosition = 0;
+        this.currentBatch = null;
+        this.currentIndex = 0;
+        this.initSink();
+    }
+
+    /**
+     * Remove the spill files of the duplication check.
+     */
+    @Override
+    public void close() {
+        if (this.projectSink != null && this.projectSink.distinctFilter != null)
+            this.projectSink.distinctFilter.close();
+    }
+
+    /**
+     * @return the next output tuple, taken from the batches of {@link #getNextBatch()}.
+     */
+    @Override
+    public Tuple getNextTuple() {
+        while (this.currentBatch == null || this.currentIndex >= this.currentBatch.size()) {
+            this.currentBatch = this.getNextBatch();
+            this.currentIndex = 0;
+            if (this.currentBatch == null)
+                return null;
+        }
+        return this.currentBatch.getTuple(this.currentBatch.getRowIndex(this.currentIndex++), this.relationName);
+    }
+
+    /**
+     * Run the pipeline until a batch of output rows is produced.
+     * @return the next batch of output rows, or {@code null} if all rows have been reported.
+     */
+    @Override
+    public TupleBatch getNextBatch() {
+        return this.aggregate ? this.nextSumBatch() : this.nextProjectBatch();
+    }
+
+    private TupleBatch nextProjectBatch() {
+        ProjectSink sink = this.projectSink;
+        while (!this.pipelineExhausted) {
+            if (sink.batch == null || sink.batch.getRowCount() > 0)
+                sink.batch = new TupleBatch(this.stringColumns.length, batchSize);
+            this.position = this.pipeline.run(this.buffer, this.position, sink);
+            this.pipelineExhausted = this.position >= this.buffer.limit();
+            if (sink.batch.getRowCount() > 0)
+                return sink.batch;
+        }
+        if (sink.distinctFilter == null)
+            return null;
+        // the tuples deferred by the duplication check after spilling
+        Tuple deferred = sink.distinctFilter.nextDeferred();
+        if (deferred == null)
+            return null;
+        TupleBatch batch = new TupleBatch(this.stringColumns.length, batchSize);
+        batch.addTuple(deferred);
+        while (!batch.isFull() && (deferred = sink.distinctFilter.nextDeferred()) != null)
+            batch.addTuple(deferred);
+        return batch;
+    }
+
+    private TupleBatch nextSumBatch() {
+        SumSink sink = this.sumSink;
+        if (!this.pipelineExhausted) {
+            // SUM is blocking, the whole file is aggregated first
+            this.position = this.pipeline.run(this.buffer, 0, sink);
+            this.pipelineExhausted = true;
+        }
+        if (this.groupPosition >= sink.groupCount)
+            return null;
+        TupleBatch batch = new TupleBatch(this.stringColumns.length, batchSize);
+        int width = sink.groupWidth;
+        while (!batch.isFull() && this.groupPosition < sink.groupCount) {
+            int g = this.groupPosition++;
+            int row = batch.addRow();
+            for (int c = 0; c < width; c++)
+                batch.setValue(c, row, sink.keys[g * width + c], this.stringColumns[c]);
+            batch.setValue(width, row, sink.sums[g], false);
+        }
+        return batch;
+    }
+
+    /**
+     * Append the output rows to a batch, after the duplication check.
+     */
+    private class ProjectSink extends CompiledPipeline.Sink {
+        private TupleBatch batch = null;
+        private final DistinctFilter distinctFilter;
+
+        ProjectSink() {
+            super(stringColumns.length);
+            this.distinctFilter = distinct ? new DistinctFilter(relationName, stringColumns.length, memoryBudget) : null;
+        }
+
+        @Override
+        public boolean emit() {
+            if (this.distinctFilter != null && !this.distinctFilter.add(this.row, stringColumns))
+                return false;
+            int r = this.batch.addRow();
+            for (int c = 0; c < this.row.length; c++)
+                this.batch.setValue(c, r, this.row[c], stringColumns[c]);
+            return this.batch.isFull();
+        }
+    }
+
+    /**
+     * Group the rows on their first {@code groupWidth} values, and add up the last value of each group.
+     * The groups are kept in the order of their first rows, the hash table only stores group positions.
+     */
+    private static class SumSink extends CompiledPipeline.Sink {
+        private final int groupWidth;
+        private int[] keys;
+        private int[] sums;
+        private int groupCount = 0;
+        // the values of group g are keys[g * groupWidth ... (g + 1) * groupWidth - 1], and its sum is sums[g]
+        private int[] slots = new int[64];
+        // the hash table, a slot holds the position of a group plus one, or 0 if empty
+
+        SumSink(int groupWidth) {
+            super(groupWidth + 1);
+            this.groupWidth = groupWidth;
+            this.keys = new int[32 * groupWidth];
+            this.sums = new int[32];
+        }
+
+        @Override
+        public boolean emit() {
+            int mask = this.slots.length - 1;
+            int slot = RowKey.hash(this.row, this.groupWidth) & mask;
+            while (this.slots[slot] != 0) {
+                int g = this.slots[slot] - 1;
+                if (this.matches(g)) {
+                    this.sums[g] += this.row[this.groupWidth];
+                    return false;
+                }
+                slot = (slot + 1) & mask;
+            }
+            // a new group
+            int g = this.groupCount++;
+            if (g >= this.sums.length) {
+                this.sums = Arrays.copyOf(this.sums, this.sums.length * 2);
+                this.keys = Arrays.copyOf(this.keys, this.sums.length * this.groupWidth);
+            }
+            System.arraycopy(this.row, 0, this.keys, g * this.groupWidth, this.groupWidth);
+            this.sums[g] = this.row[this.groupWidth];
+            this.slots[slot] = g + 1;
+            if (this.groupCount * 2 > this.slots.length)
+                this.rehash();
+            return false;
+        }
+
+        private boolean matches(int g) {
+            int offset = g * this.groupWidth;
+            for (int c = 0; c < this.groupWidth; c++)
+                if (this.keys[offset + c] != this.row[c])
+                    return false;
+            return true;
+        }
+
+        private void rehash() {
+            this.slots = new int[this.slots.length * 2];
+            int mask = this.slots.length - 1;
+            int[] values = new int[this.groupWidth];
+            for (int g = 0; g < this.groupCount; g++) {
+                System.arraycopy(this.keys, g * this.groupWidth, values, 0, this.groupWidth);
+                int slot = RowKey.hash(values, this.groupWidth) & mask;
+                while (this.slots[slot] != 0)
+                    slot = (slot + 1) & mask;
+                this.slots[slot] = g + 1;
+            }
+        }
+    }
+}
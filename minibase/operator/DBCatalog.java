@@ -1,24 +1,74 @@
 package ed.inf.adbs.minibase.operator;
 
+import ed.inf.adbs.minibase.base.ComparisonAtom;
+import ed.inf.adbs.minibase.base.ComparisonOperator;
+import ed.inf.adbs.minibase.base.Constant;
+import ed.inf.adbs.minibase.base.IntegerConstant;
+import ed.inf.adbs.minibase.base.RelationalAtom;
+
+import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.PrintWriter;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * A catalog for storing global information like relation schema and database directory.
- * Be used in {@link ScanOperator} to support the data file access and data type identification.
+ * Be used in {@link ScanOperator} to support the data file access and data type identification,
+ * and by the query planner to choose the scan operator of each relation (see {@link #getScanOperator}).
  *
  * Singleton design pattern is applied, only on instance of catalog will be created during each run.
+ * The catalog is shared by the queries evaluated concurrently in batch mode (see {@link ed.inf.adbs.minibase.Minibase#evaluateBatch}),
+ * so its maps are concurrent and the statistics file is refreshed by one query at a time;
+ * {@link #init} is called once before the queries start, not while they run.
  */
 public class DBCatalog {
 
-    public static DBCatalog instance;
-    private String dbDirectory;
+    public static volatile DBCatalog instance;
+    private volatile String dbDirectory;
+
+    /**
+     * The ways of scanning a CSV data file, used when a relation has no up-to-date columnar file.
+     */
+    public enum ScanMode {
+        SCANNER, // ScanOperator: read lines by java.util.Scanner and split them by a regex
+        MAPPED   // MappedScanOperator: memory-map the file and parse fields from bytes
+    }
 
-    Map<String, List<String>> relationSchemaMap = new HashMap<>();
+    private volatile ScanMode scanMode = ScanMode.MAPPED;
+
+    private final StringDictionary dictionary = new StringDictionary();
+    // the codes of string values stored in tuples, shared by all relations and kept across init() calls
+
+    private final RelationCache relationCache = new RelationCache();
+    // the decoded relations kept in memory across queries, disabled unless a capacity is set
+
+    volatile Map<String, List<String>> relationSchemaMap = new ConcurrentHashMap<>();
     // <relation name : ArrayList of data type>
     // e.g. <'R' : ['int', 'int', 'string']>
 
+    volatile Map<String, List<Integer>> relationKeyMap = new ConcurrentHashMap<>();
+    // <relation name : indices of key attributes>, declared in the optional 'keys.txt'
+    // e.g. <'R' : [0]>
+
+    volatile Map<String, Long> cardinalityMap = new ConcurrentHashMap<>();
+    // <relation name : estimated number of tuples>, filled lazily by estimateCardinality()
+
+    volatile Map<String, long[]> distinctValuesMap = new ConcurrentHashMap<>();
+    // <relation name : estimated number of distinct values of each column>, filled lazily by estimateDistinctValues()
+
+    volatile Map<String, boolean[]> sortedColumnsMap = new ConcurrentHashMap<>();
+    // <relation name : whether each column is sorted in ascending order>, filled lazily by isSortedOn()
+
+    volatile Map<String, RelationStatistics> statisticsMap = new ConcurrentHashMap<>();
+    // <relation name : statistics collected by StatisticsCollector>, persisted in 'stats.txt'
+
+    private static final int CARDINALITY_SAMPLE_LINES = 64;
+    private static final int DISTINCT_SAMPLE_LINES = 1024;
+
     private DBCatalog() {}
 
     /**
@@ -28,8 +78,12 @@ public class DBCatalog {
      * @return the reference to instance of catalog
      */
     public static DBCatalog getInstance(){
-        if (instance == null)
-            instance = new DBCatalog();
+        if (instance == null) {
+            synchronized (DBCatalog.class) {
+                if (instance == null)
+                    instance = new DBCatalog();
+            }
+        }
         return instance;
     }
 
@@ -37,8 +91,12 @@ public class DBCatalog {
      * Initialise the catalog, scan and read the schema information under the database directory.
      * @param dbDirectory the relative path to the 'db' directory
      */
-    public void init(String dbDirectory) {
+    public synchronized void init(String dbDirectory) {
         this.dbDirectory = dbDirectory;
+        this.relationSchemaMap = new ConcurrentHashMap<>();
+        this.cardinalityMap = new ConcurrentHashMap<>();
+        this.distinctValuesMap = new ConcurrentHashMap<>();
+        this.sortedColumnsMap = new ConcurrentHashMap<>();
         String schema_path = this.dbDirectory + File.separator + "schema.txt";
         try {
             File f = new File(schema_path);
@@ -53,6 +111,38 @@ public class DBCatalog {
             System.out.println("Schema file not found at : " + schema_path);
             e.printStackTrace();
         }
+        this.loadKeys();
+        this.loadStatistics();
+    }
+
+    /**
+     * Read the key declarations from 'keys.txt' under the database directory, if the file exists.
+     * Each line has the relation name followed by the (0-based) indices of its key attributes, e.g. {@code R 0}.
+     * A declared key promises that no two tuples of the relation agree on all key attributes
+     * (in particular, the data file has no duplicated tuple).
+     */
+    private void loadKeys() {
+        this.relationKeyMap = new ConcurrentHashMap<>();
+        File f = new File(this.dbDirectory + File.separator + "keys.txt");
+        if (!f.isFile())
+            return;
+        try {
+            Scanner scanner = new Scanner(f);
+            while (scanner.hasNextLine()) {
+                String line = scanner.nextLine().trim();
+                if (line.isEmpty())
+                    continue;
+                String[] fields = line.split("\\s+");
+                List<Integer> keyIndices = new ArrayList<>();
+                for (int i = 1; i < fields.length; i++)
+                    keyIndices.add(Integer.parseInt(fields[i]));
+                this.relationKeyMap.put(fields[0], keyIndices);
+            }
+            scanner.close();
+        } catch (FileNotFoundException e) {
+            System.out.println("Key file not found at : " + f.getPath());
+            e.printStackTrace();
+        }
     }
 
     /**
@@ -64,6 +154,98 @@ public class DBCatalog {
         return (this.dbDirectory + File.separator + "files" + File.separator + relationName + ".csv");
     }
 
+    /**
+     * Return the relative path to the columnar file of required relation, written by {@link ColumnarLoader}
+     * @param relationName the name of relation
+     * @return the relative path as a String
+     */
+    public String getColumnarPath(String relationName) {
+        return (this.dbDirectory + File.separator + "files" + File.separator + relationName + ".col");
+    }
+
+    /**
+     * Check whether a relation has a columnar file that is not older than its CSV data file.
+     * @param relationName the name of relation
+     * @return {@code true} if the columnar file can be used in place of the CSV data file
+     */
+    public boolean hasColumnarFile(String relationName) {
+        File columnarFile = new File(getColumnarPath(relationName));
+        File csvFile = new File(getRelationPath(relationName));
+        return columnarFile.isFile() && (!csvFile.exists() || columnarFile.lastModified() >= csvFile.lastModified());
+    }
+
+    /**
+     * Create the leaf operator scanning a relation of the query body:
+     * a {@link ColumnarScanOperator} if an up-to-date columnar file exists,
+     * a {@link CachedScanOperator} if the relation is held (or can be loaded) in the {@link RelationCache},
+     * otherwise a {@link MappedScanOperator} or a {@link ScanOperator} depending on the scan mode.
+     * @param baseQueryAtom a relational atom in query body
+     * @return the scan operator
+     */
+    public Operator getScanOperator(RelationalAtom baseQueryAtom) {
+        return getScanOperator(baseQueryAtom, new ArrayList<>(), null);
+    }
+
+    /**
+     * Create the leaf operator scanning a relation of the query body, with the select conditions and the projection pushed down into it.
+     * @param baseQueryAtom a relational atom in query body
+     * @param compAtomList the select conditions whose variables all appear in the relational atom
+     * @param outputVariables the variables needed by the parent operators, or {@code null} to emit every column
+     * @return the scan operator, only returning the tuples that satisfy the conditions
+     */
+    public Operator getScanOperator(RelationalAtom baseQueryAtom, List<ComparisonAtom> compAtomList,
+                                    Collection<String> outputVariables) {
+        if (hasColumnarFile(baseQueryAtom.getName()))
+            return new ColumnarScanOperator(baseQueryAtom, compAtomList, outputVariables);
+        RelationCache.CachedRelation cachedRelation = this.relationCache.get(baseQueryAtom.getName());
+        if (cachedRelation != null)
+            return new CachedScanOperator(baseQueryAtom, compAtomList, outputVariables, cachedRelation);
+        if (isMappedScan(baseQueryAtom.getName()))
+            return new MappedScanOperator(baseQueryAtom, compAtomList, outputVariables);
+        return new ScanOperator(baseQueryAtom, compAtomList, outputVariables);
+    }
+
+    /**
+     * Check whether a relation is scanned by a {@link MappedScanOperator}, i.e. it has no up-to-date columnar file,
+     * the scan mode is {@link ScanMode#MAPPED} and its CSV data file can be mapped as a single buffer.
+     * @param relationName the name of relation
+     * @return {@code true} if the CSV data file of relation is read from a memory-mapped buffer
+     */
+    public boolean isMappedScan(String relationName) {
+        // a single mapped buffer cannot exceed 2GB, larger files are read by Scanner
+        return !hasColumnarFile(relationName) && this.scanMode == ScanMode.MAPPED &&
+                new File(getRelationPath(relationName)).length() <= Integer.MAX_VALUE;
+    }
+
+    /**
+     * Set how CSV data files are scanned, {@link ScanMode#MAPPED} by default.
+     * @param scanMode the scan mode
+     */
+    public void setScanMode(ScanMode scanMode) {
+        this.scanMode = scanMode;
+    }
+
+    /**
+     * @return the cache of decoded relations, see {@link RelationCache#setCapacity} to enable it
+     */
+    public RelationCache getRelationCache() {
+        return this.relationCache;
+    }
+
+    /**
+     * @return the dictionary encoding the string values of tuples
+     */
+    public StringDictionary getDictionary() {
+        return this.dictionary;
+    }
+
+    /**
+     * @return the names of all relations in the schema
+     */
+    public Set<String> getRelationNames() {
+        return relationSchemaMap.keySet();
+    }
+
     /**
      * Return the schema of a relation as a List of data types ('int' or 'string')
      * @param relationName a String of the relation name
@@ -72,4 +254,291 @@ public class DBCatalog {
     public List<String> getSchema(String relationName) {
         return relationSchemaMap.get(relationName);
     }
+
+    /**
+     * Return the declared key of a relation, see {@link #loadKeys()}.
+     * @param relationName a String of the relation name
+     * @return the indices of key attributes, or {@code null} if the relation has no declared key
+     */
+    public List<Integer> getKey(String relationName) {
+        return relationKeyMap.get(relationName);
+    }
+
+    /**
+     * @return the path to the statistics file, next to 'schema.txt'
+     */
+    public String getStatisticsPath() {
+        return this.dbDirectory + File.separator + "stats.txt";
+    }
+
+    /**
+     * Read the statistics file written by {@link #saveStatistics()}, if it exists.
+     */
+    private void loadStatistics() {
+        this.statisticsMap = new ConcurrentHashMap<>();
+        File f = new File(getStatisticsPath());
+        if (!f.isFile())
+            return;
+        try (BufferedReader reader = new BufferedReader(new FileReader(f))) {
+            String relationLine = null;
+            List<String> columnLines = new ArrayList<>();
+            String line = reader.readLine();
+            while (true) {
+                if (line == null || line.startsWith("relation ")) {
+                    if (relationLine != null) {
+                        RelationStatistics statistics = RelationStatistics.parse(relationLine, columnLines);
+                        this.statisticsMap.put(statistics.relationName, statistics);
+                    }
+                    if (line == null)
+                        break;
+                    relationLine = line;
+                    columnLines = new ArrayList<>();
+                } else if (line.startsWith("column ")) {
+                    columnLines.add(line);
+                }
+                line = reader.readLine();
+            }
+        } catch (IOException | RuntimeException e) {
+            // a broken statistics file is ignored, the estimations fall back to sampling
+            System.out.println("Statistics file not readable: " + f.getPath());
+            this.statisticsMap = new ConcurrentHashMap<>();
+        }
+    }
+
+    /**
+     * Write the statistics of all analyzed relations into the statistics file.
+     * The file is written under a temporary name first, so that a concurrent reader never sees a partial file.
+     */
+    public synchronized void saveStatistics() {
+        File target = new File(getStatisticsPath());
+        File temp = new File(target.getPath() + ".tmp");
+        try (PrintWriter writer = new PrintWriter(temp)) {
+            for (RelationStatistics statistics : this.statisticsMap.values())
+                for (String line : statistics.toLines())
+                    writer.println(line);
+        } catch (IOException e) {
+            System.out.println("Statistics file not writable: " + temp.getPath());
+            return;
+        }
+        if (!temp.renameTo(target)) {
+            target.delete();
+            if (!temp.renameTo(target))
+                System.out.println("Statistics file not writable: " + target.getPath());
+        }
+    }
+
+    /**
+     * Record the statistics of a relation, call {@link #saveStatistics()} to persist them.
+     * @param statistics the statistics collected by {@link StatisticsCollector}
+     */
+    public void putStatistics(RelationStatistics statistics) {
+        this.statisticsMap.put(statistics.relationName, statistics);
+        this.cardinalityMap.remove(statistics.relationName);
+        this.distinctValuesMap.remove(statistics.relationName);
+        this.sortedColumnsMap.remove(statistics.relationName);
+    }
+
+    /**
+     * Return the statistics of a relation that has been analyzed by {@link StatisticsCollector}.
+     * If the data file has changed since, the statistics are refreshed (scanning only the appended part if possible) and saved.
+     * @param relationName the name of relation
+     * @return the up-to-date statistics, or {@code null} if the relation has never been analyzed
+     */
+    public RelationStatistics getStatistics(String relationName) {
+        RelationStatistics statistics = this.statisticsMap.get(relationName);
+        if (statistics == null || statistics.isFresh(new File(getRelationPath(relationName))))
+            return statistics;
+        synchronized (this) {
+            // another query may have refreshed the statistics meanwhile
+            statistics = this.statisticsMap.get(relationName);
+            if (statistics.isFresh(new File(getRelationPath(relationName))))
+                return statistics;
+            try {
+                statistics = StatisticsCollector.refresh(statistics);
+            } catch (IOException e) {
+                System.out.println("Failed to refresh the statistics of relation " + relationName);
+                return null;
+            }
+            this.putStatistics(statistics);
+            this.saveStatistics();
+            return statistics;
+        }
+    }
+
+    /**
+     * Estimate the fraction of tuples of a relation satisfying a comparison between a column and a constant,
+     * from the statistics of the relation if it has been analyzed, otherwise from the sampled distinct values.
+     * @param relationName the name of relation
+     * @param column the index of column
+     * @param op the comparison operator, with the column on its left side
+     * @param constant the constant on the right side
+     * @return the estimated selectivity in [0, 1]
+     */
+    public double estimateSelectivity(String relationName, int column, ComparisonOperator op, Constant constant) {
+        Integer value = constant instanceof IntegerConstant ? ((IntegerConstant) constant).getValue() : null;
+        RelationStatistics statistics = getStatistics(relationName);
+        if (statistics != null && column < statistics.columns.length)
+            return statistics.selectivity(column, op, value);
+        double equal = 1.0 / estimateDistinctValues(relationName, column);
+        if (op == ComparisonOperator.EQ)
+            return equal;
+        if (op == ComparisonOperator.NEQ)
+            return 1 - equal;
+        return RelationStatistics.DEFAULT_INEQUALITY_SELECTIVITY;
+    }
+
+    /**
+     * Estimate the number of tuples in a relation, exactly from its statistics if it has been analyzed,
+     * otherwise without reading the whole data file: the average line length is measured on the first lines of the file, and the file size is divided by it.
+     * The estimation is cached, and used by the query planner to choose a join algorithm.
+     * @param relationName the name of relation
+     * @return the estimated number of tuples, or 0 if the data file cannot be read
+     */
+    public long estimateCardinality(String relationName) {
+        RelationStatistics statistics = getStatistics(relationName);
+        if (statistics != null)
+            return statistics.rowCount;
+        Long cached = this.cardinalityMap.get(relationName);
+        if (cached != null)
+            return cached;
+        File file = new File(getRelationPath(relationName));
+        long estimation = 0;
+        try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
+            long sampleBytes = 0;
+            int sampleLines = 0;
+            String line = reader.readLine();
+            while (line != null && sampleLines < CARDINALITY_SAMPLE_LINES) {
+                sampleBytes += line.length() + 1;
+                sampleLines++;
+                line = reader.readLine();
+            }
+            if (line == null)
+                estimation = sampleLines; // the whole file has been read
+            else
+                estimation = file.length() * sampleLines / sampleBytes;
+        } catch (IOException e) {
+            System.out.println("Relation data file not readable: " + file.getPath());
+        }
+        this.cardinalityMap.put(relationName, estimation);
+        return estimation;
+    }
+
+    /**
+     * Estimate the number of distinct values in a column of a relation, from its statistics if it has been analyzed,
+     * otherwise from a sample of the first lines of the data file.
+     * The sample is extrapolated by the GEE estimator: the values seen once in the sample are scaled by
+     * sqrt(cardinality / sample size), the values seen more than once are counted once.
+     * The estimations are cached, and used by the query planner to estimate the selectivity of equality conditions.
+     * @param relationName the name of relation
+     * @param column the index of column
+     * @return the estimated number of distinct values, at least 1
+     */
+    public long estimateDistinctValues(String relationName, int column) {
+        RelationStatistics statistics = getStatistics(relationName);
+        if (statistics != null && column < statistics.columns.length)
+            return Math.max(1, statistics.columns[column].distinctValues);
+        long[] cached = this.distinctValuesMap.get(relationName);
+        if (cached == null) {
+            cached = this.sampleDistinctValues(relationName);
+            this.distinctValuesMap.put(relationName, cached);
+        }
+        if (column >= cached.length)
+            return 1;
+        return cached[column];
+    }
+
+    private long[] sampleDistinctValues(String relationName) {
+        int columnCount = getSchema(relationName).size();
+        List<Map<String, Integer>> frequencies = new ArrayList<>();
+        for (int c = 0; c < columnCount; c++)
+            frequencies.add(new HashMap<>());
+        int sampleLines = 0;
+        File file = new File(getRelationPath(relationName));
+        try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
+            String line = reader.readLine();
+            while (line != null && sampleLines < DISTINCT_SAMPLE_LINES) {
+                String[] fields = ColumnarLoader.splitFields(line);
+                if (fields.length > 0) {
+                    for (int c = 0; c < columnCount && c < fields.length; c++)
+                        frequencies.get(c).merge(fields[c], 1, Integer::sum);
+                    sampleLines++;
+                }
+                line = reader.readLine();
+            }
+        } catch (IOException e) {
+            System.out.println("Relation data file not readable: " + file.getPath());
+        }
+
+        long cardinality = Math.max(estimateCardinality(relationName), sampleLines);
+        double scale = sampleLines == 0 ? 1 : Math.sqrt((double) cardinality / sampleLines);
+        long[] distinctValues = new long[columnCount];
+        for (int c = 0; c < columnCount; c++) {
+            long once = 0, repeated = 0;
+            for (int frequency : frequencies.get(c).values()) {
+                if (frequency == 1)
+                    once++;
+                else
+                    repeated++;
+            }
+            long estimation = Math.round(scale * once) + repeated;
+            distinctValues[c] = Math.max(1, Math.min(cardinality, estimation));
+        }
+        return distinctValues;
+    }
+
+    /**
+     * Check whether the data file of a relation is sorted in ascending order on an int column,
+     * i.e. the values of the column never decrease over the whole file.
+     * The file is read once (until no column is sorted any more) and the result is cached. The query planner uses it
+     * to merge pre-sorted inputs of a {@link SortMergeJoinOperator} without sorting them, so a file modified after
+     * the check makes the join fail on the first out-of-order key instead of returning a wrong result.
+     * @param relationName the name of relation
+     * @param column the index of column
+     * @return {@code true} if the column is an int column and its values are in ascending order
+     */
+    public boolean isSortedOn(String relationName, int column) {
+        boolean[] cached = this.sortedColumnsMap.get(relationName);
+        if (cached == null) {
+            cached = this.findSortedColumns(relationName);
+            this.sortedColumnsMap.put(relationName, cached);
+        }
+        return column < cached.length && cached[column];
+    }
+
+    private boolean[] findSortedColumns(String relationName) {
+        List<String> schema = getSchema(relationName);
+        boolean[] sorted = new boolean[schema.size()];
+        int sortedColumns = 0;
+        for (int c = 0; c < sorted.length; c++) {
+            sorted[c] = schema.get(c).equals("int");
+            if (sorted[c])
+                sortedColumns++;
+        }
+        int[] previous = null;
+        File file = new File(getRelationPath(relationName));
+        try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
+            String line = reader.readLine();
+            while (line != null && sortedColumns > 0) {
+                String[] fields = ColumnarLoader.splitFields(line);
+                if (fields.length >= sorted.length) {
+                    int[] values = new int[sorted.length];
+                    for (int c = 0; c < sorted.length; c++) {
+                        if (!sorted[c])
+                            continue;
+                        values[c] = Integer.parseInt(fields[c]);
+                        if (previous != null && values[c] < previous[c]) {
+                            sorted[c] = false;
+                            sortedColumns--;
+                        }
+                    }
+                    previous = values;
+                }
+                line = reader.readLine();
+            }
+        } catch (IOException | NumberFormatException e) {
+            System.out.println("Relation data file not readable: " + file.getPath());
+            Arrays.fill(sorted, false);
+        }
+        return sorted;
+    }
 }
@@ -0,0 +1,192 @@
+package ed.inf.adbs.minibase.operator;
+
+import java.util.Arrays;
+
+/**
+ * A hash set of rows used for duplicate elimination (see {@link ProjectOperator}).
+ * The rows are hashed on their primitive values (dictionary codes for string columns, see {@link Tuple}) by {@link RowKey#hash},
+ * and stored contiguously in a single {@code int[]}, so that checking a row allocates nothing.
+ *
+ * At most {@code memoryBudget} distinct rows are kept in memory. Once the budget is reached, the set is frozen:
+ * a new row is still dropped if it is found in memory, otherwise it is written into one of {@link #PARTITION_COUNT}
+ * spill partitions chosen by its hash, and {@link #add} returns {@code false}.
+ * After the input is exhausted, {@link #nextDeferred()} removes the duplicates of each partition in turn
+ * (with a nested filter, which may spill again on other hash bits) and returns the remaining rows.
+ * Since every spilled row is absent from the in-memory set, and the partitions are disjoint,
+ * the rows returned by {@link #add} and {@link #nextDeferred()} never duplicate each other.
+ */
+public class DistinctFilter {
+
+    /**
+     * The default number of distinct rows kept in memory.
+     */
+    public static final int DEFAULT_MEMORY_BUDGET = 100000;
+
+    private static final int PARTITION_BITS = 4;
+    private static final int PARTITION_COUNT = 1 << PARTITION_BITS;
+    private static final int MAX_LEVEL = 32 / PARTITION_BITS - 1;
+    // each nested level partitions on the next bits of hash, the last level never spills
+
+    private final String relationName;
+    private final int columnCount;
+    private final int memoryBudget;
+    private final int level;
+
+    private int[] rows;
+    // the values of stored rows, row i occupies [i * columnCount, (i + 1) * columnCount)
+    private int rowCount = 0;
+    private int[] slots = new int[16];
+    // the hash table, each slot stores (row index + 1), 0 means empty
+    private int[] hashes = new int[8];
+    // hashes[i] is the hash of row i, used to rehash without recomputation
+
+    private TupleSpillFile[] partitions = null;
+    private int partitionIndex = -1;
+    private DistinctFilter partitionFilter = null;
+    // the partition being deduplicated by nextDeferred(), and the filter applied on it
+
+    /**
+     * Create an empty set.
+     * @param relationName the name of tuples returned by {@link #nextDeferred()}.
+     * @param columnCount the number of columns in each row.
+     * @param memoryBudget the maximum number of distinct rows kept in memory.
+     */
+    public DistinctFilter(String relationName, int columnCount, int memoryBudget) {
+        this(relationName, columnCount, memoryBudget, 0);
+    }
+
+    private DistinctFilter(String relationName, int columnCount, int memoryBudget, int level) {
+        this.relationName = relationName;
+        this.columnCount = columnCount;
+        this.memoryBudget = Math.max(1, memoryBudget);
+        this.level = level;
+        this.rows = new int[8 * Math.max(1, columnCount)];
+    }
+
+    /**
+     * Add a row into the set.
+     * @param values the values of row, not kept by this set (they are copied if the row is stored).
+     * @param stringColumns the column types, used when the row is spilled.
+     * @return {@code true} if the row has not been seen before and should be reported now,
+     *          {@code false} if it is a duplicate, or if it has been spilled to be reported by {@link #nextDeferred()}.
+     */
+    public boolean add(int[] values, boolean[] stringColumns) {
+        int hash = RowKey.hash(values, this.columnCount);
+        int mask = this.slots.length - 1;
+        int slot = hash & mask;
+        for (int entry = this.slots[slot]; entry != 0; entry = this.slots[slot]) {
+            if (this.hashes[entry - 1] == hash && this.rowEquals(entry - 1, values))
+                return false;
+            slot = (slot + 1) & mask;
+        }
+        if (this.rowCount >= this.memoryBudget && this.level < MAX_LEVEL) {
+            this.spill(values, stringColumns, hash);
+            return false;
+        }
+        this.insert(values, hash, slot);
+        return true;
+    }
+
+    /**
+     * Return the next spilled row that is not a duplicate, should be called after all rows have been added.
+     * @return the next deferred row, or {@code null} if all spilled rows have been returned.
+     */
+    public Tuple nextDeferred() {
+        if (this.partitions == null)
+            return null;
+        while (true) {
+            if (this.partitionFilter != null) {
+                TupleSpillFile partition = this.partitions[this.partitionIndex];
+                Tuple tuple = partition.read();
+                while (tuple != null) {
+                    if (this.partitionFilter.add(tuple.getValues(), tuple.getStringColumns()))
+                        return tuple;
+                    tuple = partition.read();
+                }
+                // the partition is exhausted, then return the rows spilled by the nested filter
+                tuple = this.partitionFilter.nextDeferred();
+                if (tuple != null)
+                    return tuple;
+                partition.delete();
+                this.partitionFilter = null;
+            }
+            this.partitionIndex++;
+            if (this.partitionIndex >= PARTITION_COUNT)
+                return null;
+            this.partitions[this.partitionIndex].openReader();
+            this.partitionFilter = new DistinctFilter(this.relationName, this.columnCount, this.memoryBudget, this.level + 1);
+        }
+    }
+
+    /**
+     * @return the number of distinct rows kept in memory.
+     */
+    public int size() {
+        return this.rowCount;
+    }
+
+    /**
+     * @return {@code true} if some rows have been spilled to disk.
+     */
+    public boolean hasSpilled() {
+        return this.partitions != null;
+    }
+
+    /**
+     * Remove all spill files, the filter cannot be used afterwards.
+     */
+    public void close() {
+        if (this.partitionFilter != null)
+            this.partitionFilter.close();
+        if (this.partitions != null)
+            for (TupleSpillFile partition : this.partitions)
+                partition.delete();
+        this.partitions = null;
+        this.partitionFilter = null;
+    }
+
+    private void spill(int[] values, boolean[] stringColumns, int hash) {
+        if (this.partitions == null) {
+            this.partitions = new TupleSpillFile[PARTITION_COUNT];
+            for (int p = 0; p < PARTITION_COUNT; p++)
+                this.partitions[p] = new TupleSpillFile(this.relationName);
+        }
+        int partition = (hash >>> (32 - PARTITION_BITS * (this.level + 1))) & (PARTITION_COUNT - 1);
+        // the values are written immediately, so the caller may reuse its array
+        this.partitions[partition].write(new Tuple(this.relationName, values, stringColumns));
+    }
+
+    private void insert(int[] values, int hash, int slot) {
+        int row = this.rowCount;
+        if ((row + 1) * this.columnCount > this.rows.length)
+            this.rows = Arrays.copyOf(this.rows, this.rows.length * 2);
+        if (row == this.hashes.length)
+            this.hashes = Arrays.copyOf(this.hashes, row * 2);
+        System.arraycopy(values, 0, this.rows, row * this.columnCount, this.columnCount);
+        this.hashes[row] = hash;
+        this.slots[slot] = row + 1;
+        this.rowCount++;
+        if (this.rowCount * 2 > this.slots.length)
+            this.rehash();
+    }
+
+    private void rehash() {
+        int[] slots = new int[this.slots.length * 2];
+        int mask = slots.length - 1;
+        for (int row = 0; row < this.rowCount; row++) {
+            int slot = this.hashes[row] & mask;
+            while (slots[slot] != 0)
+                slot = (slot + 1) & mask;
+            slots[slot] = row + 1;
+        }
+        this.slots = slots;
+    }
+
+    private boolean rowEquals(int row, int[] values) {
+        int offset = row * this.columnCount;
+        for (int c = 0; c < this.columnCount; c++)
+            if (this.rows[offset + c] != values[c])
+                return false;
+        return true;
+    }
+}
@@ -0,0 +1,506 @@
+package ed.inf.adbs.minibase.operator;
+
+import ed.inf.adbs.minibase.base.RelationalAtom;
+import ed.inf.adbs.minibase.base.Term;
+import ed.inf.adbs.minibase.base.Variable;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * An exchange: run several producer subtrees, each on its own thread, and hand their output batches to one or more
+ * consumers through bounded queues. Each consumer is an {@link ExchangeOperator}, so the parent operators see
+ * a normal child and need not know that the subtree below runs in parallel.
+ *
+ * The batches of the producers are distributed in one of three ways:
+ *      (1) gather: a single consumer receives the batches of all producers, in the order they are produced;
+ *      (2) repartition: each row is sent to the consumer chosen by the hash of its key columns,
+ *          so the rows with the same key meet at the same consumer;
+ *      (3) broadcast: every consumer receives all rows.
+ * A queue holds at most {@code queueCapacity} batches, a producer waits when the queue of a consumer is full (back-pressure),
+ * so a slow consumer bounds the memory used by the exchange. Hence the consumers of a repartition or a broadcast
+ * must be read concurrently, e.g. by different workers, otherwise the producers may wait forever for a consumer
+ * that is not read yet.
+ *
+ * The consumers share one run of the producers, which is started by the first read of any consumer.
+ * {@link #reset()} cancels the run: the producers are interrupted (also when waiting for a full queue) and stopped before
+ * {@code reset()} returns, and the next read starts a new run from the beginning of the producers.
+ * The consumers of a repartition or a broadcast are meant to be reset together, as a parent join resets its children.
+ */
+public class ExchangeOperator extends Operator {
+
+    /**
+     * The default number of batches a consumer queue holds.
+     */
+    public static final int DEFAULT_QUEUE_CAPACITY = 4;
+
+    private static final TupleBatch END_OF_STREAM = new TupleBatch(0, 1);
+    // put into every queue after all producers are done (or one has failed)
+
+    private final Exchange exchange;
+    private final int consumer;
+    // the exchange feeding this operator, and the index of its queue
+
+    private Run run = null;
+    // the run of producers being read, null before the first read after a reset
+    private boolean finished = false;
+
+    private TupleBatch currentBatch = null;
+    private int currentIndex = 0;
+    // the batch whose rows are returned by getNextTuple()
+
+    private enum Mode {
+        GATHER, REPARTITION, BROADCAST
+    }
+
+    private ExchangeOperator(Exchange exchange, int consumer) {
+        this.exchange = exchange;
+        this.consumer = consumer;
+        this.variableMask = exchange.producers.get(0).getVariableMask();
+    }
+
+    /**
+     * Gather the output of several producers into a single stream.
+     * @param producers the producer subtrees, e.g. the copies of a scan reading different parts of a file (see {@link #splitScan}).
+     * @param queueCapacity the maximum number of batches waiting in the queue.
+     * @return the consumer.
+     */
+    public static ExchangeOperator gather(List<Operator> producers, int queueCapacity) {
+        return new Exchange(producers, Mode.GATHER, null, 1, queueCapacity).consumers.get(0);
+    }
+
+    /**
+     * Repartition the output of several producers on the hash of some variables.
+     * @param producers the producer subtrees.
+     * @param keyVariables the variables whose values choose the consumer of a row.
+     * @param consumerCount the number of consumers.
+     * @param queueCapacity the maximum number of batches waiting in the queue of a consumer.
+     * @return the consumers, consumer {@code i} receives the rows whose key hash is {@code i} modulo {@code consumerCount}.
+     */
+    public static List<ExchangeOperator> repartition(List<Operator> producers, List<String> keyVariables, int consumerCount,
+                                                     int queueCapacity) {
+        List<String> mask = producers.get(0).getVariableMask();
+        int[] keyColumns = new int[keyVariables.size()];
+        for (int i = 0; i < keyColumns.length; i++) {
+            keyColumns[i] = mask.indexOf(keyVariables.get(i));
+            if (keyColumns[i] < 0)
+                throw new IllegalArgumentException("Repartition key " + keyVariables.get(i) + " is not produced by " + mask);
+        }
+        return new Exchange(producers, Mode.REPARTITION, keyColumns, consumerCount, queueCapacity).consumers;
+    }
+
+    /**
+     * Send the output of several producers to every consumer.
+     * @param producers the producer subtrees.
+     * @param consumerCount the number of consumers.
+     * @param queueCapacity the maximum number of batches waiting in the queue of a consumer.
+     * @return the consumers.
+     */
+    public static List<ExchangeOperator> broadcast(List<Operator> producers, int consumerCount, int queueCapacity) {
+        return new Exchange(producers, Mode.BROADCAST, null, consumerCount, queueCapacity).consumers;
+    }
+
+    /**
+     * Build the copies of a subtree reading disjoint parts of the same file, to be used as the producers of an exchange.
+     * @param plan the subtree, the first copy.
+     * @param planBuilder builds a new copy of the subtree each time it is called.
+     * @param parallelism the maximum number of copies.
+     * @return the copies of subtree, whose leftmost scans read consecutive ranges of lines covering the whole file once;
+     *      or only {@code plan} if the subtree cannot be split: its left spine is not made of hash joins above a memory-mapped scan,
+     *      or the file is too small.
+     */
+    public static List<Operator> splitScan(Operator plan, Supplier<Operator> planBuilder, int parallelism) {
+        List<Operator> copies = new ArrayList<>();
+        copies.add(plan);
+        MappedScanOperator scan = ParallelOperator.leftmostScan(plan);
+        if (parallelism <= 1 || scan == null || scan.getBuffer() == null)
+            return copies;
+        int limit = scan.getBuffer().limit();
+        MorselSource ranges = new MorselSource(scan.getBuffer(), (int) (((long) limit + parallelism - 1) / parallelism));
+        if (ranges.size() <= 1)
+            return copies;
+        scan.setRange(ranges.getStart(0), ranges.getEnd(0));
+        for (int r = 1; r < ranges.size(); r++) {
+            Operator copy = planBuilder.get();
+            ParallelOperator.leftmostScan(copy).setRange(ranges.getStart(r), ranges.getEnd(r));
+            copies.add(copy);
+        }
+        return copies;
+    }
+
+    /**
+     * Cancel the run of producers, the next call of {@link #getNextBatch()} starts a new run.
+     */
+    @Override
+    public void reset() {
+        if (this.run != null)
+            this.exchange.cancel(this.run);
+        this.run = null;
+        this.finished = false;
+        this.currentBatch = null;
+        this.currentIndex = 0;
+    }
+
+    /**
+     * Cancel the run of producers, and release the resources of the producers.
+     * The consumers of a repartition or a broadcast share the producers, closing any of them closes the producers.
+     */
+    @Override
+    public void close() {
+        this.reset();
+        this.exchange.close();
+    }
+
+    /**
+     * @return the next output tuple, taken from the batches of {@link #getNextBatch()}.
+     */
+    @Override
+    public Tuple getNextTuple() {
+        while (this.currentBatch == null || this.currentIndex >= this.currentBatch.size()) {
+            this.currentBatch = this.getNextBatch();
+            this.currentIndex = 0;
+            if (this.currentBatch == null)
+                return null;
+        }
+        return this.currentBatch.getTuple(this.currentBatch.getRowIndex(this.currentIndex++), "Exchange");
+    }
+
+    /**
+     * Take the next batch from the queue of this consumer, waiting for the producers if the queue is empty.
+     * The producers are started by the first call.
+     * @return the next batch, or {@code null} once all producers are done.
+     */
+    @Override
+    public TupleBatch getNextBatch() {
+        if (this.finished)
+            return null;
+        if (this.run == null)
+            this.run = this.exchange.open();
+        TupleBatch batch;
+        try {
+            batch = this.run.queues.get(this.consumer).take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            this.reset();
+            throw new RuntimeException("Interrupted while waiting for exchange producers", e);
+        }
+        if (batch != END_OF_STREAM)
+            return batch;
+        this.finished = true;
+        if (this.run.error != null)
+            throw new RuntimeException("Exchange producer failed", this.run.error);
+        return null;
+    }
+
+    /**
+     * The producers and the consumers of an exchange.
+     */
+    private static class Exchange {
+        final List<Operator> producers;
+        final Mode mode;
+        final int[] keyColumns;
+        final List<ExchangeOperator> consumers = new ArrayList<>();
+        final int queueCapacity;
+        private Run currentRun = null;
+        // the run read by the consumers, null if it has not been started since the last cancel
+
+        Exchange(List<Operator> producers, Mode mode, int[] keyColumns, int consumerCount, int queueCapacity) {
+            this.producers = producers;
+            this.mode = mode;
+            this.keyColumns = keyColumns;
+            this.queueCapacity = Math.max(1, queueCapacity);
+            for (int c = 0; c < consumerCount; c++)
+                this.consumers.add(new ExchangeOperator(this, c));
+        }
+
+        /**
+         * @return the current run, started if no consumer has started it yet.
+         */
+        synchronized Run open() {
+            if (this.currentRun == null)
+                this.currentRun = new Run(this);
+            return this.currentRun;
+        }
+
+        /**
+         * Stop a run, unless it has been cancelled already by another consumer.
+         */
+        synchronized void cancel(Run run) {
+            if (run != this.currentRun)
+                return;
+            run.stop();
+            this.currentRun = null;
+        }
+
+        /**
+         * Stop the current run (started by a consumer that is not closed), and release the resources of the producers.
+         */
+        synchronized void close() {
+            if (this.currentRun != null)
+                this.cancel(this.currentRun);
+            for (Operator producer : this.producers)
+                producer.close();
+        }
+    }
+
+    /**
+     * A run of the producers of an exchange, each producer is drained by a thread into the consumer queues.
+     */
+    private static class Run {
+        private final Exchange exchange;
+        final List<BlockingQueue<TupleBatch>> queues = new ArrayList<>();
+        private final ExecutorService pool;
+        private final AtomicInteger runningProducers;
+        private volatile boolean cancelled = false;
+        volatile Throwable error = null;
+
+        Run(Exchange exchange) {
+            this.exchange = exchange;
+            for (int c = 0; c < exchange.consumers.size(); c++)
+                this.queues.add(new ArrayBlockingQueue<>(exchange.queueCapacity));
+            this.runningProducers = new AtomicInteger(exchange.producers.size());
+            this.pool = ParallelOperator.newPool(exchange.producers.size());
+            for (Operator producer : exchange.producers)
+                this.pool.submit(() -> this.produce(producer));
+        }
+
+        /**
+         * Drain a producer into the queues, the last producer to finish closes the queues.
+         */
+        private void produce(Operator producer) {
+            try {
+                producer.reset();
+                TupleBatch batch = producer.getNextBatch();
+                while (batch != null && !this.cancelled) {
+                    this.route(batch);
+                    batch = producer.getNextBatch();
+                }
+            } catch (InterruptedException e) {
+                // cancelled while waiting for a full queue
+            } catch (Throwable e) {
+                if (!this.cancelled) {
+                    this.error = e;
+                    this.cancelled = true;
+                }
+            } finally {
+                if (this.runningProducers.decrementAndGet() == 0) {
+                    this.close();
+                    this.pool.shutdown();
+                }
+            }
+        }
+
+        private void route(TupleBatch batch) throws InterruptedException {
+            int consumerCount = this.queues.size();
+            switch (this.exchange.mode) {
+                case GATHER:
+                    this.queues.get(0).put(batch);
+                    break;
+                case BROADCAST:
+                    // each consumer gets its own batch, since a consumer may change the selection vector
+                    for (int c = 1; c < consumerCount; c++)
+                        this.queues.get(c).put(copyRows(batch, null, -1));
+                    this.queues.get(0).put(batch);
+                    break;
+                case REPARTITION:
+                    int[] targets = new int[batch.size()];
+                    int[] key = new int[this.exchange.keyColumns.length];
+                    for (int i = 0; i < batch.size(); i++) {
+                        int row = batch.getRowIndex(i);
+                        for (int k = 0; k < key.length; k++)
+                            key[k] = batch.getValue(this.exchange.keyColumns[k], row);
+                        targets[i] = (RowKey.hash(key, key.length) & Integer.MAX_VALUE) % consumerCount;
+                    }
+                    for (int c = 0; c < consumerCount; c++) {
+                        TupleBatch partition = copyRows(batch, targets, c);
+                        if (partition != null)
+                            this.queues.get(c).put(partition);
+                    }
+                    break;
+            }
+        }
+
+        /**
+         * Copy the selected rows of a batch sent to a consumer.
+         * @param targets the consumer of each selected row, or {@code null} to copy all selected rows.
+         * @return the copied rows, or {@code null} if no row is sent to the consumer.
+         */
+        private static TupleBatch copyRows(TupleBatch batch, int[] targets, int consumer) {
+            TupleBatch copy = null;
+            for (int i = 0; i < batch.size(); i++) {
+                if (targets != null && targets[i] != consumer)
+                    continue;
+                if (copy == null)
+                    copy = new TupleBatch(batch.getColumnCount(), batch.getCapacity());
+                int row = copy.addRow();
+                int sourceRow = batch.getRowIndex(i);
+                for (int c = 0; c < batch.getColumnCount(); c++)
+                    copy.copyValue(c, row, batch, c, sourceRow);
+            }
+            return copy;
+        }
+
+        /**
+         * Put the end of stream into every queue. After a failure the queued batches are dropped,
+         * so the end of stream is not blocked by a consumer that is not read.
+         */
+        private void close() {
+            for (BlockingQueue<TupleBatch> queue : this.queues) {
+                if (this.error != null)
+                    queue.clear();
+                else if (this.cancelled)
+                    return;
+                try {
+                    queue.put(END_OF_STREAM);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+
+        /**
+         * Cancel the producers and wait for them to stop.
+         */
+        void stop() {
+            this.cancelled = true;
+            this.pool.shutdownNow();
+            try {
+                this.pool.awaitTermination(1, TimeUnit.MINUTES);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Unit test of ExchangeOperator, output is printed to the console.
+     * @param args Command line inputs, can be empty.
+     */
+    public static void main(String[] args) {
+        DBCatalog dbc = DBCatalog.getInstance();
+        dbc.init("data/evaluation/db");
+        // small batches, so that the producers fill the queues of capacity 1 and wait for the consumers
+        Operator.batchSize = 8;
+
+        List<Term> queryAtomTerms = new ArrayList<>();
+        queryAtomTerms.add(new Variable("x"));
+        queryAtomTerms.add(new Variable("y"));
+        queryAtomTerms.add(new Variable("z"));
+        RelationalAtom queryBodyAtomR = new RelationalAtom("R", queryAtomTerms);
+        Supplier<Operator> scanBuilder = () -> new MappedScanOperator(queryBodyAtomR);
+        List<String> expected = readAll(new ScanOperator(queryBodyAtomR));
+        Collections.sort(expected);
+        System.out.println("Serial scan of R: " + expected.size() + " tuples");
+
+        System.out.println("Testing gather of the split scans of R");
+        List<Operator> producers = splitScan(scanBuilder.get(), scanBuilder, 3);
+        ExchangeOperator gather = gather(producers, 1);
+        List<String> gathered = readAll(gather);
+        Collections.sort(gathered);
+        System.out.println(producers.size() + " producers, same tuples as the serial scan: " + gathered.equals(expected));
+
+        System.out.println("Testing repartition of R on x to 3 consumers");
+        List<ExchangeOperator> partitions = repartition(splitScan(scanBuilder.get(), scanBuilder, 3),
+                Collections.singletonList("x"), 3, 1);
+        List<List<String>> partitionOutputs = readConcurrently(partitions);
+        List<String> repartitioned = new ArrayList<>();
+        Map<String, Integer> keyConsumers = new HashMap<>();
+        boolean keysSplit = false;
+        for (int c = 0; c < partitionOutputs.size(); c++) {
+            for (String tuple : partitionOutputs.get(c)) {
+                // the key is the first value of the tuple, e.g. "1" in "1, 9, 'adbs'"
+                Integer previous = keyConsumers.put(tuple.split(",")[0], c);
+                keysSplit |= previous != null && previous != c;
+            }
+            repartitioned.addAll(partitionOutputs.get(c));
+        }
+        Collections.sort(repartitioned);
+        System.out.println("Same tuples as the serial scan: " + repartitioned.equals(expected)
+                + ", each key sent to a single consumer: " + !keysSplit);
+
+        System.out.println("Testing broadcast of R to 2 consumers");
+        List<List<String>> broadcastOutputs = readConcurrently(broadcast(splitScan(scanBuilder.get(), scanBuilder, 3), 2, 1));
+        for (int c = 0; c < broadcastOutputs.size(); c++) {
+            Collections.sort(broadcastOutputs.get(c));
+            System.out.println("Consumer " + c + " gets the tuples of the serial scan: " + broadcastOutputs.get(c).equals(expected));
+        }
+
+        // the second consumer is not read, so the producers are blocked on its full queue when the first one is reset
+        System.out.println("Testing reset while the producers wait for a full queue");
+        List<ExchangeOperator> consumers = repartition(splitScan(scanBuilder.get(), scanBuilder, 3),
+                Collections.singletonList("x"), 2, 1);
+        consumers.get(0).getNextBatch();
+        List<Thread> blockedProducers = new ArrayList<>();
+        long deadline = System.currentTimeMillis() + 10000;
+        while (blockedProducers.isEmpty() && System.currentTimeMillis() < deadline) {
+            for (Thread thread : Thread.getAllStackTraces().keySet())
+                if (thread.getName().equals("minibase-worker") && thread.getState() == Thread.State.WAITING
+                        && Arrays.toString(thread.getStackTrace()).contains("ArrayBlockingQueue.put"))
+                    blockedProducers.add(thread);
+            if (blockedProducers.isEmpty())
+                Thread.yield();
+        }
+        long start = System.currentTimeMillis();
+        consumers.get(0).reset();
+        System.out.println("Blocked producers: " + blockedProducers.size()
+                + ", reset returned in " + (System.currentTimeMillis() - start) + " ms");
+        boolean stopped = true;
+        for (Thread thread : blockedProducers) {
+            try {
+                thread.join(1000);
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            }
+            stopped &= !thread.isAlive();
+        }
+        System.out.println("Producers stopped: " + stopped);
+        consumers.get(1).reset();
+        List<String> rerun = new ArrayList<>();
+        for (List<String> output : readConcurrently(consumers))
+            rerun.addAll(output);
+        Collections.sort(rerun);
+        System.out.println("Read again after reset, same tuples as the serial scan: " + rerun.equals(expected));
+        consumers.get(0).close();
+        gather.close();
+        Operator.batchSize = TupleBatch.DEFAULT_CAPACITY;
+    }
+
+    /**
+     * @return the output tuples of an operator as strings.
+     */
+    private static List<String> readAll(Operator operator) {
+        List<String> tuples = new ArrayList<>();
+        Tuple tuple = operator.getNextTuple();
+        while (tuple != null) {
+            tuples.add(tuple.toString());
+            tuple = operator.getNextTuple();
+        }
+        return tuples;
+    }
+
+    /**
+     * Read the consumers of an exchange at the same time, since a consumer that is not read blocks the producers.
+     * @return the output tuples of each consumer as strings.
+     */
+    private static List<List<String>> readConcurrently(List<ExchangeOperator> consumers) {
+        List<List<String>> outputs = new ArrayList<>();
+        List<Runnable> tasks = new ArrayList<>();
+        for (ExchangeOperator consumer : consumers) {
+            List<String> output = new ArrayList<>();
+            outputs.add(output);
+            tasks.add(() -> output.addAll(readAll(consumer)));
+        }
+        ParallelOperator.runAll(tasks, consumers.size());
+        return outputs;
+    }
+}
@@ -0,0 +1,250 @@
+package ed.inf.adbs.minibase.operator;
+
+import ed.inf.adbs.minibase.base.*;
+
+import java.util.*;
+
+/**
+ * Sort all the output tuples of an operator, spilling sorted runs to temporary files when the memory budget is exceeded.
+ * Used by {@link SortMergeJoinOperator} to sort its children on the join keys.
+ *
+ * The child tuples are collected into an in-memory run of at most {@code memoryBudget} tuples.
+ * When the run is full, it is sorted and written into a {@link TupleSpillFile}.
+ * After the child is exhausted, the last run is sorted in memory, and all runs are merged with a priority queue.
+ * A merge reads at most {@code mergeFanIn} runs at once (one open file each): if more runs have been spilled,
+ * groups of {@code mergeFanIn} runs are first merged into longer runs, pass after pass, until few enough remain.
+ * If no run has been spilled, the in-memory run is returned directly.
+ * The runs are removed as soon as the last tuple has been returned, or by {@link #close()}.
+ * Notice the in-memory sort is a TimSort, so inputs that are already ordered on the sort key are sorted in linear time.
+ */
+public class ExternalSorter {
+
+    /**
+     * The default maximum number of runs merged at once.
+     */
+    public static final int DEFAULT_MERGE_FAN_IN = 64;
+
+    private final Operator child;
+    private final Comparator<Tuple> comparator;
+    private final int memoryBudget;
+    private final int mergeFanIn;
+
+    private List<TupleSpillFile> spilledRuns = new ArrayList<>();
+    private int spilledRunCount = 0;
+    private int mergePassCount = 0;
+    private List<Tuple> memoryRun = new ArrayList<>();
+    private int memoryRunIndex = 0;
+    private PriorityQueue<RunHead> mergeQueue = null;
+    private boolean sorted = false;
+
+    /**
+     * A tuple at the head of a sorted run, together with the run it comes from.
+     * A {@code null} run represents the in-memory run.
+     */
+    private static class RunHead {
+        private final Tuple tuple;
+        private final TupleSpillFile run;
+
+        private RunHead(Tuple tuple, TupleSpillFile run) {
+            this.tuple = tuple;
+            this.run = run;
+        }
+    }
+
+    /**
+     * Initialise the sorter with the default merge fan-in.
+     * @param child the operator whose output tuples are sorted.
+     * @param comparator the sort order.
+     * @param memoryBudget the maximum number of tuples kept in memory, before a sorted run is spilled to disk.
+     */
+    public ExternalSorter(Operator child, Comparator<Tuple> comparator, int memoryBudget) {
+        this(child, comparator, memoryBudget, DEFAULT_MERGE_FAN_IN);
+    }
+
+    /**
+     * @param child the operator whose output tuples are sorted.
+     * @param comparator the sort order.
+     * @param memoryBudget the maximum number of tuples kept in memory, before a sorted run is spilled to disk.
+     * @param mergeFanIn the maximum number of runs merged at once, i.e. of spill files open at the same time (at least 2).
+     */
+    public ExternalSorter(Operator child, Comparator<Tuple> comparator, int memoryBudget, int mergeFanIn) {
+        this.child = child;
+        this.comparator = comparator;
+        this.memoryBudget = Math.max(1, memoryBudget);
+        this.mergeFanIn = Math.max(2, mergeFanIn);
+    }
+
+    /**
+     * Consume the child operator and build the sorted runs, called by the first {@link #getNextTuple()}.
+     */
+    private void sort() {
+        Tuple tuple = this.child.getNextTuple();
+        while (tuple != null) {
+            this.memoryRun.add(tuple);
+            if (this.memoryRun.size() >= this.memoryBudget) {
+                this.memoryRun.sort(this.comparator);
+                TupleSpillFile run = new TupleSpillFile("Sort");
+                for (Tuple t : this.memoryRun)
+                    run.write(t);
+                this.spilledRuns.add(run);
+                this.spilledRunCount++;
+                this.memoryRun = new ArrayList<>();
+            }
+            tuple = this.child.getNextTuple();
+        }
+        this.memoryRun.sort(this.comparator);
+
+        if (!this.spilledRuns.isEmpty()) {
+            // the in-memory run takes one input of the final merge
+            int memoryInputs = this.memoryRun.isEmpty() ? 0 : 1;
+            while (this.spilledRuns.size() + memoryInputs > this.mergeFanIn)
+                this.mergePass();
+            this.mergeQueue = this.openMerge(this.spilledRuns);
+            if (memoryInputs > 0)
+                this.mergeQueue.add(new RunHead(this.memoryRun.get(this.memoryRunIndex++), null));
+        }
+        this.sorted = true;
+    }
+
+    /**
+     * Merge each group of {@code mergeFanIn} consecutive spilled runs into a single run, the merged runs are removed.
+     */
+    private void mergePass() {
+        List<TupleSpillFile> mergedRuns = new ArrayList<>();
+        for (int start = 0; start < this.spilledRuns.size(); start += this.mergeFanIn) {
+            List<TupleSpillFile> group = this.spilledRuns.subList(start, Math.min(start + this.mergeFanIn, this.spilledRuns.size()));
+            if (group.size() == 1) {
+                mergedRuns.add(group.get(0));
+                continue;
+            }
+            TupleSpillFile mergedRun = new TupleSpillFile("Sort");
+            mergedRuns.add(mergedRun);
+            PriorityQueue<RunHead> queue = this.openMerge(group);
+            RunHead head;
+            while ((head = queue.poll()) != null) {
+                mergedRun.write(head.tuple);
+                Tuple next = head.run.read();
+                if (next != null)
+                    queue.add(new RunHead(next, head.run));
+            }
+            for (TupleSpillFile run : group)
+                run.delete();
+        }
+        this.spilledRuns = mergedRuns;
+        this.mergePassCount++;
+    }
+
+    /**
+     * Open the readers of spilled runs, and put the first tuple of each run into a new merge queue.
+     */
+    private PriorityQueue<RunHead> openMerge(List<TupleSpillFile> runs) {
+        PriorityQueue<RunHead> queue = new PriorityQueue<>((a, b) -> this.comparator.compare(a.tuple, b.tuple));
+        for (TupleSpillFile run : runs) {
+            run.openReader();
+            Tuple first = run.read();
+            if (first != null)
+                queue.add(new RunHead(first, run));
+        }
+        return queue;
+    }
+
+    /**
+     * @return the next tuple in sorted order, or {@code null} if all tuples have been returned.
+     */
+    public Tuple getNextTuple() {
+        if (!this.sorted)
+            this.sort();
+        if (this.mergeQueue == null) {
+            if (this.memoryRunIndex < this.memoryRun.size())
+                return this.memoryRun.get(this.memoryRunIndex++);
+            this.release();
+            return null;
+        }
+        RunHead head = this.mergeQueue.poll();
+        if (head == null) {
+            this.release();
+            return null;
+        }
+        // refill the queue from the run that the returned tuple comes from
+        Tuple next;
+        if (head.run == null)
+            next = this.memoryRunIndex < this.memoryRun.size() ? this.memoryRun.get(this.memoryRunIndex++) : null;
+        else
+            next = head.run.read();
+        if (next != null)
+            this.mergeQueue.add(new RunHead(next, head.run));
+        else if (head.run != null)
+            head.run.delete();
+        return head.tuple;
+    }
+
+    /**
+     * @return the number of sorted runs spilled to disk (before the merge passes).
+     */
+    public int getSpilledRunCount() {
+        return this.spilledRunCount;
+    }
+
+    /**
+     * @return the number of merge passes run before the final merge.
+     */
+    public int getMergePassCount() {
+        return this.mergePassCount;
+    }
+
+    /**
+     * Remove the spilled runs and release the memory run once all tuples have been returned,
+     * the following calls of {@link #getNextTuple()} return {@code null} until {@link #close()}.
+     */
+    private void release() {
+        for (TupleSpillFile run : this.spilledRuns)
+            run.delete();
+        this.spilledRuns = new ArrayList<>();
+        this.memoryRun = new ArrayList<>();
+        this.memoryRunIndex = 0;
+        this.mergeQueue = null;
+    }
+
+    /**
+     * Release the memory run and remove the spilled runs from disk,
+     * the next call of {@link #getNextTuple()} sorts the child again (which must have been reset before).
+     */
+    public void close() {
+        this.release();
+        this.spilledRunCount = 0;
+        this.mergePassCount = 0;
+        this.sorted = false;
+    }
+
+    /**
+     * Unit test of ExternalSorter, output is printed to the console.
+     * A memory budget of 2 tuples and a merge fan-in of 2 are used, so that the runs are merged in several passes.
+     * @param args Command line inputs, can be empty.
+     */
+    public static void main(String[] args) {
+        DBCatalog dbc = DBCatalog.getInstance();
+        dbc.init("data/evaluation/db");
+
+        // Sort R(x, y, z) on y
+        System.out.println("Sorting R(x, y, z) on y");
+        List<Term> terms = new ArrayList<>();
+        terms.add(new Variable("x"));
+        terms.add(new Variable("y"));
+        terms.add(new Variable("z"));
+        ScanOperator scanOp = new ScanOperator(new RelationalAtom("R", terms));
+        ExternalSorter sorter = new ExternalSorter(scanOp, Comparator.comparingInt(t -> t.getValue(1)), 2, 2);
+        int count = 0;
+        boolean ordered = true;
+        Tuple previous = null;
+        for (Tuple tuple = sorter.getNextTuple(); tuple != null; tuple = sorter.getNextTuple()) {
+            System.out.println(tuple);
+            if (previous != null && previous.getValue(1) > tuple.getValue(1))
+                ordered = false;
+            previous = tuple;
+            count++;
+        }
+        System.out.println(count + " tuples, " + sorter.getSpilledRunCount() + " runs spilled, "
+                + sorter.getMergePassCount() + " merge passes, ordered: " + ordered);
+        sorter.close();
+    }
+}
@@ -0,0 +1,244 @@
+package ed.inf.adbs.minibase.operator;
+
+import ed.inf.adbs.minibase.base.*;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Apply an equi-JOIN on the output tuple sets of two child operators using a hash table.
+ * The equality keys are the inner join conditions found by {@link JoinOperator} (identical variables in both children)
+ * plus the explicit {@code =} conditions provided by {@link ComparisonAtom} in query body.
+ * The other explicit join conditions (e.g. {@code x < u}) are applied as a residual filter on each matched pair.
+ *
+ * The hash table is built on the smaller input: both children are read in lockstep until one of them is exhausted,
+ * that child becomes the build side, and the other one is probed (starting from the tuples already read).
+ * In contrast to the nested loop in {@link JoinOperator}, neither child is reset while producing the output.
+ * The output tuples have the same layout as {@link JoinOperator}, so the variable mask is inherited unchanged.
+ */
+public class HashJoinOperator extends JoinOperator {
+
+    private List<Integer> leftKeyIndices = new ArrayList<>();
+    private List<Integer> rightKeyIndices = new ArrayList<>();
+    // the key columns in left and right tuples, leftKeyIndices[i] should be equal to rightKeyIndices[i]
+
+    private List<JoinCondition> residualConditions = new ArrayList<>();
+    // the explicit join conditions that cannot be used as hash keys
+
+    private HashMap<RowKey, List<Tuple>> hashTable = null;
+    // map a key to all tuples of the build side with that key, built by the first call of getNextTuple()
+
+    private boolean buildOnLeft;
+    // true if the hash table is built on left child tuples, and right child tuples are probed
+
+    private List<Tuple> probeBuffer = new ArrayList<>();
+    // the probe side tuples that are read while finding the smaller input, they are probed before the rest of probe child
+
+    private SharedBuild sharedBuild = null;
+    // the hash table of right child shared with the copies of this join run by other workers, null if not shared
+
+    private Tuple probeTuple = null;
+    private List<Tuple> matchedTuples = null;
+    private int matchIndex = 0;
+    // the current being probed tuple, its matching build side tuples, and the next matching tuple to be checked
+
+    /**
+     * Initialise the operator, the variable mask and the join conditions are built by {@link JoinOperator}.
+     * The join conditions are split into the equality keys and the residual conditions.
+     * @param leftChild left child operator.
+     * @param rightChild right child operator.
+     * @param comparisonAtoms the explicit join conditions provided by {@link ComparisonAtom} in query body.
+     */
+    public HashJoinOperator(Operator leftChild, Operator rightChild, List<ComparisonAtom> comparisonAtoms) {
+        super(leftChild, rightChild, comparisonAtoms);
+        for (Integer leftIndex : this.joinConditionIndices.keySet()) {
+            this.leftKeyIndices.add(leftIndex);
+            this.rightKeyIndices.add(this.joinConditionIndices.get(leftIndex));
+        }
+        for (JoinCondition condition : this.conditions) {
+            if (condition.isEquality()) {
+                this.leftKeyIndices.add(condition.getLeftIndex());
+                this.rightKeyIndices.add(condition.getRightIndex());
+            } else {
+                this.residualConditions.add(condition);
+            }
+        }
+    }
+
+    /**
+     * The hash table built once on the right child of a join, and probed by several copies of the join
+     * (one per worker of a {@link ParallelOperator}, each probing the tuples of its own morsels).
+     * The first copy to need the table builds it from its right child, the table is read-only afterwards.
+     */
+    public static class SharedBuild {
+        private HashMap<RowKey, List<Tuple>> hashTable = null;
+
+        private synchronized HashMap<RowKey, List<Tuple>> get(HashJoinOperator join) {
+            if (this.hashTable == null)
+                this.hashTable = join.buildRight();
+            return this.hashTable;
+        }
+    }
+
+    /**
+     * Always build the hash table on the right child, shared with the other joins using the same {@link SharedBuild}.
+     * Resetting the join does not rebuild a shared hash table.
+     * @param sharedBuild the shared hash table.
+     */
+    public void shareBuild(SharedBuild sharedBuild) {
+        this.sharedBuild = sharedBuild;
+    }
+
+    /**
+     * Reset the states of both child operators, the hash table will be rebuilt on the next call of {@link #getNextTuple()}.
+     */
+    @Override
+    public void reset() {
+        super.reset();
+        this.hashTable = null;
+        this.probeBuffer = new ArrayList<>();
+        this.probeTuple = null;
+        this.matchedTuples = null;
+        this.matchIndex = 0;
+    }
+
+    /**
+     * Get the next joined tuple. The first call builds the hash table on the smaller input.
+     * For each probe tuple, iterate over the build side tuples with the same key and check the residual conditions.
+     * @return the next joined tuple that satisfies the join conditions, or {@code null} if the join is exhausted.
+     */
+    @Override
+    public Tuple getNextTuple() {
+        if (this.hashTable == null)
+            this.build();
+
+        while (true) {
+            if (this.matchedTuples != null) {
+                while (this.matchIndex < this.matchedTuples.size()) {
+                    Tuple buildTuple = this.matchedTuples.get(this.matchIndex++);
+                    Tuple leftTuple = this.buildOnLeft ? buildTuple : this.probeTuple;
+                    Tuple rightTuple = this.buildOnLeft ? this.probeTuple : buildTuple;
+                    boolean pass = true;
+                    for (JoinCondition condition : this.residualConditions) {
+                        if (!condition.check(leftTuple, rightTuple)) {
+                            pass = false;
+                            break;
+                        }
+                    }
+                    if (pass)
+                        return this.joinTuples(leftTuple, rightTuple);
+                }
+            }
+            // move to the next probe tuple, consume the buffered ones first
+            if (!this.probeBuffer.isEmpty())
+                this.probeTuple = this.probeBuffer.remove(this.probeBuffer.size() - 1);
+            else
+                this.probeTuple = this.buildOnLeft ? this.rightChild.getNextTuple() : this.leftChild.getNextTuple();
+            if (this.probeTuple == null)
+                return null;
+            List<Integer> probeKeyIndices = this.buildOnLeft ? this.rightKeyIndices : this.leftKeyIndices;
+            this.matchedTuples = this.hashTable.get(RowKey.of(this.probeTuple, probeKeyIndices));
+            this.matchIndex = 0;
+        }
+    }
+
+    /**
+     * The block nested loop inherited from {@link JoinOperator} is not used,
+     * the batches are collected from {@link #getNextTuple()} instead.
+     * @return the next batch of joined tuples, or {@code null} if the join is exhausted.
+     */
+    @Override
+    public TupleBatch getNextBatch() {
+        return this.collectBatch();
+    }
+
+    /**
+     * Read both children in lockstep until one of them is exhausted, and build the hash table on that child.
+     * The tuples read from the other child are kept in {@code this.probeBuffer} (in reversed order, so that
+     * they can be removed cheaply from the tail while preserving the child output order).
+     */
+    private void build() {
+        if (this.sharedBuild != null) {
+            this.buildOnLeft = false;
+            this.hashTable = this.sharedBuild.get(this);
+            return;
+        }
+        List<Tuple> leftTuples = new ArrayList<>();
+        List<Tuple> rightTuples = new ArrayList<>();
+        while (true) {
+            Tuple leftTuple = this.leftChild.getNextTuple();
+            if (leftTuple == null) {
+                this.buildOnLeft = true;
+                break;
+            }
+            leftTuples.add(leftTuple);
+            Tuple rightTuple = this.rightChild.getNextTuple();
+            if (rightTuple == null) {
+                this.buildOnLeft = false;
+                break;
+            }
+            rightTuples.add(rightTuple);
+        }
+
+        List<Tuple> buildTuples = this.buildOnLeft ? leftTuples : rightTuples;
+        List<Integer> buildKeyIndices = this.buildOnLeft ? this.leftKeyIndices : this.rightKeyIndices;
+        this.hashTable = new HashMap<>();
+        for (Tuple tuple : buildTuples)
+            this.hashTable.computeIfAbsent(RowKey.of(tuple, buildKeyIndices), k -> new ArrayList<>()).add(tuple);
+
+        List<Tuple> probeTuples = this.buildOnLeft ? rightTuples : leftTuples;
+        for (int i = probeTuples.size() - 1; i >= 0; i--)
+            this.probeBuffer.add(probeTuples.get(i));
+    }
+
+    /**
+     * Build a hash table on all the right child tuples.
+     * @return the hash table.
+     */
+    private HashMap<RowKey, List<Tuple>> buildRight() {
+        HashMap<RowKey, List<Tuple>> hashTable = new HashMap<>();
+        Tuple tuple = this.rightChild.getNextTuple();
+        while (tuple != null) {
+            hashTable.computeIfAbsent(RowKey.of(tuple, this.rightKeyIndices), k -> new ArrayList<>()).add(tuple);
+            tuple = this.rightChild.getNextTuple();
+        }
+        return hashTable;
+    }
+
+    /**
+     * Unit test of HashJoinOperator, output is printed to the console.
+     * @param args Command line inputs, can be empty.
+     */
+    public static void main(String[] args) {
+        DBCatalog dbc = DBCatalog.getInstance();
+        dbc.init("data/evaluation/db");
+
+        // Test on query:   Q(x, y, z, w, t) :- R(x, y, z), S(x, w, t), y < t
+        System.out.println("Testing query: Q(x, y, z, w, t) :- R(x, y, z), S(x, w, t), y < t");
+
+        List<Term> queryAtomTerms1 = new ArrayList<>();
+        queryAtomTerms1.add( new Variable("x"));
+        queryAtomTerms1.add( new Variable("y"));
+        queryAtomTerms1.add( new Variable("z"));
+        RelationalAtom queryBodyAtomR = new RelationalAtom("R", queryAtomTerms1);
+
+        List<Term> queryAtomTerms2 = new ArrayList<>();
+        queryAtomTerms2.add( new Variable("x"));
+        queryAtomTerms2.add( new Variable("w"));
+        queryAtomTerms2.add( new Variable("t"));
+        RelationalAtom queryBodyAtomS = new RelationalAtom("S", queryAtomTerms2);
+
+        List<ComparisonAtom> compAtomList = new ArrayList<>();
+        compAtomList.add(new ComparisonAtom(
+                new Variable("y"), new Variable("t"), ComparisonOperator.fromString("<")));
+
+        HashJoinOperator joinOp = new HashJoinOperator(
+                new ScanOperator(queryBodyAtomR), new ScanOperator(queryBodyAtomS), compAtomList);
+        System.out.println(joinOp.getVariableMask());
+        joinOp.dump(null);
+        joinOp.reset();
+        System.out.println("-----------------------------------");
+        joinOp.dump(null);
+    }
+}
@@ -0,0 +1,108 @@
+package ed.inf.adbs.minibase.operator;
+
+import java.util.Base64;
+
+/**
+ * A HyperLogLog sketch estimating the number of distinct values of a column in a single pass with fixed memory.
+ * Each value is hashed into 64 bits: the first {@link #PRECISION} bits choose a register, and the register keeps
+ * the maximum position of the first 1-bit in the remaining bits. The estimation has a standard error of about
+ * 1.04 / sqrt(2^PRECISION), i.e. 2.3% with 2048 registers (linear counting is used for small cardinalities).
+ * Sketches of the same column over disjoint parts of a file can be merged, see {@link #merge}.
+ * Used by {@link StatisticsCollector}.
+ */
+public class HyperLogLog {
+
+    public static final int PRECISION = 11;
+    private static final int REGISTER_COUNT = 1 << PRECISION;
+
+    private final byte[] registers;
+
+    public HyperLogLog() {
+        this.registers = new byte[REGISTER_COUNT];
+    }
+
+    private HyperLogLog(byte[] registers) {
+        this.registers = registers;
+    }
+
+    public void addInt(int value) {
+        this.addHash(mix(value));
+    }
+
+    /**
+     * Add a string value, hashed by FNV-1a over its chars.
+     */
+    public void addString(String value) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < value.length(); i++) {
+            hash ^= value.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        this.addHash(mix(hash));
+    }
+
+    private void addHash(long hash) {
+        int index = (int) (hash >>> (Long.SIZE - PRECISION));
+        // the sentinel bit bounds the rank when all remaining bits are zero
+        int rank = Long.numberOfLeadingZeros((hash << PRECISION) | (1L << (PRECISION - 1))) + 1;
+        if (rank > this.registers[index])
+            this.registers[index] = (byte) rank;
+    }
+
+    /**
+     * Merge another sketch into this one, the result estimates the distinct values of the union of both inputs.
+     */
+    public void merge(HyperLogLog other) {
+        for (int i = 0; i < REGISTER_COUNT; i++)
+            if (other.registers[i] > this.registers[i])
+                this.registers[i] = other.registers[i];
+    }
+
+    /**
+     * @return the estimated number of distinct values added.
+     */
+    public long estimate() {
+        double sum = 0;
+        int zeros = 0;
+        for (byte register : this.registers) {
+            sum += 1.0 / (1L << register);
+            if (register == 0)
+                zeros++;
+        }
+        double alpha = 0.7213 / (1 + 1.079 / REGISTER_COUNT);
+        double estimation = alpha * REGISTER_COUNT * REGISTER_COUNT / sum;
+        if (estimation <= 2.5 * REGISTER_COUNT && zeros > 0)
+            estimation = REGISTER_COUNT * Math.log((double) REGISTER_COUNT / zeros);
+        return Math.round(estimation);
+    }
+
+    /**
+     * @return the registers encoded in Base64, to be persisted in the statistics file.
+     */
+    public String encode() {
+        return Base64.getEncoder().encodeToString(this.registers);
+    }
+
+    /**
+     * @param encoded the string returned by {@link #encode()}.
+     * @return the decoded sketch.
+     */
+    public static HyperLogLog decode(String encoded) {
+        byte[] registers = Base64.getDecoder().decode(encoded);
+        if (registers.length != REGISTER_COUNT)
+            throw new IllegalArgumentException("Invalid HyperLogLog sketch of " + registers.length + " registers");
+        return new HyperLogLog(registers);
+    }
+
+    /**
+     * The finalizer of MurmurHash3, spreading every input bit over the whole 64-bit hash.
+     */
+    private static long mix(long hash) {
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+}
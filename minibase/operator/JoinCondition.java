@@ -12,9 +12,12 @@ import java.util.List;
  * The two operands of input {@link ComparisonAtom} to this class are permitted to be both {@link Variable} instances.
  * (If a comparison atom only contain one variable,
  * it must be a select condition that should be processed in {@link SelectOperator} instead of {@link JoinOperator})
+ *
+ * The condition is compiled into a {@link CompiledComparison} of 'left operand op right operand',
+ * specialized for the operator and the operand types on the first checked pair of rows.
  */
 public class JoinCondition {
-    private String op;
+    private final ComparisonOperator op;
     private boolean reverseOrder = false;
     // assume the ComparisonAtom represents a predicate: term1 op term2
     // if (term1 in leftTuple) && (term2 in rightTuple), the tuple order matches operand order, and reverseOrder=false
@@ -23,6 +26,9 @@ public class JoinCondition {
     private int operand1Idx; // the index of operand1 in corresponding tuple (either left or right tuple depends on reverseOrder)
     private int operand2Idx; // the index of operand2 in corresponding tuple
 
+    private CompiledComparison comparison = null;
+    // the comparison of a left value and a right value, compiled on the first check
+
     /**
      * Extract the indices of two variable operands from the corresponding tuple.
      * Notice that the order between operands and between the tuples they appeared may be opposite,
@@ -33,7 +39,7 @@ public class JoinCondition {
      * @param rightVariableMask
      */
     public JoinCondition(ComparisonAtom compAtom, List<String> leftVariableMask, List<String> rightVariableMask) {
-        this.op = compAtom.getOp().toString();
+        this.op = compAtom.getOp();
         if ( leftVariableMask.contains(((Variable) compAtom.getTerm1()).getName()) ) {
             // if the left relation contains the first operand, the order are the same
             this.operand1Idx = leftVariableMask.indexOf(((Variable) compAtom.getTerm1()).getName());
@@ -46,51 +52,82 @@ public class JoinCondition {
         }
     }
 
+    /**
+     * @return {@code true} if this condition is an equality between a left column and a right column,
+     *      which can be used as a key by hash-based or sort-based join operators.
+     */
+    public boolean isEquality() {
+        return this.op == ComparisonOperator.EQ;
+    }
+
+    /**
+     * @return {@code true} if this condition is one of '<', '<=', '>', '>=' between a left column and a right column,
+     *      which can be used as a bound by range-based join operators.
+     */
+    public boolean isInequality() {
+        return this.op != ComparisonOperator.EQ && this.op != ComparisonOperator.NEQ;
+    }
+
+    /**
+     * @return the comparison operator in the order 'left operand op right operand',
+     *      e.g. {@code "<"} for the condition {@code u > x} where {@code x} is from the left child.
+     */
+    public String getOpFromLeft() {
+        return (this.reverseOrder ? CompiledComparison.reverse(this.op) : this.op).toString();
+    }
+
+    /**
+     * Compile the comparison for the column types of the checked rows, on the first call.
+     */
+    private CompiledComparison compiled(boolean isLeftString, boolean isRightString) {
+        if (this.comparison == null)
+            this.comparison = CompiledComparison.compile(
+                    this.reverseOrder ? CompiledComparison.reverse(this.op) : this.op, isLeftString, isRightString);
+        return this.comparison;
+    }
+
+    /**
+     * @return the index of the operand in tuples from the left child operator.
+     */
+    public int getLeftIndex() {
+        return this.reverseOrder ? this.operand2Idx : this.operand1Idx;
+    }
+
+    /**
+     * @return the index of the operand in tuples from the right child operator.
+     */
+    public int getRightIndex() {
+        return this.reverseOrder ? this.operand1Idx : this.operand2Idx;
+    }
+
     /**
      * Check whether two input tuples satisfy the join condition.
      * First the operand will be extracted from the input tuples by their indices,
      * depending on the state of {@code this.reverseOrder} flag, the order of these two operand may be reversed.
-     * Then the two operand will be checked on the join condition.
+     * Then the two operand will be checked by the compiled comparison, as primitive values (see {@link Tuple}).
      * @param leftTuple a tuple from the left child operator of {@link JoinOperator}
      * @param rightTuple a tuple from the right child operator of {@link JoinOperator}
      * @return {@code true} if join condition is satisfied on these two tuples; {@code false} otherwise
      */
     public boolean check(Tuple leftTuple, Tuple rightTuple) {
-        Term operand1;
-        Term operand2;
-        // extract operand from input tuples, order of operands depends on the reverseOrder flag
-        if (!reverseOrder) {
-            operand1 = leftTuple.getTerms().get(this.operand1Idx);
-            operand2 = rightTuple.getTerms().get(this.operand2Idx);
-        } else {
-            operand1 = rightTuple.getTerms().get(this.operand1Idx);
-            operand2 = leftTuple.getTerms().get(this.operand2Idx);
-        }
+        int leftIdx = this.getLeftIndex();
+        int rightIdx = this.getRightIndex();
+        return this.compiled(leftTuple.isString(leftIdx), rightTuple.isString(rightIdx))
+                .test(leftTuple.getValue(leftIdx), rightTuple.getValue(rightIdx));
+    }
 
-        // check the join condition on extracted operands
-        if (this.op.equals("=")) {
-            return operand1.equals(operand2);
-        } else if (this.op.equals("!=")) {
-            return (!operand1.equals(operand2));
-        } else if (this.op.equals(">")) {
-            if (operand1 instanceof IntegerConstant)
-                return ((IntegerConstant) operand1).getValue() > ((IntegerConstant) operand2).getValue();
-            return ((StringConstant) operand1).getValue().compareTo(((StringConstant) operand2).getValue()) > 0;
-        } else if (this.op.equals(">=")) {
-            if (operand1 instanceof IntegerConstant)
-                return ((IntegerConstant) operand1).getValue() >= ((IntegerConstant) operand2).getValue();
-            return ((StringConstant) operand1).getValue().compareTo(((StringConstant) operand2).getValue()) >= 0;
-        } else if (this.op.equals("<")) {
-            if (operand1 instanceof IntegerConstant)
-                return ((IntegerConstant) operand1).getValue() < ((IntegerConstant) operand2).getValue();
-            return ((StringConstant) operand1).getValue().compareTo(((StringConstant) operand2).getValue()) < 0;
-        } else if (this.op.equals("<=")) {
-            if (operand1 instanceof IntegerConstant)
-                return ((IntegerConstant) operand1).getValue() <= ((IntegerConstant) operand2).getValue();
-            return ((StringConstant) operand1).getValue().compareTo(((StringConstant) operand2).getValue()) <= 0;
-        } else {
-            System.out.println("!!!! None of the if-branches is evoked in the Selection Operator !!!!");
-            return false;
-        }
+    /**
+     * Check whether a row of a left batch and a row of a right batch satisfy the join condition.
+     * @param leftBatch a batch from the left child operator of {@link JoinOperator}
+     * @param leftRow the row index in the left batch
+     * @param rightBatch a batch from the right child operator of {@link JoinOperator}
+     * @param rightRow the row index in the right batch
+     * @return {@code true} if join condition is satisfied on these two rows; {@code false} otherwise
+     */
+    public boolean check(TupleBatch leftBatch, int leftRow, TupleBatch rightBatch, int rightRow) {
+        int leftIdx = this.getLeftIndex();
+        int rightIdx = this.getRightIndex();
+        return this.compiled(leftBatch.isStringColumn(leftIdx), rightBatch.isStringColumn(rightIdx))
+                .test(leftBatch.getValue(leftIdx, leftRow), rightBatch.getValue(rightIdx, rightRow));
     }
 }
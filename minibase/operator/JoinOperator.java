@@ -3,6 +3,8 @@ package ed.inf.adbs.minibase.operator;
 import ed.inf.adbs.minibase.base.*;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
 
@@ -14,23 +16,52 @@ import java.util.List;
  *      are provided by {@link ComparisonAtom} in query body, which is an input parameter in the constructor.
  * All these join conditions (either implicit or explicit) will be converted into {@link JoinCondition} instances,
  *      which use {@link JoinCondition#check(Tuple, Tuple)} to check whether a combination of left and right tuple satisfies the requirement.
+ *
+ * The join is a block nested loop: the right child is materialized once into a {@link TupleBuffer}
+ * (which spills to disk beyond the memory budget), and each batch of the left child is checked against the whole buffer,
+ * so the right subtree is evaluated only once instead of once per left tuple.
  */
 public class JoinOperator extends Operator {
 
-    private Operator leftChild;
-    private Operator rightChild;
+    protected Operator leftChild;
+    protected Operator rightChild;
 
-    private List<JoinCondition> conditions = new ArrayList<>();
+    protected List<JoinCondition> conditions = new ArrayList<>();
 
-    private HashMap<Integer, Integer> joinConditionIndices = new HashMap<>();
+    protected HashMap<Integer, Integer> joinConditionIndices = new HashMap<>();
     // a map from variable index in left tuples to index in right tuples that represents the same variable
     // this is used for inner join checks, duplication columns will be removed by referring to this map.
 
-    private List<Integer> rightDuplicateColumns = new ArrayList<>();
+    protected List<Integer> rightDuplicateColumns = new ArrayList<>();
     // the columns in right child to be removed (due to inner join / duplicates with columns in left child)
 
-    private Tuple leftTuple = null;
-    // the current being checked output tuple of left child
+    /**
+     * The default number of right child rows kept in memory by the nested loop.
+     */
+    public static final int DEFAULT_MEMORY_BUDGET = 100000;
+
+    private final int memoryBudget;
+    private TupleBuffer rightBuffer = null;
+    // the materialized output of right child, created on the first use of the nested loop
+
+    private TupleBatch pendingBatch = null;
+    private int pendingPosition = 0;
+    // the joined batch whose rows are being returned by getNextTuple()
+
+    private int[] leftOutputColumns;
+    private int[] rightOutputColumns;
+    // the columns of left child and the columns of right child (not in rightDuplicateColumns) in join result,
+    // all the left columns unless the output is projected by projectOutput()
+
+    private boolean[] joinedStringColumns = null;
+    // the column types of join results, shared by all output tuples
+
+    private TupleBatch leftBatch = null;
+    private TupleBatch rightBatch = null;
+    private int leftPosition = 0;
+    private int rightPosition = 0;
+    // the states of the block nested loop used by getNextBatch(): the current block of left rows,
+    // the current right batch, and the positions of the next pair to be checked
 
     /**
      * Initialise the operator:
@@ -43,8 +74,10 @@ public class JoinOperator extends Operator {
      * @param leftChild left child operator.
      * @param rightChild right child operator.
      * @param comparisonAtoms the explicit join conditions provided by {@link ComparisonAtom} in query body.
+     * @param memoryBudget the maximum number of right child rows kept in memory by the nested loop.
      */
-    public JoinOperator(Operator leftChild, Operator rightChild, List<ComparisonAtom> comparisonAtoms) {
+    public JoinOperator(Operator leftChild, Operator rightChild, List<ComparisonAtom> comparisonAtoms, int memoryBudget) {
+        this.memoryBudget = memoryBudget;
         this.leftChild = leftChild;
         List<String> leftVariableMask = leftChild.getVariableMask();
         this.rightChild = rightChild;
@@ -71,77 +104,220 @@ public class JoinOperator extends Operator {
                     this.variableMask.add(rightVar);
             }
         }
+
+        this.leftOutputColumns = new int[leftVariableMask.size()];
+        for (int i = 0; i < this.leftOutputColumns.length; i++)
+            this.leftOutputColumns[i] = i;
+        List<Integer> rightOutputColumnList = new ArrayList<>();
+        for (int i = 0; i < rightVariableMask.size(); i++)
+            if (!this.rightDuplicateColumns.contains(i))
+                rightOutputColumnList.add(i);
+        this.rightOutputColumns = new int[rightOutputColumnList.size()];
+        for (int i = 0; i < this.rightOutputColumns.length; i++)
+            this.rightOutputColumns[i] = rightOutputColumnList.get(i);
+    }
+
+    /**
+     * Initialise the operator with the default memory budget of nested loop, see {@link #JoinOperator(Operator, Operator, List, int)}.
+     * @param leftChild left child operator.
+     * @param rightChild right child operator.
+     * @param comparisonAtoms the explicit join conditions provided by {@link ComparisonAtom} in query body.
+     */
+    public JoinOperator(Operator leftChild, Operator rightChild, List<ComparisonAtom> comparisonAtoms) {
+        this(leftChild, rightChild, comparisonAtoms, DEFAULT_MEMORY_BUDGET);
+    }
+
+    /**
+     * Only keep the columns of the given variables in join results (projection pushdown), the variable mask is updated accordingly.
+     * The query planner calls this right after construction with the variables needed above this join
+     * (the head variables and the variables of later joins), so that the other columns are not copied into joined tuples.
+     * @param outputVariables the variables to keep in join results.
+     */
+    public void projectOutput(Collection<String> outputVariables) {
+        int leftColumns = this.leftOutputColumns.length;
+        List<String> projectedMask = new ArrayList<>();
+        List<Integer> leftColumnList = new ArrayList<>();
+        List<Integer> rightColumnList = new ArrayList<>();
+        for (int i = 0; i < this.variableMask.size(); i++) {
+            String variable = this.variableMask.get(i);
+            if (variable == null || !outputVariables.contains(variable) || projectedMask.contains(variable))
+                continue;
+            projectedMask.add(variable);
+            if (i < leftColumns)
+                leftColumnList.add(this.leftOutputColumns[i]);
+            else
+                rightColumnList.add(this.rightOutputColumns[i - leftColumns]);
+        }
+        this.variableMask = projectedMask;
+        this.leftOutputColumns = new int[leftColumnList.size()];
+        for (int i = 0; i < this.leftOutputColumns.length; i++)
+            this.leftOutputColumns[i] = leftColumnList.get(i);
+        this.rightOutputColumns = new int[rightColumnList.size()];
+        for (int i = 0; i < this.rightOutputColumns.length; i++)
+            this.rightOutputColumns[i] = rightColumnList.get(i);
+        this.joinedStringColumns = null;
     }
 
     /**
      * Reset the states of both child operators.
+     * The materialized right child is dropped as well, so that the join result reflects the current data files.
      */
     @Override
     public void reset() {
         this.leftChild.reset();
         this.rightChild.reset();
-        this.leftTuple = null;
+        if (this.rightBuffer != null)
+            this.rightBuffer.clear();
+        this.rightBuffer = null;
+        this.pendingBatch = null;
+        this.pendingPosition = 0;
+        this.leftBatch = null;
+        this.rightBatch = null;
+        this.leftPosition = 0;
+        this.rightPosition = 0;
+    }
+
+    /**
+     * Release the resources of both child operators, and remove the materialized right child (with its spill file).
+     */
+    @Override
+    public void close() {
+        this.leftChild.close();
+        this.rightChild.close();
+        if (this.rightBuffer != null)
+            this.rightBuffer.clear();
+        this.rightBuffer = null;
     }
 
     /**
      * Get the next joined tuple from output of left and right child operators.
-     * Implements an outer loop on left child tuples (and use {@code this.leftTuple} to track the being checked left tuple).
-     * Implements an inner loop on right child tuples.
+     * The tuples are taken from the batches produced by the block nested loop of {@link #getNextBatch()}.
      * @return the next joined tuple that satisfies the join conditions.
      */
     @Override
     public Tuple getNextTuple() {
-        // the leftTuple is stored in the instance, otherwise each left tuple can only be joined with at most one right tuple
-        if (this.leftTuple == null)
-            this.leftTuple = this.leftChild.getNextTuple();
-
-        while (this.leftTuple != null) {
-            // Fix a tuple in outer loop, then iterate over the tuples in inner loop
-            Tuple rightTuple = this.rightChild.getNextTuple();
-            while (rightTuple != null) {
-
-                boolean pass = true;
-                // check the inner join conditions provided by same variable names in two query atoms
-                for (Integer leftIndex : this.joinConditionIndices.keySet()) {
-                    int rightIndex = this.joinConditionIndices.get(leftIndex);
-                    if (!this.leftTuple.getTerms().get(leftIndex).equals(rightTuple.getTerms().get(rightIndex))) {
-                        pass = false;
-                        break;
-                    }
+        while (this.pendingBatch == null || this.pendingPosition >= this.pendingBatch.size()) {
+            this.pendingBatch = this.getNextBatch();
+            this.pendingPosition = 0;
+            if (this.pendingBatch == null)
+                return null;
+        }
+        return this.pendingBatch.getTuple(this.pendingBatch.getRowIndex(this.pendingPosition++), "Join");
+    }
+
+    /**
+     * Get the next batch of joined rows, using a block nested loop:
+     * each batch of the left child is a block, the materialized right child is scanned once per block,
+     * and every right row is checked against all the rows of the block.
+     * The joined rows are copied column by column into the output batch, no {@link Tuple} instance is created.
+     * @return the next batch of joined rows that satisfy the join conditions, or {@code null} if the join is exhausted.
+     */
+    @Override
+    public TupleBatch getNextBatch() {
+        TupleBatch output = new TupleBatch(this.variableMask.size(), batchSize);
+        while (!output.isFull()) {
+            if (this.leftBatch == null) {
+                this.leftBatch = this.leftChild.getNextBatch();
+                if (this.leftBatch == null) {
+                    // the join is exhausted, remove the materialized right child (and its spill file)
+                    if (this.rightBuffer != null)
+                        this.rightBuffer.clear();
+                    this.rightBuffer = null;
+                    break;
+                }
+                // restart the inner loop for the new block, the right child is materialized on the first block
+                if (this.rightBuffer == null)
+                    this.rightBuffer = new TupleBuffer(this.rightChild, this.memoryBudget);
+                this.rightBuffer.rewind();
+                this.rightBatch = null;
+            }
+            if (this.rightBatch == null) {
+                this.rightBatch = this.rightBuffer.nextBatch();
+                this.leftPosition = 0;
+                this.rightPosition = 0;
+                if (this.rightBatch == null) {
+                    // the block has been checked against all right rows, move to the next block
+                    this.leftBatch = null;
+                    continue;
                 }
-                // check the join conditions provided by extra ComparisonAtom, and involves different variables
-                if (pass) {
-                    for (JoinCondition condition : this.conditions) {
-                        if (!condition.check(this.leftTuple, rightTuple)) {
-                            pass = false;
-                            break;
-                        }
-                    }
+            }
+            while (this.rightPosition < this.rightBatch.size() && !output.isFull()) {
+                int rightRow = this.rightBatch.getRowIndex(this.rightPosition);
+                while (this.leftPosition < this.leftBatch.size() && !output.isFull()) {
+                    int leftRow = this.leftBatch.getRowIndex(this.leftPosition++);
+                    if (this.matches(this.leftBatch, leftRow, this.rightBatch, rightRow))
+                        this.appendJoinedRow(output, this.leftBatch, leftRow, this.rightBatch, rightRow);
                 }
-
-                // if all conditions are satisfied, construct a new Tuple instance as join result
-                if (pass) {
-                    List<Term> joinTermList = new ArrayList<>();
-                    // the join result contains all columns in left tuple, and the non-duplicate columns in right tuple
-                    for (Term leftTerm : this.leftTuple.getTerms())
-                        joinTermList.add(leftTerm);
-                    for (int i = 0; i < rightTuple.getTerms().size(); i++) {
-                        if (!this.rightDuplicateColumns.contains(i)) {
-                            joinTermList.add(rightTuple.getTerms().get(i));
-                        }
-                    }
-                    return new Tuple("Join", joinTermList);
+                if (this.leftPosition >= this.leftBatch.size()) {
+                    this.leftPosition = 0;
+                    this.rightPosition++;
                 }
-
-                // otherwise, check the next right tuple
-                rightTuple = this.rightChild.getNextTuple();
             }
-            // reset the right child operator, so the inner loop will be restarted from beginning
-            this.rightChild.reset();
-            // move to the next outer loop tuple
-            this.leftTuple = this.leftChild.getNextTuple();
+            if (this.rightPosition >= this.rightBatch.size())
+                this.rightBatch = null;
+        }
+        return output.getRowCount() == 0 ? null : output;
+    }
+
+    /**
+     * Check the inner join conditions and the explicit join conditions on a pair of left and right rows.
+     */
+    protected boolean matches(TupleBatch leftBatch, int leftRow, TupleBatch rightBatch, int rightRow) {
+        for (Integer leftIndex : this.joinConditionIndices.keySet()) {
+            if (!leftBatch.valueEquals(leftIndex, leftRow, rightBatch, this.joinConditionIndices.get(leftIndex), rightRow))
+                return false;
+        }
+        for (JoinCondition condition : this.conditions) {
+            if (!condition.check(leftBatch, leftRow, rightBatch, rightRow))
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Append the join result of a pair of left and right rows to the output batch,
+     * in the same layout as {@link #joinTuples(Tuple, Tuple)}.
+     */
+    protected void appendJoinedRow(TupleBatch output, TupleBatch leftBatch, int leftRow, TupleBatch rightBatch, int rightRow) {
+        int row = output.addRow();
+        int leftColumns = this.leftOutputColumns.length;
+        for (int i = 0; i < leftColumns; i++)
+            output.copyValue(i, row, leftBatch, this.leftOutputColumns[i], leftRow);
+        for (int i = 0; i < this.rightOutputColumns.length; i++)
+            output.copyValue(leftColumns + i, row, rightBatch, this.rightOutputColumns[i], rightRow);
+    }
+
+    /**
+     * Construct the join result of a pair of left and right tuples that satisfy all the join conditions.
+     * The join result contains all columns in left tuple, and the non-duplicate columns in right tuple,
+     * which matches the variable mask built in the constructor (or only the columns kept by {@link #projectOutput}).
+     * Only the primitive values are copied, into a single new array.
+     * @param leftTuple a tuple from the left child operator.
+     * @param rightTuple a tuple from the right child operator.
+     * @return the joined tuple.
+     */
+    protected Tuple joinTuples(Tuple leftTuple, Tuple rightTuple) {
+        int leftColumns = this.leftOutputColumns.length;
+        if (this.joinedStringColumns == null) {
+            // the column types are the same for all join results, build them once
+            this.joinedStringColumns = new boolean[leftColumns + this.rightOutputColumns.length];
+            for (int i = 0; i < leftColumns; i++)
+                this.joinedStringColumns[i] = leftTuple.isString(this.leftOutputColumns[i]);
+            for (int i = 0; i < this.rightOutputColumns.length; i++)
+                this.joinedStringColumns[leftColumns + i] = rightTuple.isString(this.rightOutputColumns[i]);
+        }
+        int[] values;
+        if (leftColumns == leftTuple.size()) {
+            // all the left columns are kept in order
+            values = Arrays.copyOf(leftTuple.getValues(), leftColumns + this.rightOutputColumns.length);
+        } else {
+            values = new int[leftColumns + this.rightOutputColumns.length];
+            for (int i = 0; i < leftColumns; i++)
+                values[i] = leftTuple.getValue(this.leftOutputColumns[i]);
         }
-        return null;
+        for (int i = 0; i < this.rightOutputColumns.length; i++)
+            values[leftColumns + i] = rightTuple.getValue(this.rightOutputColumns[i]);
+        return new Tuple("Join", values, this.joinedStringColumns);
     }
 
     /**
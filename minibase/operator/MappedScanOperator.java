@@ -0,0 +1,302 @@
+package ed.inf.adbs.minibase.operator;
+
+import ed.inf.adbs.minibase.base.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * This class implements the SCAN operation on a CSV data file without {@link java.util.Scanner} and regular expressions.
+ * The data file is memory-mapped once by {@link FileChannel#map}, and the tuples are parsed directly from the mapped bytes:
+ *      (1) a field is a maximal run of letters and digits, the same rule as the regex split in {@link ScanOperator};
+ *      (2) int fields are accumulated digit by digit, no intermediate String is created;
+ *      (3) string fields are encoded into {@link StringDictionary} codes straight from the bytes
+ *          (a String is only created for a value never seen before), and only if the column is referenced by the
+ *          variable mask, otherwise the column of output tuple is {@link StringDictionary#NULL_CODE};
+ *      (4) the pushed-down select conditions ({@link ScanPredicate}) are checked on each field as soon as it is parsed,
+ *          a string field is compared on its bytes. The string fields are only encoded once the whole line has passed,
+ *          so a rejected line costs no dictionary lookup and no allocation, and the rest of it is skipped;
+ *      (5) only the columns of the variables needed by parent operators are emitted (projection pushdown),
+ *          the other fields are skipped without being parsed or encoded.
+ * Resetting the operator only rewinds the read position, the file is not reopened.
+ * The scan can be restricted to a byte range of the file ({@link #setRange}), so that parallel workers scan disjoint morsels.
+ *
+ * It is selected by {@link DBCatalog#getScanOperator} in {@link DBCatalog.ScanMode#MAPPED} mode.
+ */
+public class MappedScanOperator extends Operator {
+
+    private final String relationName;
+    private final boolean[] intColumns;
+    // intColumns[c] is true if column c is declared as 'int' in the schema
+    private final boolean[] referencedColumns;
+    // referencedColumns[c] is true if the value of column c is used: emitted to parent operators, or checked by a row condition
+    private MappedByteBuffer buffer = null;
+    private int position = 0;
+    private int rangeStart = 0;
+    private int rangeEnd = 0;
+    // the byte range of the file scanned by this operator, the whole file unless a morsel is set by setRange()
+    private byte[] fieldBytes = new byte[64];
+
+    private final boolean[] stringColumns;
+    // the column types of the relation
+    private final int[] outputColumns;
+    private final boolean[] outputStringColumns;
+    // the columns emitted in output tuples and their types, outputColumns is null if every column is emitted
+    private final StringDictionary dictionary;
+
+    private final int[] rowValues;
+    private int fieldCount = 0;
+    // the fields of the last parsed line (string fields as dictionary codes), shared by the tuple and the batch interfaces
+    private final int[] fieldStarts;
+    private final int[] fieldLengths;
+    // the positions of string fields in the last parsed line, encoded after the line passes the select conditions
+
+    private final ScanPredicate predicate;
+    // the select conditions pushed down into this scan, null if there is none
+
+    /**
+     * Map the data file into memory, use the terms in the relational atom to build the variable mask.
+     * @param baseQueryAtom a relational atom in query body, providing information like relation name and variable mask.
+     */
+    public MappedScanOperator(RelationalAtom baseQueryAtom) {
+        this(baseQueryAtom, new ArrayList<>(), null);
+    }
+
+    /**
+     * Map the data file into memory, and push the select conditions on the relational atom into the scan.
+     * @param baseQueryAtom a relational atom in query body, providing information like relation name and variable mask.
+     * @param compAtomList the select conditions whose variables all appear in the relational atom.
+     * @param outputVariables the variables needed by the parent operators, only their columns are emitted and decoded;
+     *                        {@code null} to emit every column.
+     */
+    public MappedScanOperator(RelationalAtom baseQueryAtom, List<ComparisonAtom> compAtomList,
+                              Collection<String> outputVariables) {
+        List<String> atomVariables = new ArrayList<>();
+        for (Term term : baseQueryAtom.getTerms()) {
+            if (term instanceof Variable)
+                atomVariables.add(((Variable) term).getName());
+            else
+                atomVariables.add(null);
+        }
+        this.relationName = baseQueryAtom.getName();
+
+        DBCatalog dbc = DBCatalog.getInstance();
+        List<String> relationSchema = dbc.getSchema(relationName);
+        this.intColumns = new boolean[relationSchema.size()];
+        this.referencedColumns = new boolean[relationSchema.size()];
+        this.stringColumns = new boolean[relationSchema.size()];
+        this.rowValues = new int[relationSchema.size()];
+        this.fieldStarts = new int[relationSchema.size()];
+        this.fieldLengths = new int[relationSchema.size()];
+        this.dictionary = dbc.getDictionary();
+        for (int c = 0; c < relationSchema.size(); c++) {
+            this.intColumns[c] = relationSchema.get(c).equals("int");
+            this.stringColumns[c] = !this.intColumns[c];
+        }
+        ScanPredicate predicate = new ScanPredicate(compAtomList, atomVariables, this.stringColumns);
+        this.predicate = predicate.isEmpty() ? null : predicate;
+
+        this.outputColumns = selectOutputColumns(atomVariables, outputVariables);
+        if (this.outputColumns == null) {
+            this.variableMask = atomVariables;
+            this.outputStringColumns = this.stringColumns;
+            // every int column is emitted, only the string columns bound to no variable are left as NULL_CODE
+            for (int c = 0; c < relationSchema.size(); c++)
+                this.referencedColumns[c] = this.intColumns[c] || (c < atomVariables.size() && atomVariables.get(c) != null);
+        } else {
+            this.outputStringColumns = new boolean[this.outputColumns.length];
+            for (int i = 0; i < this.outputColumns.length; i++) {
+                this.variableMask.add(atomVariables.get(this.outputColumns[i]));
+                this.outputStringColumns[i] = this.stringColumns[this.outputColumns[i]];
+                this.referencedColumns[this.outputColumns[i]] = true;
+            }
+        }
+        for (int c = 0; c < relationSchema.size(); c++)
+            if (this.predicate != null && this.predicate.isRowConditionColumn(c))
+                this.referencedColumns[c] = true;
+
+        String path = dbc.getRelationPath(relationName);
+        try (RandomAccessFile file = new RandomAccessFile(new File(path), "r")) {
+            // the mapping stays valid after the channel is closed
+            this.buffer = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+            this.rangeEnd = this.buffer.limit();
+        } catch (IOException e) {
+            System.out.println("Relation data file not found: " + path);
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Reset the operator state by rewinding to the beginning of the mapped file (or of the scanned range).
+     */
+    @Override
+    public void reset() {
+        this.position = this.rangeStart;
+    }
+
+    /**
+     * Restrict the scan to a range of lines of the data file, e.g. a morsel of a parallel scan (see {@link MorselSource}).
+     * @param start the offset of the first line of range.
+     * @param end the offset after the last line of range, i.e. the start of the next line or the end of file.
+     */
+    public void setRange(int start, int end) {
+        this.rangeStart = start;
+        this.rangeEnd = end;
+        this.position = start;
+    }
+
+    /**
+     * @return the mapped data file, or {@code null} if it cannot be read.
+     */
+    MappedByteBuffer getBuffer() {
+        return this.buffer;
+    }
+
+    /**
+     * Parse the next non-empty line of the mapped file into a {@link Tuple}.
+     * @return a {@link Tuple} instance that represents the data in next line of the data file, or {@code null} at the end.
+     */
+    @Override
+    public Tuple getNextTuple() {
+        if (!this.parseNextLine())
+            return null;
+        if (this.outputColumns == null)
+            return new Tuple(this.relationName, Arrays.copyOf(this.rowValues, this.fieldCount), this.stringColumns);
+        int[] values = new int[this.outputColumns.length];
+        for (int i = 0; i < values.length; i++)
+            values[i] = this.rowValues[this.outputColumns[i]];
+        return new Tuple(this.relationName, values, this.outputStringColumns);
+    }
+
+    /**
+     * Parse up to {@link #batchSize} lines of the mapped file into a {@link TupleBatch}.
+     * @return the next batch of data file, or {@code null} if the end of file is reached.
+     */
+    @Override
+    public TupleBatch getNextBatch() {
+        TupleBatch batch = new TupleBatch(this.outputStringColumns.length, batchSize);
+        while (!batch.isFull() && this.parseNextLine()) {
+            int row = batch.addRow();
+            if (this.outputColumns == null) {
+                for (int c = 0; c < this.fieldCount; c++)
+                    batch.setValue(c, row, this.rowValues[c], this.stringColumns[c]);
+            } else {
+                for (int i = 0; i < this.outputColumns.length; i++)
+                    batch.setValue(i, row, this.rowValues[this.outputColumns[i]], this.outputStringColumns[i]);
+            }
+        }
+        return batch.getRowCount() == 0 ? null : batch;
+    }
+
+    /**
+     * Parse the next non-empty line of the mapped file that satisfies the select conditions into {@code this.rowValues}.
+     * @return {@code true} if a line has been parsed, {@code false} if the end of file is reached.
+     */
+    private boolean parseNextLine() {
+        if (this.buffer == null)
+            return false;
+        int limit = this.rangeEnd;
+        while (this.position < limit) {
+            this.fieldCount = 0;
+            boolean pass = true;
+            byte b;
+            while (this.position < limit && (b = this.buffer.get(this.position)) != '\n') {
+                if (!isFieldByte(b)) {
+                    this.position++;
+                    continue;
+                }
+                int column = this.fieldCount;
+                if (column >= this.intColumns.length) {
+                    // ignore the extra fields that are not declared in schema
+                    this.skipField(limit);
+                    continue;
+                }
+                boolean checked = this.predicate != null && this.predicate.hasColumnConditions(column);
+                if (this.intColumns[column] && (checked || this.referencedColumns[column])) {
+                    this.rowValues[column] = this.parseInt(limit);
+                    if (checked)
+                        pass = this.predicate.checkInt(column, this.rowValues[column]);
+                } else if (this.intColumns[column]) {
+                    // an int column neither emitted nor checked is not parsed
+                    this.skipField(limit);
+                } else {
+                    this.fieldStarts[column] = this.position;
+                    this.skipField(limit);
+                    this.fieldLengths[column] = this.position - this.fieldStarts[column];
+                    if (checked) {
+                        this.copyField(column);
+                        pass = this.predicate.checkString(column, this.fieldBytes, 0, this.fieldLengths[column]);
+                    }
+                }
+                this.fieldCount++;
+                if (!pass) {
+                    this.skipLine(limit);
+                    break;
+                }
+            }
+            this.position++; // skip the line break
+            if (this.fieldCount == 0 || !pass)
+                continue;
+            // the line passes the conditions on single fields, encode its string fields
+            for (int c = 0; c < this.fieldCount; c++) {
+                if (this.intColumns[c])
+                    continue;
+                if (this.referencedColumns[c]) {
+                    this.copyField(c);
+                    this.rowValues[c] = this.dictionary.encode(this.fieldBytes, 0, this.fieldLengths[c]);
+                } else {
+                    this.rowValues[c] = StringDictionary.NULL_CODE;
+                }
+            }
+            if (this.predicate == null || !this.predicate.hasRowConditions() || this.predicate.checkRow(this.rowValues))
+                return true;
+        }
+        return false;
+    }
+
+    private static boolean isFieldByte(byte b) {
+        return (b >= '0' && b <= '9') || (b >= 'a' && b <= 'z') || (b >= 'A' && b <= 'Z');
+    }
+
+    private int parseInt(int limit) {
+        int start = this.position;
+        int value = 0;
+        byte b;
+        while (this.position < limit && isFieldByte(b = this.buffer.get(this.position))) {
+            if (b > '9')
+                throw new NumberFormatException("Invalid int field at byte " + start + " of relation " + this.relationName);
+            value = value * 10 + (b - '0');
+            this.position++;
+        }
+        return value;
+    }
+
+    /**
+     * Copy the bytes of a string field of the current line into {@code this.fieldBytes}.
+     */
+    private void copyField(int column) {
+        int length = this.fieldLengths[column];
+        if (length > this.fieldBytes.length)
+            this.fieldBytes = Arrays.copyOf(this.fieldBytes, Math.max(length, this.fieldBytes.length * 2));
+        int start = this.fieldStarts[column];
+        for (int i = 0; i < length; i++)
+            this.fieldBytes[i] = this.buffer.get(start + i);
+    }
+
+    private void skipField(int limit) {
+        while (this.position < limit && isFieldByte(this.buffer.get(this.position)))
+            this.position++;
+    }
+
+    private void skipLine(int limit) {
+        while (this.position < limit && this.buffer.get(this.position) != '\n')
+            this.position++;
+    }
+}
@@ -0,0 +1,80 @@
+package ed.inf.adbs.minibase.operator;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Split a mapped data file into morsels: byte ranges of about {@code morselSize} bytes, each made of whole lines.
+ * The morsels are handed out to the workers of a {@link ParallelOperator} one at a time by {@link #next()},
+ * so a worker that finishes early simply takes more morsels (no static partitioning of the file).
+ * The morsels are numbered in file order, which is used to restore the order of a serial scan.
+ */
+public class MorselSource {
+
+    public static final int DEFAULT_MORSEL_SIZE = 1 << 20;
+
+    private final int[] boundaries;
+    // morsel i is the range [boundaries[i], boundaries[i + 1]) of the file
+    private final AtomicInteger nextMorsel = new AtomicInteger();
+
+    /**
+     * @param buffer the mapped data file.
+     * @param morselSize the approximate number of bytes of a morsel, a morsel is extended to the end of its last line.
+     */
+    public MorselSource(ByteBuffer buffer, int morselSize) {
+        List<Integer> starts = new ArrayList<>();
+        int limit = buffer.limit();
+        int start = 0;
+        while (start < limit) {
+            starts.add(start);
+            int end = (int) Math.min((long) start + Math.max(1, morselSize), limit);
+            while (end < limit && buffer.get(end - 1) != '\n')
+                end++;
+            start = end;
+        }
+        this.boundaries = new int[starts.size() + 1];
+        for (int i = 0; i < starts.size(); i++)
+            this.boundaries[i] = starts.get(i);
+        this.boundaries[starts.size()] = limit;
+    }
+
+    /**
+     * @return the index of the next morsel to be scanned, or -1 if all morsels have been handed out.
+     */
+    public int next() {
+        int morsel = this.nextMorsel.getAndIncrement();
+        return morsel < this.size() ? morsel : -1;
+    }
+
+    /**
+     * Hand out the morsels again from the first one.
+     */
+    public void reset() {
+        this.nextMorsel.set(0);
+    }
+
+    /**
+     * @return the number of morsels.
+     */
+    public int size() {
+        return this.boundaries.length - 1;
+    }
+
+    /**
+     * @param morsel the index of morsel.
+     * @return the offset of the first line of morsel.
+     */
+    public int getStart(int morsel) {
+        return this.boundaries[morsel];
+    }
+
+    /**
+     * @param morsel the index of morsel.
+     * @return the offset after the last line of morsel.
+     */
+    public int getEnd(int morsel) {
+        return this.boundaries[morsel + 1];
+    }
+}
@@ -2,6 +2,7 @@ package ed.inf.adbs.minibase.operator;
 
 import java.io.PrintWriter;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
 
 /**
@@ -15,9 +16,15 @@ public abstract class Operator {
      */
     protected List<String> variableMask = new ArrayList<>();
 
+    /**
+     * The maximum number of rows in the batches returned by {@link #getNextBatch()}.
+     */
+    public static int batchSize = TupleBatch.DEFAULT_CAPACITY;
+
     /**
      * Dump the tuples of the current query plan.
-     * This method will iteratively call the {@link Operator#getNextTuple()} until reach the end.
+     * This method will iteratively call the {@link Operator#getNextBatch()} until reach the end,
+     * operators that only implement {@link Operator#getNextTuple()} are adapted by the default {@code getNextBatch()}.
      * The resulted tuples will be printed into specified file or console, depending on the input parameter.
      * @param outputFile the path to output file; if provided as {@code null}, this method will output to the default console.
      */
@@ -32,21 +39,24 @@ public abstract class Operator {
             // use this flag to let the print of later lines to begin with a '\n' token
             // (the purpose is to remove the empty line at the end occurred when the print operations are all PrintWriter.println() )
 
-            Tuple nextTuple = this.getNextTuple();
-            while (nextTuple != null) {
-                if (writer == null) {
-                    System.out.println(nextTuple);
-                } else {
-                    if (isFirstLine) {
-                        // if the current tuple is the first line of output, print it without modification
-                        writer.print(nextTuple.toString());
-                        isFirstLine = false;
+            TupleBatch nextBatch = this.getNextBatch();
+            while (nextBatch != null) {
+                for (int i = 0; i < nextBatch.size(); i++) {
+                    String line = nextBatch.rowToString(nextBatch.getRowIndex(i));
+                    if (writer == null) {
+                        System.out.println(line);
                     } else {
-                        // when the output file already has some lines, use '\n' to start a new line and then print this tuple
-                        writer.print("\n" + nextTuple.toString());
+                        if (isFirstLine) {
+                            // if the current tuple is the first line of output, print it without modification
+                            writer.print(line);
+                            isFirstLine = false;
+                        } else {
+                            // when the output file already has some lines, use '\n' to start a new line and then print this tuple
+                            writer.print("\n" + line);
+                        }
                     }
                 }
-                nextTuple = this.getNextTuple();
+                nextBatch = this.getNextBatch();
             }
 
             if (writer!=null)
@@ -64,6 +74,15 @@ public abstract class Operator {
      */
     public abstract void reset();
 
+    /**
+     * Release the resources held by the operator and its children (open files, spill files, worker threads).
+     * The operators release them on their own once their output is exhausted, this method is for a plan abandoned
+     * before its end (e.g. when the output cannot be written). The operator must be reset before it is read again.
+     * The default implementation does nothing, it is overridden by the operators with resources or child operators.
+     */
+    public void close() {
+    }
+
     /**
      * Call this method to get the next tuple of the operator output.
      * This method will be overridden by all sub-classes.
@@ -71,6 +90,55 @@ public abstract class Operator {
      */
     public abstract Tuple getNextTuple();
 
+    /**
+     * Call this method to get the next batch of output tuples, in column-oriented form.
+     * The default implementation adapts {@link Operator#getNextTuple()}, see {@link #collectBatch()}.
+     * Operators that can process batches natively override this method.
+     * Notice: between two {@link #reset()} calls, an operator should be consumed either by tuples or by batches, not both.
+     * @return the next batch (which has at least one selected row), or {@code null} if the operator reaches the end.
+     */
+    public TupleBatch getNextBatch() {
+        return this.collectBatch();
+    }
+
+    /**
+     * Adapt the tuple-at-a-time interface into batches: collect up to {@link #batchSize} tuples from {@link #getNextTuple()}.
+     * This is the default {@link #getNextBatch()}, sub-classes may call it to opt out of a batch implementation inherited from their super class.
+     * @return the next batch, or {@code null} if the operator reaches the end.
+     */
+    protected final TupleBatch collectBatch() {
+        Tuple nextTuple = this.getNextTuple();
+        if (nextTuple == null)
+            return null;
+        TupleBatch batch = new TupleBatch(nextTuple.size(), batchSize);
+        batch.addTuple(nextTuple);
+        while (!batch.isFull() && (nextTuple = this.getNextTuple()) != null)
+            batch.addTuple(nextTuple);
+        return batch;
+    }
+
+    /**
+     * Choose the columns of a relational atom emitted by a scan operator (projection pushdown).
+     * A column is emitted if its variable is one of the output variables, a variable repeated in the atom is emitted once.
+     * @param atomVariables the variable of each column of the atom, {@code null} for a column bound to no variable.
+     * @param outputVariables the variables needed by the parent operators, or {@code null} to emit every column.
+     * @return the indices of emitted columns in ascending order, or {@code null} if every column is emitted.
+     */
+    protected static int[] selectOutputColumns(List<String> atomVariables, Collection<String> outputVariables) {
+        if (outputVariables == null)
+            return null;
+        List<Integer> columns = new ArrayList<>();
+        for (int c = 0; c < atomVariables.size(); c++) {
+            String variable = atomVariables.get(c);
+            if (variable != null && outputVariables.contains(variable) && atomVariables.indexOf(variable) == c)
+                columns.add(c);
+        }
+        int[] result = new int[columns.size()];
+        for (int i = 0; i < result.length; i++)
+            result[i] = columns.get(i);
+        return result;
+    }
+
     /**
      * Get the variable mask of current query plan node.
      * The variable mask helps the alignment of variables in new operator with the variables in output tuples of current operator.
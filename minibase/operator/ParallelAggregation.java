@@ -0,0 +1,303 @@
+package ed.inf.adbs.minibase.operator;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The hash aggregation of SUM (and of the row counts needed by AVG) run by the workers of a {@link ParallelOperator}.
+ *
+ * Each worker pre-aggregates the rows it produces into its own tables, so no lock is taken per row:
+ *      (1) the group values of a row are hashed, and the high bits of hash choose one of {@link #PARTITION_COUNT} partitions;
+ *      (2) each partition of a worker is an open-addressing hash table of primitive group values,
+ *          with the partial sum, the row count and the position of the first row of each group;
+ *      (3) if a worker holds more groups than the memory budget, all its partial groups are written into one spill file
+ *          per partition and its tables are cleared.
+ * Once all workers are done, the partitions are merged concurrently: a partition only holds the groups of its hash range,
+ * so the partial groups of the same group from all workers (in memory or spilled) meet in the same merge task.
+ * The merged groups are returned in the order of their first rows in the serial order of the child.
+ */
+public class ParallelAggregation {
+
+    /**
+     * The default number of groups a worker keeps in memory.
+     */
+    public static final int DEFAULT_MEMORY_BUDGET = 100000;
+
+    private static final int PARTITION_BITS = 4;
+    public static final int PARTITION_COUNT = 1 << PARTITION_BITS;
+
+    private final int groupWidth;
+    private final int memoryBudget;
+    private final Worker[] workers;
+    private boolean[] groupStringColumns = null;
+    // the column types of group values, known once a worker has seen a batch
+
+    /**
+     * The groups of a partition in an open-addressing hash table:
+     * group g has the values {@code keys[g * groupWidth ... (g + 1) * groupWidth - 1]}, the sum {@code sums[g]},
+     * the row count {@code counts[g]} and the position of its first row {@code firstPositions[g]}.
+     */
+    static class GroupTable {
+        private final int groupWidth;
+        int size = 0;
+        int[] keys;
+        int[] hashes;
+        int[] sums;
+        int[] counts;
+        long[] firstPositions;
+        private int[] slots = new int[16];
+        // the hash table, each slot stores (group + 1), 0 means empty
+
+        GroupTable(int groupWidth) {
+            this.groupWidth = groupWidth;
+            this.keys = new int[8 * groupWidth];
+            this.hashes = new int[8];
+            this.sums = new int[8];
+            this.counts = new int[8];
+            this.firstPositions = new long[8];
+        }
+
+        /**
+         * Add a partial aggregation to the group with the given values, the group is created if it is new.
+         * @param key the group values, only read.
+         * @param keyOffset the offset of group values in {@code key}.
+         * @param hash the hash of group values.
+         * @param sum the partial sum.
+         * @param count the partial row count.
+         * @param firstPosition the position of the first row of partial aggregation.
+         */
+        void add(int[] key, int keyOffset, int hash, int sum, int count, long firstPosition) {
+            int mask = this.slots.length - 1;
+            int slot = hash & mask;
+            while (this.slots[slot] != 0) {
+                int g = this.slots[slot] - 1;
+                if (this.hashes[g] == hash && this.matches(g, key, keyOffset)) {
+                    this.sums[g] += sum;
+                    this.counts[g] += count;
+                    this.firstPositions[g] = Math.min(this.firstPositions[g], firstPosition);
+                    return;
+                }
+                slot = (slot + 1) & mask;
+            }
+            int g = this.size++;
+            if (g == this.sums.length) {
+                int capacity = g * 2;
+                this.keys = Arrays.copyOf(this.keys, capacity * this.groupWidth);
+                this.hashes = Arrays.copyOf(this.hashes, capacity);
+                this.sums = Arrays.copyOf(this.sums, capacity);
+                this.counts = Arrays.copyOf(this.counts, capacity);
+                this.firstPositions = Arrays.copyOf(this.firstPositions, capacity);
+            }
+            System.arraycopy(key, keyOffset, this.keys, g * this.groupWidth, this.groupWidth);
+            this.hashes[g] = hash;
+            this.sums[g] = sum;
+            this.counts[g] = count;
+            this.firstPositions[g] = firstPosition;
+            this.slots[slot] = g + 1;
+            if (this.size * 2 > this.slots.length)
+                this.rehash();
+        }
+
+        private boolean matches(int g, int[] key, int keyOffset) {
+            int offset = g * this.groupWidth;
+            for (int c = 0; c < this.groupWidth; c++)
+                if (this.keys[offset + c] != key[keyOffset + c])
+                    return false;
+            return true;
+        }
+
+        private void rehash() {
+            this.slots = new int[this.slots.length * 2];
+            int mask = this.slots.length - 1;
+            for (int g = 0; g < this.size; g++) {
+                int slot = this.hashes[g] & mask;
+                while (this.slots[slot] != 0)
+                    slot = (slot + 1) & mask;
+                this.slots[slot] = g + 1;
+            }
+        }
+
+        /**
+         * Remove all groups, keeping the allocated arrays.
+         */
+        void clear() {
+            this.size = 0;
+            Arrays.fill(this.slots, 0);
+        }
+    }
+
+    /**
+     * The thread-local state of a worker.
+     */
+    private class Worker {
+        final GroupTable[] partitions = new GroupTable[PARTITION_COUNT];
+        int groupCount = 0;
+        TupleSpillFile[] spillFiles = null;
+        // the partial groups written to disk, one file per partition, null if the worker has not spilled
+        final int[] key = new int[groupWidth];
+        // the group values of the current row
+
+        Worker() {
+            for (int p = 0; p < PARTITION_COUNT; p++)
+                this.partitions[p] = new GroupTable(groupWidth);
+        }
+
+        /**
+         * Write every partial group into the spill file of its partition, then clear the tables.
+         * Each partial group is stored as a tuple: the group values, the sum, the row count and the two halves of the first position.
+         */
+        void spill() {
+            if (this.spillFiles == null) {
+                this.spillFiles = new TupleSpillFile[PARTITION_COUNT];
+                for (int p = 0; p < PARTITION_COUNT; p++)
+                    this.spillFiles[p] = new TupleSpillFile("Aggregation");
+            }
+            boolean[] stringColumns = Arrays.copyOf(groupStringColumns, groupWidth + 4);
+            for (int p = 0; p < PARTITION_COUNT; p++) {
+                GroupTable table = this.partitions[p];
+                for (int g = 0; g < table.size; g++) {
+                    int[] values = new int[groupWidth + 4];
+                    System.arraycopy(table.keys, g * groupWidth, values, 0, groupWidth);
+                    values[groupWidth] = table.sums[g];
+                    values[groupWidth + 1] = table.counts[g];
+                    values[groupWidth + 2] = (int) (table.firstPositions[g] >>> 32);
+                    values[groupWidth + 3] = (int) table.firstPositions[g];
+                    this.spillFiles[p].write(new Tuple("Aggregation", values, stringColumns));
+                }
+                table.clear();
+            }
+            this.groupCount = 0;
+        }
+    }
+
+    /**
+     * @param groupWidth the number of group values.
+     * @param parallelism the number of workers.
+     * @param memoryBudget the maximum number of groups a worker keeps in memory before spilling.
+     */
+    public ParallelAggregation(int groupWidth, int parallelism, int memoryBudget) {
+        this.groupWidth = groupWidth;
+        this.memoryBudget = Math.max(1, memoryBudget);
+        this.workers = new ParallelAggregation.Worker[parallelism];
+    }
+
+    /**
+     * Pre-aggregate the rows of a batch into the tables of a worker, called on the worker thread.
+     * @param worker the index of worker.
+     * @param position the position of the first batch row in the serial order.
+     * @param batch the batch.
+     * @param groupColumns the columns of group values in the batch.
+     * @param aggColumn the column of aggregated values in the batch.
+     */
+    public void add(int worker, long position, TupleBatch batch, int[] groupColumns, int aggColumn) {
+        Worker state = this.workers[worker];
+        if (state == null) {
+            state = new Worker();
+            this.workers[worker] = state;
+            synchronized (this) {
+                if (this.groupStringColumns == null) {
+                    boolean[] types = new boolean[this.groupWidth];
+                    for (int c = 0; c < this.groupWidth; c++)
+                        types[c] = batch.isStringColumn(groupColumns[c]);
+                    this.groupStringColumns = types;
+                }
+            }
+        }
+        int[] key = state.key;
+        for (int i = 0; i < batch.size(); i++) {
+            int row = batch.getRowIndex(i);
+            for (int c = 0; c < this.groupWidth; c++)
+                key[c] = batch.getValue(groupColumns[c], row);
+            int hash = RowKey.hash(key, this.groupWidth);
+            GroupTable table = state.partitions[hash >>> (32 - PARTITION_BITS)];
+            int before = table.size;
+            table.add(key, 0, hash, batch.getValue(aggColumn, row), 1, position + i);
+            state.groupCount += table.size - before;
+            if (state.groupCount >= this.memoryBudget)
+                state.spill();
+        }
+    }
+
+    /**
+     * Merge the partial groups of all workers, one task per partition run by {@code parallelism} threads.
+     * @param parallelism the number of threads merging the partitions.
+     * @return the merged groups in the order of their first rows.
+     */
+    public List<Group> merge(int parallelism) {
+        GroupTable[] merged = new GroupTable[PARTITION_COUNT];
+        List<Runnable> tasks = new ArrayList<>();
+        for (int p = 0; p < PARTITION_COUNT; p++) {
+            int partition = p;
+            tasks.add(() -> merged[partition] = this.mergePartition(partition));
+        }
+        ParallelOperator.runAll(tasks, parallelism);
+
+        List<Group> groups = new ArrayList<>();
+        for (GroupTable table : merged)
+            for (int g = 0; g < table.size; g++)
+                groups.add(new Group(Arrays.copyOfRange(table.keys, g * this.groupWidth, (g + 1) * this.groupWidth),
+                        table.sums[g], table.counts[g], table.firstPositions[g]));
+        groups.sort((group1, group2) -> Long.compare(group1.firstPosition, group2.firstPosition));
+        return groups;
+    }
+
+    private GroupTable mergePartition(int partition) {
+        GroupTable merged = new GroupTable(this.groupWidth);
+        for (Worker worker : this.workers) {
+            if (worker == null)
+                continue;
+            GroupTable table = worker.partitions[partition];
+            for (int g = 0; g < table.size; g++)
+                merged.add(table.keys, g * this.groupWidth, table.hashes[g], table.sums[g], table.counts[g],
+                        table.firstPositions[g]);
+            if (worker.spillFiles == null)
+                continue;
+            TupleSpillFile spillFile = worker.spillFiles[partition];
+            spillFile.openReader();
+            Tuple tuple;
+            while ((tuple = spillFile.read()) != null) {
+                int[] values = tuple.getValues();
+                long firstPosition = ((long) values[this.groupWidth + 2] << 32) | (values[this.groupWidth + 3] & 0xFFFFFFFFL);
+                merged.add(values, 0, RowKey.hash(values, this.groupWidth), values[this.groupWidth],
+                        values[this.groupWidth + 1], firstPosition);
+            }
+            spillFile.delete();
+        }
+        return merged;
+    }
+
+    /**
+     * @return the column types of group values, or {@code null} if no batch has been aggregated.
+     */
+    public boolean[] getGroupStringColumns() {
+        return this.groupStringColumns;
+    }
+
+    /**
+     * @return {@code true} if some worker has spilled partial groups to disk.
+     */
+    public boolean hasSpilled() {
+        for (Worker worker : this.workers)
+            if (worker != null && worker.spillFiles != null)
+                return true;
+        return false;
+    }
+
+    /**
+     * A merged group.
+     */
+    public static class Group {
+        public final int[] key;
+        public final int sum;
+        public final int count;
+        public final long firstPosition;
+
+        Group(int[] key, int sum, int count, long firstPosition) {
+            this.key = key;
+            this.sum = sum;
+            this.count = count;
+            this.firstPosition = firstPosition;
+        }
+    }
+}
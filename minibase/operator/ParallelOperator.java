@@ -0,0 +1,562 @@
+package ed.inf.adbs.minibase.operator;
+
+import ed.inf.adbs.minibase.base.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * Run a left-deep plan of scans and hash joins on several worker threads (morsel-driven parallelism).
+ * Each worker has its own copy of the plan, the leftmost scan of every copy reads the morsels of the same data file
+ * handed out by a {@link MorselSource}, and each hash join probes the hash table of its right child built once and
+ * shared by all copies ({@link HashJoinOperator.SharedBuild}). The output of the plan is the union of the outputs of all
+ * morsels, i.e. the same tuples as the serial plan.
+ *
+ * The output is consumed in one of two ways:
+ *      (1) through the {@link Operator} interface, the workers run in the background and put their batches into a bounded
+ *          queue (waiting when it is full), the batches are returned as they come, or in morsel order (the order of
+ *          a serial scan of the leftmost relation) if the order is to be preserved. In that case the batches of the later
+ *          morsels are buffered until their turn, and a worker does not start a morsel more than
+ *          {@link #MORSELS_AHEAD_PER_WORKER} morsels per worker ahead of the next one to be returned;
+ *      (2) by {@link #execute}, the batches are handed to a consumer on the worker threads, e.g. the thread-local
+ *          aggregation of {@link AggregateOperator}.
+ *
+ * Only the plans whose left spine is made of {@link HashJoinOperator}s above a {@link MappedScanOperator} are run in parallel,
+ * see {@link #parallelize}.
+ */
+public class ParallelOperator extends Operator {
+
+    /**
+     * Receive the batches produced by the workers, called on the worker threads.
+     */
+    public interface BatchConsumer {
+        /**
+         * @param worker the index of worker producing the batch.
+         * @param position the position of the first batch row in the serial order:
+         *                 the index of morsel in the high 32 bits, and the number of rows output before in the morsel.
+         * @param batch the batch.
+         */
+        void accept(int worker, long position, TupleBatch batch);
+
+        /**
+         * Called after all batches of a morsel have been accepted.
+         * @param worker the index of worker.
+         * @param morsel the index of morsel.
+         */
+        default void finishMorsel(int worker, int morsel) {
+        }
+
+        /**
+         * Called before the first batch of a morsel is produced.
+         * @param worker the index of worker.
+         * @param morsel the index of morsel.
+         */
+        default void startMorsel(int worker, int morsel) {
+        }
+    }
+
+    /**
+     * The number of batches per worker held by the output queue, before the workers wait for the batches to be returned.
+     */
+    public static final int QUEUE_CAPACITY_PER_WORKER = 4;
+
+    /**
+     * The number of morsels per worker that may be started ahead of the next morsel to be returned in morsel order.
+     */
+    public static final int MORSELS_AHEAD_PER_WORKER = 2;
+
+    private final List<Operator> workerPlans;
+    private final List<MappedScanOperator> workerScans;
+    // the copy of plan run by each worker, and its leftmost scan
+    private final MorselSource morsels;
+    private final boolean preserveOrder;
+
+    private ExecutorService pool = null;
+    private volatile boolean cancelled = false;
+    private BlockingQueue<MorselOutput> outputQueue = null;
+    private final Map<Integer, Deque<TupleBatch>> bufferedMorsels = new HashMap<>();
+    private final Set<Integer> finishedMorsels = new HashSet<>();
+    private int returnedMorsels = 0;
+    // the state of the background execution consumed by getNextBatch(): the batches of the later morsels in morsel order,
+    // the morsels whose batches have all been buffered, and the number of morsels whose batches have all been returned
+    private final Object morselWindow = new Object();
+    // guards returnedMorsels, the workers waiting for their turn are woken up on it
+
+    private TupleBatch currentBatch = null;
+    private int currentIndex = 0;
+    // the batch whose rows are returned by getNextTuple()
+
+    /**
+     * A batch of a morsel, the end of a morsel (without batch), or the failure of a worker.
+     */
+    private static class MorselOutput {
+        final int morsel;
+        final TupleBatch batch;
+        final Throwable error;
+
+        MorselOutput(int morsel, TupleBatch batch, Throwable error) {
+            this.morsel = morsel;
+            this.batch = batch;
+            this.error = error;
+        }
+    }
+
+    private ParallelOperator(List<Operator> workerPlans, List<MappedScanOperator> workerScans, MorselSource morsels,
+                             boolean preserveOrder) {
+        this.workerPlans = workerPlans;
+        this.workerScans = workerScans;
+        this.morsels = morsels;
+        this.preserveOrder = preserveOrder;
+        this.variableMask = workerPlans.get(0).getVariableMask();
+    }
+
+    /**
+     * Build a plan to be run on several workers.
+     * @param planBuilder builds a new copy of the plan each time it is called.
+     * @param parallelism the number of workers.
+     * @param morselSize the approximate number of bytes of a morsel.
+     * @param preserveOrder whether the output batches are returned in the order of a serial scan of the leftmost relation.
+     * @return a {@link ParallelOperator} running the copies of plan, or a single copy of plan if it cannot be run in parallel:
+     *      its left spine is not made of hash joins above a memory-mapped scan, or the leftmost file is a single morsel.
+     */
+    public static Operator parallelize(Supplier<Operator> planBuilder, int parallelism, int morselSize, boolean preserveOrder) {
+        Operator plan = planBuilder.get();
+        MappedScanOperator scan = leftmostScan(plan);
+        if (parallelism <= 1 || scan == null || scan.getBuffer() == null)
+            return plan;
+        MorselSource morsels = new MorselSource(scan.getBuffer(), morselSize);
+        if (morsels.size() <= 1)
+            return plan;
+
+        List<Operator> plans = new ArrayList<>();
+        List<MappedScanOperator> scans = new ArrayList<>();
+        plans.add(plan);
+        scans.add(scan);
+        for (int w = 1; w < parallelism; w++) {
+            Operator copy = planBuilder.get();
+            plans.add(copy);
+            scans.add(leftmostScan(copy));
+        }
+        // the joins at the same depth of the left spine share the hash table of their right child
+        Operator join = plan;
+        int depth = 0;
+        while (join instanceof HashJoinOperator) {
+            HashJoinOperator.SharedBuild sharedBuild = new HashJoinOperator.SharedBuild();
+            for (Operator copy : plans)
+                spineJoin(copy, depth).shareBuild(sharedBuild);
+            join = ((HashJoinOperator) join).leftChild;
+            depth++;
+        }
+        return new ParallelOperator(plans, scans, morsels, preserveOrder);
+    }
+
+    /**
+     * @return the leftmost scan of a plan, or {@code null} if the left spine is not made of hash joins above a {@link MappedScanOperator}.
+     */
+    static MappedScanOperator leftmostScan(Operator plan) {
+        while (plan instanceof HashJoinOperator)
+            plan = ((HashJoinOperator) plan).leftChild;
+        return plan instanceof MappedScanOperator ? (MappedScanOperator) plan : null;
+    }
+
+    private static HashJoinOperator spineJoin(Operator plan, int depth) {
+        for (int d = 0; d < depth; d++)
+            plan = ((HashJoinOperator) plan).leftChild;
+        return (HashJoinOperator) plan;
+    }
+
+    /**
+     * @return the number of workers.
+     */
+    public int getParallelism() {
+        return this.workerPlans.size();
+    }
+
+    /**
+     * Run all the morsels on the workers and hand the output batches to a consumer, blocking until all morsels are done.
+     * @param consumer the consumer of batches, called concurrently by the workers.
+     */
+    public void execute(BatchConsumer consumer) {
+        this.stop();
+        this.cancelled = false;
+        this.morsels.reset();
+        ExecutorService pool = newPool(this.workerPlans.size());
+        List<Future<?>> futures = new ArrayList<>();
+        for (int w = 0; w < this.workerPlans.size(); w++) {
+            int worker = w;
+            futures.add(pool.submit(() -> this.runWorker(worker, consumer)));
+        }
+        try {
+            for (Future<?> future : futures)
+                future.get();
+        } catch (ExecutionException e) {
+            this.cancelled = true;
+            throw new RuntimeException("Parallel worker failed", e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while waiting for parallel workers", e);
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * Scan morsels until there is none left: rewind the plan of worker on each morsel and drain it.
+     */
+    private void runWorker(int worker, BatchConsumer consumer) {
+        Operator plan = this.workerPlans.get(worker);
+        MappedScanOperator scan = this.workerScans.get(worker);
+        int morsel;
+        while (!this.cancelled && (morsel = this.morsels.next()) >= 0) {
+            consumer.startMorsel(worker, morsel);
+            if (this.cancelled)
+                break;
+            scan.setRange(this.morsels.getStart(morsel), this.morsels.getEnd(morsel));
+            plan.reset();
+            long position = (long) morsel << 32;
+            TupleBatch batch = plan.getNextBatch();
+            while (batch != null && !this.cancelled) {
+                consumer.accept(worker, position, batch);
+                position += batch.size();
+                batch = plan.getNextBatch();
+            }
+            consumer.finishMorsel(worker, morsel);
+        }
+    }
+
+    /**
+     * Run independent tasks on a pool of threads, blocking until all of them are done.
+     * @param tasks the tasks.
+     * @param threads the number of threads.
+     */
+    public static void runAll(List<Runnable> tasks, int threads) {
+        ExecutorService pool = newPool(Math.max(1, threads));
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (Runnable task : tasks)
+                futures.add(pool.submit(task));
+            for (Future<?> future : futures)
+                future.get();
+        } catch (ExecutionException e) {
+            throw new RuntimeException("Parallel task failed", e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while waiting for parallel tasks", e);
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    static ExecutorService newPool(int threads) {
+        return Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "minibase-worker");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Start the workers in the background, each batch and the end of each morsel are put into {@code this.outputQueue}.
+     * A worker interrupted while waiting (by {@link #stop()}) drops its output, the run is cancelled anyway.
+     */
+    private void start() {
+        this.cancelled = false;
+        this.morsels.reset();
+        this.outputQueue = new ArrayBlockingQueue<>(QUEUE_CAPACITY_PER_WORKER * this.workerPlans.size());
+        this.bufferedMorsels.clear();
+        this.finishedMorsels.clear();
+        this.returnedMorsels = 0;
+        this.pool = newPool(this.workerPlans.size());
+        BlockingQueue<MorselOutput> queue = this.outputQueue;
+        BatchConsumer consumer = new BatchConsumer() {
+            @Override
+            public void startMorsel(int worker, int morsel) {
+                if (preserveOrder)
+                    awaitMorselTurn(morsel);
+            }
+
+            @Override
+            public void accept(int worker, long position, TupleBatch batch) {
+                put(queue, new MorselOutput((int) (position >>> 32), batch, null));
+            }
+
+            @Override
+            public void finishMorsel(int worker, int morsel) {
+                put(queue, new MorselOutput(morsel, null, null));
+            }
+        };
+        for (int w = 0; w < this.workerPlans.size(); w++) {
+            int worker = w;
+            this.pool.submit(() -> {
+                try {
+                    this.runWorker(worker, consumer);
+                } catch (Throwable e) {
+                    put(queue, new MorselOutput(-1, null, e));
+                }
+            });
+        }
+    }
+
+    /**
+     * Put an output into the queue, waiting while it is full.
+     */
+    private static void put(BlockingQueue<MorselOutput> queue, MorselOutput output) {
+        try {
+            queue.put(output);
+        } catch (InterruptedException e) {
+            // cancelled while waiting for a full queue
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Wait until a morsel is close enough to the next morsel to be returned in morsel order,
+     * so that at most {@link #MORSELS_AHEAD_PER_WORKER} morsels per worker are buffered.
+     * @param morsel the index of morsel about to be started.
+     */
+    private void awaitMorselTurn(int morsel) {
+        int window = MORSELS_AHEAD_PER_WORKER * this.workerPlans.size();
+        synchronized (this.morselWindow) {
+            try {
+                while (!this.cancelled && morsel >= this.returnedMorsels + window)
+                    this.morselWindow.wait();
+            } catch (InterruptedException e) {
+                // cancelled while waiting for the consumer
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Cancel the background workers, if any, and wait for them to stop.
+     */
+    private void stop() {
+        if (this.pool == null)
+            return;
+        this.cancelled = true;
+        this.pool.shutdownNow();
+        try {
+            this.pool.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        this.pool = null;
+        this.outputQueue = null;
+    }
+
+    /**
+     * Cancel the running workers, the next call of {@link #getNextBatch()} starts the parallel plan again.
+     */
+    @Override
+    public void reset() {
+        this.stop();
+        this.bufferedMorsels.clear();
+        this.finishedMorsels.clear();
+        this.returnedMorsels = 0;
+        this.currentBatch = null;
+        this.currentIndex = 0;
+    }
+
+    /**
+     * Cancel the running workers, and release the resources of the copies of plan.
+     */
+    @Override
+    public void close() {
+        this.stop();
+        for (Operator plan : this.workerPlans)
+            plan.close();
+    }
+
+    /**
+     * @return the next output tuple, taken from the batches of {@link #getNextBatch()}.
+     */
+    @Override
+    public Tuple getNextTuple() {
+        while (this.currentBatch == null || this.currentIndex >= this.currentBatch.size()) {
+            this.currentBatch = this.getNextBatch();
+            this.currentIndex = 0;
+            if (this.currentBatch == null)
+                return null;
+        }
+        return this.currentBatch.getTuple(this.currentBatch.getRowIndex(this.currentIndex++), "Parallel");
+    }
+
+    /**
+     * Get the next batch produced by the workers, the workers are started by the first call.
+     * @return the next batch, or {@code null} once all morsels have been returned.
+     */
+    @Override
+    public TupleBatch getNextBatch() {
+        if (this.pool == null && this.returnedMorsels == 0)
+            this.start();
+        while (true) {
+            if (this.returnedMorsels >= this.morsels.size()) {
+                this.stop();
+                return null;
+            }
+            if (this.preserveOrder) {
+                // the batches of the next morsel in morsel order may have been buffered while an earlier morsel was returned
+                Deque<TupleBatch> buffered = this.bufferedMorsels.get(this.returnedMorsels);
+                if (buffered != null && !buffered.isEmpty())
+                    return buffered.poll();
+                if (this.finishedMorsels.remove(this.returnedMorsels)) {
+                    this.bufferedMorsels.remove(this.returnedMorsels);
+                    this.finishMorsel();
+                    continue;
+                }
+            }
+            MorselOutput output = this.takeOutput();
+            if (output.batch == null) {
+                if (this.preserveOrder)
+                    this.finishedMorsels.add(output.morsel);
+                else
+                    this.finishMorsel();
+            } else if (!this.preserveOrder || output.morsel == this.returnedMorsels) {
+                return output.batch;
+            } else {
+                this.bufferedMorsels.computeIfAbsent(output.morsel, m -> new ArrayDeque<>()).add(output.batch);
+            }
+        }
+    }
+
+    /**
+     * Count a morsel whose batches have all been returned, and wake up the workers waiting for their turn.
+     */
+    private void finishMorsel() {
+        synchronized (this.morselWindow) {
+            this.returnedMorsels++;
+            this.morselWindow.notifyAll();
+        }
+    }
+
+    /**
+     * Wait for the next output of the workers.
+     */
+    private MorselOutput takeOutput() {
+        try {
+            MorselOutput output = this.outputQueue.take();
+            if (output.error != null) {
+                this.stop();
+                throw new RuntimeException("Parallel worker failed", output.error);
+            }
+            return output;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            this.stop();
+            throw new RuntimeException("Interrupted while waiting for parallel workers", e);
+        }
+    }
+
+    /**
+     * Unit test of ParallelOperator, output is printed to the console.
+     * @param args Command line inputs, can be empty.
+     */
+    public static void main(String[] args) {
+        DBCatalog dbc = DBCatalog.getInstance();
+        dbc.init("data/evaluation/db");
+        // small batches and morsels, so that the workers are still running when the first batch is returned
+        Operator.batchSize = 8;
+        int morselSize = 256;
+
+        // Test on query:   Q(x, y, z, u, w) :- R(x, y, z), R(u, y, w)
+        System.out.println("Testing query: Q(x, y, z, u, w) :- R(x, y, z), R(u, y, w)");
+        List<Term> queryAtomTerms1 = new ArrayList<>();
+        queryAtomTerms1.add(new Variable("x"));
+        queryAtomTerms1.add(new Variable("y"));
+        queryAtomTerms1.add(new Variable("z"));
+        RelationalAtom queryBodyAtomR1 = new RelationalAtom("R", queryAtomTerms1);
+
+        List<Term> queryAtomTerms2 = new ArrayList<>();
+        queryAtomTerms2.add(new Variable("u"));
+        queryAtomTerms2.add(new Variable("y"));
+        queryAtomTerms2.add(new Variable("w"));
+        RelationalAtom queryBodyAtomR2 = new RelationalAtom("R", queryAtomTerms2);
+
+        Supplier<Operator> joinBuilder = () -> new HashJoinOperator(
+                new MappedScanOperator(queryBodyAtomR1), new ScanOperator(queryBodyAtomR2), new ArrayList<>());
+        List<String> expected = readAll(joinBuilder.get());
+        Collections.sort(expected);
+        System.out.println("Serial plan: " + expected.size() + " tuples");
+
+        Operator parallelJoin = parallelize(joinBuilder, 3, morselSize, false);
+        System.out.println("Parallel plan: " + (parallelJoin instanceof ParallelOperator
+                ? ((ParallelOperator) parallelJoin).getParallelism() + " workers" : "not parallelized"));
+        List<String> output = readAll(parallelJoin);
+        Collections.sort(output);
+        System.out.println("Same tuples as the serial plan: " + output.equals(expected));
+
+        AtomicInteger executed = new AtomicInteger();
+        ((ParallelOperator) parallelJoin).execute((worker, position, batch) -> executed.addAndGet(batch.size()));
+        System.out.println("Tuples handed to the consumer by execute(): " + executed.get());
+
+        System.out.println("Testing scan of R in the serial order");
+        Supplier<Operator> scanBuilder = () -> new MappedScanOperator(queryBodyAtomR1);
+        List<String> ordered = readAll(parallelize(scanBuilder, 3, morselSize, true));
+        System.out.println("Same tuples in the same order as the serial scan: " + ordered.equals(readAll(scanBuilder.get())));
+
+        // the workers wait for a slow consumer instead of running through the whole relation
+        System.out.println("Testing a consumer that waits after the first tuple");
+        ParallelOperator orderedScan = (ParallelOperator) parallelize(scanBuilder, 3, morselSize, true);
+        List<String> slowOrdered = new ArrayList<>();
+        slowOrdered.add(orderedScan.getNextTuple().toString());
+        try {
+            Thread.sleep(200);
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+        System.out.println("Batches queued: " + orderedScan.outputQueue.size() + " (capacity " + QUEUE_CAPACITY_PER_WORKER * 3 + ")");
+        int maxBuffered = 0;
+        Tuple tuple = orderedScan.getNextTuple();
+        while (tuple != null) {
+            slowOrdered.add(tuple.toString());
+            maxBuffered = Math.max(maxBuffered, orderedScan.bufferedMorsels.size());
+            tuple = orderedScan.getNextTuple();
+        }
+        System.out.println("Most buffered morsels: " + maxBuffered + " of " + orderedScan.morsels.size()
+                + " (at most " + MORSELS_AHEAD_PER_WORKER * 3 + "), same order as the serial scan: " + slowOrdered.equals(ordered));
+        orderedScan.close();
+
+        // reset after the first batch, while the other morsels are being joined
+        System.out.println("Testing reset while the workers are running");
+        parallelJoin.reset();
+        parallelJoin.getNextBatch();
+        List<Thread> workers = new ArrayList<>();
+        for (Thread thread : Thread.getAllStackTraces().keySet())
+            if (thread.getName().equals("minibase-worker") && thread.isAlive())
+                workers.add(thread);
+        long start = System.currentTimeMillis();
+        parallelJoin.reset();
+        System.out.println("Live workers: " + workers.size()
+                + ", reset returned in " + (System.currentTimeMillis() - start) + " ms");
+        boolean stopped = true;
+        for (Thread thread : workers) {
+            try {
+                thread.join(1000);
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            }
+            stopped &= !thread.isAlive();
+        }
+        System.out.println("Workers stopped: " + stopped);
+        output = readAll(parallelJoin);
+        Collections.sort(output);
+        System.out.println("Read again after reset, same tuples as the serial plan: " + output.equals(expected));
+        parallelJoin.close();
+        Operator.batchSize = TupleBatch.DEFAULT_CAPACITY;
+    }
+
+    /**
+     * @return the output tuples of an operator as strings.
+     */
+    private static List<String> readAll(Operator operator) {
+        List<String> tuples = new ArrayList<>();
+        Tuple tuple = operator.getNextTuple();
+        while (tuple != null) {
+            tuples.add(tuple.toString());
+            tuple = operator.getNextTuple();
+        }
+        return tuples;
+    }
+}
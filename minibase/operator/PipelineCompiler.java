@@ -0,0 +1,417 @@
+package ed.inf.adbs.minibase.operator;
+
+import ed.inf.adbs.minibase.base.*;
+
+import javax.tools.*;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.io.StringWriter;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Generate and compile a {@link CompiledPipeline} for a query over a single relation, replacing the chain of
+ * scan, select and project (or SUM) operators by one loop over the bytes of the data file:
+ *      (1) the fields of a line are parsed column by column, the columns not used by the query are skipped;
+ *      (2) each condition between a column and a constant is checked inline right after its column is parsed,
+ *          as a comparison of ints or of bytes, and a failing line is skipped at once;
+ *      (3) the string fields are only encoded into the {@link StringDictionary} once the line passes, and the conditions
+ *          between two columns are then checked on the values;
+ *      (4) the output columns are written into the row of the {@link CompiledPipeline.Sink}, which is the
+ *          duplicate elimination of projection or the grouping of SUM (see {@link CompiledPipelineOperator}).
+ *
+ * The Java source of pipeline is compiled in memory by the system Java compiler ({@link ToolProvider#getSystemJavaCompiler()}).
+ * The constants of the conditions are not part of the source (they are bound to the pipeline instance), so the compiled
+ * classes are cached by the source text, i.e. by the shape of query, and a repeated query shape is not compiled again.
+ *
+ * Only the plans made of a single relational atom scanned from a CSV file in {@link DBCatalog.ScanMode#MAPPED} mode
+ * are supported. {@link #compile} returns {@code null} for any other plan (or if no Java compiler is available),
+ * then the query planner builds the operator tree as usual.
+ */
+public class PipelineCompiler {
+
+    private static final String CLASS_NAME_PLACEHOLDER = "$Pipeline$";
+    private static final String PACKAGE_NAME = "ed.inf.adbs.minibase.generated";
+
+    private static final Map<String, Class<? extends CompiledPipeline>> compiledClasses = new ConcurrentHashMap<>();
+    // the compiled pipeline classes, keyed by their source text (with the class name replaced by a placeholder)
+    private static final AtomicInteger classCount = new AtomicInteger();
+    private static volatile boolean compilerUnavailable = false;
+    // set once compiling has failed for lack of a Java compiler, then no compilation is attempted again
+
+    private final RelationalAtom atom;
+    private final List<ComparisonAtom> conditions;
+    private final RelationalAtom head;
+
+    private boolean[] stringColumns;
+    // the column types of the relation
+    private final Map<String, Integer> variableColumns = new HashMap<>();
+    // the first column of each variable of the atom
+    private int[] outputColumns;
+    // the column of each output value: the head variables, followed by the SUM argument for an aggregation query
+    private Sum sumTerm = null;
+
+    private final List<Integer> intConstants = new ArrayList<>();
+    private final List<byte[]> stringConstants = new ArrayList<>();
+    private final List<List<String>> columnChecks = new ArrayList<>();
+    // columnChecks.get(c) holds the Java expressions of the conditions between column c and a constant
+    private final List<String> rowChecks = new ArrayList<>();
+    // the Java expressions of the conditions checked after the string fields are encoded
+    private boolean[] parsedColumns;
+    private boolean[] encodedColumns;
+    // the columns whose fields are parsed, and the string columns encoded into the dictionary
+
+    private PipelineCompiler(RelationalAtom atom, List<ComparisonAtom> conditions, RelationalAtom head) {
+        this.atom = atom;
+        this.conditions = conditions;
+        this.head = head;
+        for (int c = 0; c < atom.getTerms().size(); c++)
+            this.columnChecks.add(null);
+    }
+
+    /**
+     * Build a compiled pipeline operator evaluating a query over a single relation.
+     * @param atom the relational atom of query body, whose terms are all variables.
+     * @param conditions the comparison atoms of query body.
+     * @param head the query head.
+     * @param distinct whether the duplicated output tuples have to be removed (ignored for a SUM query).
+     * @param memoryBudget the maximum number of distinct tuples kept in memory for the duplication check.
+     * @return the operator, or {@code null} if the query is not supported or the pipeline cannot be compiled.
+     */
+    public static Operator compile(RelationalAtom atom, List<ComparisonAtom> conditions, RelationalAtom head,
+                                   boolean distinct, int memoryBudget) {
+        DBCatalog dbc = DBCatalog.getInstance();
+        if (compilerUnavailable || !dbc.isMappedScan(atom.getName()))
+            return null;
+        PipelineCompiler compiler = new PipelineCompiler(atom, conditions, head);
+        String source = compiler.generate();
+        if (source == null)
+            return null;
+        Class<? extends CompiledPipeline> pipelineClass = compiledClasses.get(source);
+        if (pipelineClass == null) {
+            pipelineClass = compileSource(source);
+            if (pipelineClass == null)
+                return null;
+            compiledClasses.putIfAbsent(source, pipelineClass);
+        }
+
+        CompiledPipeline pipeline;
+        try {
+            pipeline = pipelineClass.getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException e) {
+            System.err.println("Failed to instantiate compiled pipeline " + pipelineClass.getName());
+            e.printStackTrace();
+            return null;
+        }
+        int[] ints = new int[compiler.intConstants.size()];
+        for (int i = 0; i < ints.length; i++)
+            ints[i] = compiler.intConstants.get(i);
+        pipeline.bind(ints, compiler.stringConstants.toArray(new byte[0][]), dbc.getDictionary());
+
+        String path = dbc.getRelationPath(atom.getName());
+        ByteBuffer buffer;
+        try (RandomAccessFile file = new RandomAccessFile(new File(path), "r")) {
+            buffer = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+        } catch (IOException e) {
+            System.out.println("Relation data file not found: " + path);
+            e.printStackTrace();
+            return null;
+        }
+        return new CompiledPipelineOperator(head, pipeline, buffer, compiler.outputStringColumns(),
+                compiler.sumTerm != null, distinct, memoryBudget);
+    }
+
+    /**
+     * @return the types of the output values written by the pipeline.
+     */
+    private boolean[] outputStringColumns() {
+        boolean[] types = new boolean[this.outputColumns.length];
+        for (int i = 0; i < types.length; i++)
+            types[i] = this.stringColumns[this.outputColumns[i]];
+        return types;
+    }
+
+    /**
+     * Generate the Java source of pipeline.
+     * @return the source, with {@link #CLASS_NAME_PLACEHOLDER} as class name; or {@code null} if the query is not supported.
+     */
+    private String generate() {
+        List<String> schema = DBCatalog.getInstance().getSchema(this.atom.getName());
+        if (schema == null || schema.size() < this.atom.getTerms().size())
+            return null;
+        int columnCount = this.atom.getTerms().size();
+        this.stringColumns = new boolean[columnCount];
+        this.parsedColumns = new boolean[columnCount];
+        this.encodedColumns = new boolean[columnCount];
+        for (int c = 0; c < columnCount; c++) {
+            Term term = this.atom.getTerms().get(c);
+            if (!(term instanceof Variable))
+                return null;
+            this.stringColumns[c] = !schema.get(c).equals("int");
+            this.variableColumns.putIfAbsent(((Variable) term).getName(), c);
+        }
+
+        // the output columns
+        List<Term> headTerms = this.head.getTerms();
+        this.outputColumns = new int[headTerms.size()];
+        for (int i = 0; i < headTerms.size(); i++) {
+            Term term = headTerms.get(i);
+            String variable;
+            if (term instanceof Variable)
+                variable = ((Variable) term).getName();
+            else if (term instanceof Sum && i == headTerms.size() - 1) {
+                this.sumTerm = (Sum) term;
+                variable = this.sumTerm.getVariable();
+            } else
+                return null;
+            Integer column = this.variableColumns.get(variable);
+            if (column == null)
+                return null;
+            this.outputColumns[i] = column;
+            this.parsedColumns[column] = true;
+            this.encodedColumns[column] = this.stringColumns[column];
+        }
+
+        // the conditions
+        for (ComparisonAtom compAtom : this.conditions) {
+            if (!this.addCondition(compAtom))
+                return null;
+        }
+
+        int lastColumn = -1;
+        for (int c = 0; c < columnCount; c++)
+            if (this.parsedColumns[c])
+                lastColumn = c;
+        if (lastColumn < 0)
+            return null;
+
+        StringBuilder source = new StringBuilder();
+        source.append("package ").append(PACKAGE_NAME).append(";\n\n");
+        source.append("import ed.inf.adbs.minibase.operator.CompiledPipeline;\n");
+        source.append("import java.nio.ByteBuffer;\n\n");
+        source.append("public final class ").append(CLASS_NAME_PLACEHOLDER).append(" extends CompiledPipeline {\n");
+        source.append("    @Override\n");
+        source.append("    public int run(ByteBuffer buffer, int pos, Sink sink) {\n");
+        source.append("        final int limit = buffer.limit();\n");
+        source.append("        final int[] ik = this.intConstants;\n");
+        source.append("        final byte[][] sk = this.stringConstants;\n");
+        source.append("        final int[] row = sink.row;\n");
+        source.append("        while (pos < limit) {\n");
+        for (int c = 0; c <= lastColumn; c++) {
+            source.append("            pos = skipSeparators(buffer, pos, limit);\n");
+            source.append("            if (pos >= limit || buffer.get(pos) == '\\n') { pos++; continue; }\n");
+            if (!this.parsedColumns[c]) {
+                source.append("            pos = skipField(buffer, pos, limit);\n");
+                continue;
+            }
+            if (this.stringColumns[c]) {
+                source.append("            final int s").append(c).append(" = pos;\n");
+                source.append("            pos = skipField(buffer, pos, limit);\n");
+                source.append("            final int l").append(c).append(" = pos - s").append(c).append(";\n");
+            } else {
+                source.append("            int i").append(c).append(" = 0;\n");
+                source.append("            for (byte b; pos < limit && isFieldByte(b = buffer.get(pos)); pos++) {\n");
+                source.append("                if (b > '9') throw invalidInt(pos);\n");
+                source.append("                i").append(c).append(" = i").append(c).append(" * 10 + (b - '0');\n");
+                source.append("            }\n");
+            }
+            if (this.columnChecks.get(c) != null)
+                appendCheck(source, this.columnChecks.get(c), "pos = skipLine(buffer, pos, limit); ");
+        }
+        source.append("            pos = skipLine(buffer, pos, limit);\n");
+        for (int c = 0; c <= lastColumn; c++)
+            if (this.encodedColumns[c])
+                source.append("            final int e").append(c).append(" = encode(buffer, s").append(c)
+                        .append(", l").append(c).append(");\n");
+        if (!this.rowChecks.isEmpty())
+            appendCheck(source, this.rowChecks, "");
+        for (int i = 0; i < this.outputColumns.length; i++)
+            source.append("            row[").append(i).append("] = ").append(this.value(this.outputColumns[i])).append(";\n");
+        source.append("            if (sink.emit()) return pos;\n");
+        source.append("        }\n");
+        source.append("        return pos;\n");
+        source.append("    }\n");
+        source.append("}\n");
+        return source.toString();
+    }
+
+    /**
+     * Append a test skipping to the next line unless all the checks hold.
+     * @param skipRest the statement moving {@code pos} past the rest of line, empty if the line has been read.
+     */
+    private static void appendCheck(StringBuilder source, List<String> checks, String skipRest) {
+        source.append("            if (!(").append(String.join(" && ", checks))
+                .append(")) { ").append(skipRest).append("continue; }\n");
+    }
+
+    /**
+     * @return the Java expression of the value of a column: the parsed int, or the dictionary code of a string field.
+     */
+    private String value(int column) {
+        return (this.stringColumns[column] ? "e" : "i") + column;
+    }
+
+    /**
+     * Translate a comparison atom into a Java expression, checked on a single column if it compares a column with a constant.
+     * @return {@code false} if a variable of the condition is not in the atom.
+     */
+    private boolean addCondition(ComparisonAtom compAtom) {
+        Term term1 = compAtom.getTerm1();
+        Term term2 = compAtom.getTerm2();
+        ComparisonOperator op = compAtom.getOp();
+        if (term1 instanceof Constant && term2 instanceof Variable) {
+            // 'constant op column' is checked as 'column reverse(op) constant'
+            Term swapped = term1;
+            term1 = term2;
+            term2 = swapped;
+            op = CompiledComparison.reverse(op);
+        }
+        if (term1 instanceof Variable) {
+            Integer column1 = this.variableColumns.get(((Variable) term1).getName());
+            if (column1 == null)
+                return false;
+            this.parsedColumns[column1] = true;
+            if (term2 instanceof Constant) {
+                if (this.columnChecks.get(column1) == null)
+                    this.columnChecks.set(column1, new ArrayList<>());
+                this.columnChecks.get(column1).add(this.constantCheck(column1, op, (Constant) term2));
+                return true;
+            }
+            Integer column2 = this.variableColumns.get(((Variable) term2).getName());
+            if (column2 == null)
+                return false;
+            this.parsedColumns[column2] = true;
+            if (this.stringColumns[column1] != this.stringColumns[column2]) {
+                this.rowChecks.add(fixedResult(op));
+            } else if (this.stringColumns[column1] && op != ComparisonOperator.EQ && op != ComparisonOperator.NEQ) {
+                this.encodedColumns[column1] = true;
+                this.encodedColumns[column2] = true;
+                this.rowChecks.add("dictionary.compare(" + this.value(column1) + ", " + this.value(column2) + ") "
+                        + javaOperator(op) + " 0");
+            } else {
+                this.encodedColumns[column1] |= this.stringColumns[column1];
+                this.encodedColumns[column2] |= this.stringColumns[column2];
+                this.rowChecks.add(this.value(column1) + " " + javaOperator(op) + " " + this.value(column2));
+            }
+            return true;
+        }
+        // two constants, the result is known at compile time
+        boolean isString1 = term1 instanceof StringConstant;
+        boolean isString2 = term2 instanceof StringConstant;
+        boolean result = CompiledComparison.compile(op, isString1, isString2)
+                .test(encodeConstant((Constant) term1), encodeConstant((Constant) term2));
+        this.rowChecks.add(String.valueOf(result));
+        return true;
+    }
+
+    private String constantCheck(int column, ComparisonOperator op, Constant constant) {
+        boolean isString = constant instanceof StringConstant;
+        if (isString != this.stringColumns[column])
+            return fixedResult(op);
+        if (isString) {
+            this.stringConstants.add(((StringConstant) constant).getValue().getBytes(StandardCharsets.US_ASCII));
+            return "compareField(buffer, s" + column + ", l" + column + ", sk[" + (this.stringConstants.size() - 1) + "]) "
+                    + javaOperator(op) + " 0";
+        }
+        this.intConstants.add(((IntegerConstant) constant).getValue());
+        return "i" + column + " " + javaOperator(op) + " ik[" + (this.intConstants.size() - 1) + "]";
+    }
+
+    private static int encodeConstant(Constant constant) {
+        if (constant instanceof IntegerConstant)
+            return ((IntegerConstant) constant).getValue();
+        return DBCatalog.getInstance().getDictionary().encode(((StringConstant) constant).getValue());
+    }
+
+    /**
+     * @return the result of comparing an int with a string: only '!=' holds.
+     */
+    private static String fixedResult(ComparisonOperator op) {
+        return String.valueOf(op == ComparisonOperator.NEQ);
+    }
+
+    private static String javaOperator(ComparisonOperator op) {
+        return op == ComparisonOperator.EQ ? "==" : op.toString();
+    }
+
+    /**
+     * Compile the source of a pipeline in memory and load the class.
+     * @param source the source, with {@link #CLASS_NAME_PLACEHOLDER} as class name.
+     * @return the class, or {@code null} if the source cannot be compiled.
+     */
+    private static Class<? extends CompiledPipeline> compileSource(String source) {
+        JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+        if (compiler == null) {
+            System.err.println("No Java compiler available, the pipelines are interpreted");
+            compilerUnavailable = true;
+            return null;
+        }
+        String simpleName = "Pipeline" + classCount.incrementAndGet();
+        String className = PACKAGE_NAME + "." + simpleName;
+        String classSource = source.replace(CLASS_NAME_PLACEHOLDER, simpleName);
+
+        Map<String, ByteArrayOutputStream> classBytes = new HashMap<>();
+        JavaFileObject sourceFile = new SimpleJavaFileObject(
+                URI.create("string:///" + className.replace('.', '/') + JavaFileObject.Kind.SOURCE.extension),
+                JavaFileObject.Kind.SOURCE) {
+            @Override
+            public CharSequence getCharContent(boolean ignoreEncodingErrors) {
+                return classSource;
+            }
+        };
+        StringWriter diagnostics = new StringWriter();
+        try (StandardJavaFileManager standardManager = compiler.getStandardFileManager(null, null, StandardCharsets.UTF_8)) {
+            JavaFileManager fileManager = new ForwardingJavaFileManager<JavaFileManager>(standardManager) {
+                @Override
+                public JavaFileObject getJavaFileForOutput(Location location, String name, JavaFileObject.Kind kind,
+                                                           FileObject sibling) {
+                    return new SimpleJavaFileObject(URI.create("mem:///" + name.replace('.', '/') + kind.extension), kind) {
+                        @Override
+                        public OutputStream openOutputStream() {
+                            ByteArrayOutputStream output = new ByteArrayOutputStream();
+                            classBytes.put(name, output);
+                            return output;
+                        }
+                    };
+                }
+            };
+            List<String> options = Arrays.asList("-classpath", System.getProperty("java.class.path"));
+            Boolean success = compiler.getTask(diagnostics, fileManager, null, options, null,
+                    Collections.singletonList(sourceFile)).call();
+            if (!Boolean.TRUE.equals(success)) {
+                System.err.println("Failed to compile pipeline, the query is interpreted:\n" + diagnostics);
+                return null;
+            }
+        } catch (IOException e) {
+            System.err.println("Failed to compile pipeline, the query is interpreted");
+            e.printStackTrace();
+            return null;
+        }
+
+        ClassLoader loader = new ClassLoader(CompiledPipeline.class.getClassLoader()) {
+            @Override
+            protected Class<?> findClass(String name) throws ClassNotFoundException {
+                ByteArrayOutputStream output = classBytes.get(name);
+                if (output == null)
+                    throw new ClassNotFoundException(name);
+                byte[] bytes = output.toByteArray();
+                return defineClass(name, bytes, 0, bytes.length);
+            }
+        };
+        try {
+            return loader.loadClass(className).asSubclass(CompiledPipeline.class);
+        } catch (ClassNotFoundException e) {
+            System.err.println("Failed to load compiled pipeline " + className);
+            e.printStackTrace();
+            return null;
+        }
+    }
+}
@@ -7,6 +7,10 @@ import java.util.List;
 
 /**
  * Implements the project operation: select some or all columns and may re-order the columns from the child relation.
+ * The duplicated projected tuples are removed by a {@link DistinctFilter}, which hashes the projected values
+ * and spills to disk when the number of distinct tuples exceeds the memory budget
+ * (the spilled tuples are reported after the child operator is exhausted).
+ * The duplicate elimination can be disabled when the query planner proves that the projection cannot produce duplicates.
  * Notice: if the query head contains aggregation operations,
  * {@link SumOperator} will be applied in replace of this class.
  */
@@ -19,16 +23,39 @@ public class ProjectOperator extends Operator {
     // a map from fields in new relation to child relation, indicates where to find the projection column in child tuple
     // e.g. projectIndices[0] = 2 means the first column after projection is the third column in original relation
 
-    private List<String> reportBuffer = new ArrayList<>();
-    // a buffer of all the reported tuples, used for duplication check
+    private final boolean distinct;
+    private final int memoryBudget;
+    private DistinctFilter distinctFilter;
+    // the set of all the reported tuples, used for duplication check (null if duplicate elimination is disabled)
+
+    private boolean childExhausted = false;
+    // true once the child operator reaches the end, then the tuples deferred by distinctFilter are reported
+
+    private boolean[] stringColumns = null;
+    // the column types of projected tuples, derived from the first child tuple and shared by all output tuples
+
+    private int[] rowValues;
+    // the projected values of the current child batch row, reused for duplication check
+
+    /**
+     * Initialise with duplicate elimination under the default memory budget.
+     * @param childOperator the child operator.
+     * @param queryHead the query head, whose term list indicates the projection requirements.
+     */
+    public ProjectOperator(Operator childOperator, RelationalAtom queryHead) {
+        this(childOperator, queryHead, true, DistinctFilter.DEFAULT_MEMORY_BUDGET);
+    }
 
     /**
      * Initialise. Extract the target variable mask from query head,
      * build a mapping relation from indices after projection to corresponding indices before projection.
      * @param childOperator the child operator.
      * @param queryHead the query head, whose term list indicates the projection requirements.
+     * @param distinct {@code false} if the child output is known to be free of duplicates after projection,
+     *                 then the duplicate elimination is skipped.
+     * @param memoryBudget the maximum number of distinct tuples kept in memory for the duplication check.
      */
-    public ProjectOperator(Operator childOperator, RelationalAtom queryHead) {
+    public ProjectOperator(Operator childOperator, RelationalAtom queryHead, boolean distinct, int memoryBudget) {
         this.child = childOperator;
         List<String> childVariableMask = childOperator.getVariableMask(); // the variableMask before projection
         this.projectionName = queryHead.getName();
@@ -40,44 +67,119 @@ public class ProjectOperator extends Operator {
             this.projectIndices.add(idx);
             this.variableMask.add(varName); // this.variableMask will record the variable positions after projection
         }
+        this.distinct = distinct;
+        this.memoryBudget = memoryBudget;
+        this.rowValues = new int[this.projectIndices.size()];
+        this.distinctFilter = this.newDistinctFilter();
 //        System.out.println(childVariableMask + "- -> " + this.variableMask + "(" + this.projectIndices + ")");
     }
 
+    private DistinctFilter newDistinctFilter() {
+        return this.distinct ? new DistinctFilter(this.projectionName, this.projectIndices.size(), this.memoryBudget) : null;
+    }
+
     /**
-     * Reset the child operator, and also clean the report buffer.
+     * Reset the child operator, and also clean the set of reported tuples (removing its spill files).
      */
     @Override
     public void reset() {
         this.child.reset();
-        this.reportBuffer = new ArrayList<>();
+        if (this.distinctFilter != null)
+            this.distinctFilter.close();
+        this.distinctFilter = this.newDistinctFilter();
+        this.childExhausted = false;
+    }
+
+    /**
+     * Release the resources of child operator, and remove the spill files of the set of reported tuples.
+     */
+    @Override
+    public void close() {
+        this.child.close();
+        if (this.distinctFilter != null)
+            this.distinctFilter.close();
     }
 
     /**
      * Get the next output tuple from child operator,
      * use {@code this.projectIndices} to map the original tuple to the projected tuple,
-     * check duplication using {@code this.reportBuffer} before returning.
+     * check duplication using {@code this.distinctFilter} before returning.
+     * After the child operator reaches the end, return the tuples spilled by {@code this.distinctFilter}.
      * @return the next projected tuple (without duplication).
      */
     @Override
     public Tuple getNextTuple() {
-        Tuple childOutput = this.child.getNextTuple();
+        Tuple childOutput = this.childExhausted ? null : this.child.getNextTuple();
         while (childOutput != null) {
             // use the map to construct projected tuple from original tuple by aligning indices
-            List<Term> termList = new ArrayList<>();
-            for (int pi : this.projectIndices) {
-                termList.add(childOutput.getTerms().get(pi));
+            if (this.stringColumns == null) {
+                this.stringColumns = new boolean[this.projectIndices.size()];
+                for (int c = 0; c < this.projectIndices.size(); c++)
+                    this.stringColumns[c] = childOutput.isString(this.projectIndices.get(c));
             }
-            // construct a new tuple and checks duplication
-            Tuple newTuple = new Tuple(this.projectionName, termList);
-            if (!this.reportBuffer.contains(newTuple.toString())) {
-                this.reportBuffer.add(newTuple.toString());
-                return newTuple;
+            int[] values = new int[this.projectIndices.size()];
+            for (int c = 0; c < this.projectIndices.size(); c++) {
+                values[c] = childOutput.getValue(this.projectIndices.get(c));
             }
-            // if this new tuple duplicates with some previous reported tuple,
+            // construct a new tuple and checks duplication
+            if (this.distinctFilter == null || this.distinctFilter.add(values, this.stringColumns))
+                return new Tuple(this.projectionName, values, this.stringColumns);
+            // if this new tuple duplicates with some previous reported tuple (or is deferred to the end),
             // iterate to the next child output tuple
             childOutput = this.child.getNextTuple();
         }
-        return null;
+        this.childExhausted = true;
+        return this.distinctFilter == null ? null : this.distinctFilter.nextDeferred();
+    }
+
+    /**
+     * Get the next batch of projected rows (without duplication).
+     * The projected batch shares the column arrays of the child batch (re-ordered by {@code this.projectIndices}),
+     * only the selection vector is rebuilt to drop the rows that duplicate previously reported ones.
+     * After the child operator reaches the end, the tuples spilled by {@code this.distinctFilter} are returned in new batches.
+     * @return the next batch of projected rows, or {@code null} if all rows have been reported.
+     */
+    @Override
+    public TupleBatch getNextBatch() {
+        TupleBatch childBatch = this.childExhausted ? null : this.child.getNextBatch();
+        while (childBatch != null) {
+            TupleBatch projected = new TupleBatch(this.projectIndices.size(), childBatch.getCapacity());
+            for (int c = 0; c < this.projectIndices.size(); c++) {
+                int pi = this.projectIndices.get(c);
+                projected.setColumn(c, childBatch.getColumn(pi), childBatch.isStringColumn(pi));
+            }
+            projected.setRowCount(childBatch.getRowCount());
+
+            int[] selection = new int[childBatch.size()];
+            int count = 0;
+            for (int i = 0; i < childBatch.size(); i++) {
+                int row = childBatch.getRowIndex(i);
+                if (this.distinctFilter != null) {
+                    for (int c = 0; c < this.rowValues.length; c++)
+                        this.rowValues[c] = projected.getValue(c, row);
+                    if (!this.distinctFilter.add(this.rowValues, projected.getStringColumns()))
+                        continue;
+                }
+                selection[count++] = row;
+            }
+            if (count > 0) {
+                projected.setSelection(selection, count);
+                return projected;
+            }
+            childBatch = this.child.getNextBatch();
+        }
+        this.childExhausted = true;
+        if (this.distinctFilter == null)
+            return null;
+
+        Tuple deferred = this.distinctFilter.nextDeferred();
+        if (deferred == null)
+            return null;
+        TupleBatch batch = new TupleBatch(this.projectIndices.size(), batchSize);
+        batch.addTuple(deferred);
+        while (!batch.isFull() && (deferred = this.distinctFilter.nextDeferred()) != null)
+            batch.addTuple(deferred);
+        return batch;
     }
 
     /**
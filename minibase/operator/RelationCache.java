@@ -0,0 +1,196 @@
+package ed.inf.adbs.minibase.operator;
+
+import ed.inf.adbs.minibase.base.RelationalAtom;
+import ed.inf.adbs.minibase.base.Term;
+import ed.inf.adbs.minibase.base.Variable;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A cache of decoded relations kept in memory across queries, so that repeated queries (in batch or server mode)
+ * do not parse the same CSV data files again. A cached relation is stored column by column in int arrays,
+ * string fields as {@link StringDictionary} codes, and is read by {@link CachedScanOperator}.
+ *
+ * The cache is bounded by a number of bytes (the size of the column arrays), the least recently used relations
+ * are evicted first. A relation is loaded by the first scan that misses it, unless its estimated size exceeds the whole budget.
+ * An entry is checked against the length and the modification time of its data file on each lookup,
+ * and reloaded if the file has changed.
+ * The cache is disabled (capacity 0) unless enabled by {@link #setCapacity}.
+ */
+public class RelationCache {
+
+    /**
+     * The default number of bytes of cached relations.
+     */
+    public static final long DEFAULT_CAPACITY = 64L << 20;
+
+    private long capacity = 0;
+    private long usedBytes = 0;
+    private final LinkedHashMap<String, CachedRelation> relations = new LinkedHashMap<>(16, 0.75f, true);
+    // <data file path : decoded relation>, in access order (the eldest entry is the least recently used)
+
+    /**
+     * A relation decoded into columns.
+     */
+    public static class CachedRelation {
+        public final int rowCount;
+        public final int[][] columns;
+        // columns[c][r] is the value (int column) or the dictionary code (string column) of column c in row r
+        public final boolean[] stringColumns;
+        final long fileLength;
+        final long lastModified;
+        // the data file the relation was decoded from
+
+        CachedRelation(int rowCount, int[][] columns, boolean[] stringColumns, long fileLength, long lastModified) {
+            this.rowCount = rowCount;
+            this.columns = columns;
+            this.stringColumns = stringColumns;
+            this.fileLength = fileLength;
+            this.lastModified = lastModified;
+        }
+
+        /**
+         * @return the number of bytes of the column arrays.
+         */
+        public long getByteSize() {
+            return 4L * this.rowCount * this.columns.length;
+        }
+
+        private boolean isFresh(File file) {
+            return file.length() == this.fileLength && file.lastModified() == this.lastModified;
+        }
+    }
+
+    /**
+     * Set the maximum number of bytes of cached relations, evicting relations if needed.
+     * @param capacity the number of bytes, 0 disables the cache.
+     */
+    public synchronized void setCapacity(long capacity) {
+        this.capacity = Math.max(0, capacity);
+        this.evict();
+    }
+
+    /**
+     * @return {@code true} if relations may be cached.
+     */
+    public synchronized boolean isEnabled() {
+        return this.capacity > 0;
+    }
+
+    /**
+     * Get a relation from the cache, loading it from its data file if it is not cached or its file has changed.
+     * @param relationName the name of relation.
+     * @return the decoded relation, or {@code null} if the cache is disabled, the relation is estimated to exceed the capacity,
+     *      or its data file cannot be read.
+     */
+    public CachedRelation get(String relationName) {
+        DBCatalog dbc = DBCatalog.getInstance();
+        File file = new File(dbc.getRelationPath(relationName));
+        String key = file.getPath();
+        long capacity;
+        synchronized (this) {
+            capacity = this.capacity;
+            CachedRelation relation = this.relations.get(key);
+            if (relation != null) {
+                if (relation.isFresh(file))
+                    return relation;
+                this.remove(key);
+            }
+        }
+        List<String> schema = dbc.getSchema(relationName);
+        if (capacity == 0 || schema == null || !file.isFile()
+                || 4 * dbc.estimateCardinality(relationName) * schema.size() > capacity)
+            return null;
+
+        // decoded outside the lock, two queries missing the same relation may both load it
+        CachedRelation relation = load(relationName, file, schema);
+        synchronized (this) {
+            if (relation.getByteSize() <= this.capacity) {
+                this.remove(key);
+                this.relations.put(key, relation);
+                this.usedBytes += relation.getByteSize();
+                this.evict();
+            }
+        }
+        return relation;
+    }
+
+    /**
+     * Decode every column of a data file, by a {@link MappedScanOperator} emitting all columns.
+     */
+    private static CachedRelation load(String relationName, File file, List<String> schema) {
+        int columnCount = schema.size();
+        long fileLength = file.length();
+        long lastModified = file.lastModified();
+        List<Term> terms = new ArrayList<>();
+        for (int c = 0; c < columnCount; c++)
+            terms.add(new Variable("column" + c));
+        Operator scan = new MappedScanOperator(new RelationalAtom(relationName, terms));
+
+        int[][] columns = new int[columnCount][1024];
+        int rowCount = 0;
+        TupleBatch batch = scan.getNextBatch();
+        while (batch != null) {
+            if (rowCount + batch.size() > columns[0].length)
+                for (int c = 0; c < columnCount; c++)
+                    columns[c] = Arrays.copyOf(columns[c], Math.max(columns[c].length * 2, rowCount + batch.size()));
+            for (int c = 0; c < columnCount; c++)
+                for (int i = 0; i < batch.size(); i++)
+                    columns[c][rowCount + i] = batch.getValue(c, batch.getRowIndex(i));
+            rowCount += batch.size();
+            batch = scan.getNextBatch();
+        }
+        for (int c = 0; c < columnCount; c++)
+            columns[c] = Arrays.copyOf(columns[c], rowCount);
+        boolean[] stringColumns = new boolean[columnCount];
+        for (int c = 0; c < columnCount; c++)
+            stringColumns[c] = !schema.get(c).equals("int");
+        return new CachedRelation(rowCount, columns, stringColumns, fileLength, lastModified);
+    }
+
+    /**
+     * Drop a relation from the cache, e.g. after its data file has been rewritten.
+     * @param relationName the name of relation.
+     */
+    public synchronized void invalidate(String relationName) {
+        this.remove(new File(DBCatalog.getInstance().getRelationPath(relationName)).getPath());
+    }
+
+    /**
+     * Drop all relations.
+     */
+    public synchronized void clear() {
+        this.relations.clear();
+        this.usedBytes = 0;
+    }
+
+    /**
+     * @return the number of bytes of cached relations.
+     */
+    public synchronized long getUsedBytes() {
+        return this.usedBytes;
+    }
+
+    private void remove(String key) {
+        CachedRelation relation = this.relations.remove(key);
+        if (relation != null)
+            this.usedBytes -= relation.getByteSize();
+    }
+
+    /**
+     * Evict the least recently used relations until the cached relations fit in the capacity.
+     */
+    private void evict() {
+        Iterator<Map.Entry<String, CachedRelation>> iterator = this.relations.entrySet().iterator();
+        while (this.usedBytes > this.capacity && iterator.hasNext()) {
+            this.usedBytes -= iterator.next().getValue().getByteSize();
+            iterator.remove();
+        }
+    }
+}
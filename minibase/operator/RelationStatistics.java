@@ -0,0 +1,177 @@
+package ed.inf.adbs.minibase.operator;
+
+import ed.inf.adbs.minibase.base.ComparisonOperator;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The statistics of a relation collected by {@link StatisticsCollector}: the number of tuples, and for each column
+ * the number of distinct values (from a {@link HyperLogLog} sketch), the min/max and an equi-depth histogram of int columns.
+ * The size and modification time of the data file are recorded, so that {@link DBCatalog} can tell when the statistics are stale.
+ *
+ * Each statistics is persisted as lines of the statistics file (see {@link #toLines()} and {@link #parse}):
+ * <pre>
+ *   relation R rowCount fileSize lastModified tailChecksum
+ *   column R c int ndv min max bound0,bound1,...,boundB sketch
+ *   column R c string ndv sketch
+ * </pre>
+ */
+public class RelationStatistics {
+
+    /**
+     * The default selectivity of a comparison that cannot be estimated from statistics (e.g. an inequality on strings).
+     */
+    public static final double DEFAULT_INEQUALITY_SELECTIVITY = 1.0 / 3;
+
+    /**
+     * The statistics of a column.
+     */
+    public static class Column {
+        public final boolean isInt;
+        public long distinctValues;
+        public int min;
+        public int max;
+        public int[] histogram;
+        // the bounds of equi-depth buckets: bucket b holds about rowCount / B values in [histogram[b], histogram[b+1]]
+        public HyperLogLog sketch;
+
+        public Column(boolean isInt) {
+            this.isInt = isInt;
+        }
+
+        /**
+         * Estimate the fraction of values less than a constant, by linear interpolation within a histogram bucket.
+         */
+        private double fractionLessThan(int value) {
+            if (this.histogram == null || this.histogram.length < 2 || value <= this.min)
+                return 0;
+            if (value > this.max)
+                return 1;
+            int buckets = this.histogram.length - 1;
+            for (int b = 0; b < buckets; b++) {
+                int low = this.histogram[b];
+                int high = this.histogram[b + 1];
+                if (value <= high) {
+                    double within = high == low ? 0 : (double) (value - low) / (high - low);
+                    return Math.max(0, (b + within) / buckets);
+                }
+            }
+            return 1;
+        }
+    }
+
+    public final String relationName;
+    public long rowCount;
+    public long fileSize;
+    public long lastModified;
+    public long tailChecksum;
+    // the checksum of the last bytes of the data file, used to recognise a file that has only been appended to
+    public final Column[] columns;
+
+    public RelationStatistics(String relationName, Column[] columns) {
+        this.relationName = relationName;
+        this.columns = columns;
+    }
+
+    /**
+     * @param dataFile the data file of the relation.
+     * @return {@code true} if the data file has not changed since the statistics were collected.
+     */
+    public boolean isFresh(File dataFile) {
+        return dataFile.length() == this.fileSize && dataFile.lastModified() == this.lastModified;
+    }
+
+    /**
+     * Estimate the fraction of tuples satisfying {@code column op value}.
+     * @param column the index of column.
+     * @param op the comparison operator.
+     * @param value the constant, an int for int columns (a string constant only supports '=' and '!=').
+     * @return the estimated selectivity in [0, 1].
+     */
+    public double selectivity(int column, ComparisonOperator op, Integer value) {
+        Column stats = this.columns[column];
+        double equal = 1.0 / Math.max(1, stats.distinctValues);
+        if (value != null && stats.isInt && (value < stats.min || value > stats.max))
+            equal = 0;
+        if (op == ComparisonOperator.EQ)
+            return equal;
+        if (op == ComparisonOperator.NEQ)
+            return 1 - equal;
+        if (value == null || !stats.isInt)
+            return DEFAULT_INEQUALITY_SELECTIVITY;
+        double less = stats.fractionLessThan(value);
+        double result;
+        switch (op) {
+            case LT: result = less; break;
+            case LEQ: result = less + equal; break;
+            case GT: result = 1 - less - equal; break;
+            default: result = 1 - less; break; // GEQ
+        }
+        return Math.max(0, Math.min(1, result));
+    }
+
+    /**
+     * @return the lines representing this statistics in the statistics file.
+     */
+    public List<String> toLines() {
+        List<String> lines = new ArrayList<>();
+        lines.add("relation " + this.relationName + " " + this.rowCount + " " + this.fileSize + " "
+                + this.lastModified + " " + this.tailChecksum);
+        for (int c = 0; c < this.columns.length; c++) {
+            Column column = this.columns[c];
+            StringBuilder line = new StringBuilder("column " + this.relationName + " " + c);
+            if (column.isInt) {
+                line.append(" int ").append(column.distinctValues).append(' ').append(column.min).append(' ').append(column.max).append(' ');
+                if (column.histogram == null || column.histogram.length == 0) {
+                    line.append('-');
+                } else {
+                    for (int b = 0; b < column.histogram.length; b++)
+                        line.append(b == 0 ? "" : ",").append(column.histogram[b]);
+                }
+            } else {
+                line.append(" string ").append(column.distinctValues);
+            }
+            line.append(' ').append(column.sketch.encode());
+            lines.add(line.toString());
+        }
+        return lines;
+    }
+
+    /**
+     * Parse the statistics of a relation from the lines of the statistics file.
+     * @param relationLine the 'relation' line.
+     * @param columnLines the 'column' lines of the same relation, in column order.
+     * @return the statistics.
+     */
+    public static RelationStatistics parse(String relationLine, List<String> columnLines) {
+        String[] fields = relationLine.trim().split("\\s+");
+        Column[] columns = new Column[columnLines.size()];
+        for (int c = 0; c < columns.length; c++) {
+            String[] columnFields = columnLines.get(c).trim().split("\\s+");
+            Column column = new Column(columnFields[3].equals("int"));
+            column.distinctValues = Long.parseLong(columnFields[4]);
+            if (column.isInt) {
+                column.min = Integer.parseInt(columnFields[5]);
+                column.max = Integer.parseInt(columnFields[6]);
+                if (!columnFields[7].equals("-")) {
+                    String[] bounds = columnFields[7].split(",");
+                    column.histogram = new int[bounds.length];
+                    for (int b = 0; b < bounds.length; b++)
+                        column.histogram[b] = Integer.parseInt(bounds[b]);
+                }
+                column.sketch = HyperLogLog.decode(columnFields[8]);
+            } else {
+                column.sketch = HyperLogLog.decode(columnFields[5]);
+            }
+            columns[c] = column;
+        }
+        RelationStatistics statistics = new RelationStatistics(fields[1], columns);
+        statistics.rowCount = Long.parseLong(fields[2]);
+        statistics.fileSize = Long.parseLong(fields[3]);
+        statistics.lastModified = Long.parseLong(fields[4]);
+        statistics.tailChecksum = Long.parseLong(fields[5]);
+        return statistics;
+    }
+}
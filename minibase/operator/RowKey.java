@@ -0,0 +1,107 @@
+package ed.inf.adbs.minibase.operator;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * An immutable composite key made of some columns of a row, used as the key of hash tables
+ * (the groups of {@link AggregateOperator}, the build side of {@link HashJoinOperator}).
+ * The values are primitive ints (dictionary codes for string columns, see {@link Tuple}),
+ * and the hash is computed once on construction, so that a lookup neither builds strings nor boxes values.
+ * Keys from different sources are only comparable when their columns have the same types.
+ */
+public final class RowKey {
+
+    private final int[] values;
+    private final int hash;
+
+    /**
+     * Create a key from values, the array is not copied and must not be modified afterwards.
+     * @param values the values of key columns.
+     */
+    public RowKey(int[] values) {
+        this.values = values;
+        this.hash = hash(values, values.length);
+    }
+
+    /**
+     * Extract the key columns of a tuple.
+     * @param tuple the tuple to extract key from.
+     * @param keyIndices the indices of key columns in the tuple.
+     * @return the key.
+     */
+    public static RowKey of(Tuple tuple, List<Integer> keyIndices) {
+        int[] values = new int[keyIndices.size()];
+        for (int i = 0; i < values.length; i++)
+            values[i] = tuple.getValue(keyIndices.get(i));
+        return new RowKey(values);
+    }
+
+    /**
+     * Extract the key columns of a batch row.
+     * @param batch the batch to extract key from.
+     * @param row the row index (not the position in selection vector).
+     * @param keyIndices the indices of key columns in the batch.
+     * @return the key.
+     */
+    public static RowKey of(TupleBatch batch, int row, List<Integer> keyIndices) {
+        int[] values = new int[keyIndices.size()];
+        for (int i = 0; i < values.length; i++)
+            values[i] = batch.getValue(keyIndices.get(i), row);
+        return new RowKey(values);
+    }
+
+    /**
+     * @return the number of columns of the key.
+     */
+    public int size() {
+        return this.values.length;
+    }
+
+    /**
+     * @return the value of a key column.
+     */
+    public int getValue(int index) {
+        return this.values[index];
+    }
+
+    /**
+     * @return the underlying array of values, which must not be modified.
+     */
+    public int[] getValues() {
+        return this.values;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) return true;
+        if (!(obj instanceof RowKey)) return false;
+        RowKey rowKey = (RowKey) obj;
+        return this.hash == rowKey.hash && Arrays.equals(this.values, rowKey.values);
+    }
+
+    @Override
+    public int hashCode() {
+        return this.hash;
+    }
+
+    @Override
+    public String toString() {
+        return Arrays.toString(this.values);
+    }
+
+    /**
+     * Hash the first {@code length} values of a row. Both the high and the low bits are well mixed,
+     * since the low bits choose the bucket of a hash table and the high bits may choose a spill partition.
+     * @param values the values of row.
+     * @param length the number of values to be hashed.
+     * @return the hash.
+     */
+    public static int hash(int[] values, int length) {
+        int hash = 1;
+        for (int i = 0; i < length; i++)
+            hash = 31 * hash + values[i];
+        hash *= 0x9E3779B9;
+        return hash ^ (hash >>> 16);
+    }
+}
@@ -5,6 +5,8 @@ import ed.inf.adbs.minibase.base.*;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.List;
 import java.util.Scanner;
 
@@ -12,13 +14,26 @@ import java.util.Scanner;
  * This class implements the SCAN operation, reading data from data file and return them as {@link Tuple} instances.
  * Each {@link RelationalAtom} will be interpreted as a {@link ScanOperator} in query plan.
  * This operator will always be the leaf node of the query plan,
- * the selection and join conditions will be implemented in the parent nodes of this operator.
+ * the join conditions will be implemented in the parent nodes of this operator.
+ * The select conditions on this relational atom are pushed down into the scan (see {@link ScanPredicate}):
+ * they are checked on the split fields of a line, before the string fields are encoded and the tuple is built.
+ * Only the columns of the variables needed by parent operators are decoded and emitted (projection pushdown).
  */
 public class ScanOperator extends Operator {
 
     private final String relationName;
     private Scanner relationScanner;
     private final List<String> relationSchema;
+    private final boolean[] stringColumns;
+    // the column types of output tuples, stringColumns[c] is true if column c is declared as 'string' in the schema
+    private final int[] outputColumns;
+    private final boolean[] outputStringColumns;
+    // the columns emitted in output tuples and their types, outputColumns is null if every column is emitted
+    private final boolean[] decodedColumns;
+    // decodedColumns[c] is true if the field of column c is emitted or checked by a row condition, the other fields are not decoded
+    private final StringDictionary dictionary;
+    private final ScanPredicate predicate;
+    // the select conditions pushed down into this scan, null if there is none
 
     /**
      * Initialize the file reader, make connection to {@link DBCatalog}.
@@ -27,16 +42,52 @@ public class ScanOperator extends Operator {
      * @param baseQueryAtom a relational atom in query body, providing information like relation name and variable mask.
      */
     public ScanOperator(RelationalAtom baseQueryAtom) {
+        this(baseQueryAtom, new ArrayList<>(), null);
+    }
+
+    /**
+     * Initialize the file reader, and push the select conditions on the relational atom into the scan.
+     * @param baseQueryAtom a relational atom in query body, providing information like relation name and variable mask.
+     * @param compAtomList the select conditions whose variables all appear in the relational atom.
+     * @param outputVariables the variables needed by the parent operators, only their columns are emitted and decoded;
+     *                        {@code null} to emit every column.
+     */
+    public ScanOperator(RelationalAtom baseQueryAtom, List<ComparisonAtom> compAtomList, Collection<String> outputVariables) {
+        List<String> atomVariables = new ArrayList<>();
         for (Term term : baseQueryAtom.getTerms()) {
             if (term instanceof Variable)
-                this.variableMask.add(((Variable) term).getName());
+                atomVariables.add(((Variable) term).getName());
             else
-                this.variableMask.add(null);
+                atomVariables.add(null);
         }
 
         this.relationName = baseQueryAtom.getName();
         DBCatalog dbc = DBCatalog.getInstance();
         this.relationSchema = dbc.getSchema(relationName);
+        this.dictionary = dbc.getDictionary();
+        this.stringColumns = new boolean[this.relationSchema.size()];
+        for (int c = 0; c < this.relationSchema.size(); c++)
+            this.stringColumns[c] = !this.relationSchema.get(c).equals("int");
+        ScanPredicate predicate = new ScanPredicate(compAtomList, atomVariables, this.stringColumns);
+        this.predicate = predicate.isEmpty() ? null : predicate;
+
+        this.outputColumns = selectOutputColumns(atomVariables, outputVariables);
+        this.decodedColumns = new boolean[this.relationSchema.size()];
+        if (this.outputColumns == null) {
+            this.variableMask = atomVariables;
+            this.outputStringColumns = this.stringColumns;
+            Arrays.fill(this.decodedColumns, true);
+        } else {
+            this.outputStringColumns = new boolean[this.outputColumns.length];
+            for (int i = 0; i < this.outputColumns.length; i++) {
+                this.variableMask.add(atomVariables.get(this.outputColumns[i]));
+                this.outputStringColumns[i] = this.stringColumns[this.outputColumns[i]];
+                this.decodedColumns[this.outputColumns[i]] = true;
+            }
+            for (int c = 0; c < this.decodedColumns.length; c++)
+                if (this.predicate != null && this.predicate.isRowConditionColumn(c))
+                    this.decodedColumns[c] = true;
+        }
         this.reset();
     }
 
@@ -54,6 +105,7 @@ public class ScanOperator extends Operator {
     @Override
     public void reset() {
         DBCatalog dbc = DBCatalog.getInstance();
+        this.close();
         try {
             this.relationScanner = new Scanner(new File(dbc.getRelationPath(relationName)));
         } catch (FileNotFoundException e) {
@@ -63,28 +115,86 @@ public class ScanOperator extends Operator {
     }
 
     /**
-     * Read the next line of relation file, return it as a {@link Tuple} instance.
+     * Close the Scanner instance (and its file), it is rebuilt by {@link #reset()}.
+     */
+    @Override
+    public void close() {
+        if (this.relationScanner != null)
+            this.relationScanner.close();
+    }
+
+    /**
+     * Read the next line of relation file that satisfies the select conditions, return it as a {@link Tuple} instance.
      * The schema information stored in {@link DBCatalog} indicates
-     * whether a column of relation database should be interpreted as Integer or String.
+     * whether a column of relation database should be interpreted as Integer or String,
+     * the String columns are stored as their codes in the {@link StringDictionary}.
      * @return a {@link Tuple} instance that represents the data in next line of the data file.
      */
     @Override
     public Tuple getNextTuple() {
-        if (this.relationScanner.hasNextLine()) {
-            String line = this.relationScanner.nextLine();
-            String[] raw_data = line.split("[^a-zA-Z0-9]+");
-            ArrayList<Term> terms = new ArrayList<>();
+        int[] values = this.readNextLine();
+        return values == null ? null : new Tuple(this.relationName, values, this.outputStringColumns);
+    }
+
+    /**
+     * Read up to {@link #batchSize} lines of relation file that satisfy the select conditions into a {@link TupleBatch}.
+     * @return the next batch of data file, or {@code null} if the end of file is reached.
+     */
+    @Override
+    public TupleBatch getNextBatch() {
+        TupleBatch batch = new TupleBatch(this.outputStringColumns.length, batchSize);
+        int[] values;
+        while (!batch.isFull() && (values = this.readNextLine()) != null) {
+            int row = batch.addRow();
+            for (int i = 0; i < values.length; i++)
+                batch.setValue(i, row, values[i], this.outputStringColumns[i]);
+        }
+        return batch.getRowCount() == 0 ? null : batch;
+    }
+
+    /**
+     * Read lines until one satisfies the select conditions.
+     * The conditions on single fields are checked on the split fields, before any string field is encoded.
+     * Only the emitted fields (and the operands of row conditions) are decoded.
+     * @return the emitted values of the line (string fields as dictionary codes), or {@code null} if the end of file is reached.
+     */
+    private int[] readNextLine() {
+        while (this.relationScanner.hasNextLine()) {
+            String[] raw_data = this.relationScanner.nextLine().split("[^a-zA-Z0-9]+");
+            if (this.predicate != null && !this.checkFields(raw_data))
+                continue;
+            int[] values = new int[raw_data.length];
             for (int i = 0; i < raw_data.length; i++) {
-                if (this.relationSchema.get(i).equals("int")) {
-                    terms.add(new IntegerConstant(Integer.parseInt(raw_data[i])));
+                if (!this.decodedColumns[i]) {
+                    values[i] = StringDictionary.NULL_CODE;
+                } else if (this.stringColumns[i]) {
+                    values[i] = this.dictionary.encode(raw_data[i]);
                 } else {
-                    terms.add(new StringConstant(raw_data[i]));
+                    values[i] = Integer.parseInt(raw_data[i]);
                 }
             }
-            return new Tuple(this.relationName, terms);
-        } else {
-            return null;
+            if (this.predicate != null && this.predicate.hasRowConditions() && !this.predicate.checkRow(values))
+                continue;
+            if (this.outputColumns == null)
+                return values;
+            int[] outputValues = new int[this.outputColumns.length];
+            for (int i = 0; i < outputValues.length; i++)
+                outputValues[i] = values[this.outputColumns[i]];
+            return outputValues;
+        }
+        return null;
+    }
+
+    private boolean checkFields(String[] raw_data) {
+        for (int i = 0; i < raw_data.length; i++) {
+            if (!this.predicate.hasColumnConditions(i))
+                continue;
+            boolean pass = this.stringColumns[i] ? this.predicate.checkString(i, raw_data[i])
+                    : this.predicate.checkInt(i, Integer.parseInt(raw_data[i]));
+            if (!pass)
+                return false;
         }
+        return true;
     }
 
     /**
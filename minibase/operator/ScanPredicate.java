@@ -0,0 +1,261 @@
+package ed.inf.adbs.minibase.operator;
+
+import ed.inf.adbs.minibase.base.*;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The select conditions pushed down into a scan operator ({@link ScanOperator}, {@link MappedScanOperator},
+ * {@link ColumnarScanOperator}), so that a row is rejected on its raw fields before it is turned into a {@link Tuple}.
+ *
+ * A condition between a column and a constant is checked on the field alone, as soon as the field is parsed:
+ *      (1) an int field is compared as a parsed int;
+ *      (2) a string field is compared on its bytes (or its String, or its {@link StringDictionary} code),
+ *          so the field does not have to be encoded into the dictionary before the row is known to pass.
+ * The other conditions (between two columns of the atom, or between two constants) are checked on the whole row.
+ */
+public class ScanPredicate {
+
+    /**
+     * A condition comparing a column with a constant, normalised as {@code column op constant}.
+     */
+    private static class ColumnCondition {
+        int column;
+        boolean isString;
+        int operand;
+        String stringValue;
+        byte[] stringBytes;
+        // the constant: its int value or dictionary code, and the String and bytes of a string constant
+        CompiledComparison comparison;
+        // 'column op constant' compiled for the column type and the constant type
+        CompiledComparison order;
+        // 'cmp op 0' on the result of comparing the bytes (or String) of a field with the constant
+    }
+
+    private final List<List<ColumnCondition>> columnConditions = new ArrayList<>();
+    // columnConditions.get(c) holds the conditions between column c and a constant, null if there is none
+    private final List<SelectCondition> rowConditions = new ArrayList<>();
+    private final boolean[] rowConditionColumns;
+    // rowConditionColumns[c] is true if column c is an operand of some row condition
+    private final boolean[] columnTypes;
+    // columnTypes[c] is true if column c holds strings
+    private final StringDictionary dictionary;
+
+    /**
+     * Convert the conditions into column and row conditions over the columns of a relational atom.
+     * @param compAtomList the conditions, all of their variables must appear in the variable mask.
+     * @param variableMask the variable mask of the scan operator.
+     * @param stringColumns the column types of the relation.
+     */
+    public ScanPredicate(List<ComparisonAtom> compAtomList, List<String> variableMask, boolean[] stringColumns) {
+        for (int c = 0; c < stringColumns.length; c++)
+            this.columnConditions.add(null);
+        this.rowConditionColumns = new boolean[stringColumns.length];
+        this.columnTypes = stringColumns;
+        this.dictionary = DBCatalog.getInstance().getDictionary();
+        for (ComparisonAtom compAtom : compAtomList) {
+            Term term1 = compAtom.getTerm1();
+            Term term2 = compAtom.getTerm2();
+            if (term1 instanceof Variable && term2 instanceof Constant)
+                this.addColumnCondition(variableMask.indexOf(((Variable) term1).getName()), compAtom, (Constant) term2, false);
+            else if (term1 instanceof Constant && term2 instanceof Variable)
+                this.addColumnCondition(variableMask.indexOf(((Variable) term2).getName()), compAtom, (Constant) term1, true);
+            else
+                this.addRowCondition(compAtom, variableMask);
+        }
+    }
+
+    private void addRowCondition(ComparisonAtom compAtom, List<String> variableMask) {
+        this.rowConditions.add(new SelectCondition(compAtom, variableMask));
+        for (Term term : new Term[]{compAtom.getTerm1(), compAtom.getTerm2()}) {
+            if (term instanceof Variable)
+                this.rowConditionColumns[variableMask.indexOf(((Variable) term).getName())] = true;
+        }
+    }
+
+    private void addColumnCondition(int column, ComparisonAtom compAtom, Constant constant, boolean constantOnLeft) {
+        ColumnCondition condition = new ColumnCondition();
+        condition.column = column;
+        // 'constant op column' is checked as 'column reverse(op) constant'
+        ComparisonOperator op = constantOnLeft ? CompiledComparison.reverse(compAtom.getOp()) : compAtom.getOp();
+        condition.isString = constant instanceof StringConstant;
+        if (condition.isString) {
+            condition.stringValue = ((StringConstant) constant).getValue();
+            condition.stringBytes = condition.stringValue.getBytes(StandardCharsets.US_ASCII);
+            condition.operand = this.dictionary.encode(condition.stringValue);
+        } else {
+            condition.operand = ((IntegerConstant) constant).getValue();
+        }
+        condition.comparison = CompiledComparison.compile(op, this.columnTypes[column], condition.isString);
+        condition.order = CompiledComparison.compile(op, false, false);
+        if (this.columnConditions.get(column) == null)
+            this.columnConditions.set(column, new ArrayList<>());
+        this.columnConditions.get(column).add(condition);
+    }
+
+    /**
+     * @return {@code true} if there is no condition to check.
+     */
+    public boolean isEmpty() {
+        if (!this.rowConditions.isEmpty())
+            return false;
+        for (List<ColumnCondition> conditions : this.columnConditions)
+            if (conditions != null)
+                return false;
+        return true;
+    }
+
+    /**
+     * @param column the index of column.
+     * @return {@code true} if some condition compares the column with a constant.
+     */
+    public boolean hasColumnConditions(int column) {
+        return column < this.columnConditions.size() && this.columnConditions.get(column) != null;
+    }
+
+    /**
+     * @param column the index of column.
+     * @return {@code true} if the column is an operand of some condition checked on the whole row,
+     *      i.e. the value of column has to be decoded before {@link #checkRow} even if the column is not emitted.
+     */
+    public boolean isRowConditionColumn(int column) {
+        return column < this.rowConditionColumns.length && this.rowConditionColumns[column];
+    }
+
+    /**
+     * @return {@code true} if some condition has to be checked on the whole row.
+     */
+    public boolean hasRowConditions() {
+        return !this.rowConditions.isEmpty();
+    }
+
+    /**
+     * Check the conditions of an int column on a parsed value.
+     * @param column the index of column, declared as 'int'.
+     * @param value the parsed value.
+     * @return {@code true} if the value satisfies all the conditions of the column.
+     */
+    public boolean checkInt(int column, int value) {
+        return this.checkValue(column, value);
+    }
+
+    /**
+     * Check the conditions of a string column on the bytes of a field, without encoding the field.
+     * The fields are letters and digits, so comparing bytes gives the same order as {@link String#compareTo}.
+     * @param column the index of column, declared as 'string'.
+     * @param bytes the buffer holding the field.
+     * @param offset the offset of field in the buffer.
+     * @param length the length of field.
+     * @return {@code true} if the field satisfies all the conditions of the column.
+     */
+    public boolean checkString(int column, byte[] bytes, int offset, int length) {
+        for (ColumnCondition condition : this.columnConditions.get(column)) {
+            if (!condition.isString) {
+                // an int never equals to a string, the compiled comparison has a fixed result
+                if (!condition.comparison.test(0, 0))
+                    return false;
+                continue;
+            }
+            byte[] constant = condition.stringBytes;
+            int common = Math.min(length, constant.length);
+            int cmp = 0;
+            for (int i = 0; i < common && cmp == 0; i++)
+                cmp = bytes[offset + i] - constant[i];
+            if (cmp == 0)
+                cmp = length - constant.length;
+            if (!condition.order.test(cmp, 0))
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Check the conditions of a string column on a field read as String.
+     * @param column the index of column, declared as 'string'.
+     * @param value the field.
+     * @return {@code true} if the field satisfies all the conditions of the column.
+     */
+    public boolean checkString(int column, String value) {
+        for (ColumnCondition condition : this.columnConditions.get(column)) {
+            boolean pass = condition.isString ? condition.order.test(value.compareTo(condition.stringValue), 0)
+                    : condition.comparison.test(0, 0);
+            if (!pass)
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Check the conditions of a column on a value in the primitive representation of {@link Tuple}.
+     * @param column the index of column.
+     * @param value an int value, or the {@link StringDictionary} code of a string.
+     * @return {@code true} if the value satisfies all the conditions of the column.
+     */
+    public boolean checkValue(int column, int value) {
+        for (ColumnCondition condition : this.columnConditions.get(column))
+            if (!condition.comparison.test(value, condition.operand))
+                return false;
+        return true;
+    }
+
+    /**
+     * Check the conditions involving two columns (or no column) on a parsed row.
+     * @param values the values of row, string fields as dictionary codes.
+     * @return {@code true} if the row satisfies all the row conditions.
+     */
+    public boolean checkRow(int[] values) {
+        for (SelectCondition condition : this.rowConditions)
+            if (!condition.check(values, this.columnTypes))
+                return false;
+        return true;
+    }
+
+    /**
+     * Check the conditions on a range of rows of decoded columns, a column at a time.
+     * @param columns the decoded columns, {@code columns[c][r]} is the value of column c in row r (string fields as dictionary codes).
+     * @param from the first row of range.
+     * @param to the end of range (exclusive).
+     * @param selection receives the passing rows, it holds at least {@code to - from} rows.
+     * @param rowValues a scratch row of the width of the relation, used by the row conditions.
+     * @return the number of passing rows.
+     */
+    public int filterRows(int[][] columns, int from, int to, int[] selection, int[] rowValues) {
+        int count = 0;
+        for (int row = from; row < to; row++)
+            selection[count++] = row;
+        for (int c = 0; c < columns.length && count > 0; c++) {
+            if (!this.hasColumnConditions(c))
+                continue;
+            int kept = 0;
+            for (int i = 0; i < count; i++)
+                if (this.checkValue(c, columns[c][selection[i]]))
+                    selection[kept++] = selection[i];
+            count = kept;
+        }
+        if (this.hasRowConditions()) {
+            int kept = 0;
+            for (int i = 0; i < count; i++) {
+                for (int c = 0; c < columns.length; c++)
+                    rowValues[c] = columns[c][selection[i]];
+                if (this.checkRow(rowValues))
+                    selection[kept++] = selection[i];
+            }
+            count = kept;
+        }
+        return count;
+    }
+
+    /**
+     * Check all the conditions on a parsed row.
+     * @param values the values of row, string fields as dictionary codes.
+     * @return {@code true} if the row satisfies all the conditions.
+     */
+    public boolean check(int[] values) {
+        for (int c = 0; c < this.columnConditions.size(); c++)
+            if (this.columnConditions.get(c) != null && !this.checkValue(c, values[c]))
+                return false;
+        return this.checkRow(values);
+    }
+}
@@ -7,39 +7,81 @@ import java.util.List;
 /**
  * This class is used in {@link SelectOperator},
  * providing methods for checking whether a given tuple satisfies a select condition.
+ * The operands are compared in the primitive representation of {@link Tuple}:
+ * int values directly, string values by their {@link StringDictionary} codes (for '=' and '!=')
+ * or by the decoded strings (for ordering comparisons).
+ *
+ * The condition is compiled once into a {@link CompiledComparison} specialized for its operator and operand types
+ * (when an operand is a column, on the first checked row, since all rows of an operator have the same column types),
+ * so no operator text is interpreted per row. The operands are classified as column/constant at construction,
+ * and {@link #filter} runs a loop specialized for that classification over a whole batch.
  */
 public class SelectCondition {
-    private String op;
-    private Term term1 = null;
+    private final ComparisonOperator op;
+    private boolean isConstant1 = false;
+    private int value1;
+    private boolean isString1;
     private int term1Idx;
-    private Term term2 = null;
+    private boolean isConstant2 = false;
+    private int value2;
+    private boolean isString2;
     private int term2Idx;
+    // a constant operand is stored as its primitive value (or dictionary code) and type,
+    // a variable operand is stored as its index in the target tuple
+
+    private CompiledComparison comparison = null;
+    // the comparison specialized for the operand types, compiled at construction if both operands are constants,
+    // otherwise on the first checked row
+
+    private final StringDictionary dictionary;
 
     /**
      * Initialise an instance based on an input {@link ComparisonAtom}.
-     * Store the comparison operation (e.g. '=', '>') as a string,
-     * Store the {@link IntegerConstant} and {@link StringConstant} operands as a copy of term,
+     * Store the comparison operation (e.g. '=', '>') as a {@link ComparisonOperator},
+     * Store the {@link IntegerConstant} and {@link StringConstant} operands as primitive values,
      * The {@link Variable} operand will be stored as its index in the target tuple (represented by a variable mask).
      * @param compAtom a comparison atom that represents a select condition
      * @param variableMask the variable mask of tuples to be checked, indicates the index of variable operand
      */
     public SelectCondition(ComparisonAtom compAtom, List<String> variableMask) {
-        this.op = compAtom.getOp().toString();
+        this.op = compAtom.getOp();
+        this.dictionary = DBCatalog.getInstance().getDictionary();
         // check the class of each operand, store in different formats
         if (compAtom.getTerm1() instanceof Variable) {
             this.term1Idx = variableMask.indexOf(((Variable) compAtom.getTerm1()).getName());
-//            System.out.println("Term 1 is Variable, at relation index: " + this.term1Idx);
         } else {
-            this.term1 = compAtom.getTerm1();
-//            System.out.println("Term 1 is Constant: " + this.term1);
+            this.isConstant1 = true;
+            this.isString1 = compAtom.getTerm1() instanceof StringConstant;
+            this.value1 = encodeConstant(compAtom.getTerm1());
         }
         if (compAtom.getTerm2() instanceof Variable) {
             this.term2Idx = variableMask.indexOf(((Variable) compAtom.getTerm2()).getName());
-//            System.out.println("Term 2 is Variable, at relation index: " + this.term2Idx);
         } else {
-            this.term2 = compAtom.getTerm2();
-//            System.out.println("Term 2 is Constant: " + this.term2);
+            this.isConstant2 = true;
+            this.isString2 = compAtom.getTerm2() instanceof StringConstant;
+            this.value2 = encodeConstant(compAtom.getTerm2());
         }
+        if (this.isConstant1 && this.isConstant2)
+            this.comparison = CompiledComparison.compile(this.op, this.isString1, this.isString2);
+    }
+
+    private int encodeConstant(Term constant) {
+        if (constant instanceof IntegerConstant)
+            return ((IntegerConstant) constant).getValue();
+        return this.dictionary.encode(((StringConstant) constant).getValue());
+    }
+
+    /**
+     * Compile the comparison for the column types of the checked rows, on the first call.
+     * @param stringColumns the column types of the checked rows.
+     * @return the compiled comparison.
+     */
+    private CompiledComparison compiled(boolean[] stringColumns) {
+        if (this.comparison == null)
+            this.comparison = CompiledComparison.compile(this.op,
+                    this.isConstant1 ? this.isString1 : stringColumns[this.term1Idx],
+                    this.isConstant2 ? this.isString2 : stringColumns[this.term2Idx]);
+        return this.comparison;
     }
 
     /**
@@ -48,34 +90,67 @@ public class SelectCondition {
      * @return {@code true} if it satisfies the condition; {@code false} otherwise.
      */
     public boolean check(Tuple tuple) {
-        // get the variable operand from input tuple, get the Constant operand from stored Term instances
-        Term operand1 = this.term1 == null ? tuple.getTerms().get(term1Idx) : this.term1;
-        Term operand2 = this.term2 == null ? tuple.getTerms().get(term2Idx) : this.term2;
+        return this.check(tuple.getValues(), tuple.getStringColumns());
+    }
 
-        // interpret the string comparison operator and inspect the input tuple
-        if (this.op.equals("=")) {
-            return operand1.equals(operand2);
-        } else if (this.op.equals("!=")) {
-            return (!operand1.equals(operand2));
-        } else if (this.op.equals(">")) {
-            if (operand1 instanceof IntegerConstant)
-                return ((IntegerConstant) operand1).getValue() > ((IntegerConstant) operand2).getValue();
-            return ((StringConstant) operand1).getValue().compareTo(((StringConstant) operand2).getValue()) > 0;
-        } else if (this.op.equals(">=")) {
-            if (operand1 instanceof IntegerConstant)
-                return ((IntegerConstant) operand1).getValue() >= ((IntegerConstant) operand2).getValue();
-            return ((StringConstant) operand1).getValue().compareTo(((StringConstant) operand2).getValue()) >= 0;
-        } else if (this.op.equals("<")) {
-            if (operand1 instanceof IntegerConstant)
-                return ((IntegerConstant) operand1).getValue() < ((IntegerConstant) operand2).getValue();
-            return ((StringConstant) operand1).getValue().compareTo(((StringConstant) operand2).getValue()) < 0;
-        } else if (this.op.equals("<=")) {
-            if (operand1 instanceof IntegerConstant)
-                return ((IntegerConstant) operand1).getValue() <= ((IntegerConstant) operand2).getValue();
-            return ((StringConstant) operand1).getValue().compareTo(((StringConstant) operand2).getValue()) <= 0;
+    /**
+     * Check whether a row of a {@link TupleBatch} satisfies the select condition.
+     * @param batch the batch containing the row to be checked.
+     * @param row the row index in the batch.
+     * @return {@code true} if it satisfies the condition; {@code false} otherwise.
+     */
+    public boolean check(TupleBatch batch, int row) {
+        CompiledComparison comparison = this.compiled(batch.getStringColumns());
+        int operand1 = this.isConstant1 ? this.value1 : batch.getValue(term1Idx, row);
+        int operand2 = this.isConstant2 ? this.value2 : batch.getValue(term2Idx, row);
+        return comparison.test(operand1, operand2);
+    }
+
+    /**
+     * Check whether a parsed row (not yet wrapped in a {@link Tuple}) satisfies the select condition.
+     * @param values the values of row, string values as dictionary codes.
+     * @param stringColumns the column types of row.
+     * @return {@code true} if it satisfies the condition; {@code false} otherwise.
+     */
+    public boolean check(int[] values, boolean[] stringColumns) {
+        CompiledComparison comparison = this.compiled(stringColumns);
+        int operand1 = this.isConstant1 ? this.value1 : values[term1Idx];
+        int operand2 = this.isConstant2 ? this.value2 : values[term2Idx];
+        return comparison.test(operand1, operand2);
+    }
+
+    /**
+     * Keep the selected rows of a batch that satisfy the select condition.
+     * The loop is chosen once per batch by the kinds of operands (column/constant), then only calls the compiled comparison.
+     * @param batch the batch to be checked.
+     * @param selection the selected row indices, the passing rows are moved to its beginning (in order).
+     * @param count the number of selected rows.
+     * @return the number of passing rows.
+     */
+    public int filter(TupleBatch batch, int[] selection, int count) {
+        CompiledComparison comparison = this.compiled(batch.getStringColumns());
+        int kept = 0;
+        if (!this.isConstant1 && this.isConstant2) {
+            int[] column = batch.getColumn(this.term1Idx);
+            int constant = this.value2;
+            for (int i = 0; i < count; i++)
+                if (comparison.test(column[selection[i]], constant))
+                    selection[kept++] = selection[i];
+        } else if (this.isConstant1 && !this.isConstant2) {
+            int constant = this.value1;
+            int[] column = batch.getColumn(this.term2Idx);
+            for (int i = 0; i < count; i++)
+                if (comparison.test(constant, column[selection[i]]))
+                    selection[kept++] = selection[i];
+        } else if (!this.isConstant1) {
+            int[] column1 = batch.getColumn(this.term1Idx);
+            int[] column2 = batch.getColumn(this.term2Idx);
+            for (int i = 0; i < count; i++)
+                if (comparison.test(column1[selection[i]], column2[selection[i]]))
+                    selection[kept++] = selection[i];
         } else {
-            System.out.println("!!!! None of the if-branches is evoked in the Selection Operator !!!!");
-            return false;
+            kept = comparison.test(this.value1, this.value2) ? count : 0;
         }
+        return kept;
     }
-}
\ No newline at end of file
+}
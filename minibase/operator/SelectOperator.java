@@ -43,6 +43,14 @@ public class SelectOperator extends Operator {
         this.child.reset();
     }
 
+    /**
+     * Release the resources of child operator.
+     */
+    @Override
+    public void close() {
+        this.child.close();
+    }
+
     /**
      * Get and return the next tuple that satisfies the SELECT conditions.
      * This method iteratively fetch next tuple from its child operator
@@ -69,6 +77,35 @@ public class SelectOperator extends Operator {
         return null;
     }
 
+    /**
+     * Get the next batch that has at least one row satisfying the SELECT conditions.
+     * The rows of child batch are not copied, only the selection vector is replaced by the rows that pass all conditions.
+     * The conditions are applied one after another on the whole selection vector (see {@link SelectCondition#filter}),
+     * so each condition runs a tight loop over its columns.
+     * @return the next filtered {@link TupleBatch}, or {@code null} if the child operator reaches the end
+     */
+    @Override
+    public TupleBatch getNextBatch() {
+        TupleBatch batch = this.child.getNextBatch();
+        while (batch != null) {
+            int count = batch.size();
+            int[] selection = new int[count];
+            for (int i = 0; i < count; i++)
+                selection[i] = batch.getRowIndex(i);
+            for (SelectCondition condition : this.conditions) {
+                if (count == 0)
+                    break;
+                count = condition.filter(batch, selection, count);
+            }
+            if (count > 0) {
+                batch.setSelection(selection, count);
+                return batch;
+            }
+            batch = this.child.getNextBatch();
+        }
+        return null;
+    }
+
     /**
      * Unit test of SelectOperator, output is printed to the console.
      * @param args Command line inputs, can be empty.
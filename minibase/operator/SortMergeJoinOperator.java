@@ -0,0 +1,365 @@
+package ed.inf.adbs.minibase.operator;
+
+import ed.inf.adbs.minibase.base.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Apply an equi-JOIN on the output tuple sets of two child operators by sorting both children on the join keys
+ * and merging the two sorted sequences.
+ * The equality keys are found in the same way as {@link HashJoinOperator}: the identical variables in both children
+ * plus the explicit {@code =} conditions; the other explicit join conditions are applied as a residual filter.
+ *
+ * Both children are sorted by an {@link ExternalSorter}, which spills sorted runs to temporary files
+ * when the number of tuples exceeds the memory budget, so this operator is suitable for inputs
+ * that do not fit in memory as a hash table.
+ * A child known to be already ordered on the join keys (e.g. a scan of a sorted data file) is not sorted,
+ * its tuples are merged as they are read, and the order is checked on every tuple.
+ * Duplicate keys are handled by buffering the group of right tuples that share the same key,
+ * and joining every left tuple with that key against the whole group.
+ */
+public class SortMergeJoinOperator extends JoinOperator {
+
+    /**
+     * The default number of tuples each child may keep in memory before spilling a sorted run.
+     */
+    public static final int DEFAULT_MEMORY_BUDGET = 100000;
+
+    private final int memoryBudget;
+
+    private List<Integer> leftKeyIndices = new ArrayList<>();
+    private List<Integer> rightKeyIndices = new ArrayList<>();
+    private List<JoinCondition> residualConditions = new ArrayList<>();
+
+    private final boolean leftOrdered;
+    private final boolean rightOrdered;
+    // true if the child is already ordered on the join keys, and is merged without being sorted
+
+    private boolean merging = false;
+    // true once the merge has started, until the next reset
+    private ExternalSorter leftSorter = null;
+    private ExternalSorter rightSorter = null;
+    // the sorters of the children that are not ordered, null for an ordered child
+
+    private Tuple leftTuple = null;
+    // the current left tuple being joined with the right group
+    private Tuple nextRightTuple = null;
+    // the first right tuple after the current right group
+    private List<Tuple> rightGroup = new ArrayList<>();
+    // the right tuples sharing the same key, the group is kept until the left tuples move to a greater key
+    private int groupIndex = 0;
+
+    /**
+     * Initialise the operator with the default memory budget.
+     * @param leftChild left child operator.
+     * @param rightChild right child operator.
+     * @param comparisonAtoms the explicit join conditions provided by {@link ComparisonAtom} in query body.
+     */
+    public SortMergeJoinOperator(Operator leftChild, Operator rightChild, List<ComparisonAtom> comparisonAtoms) {
+        this(leftChild, rightChild, comparisonAtoms, DEFAULT_MEMORY_BUDGET);
+    }
+
+    /**
+     * Initialise the operator, the variable mask and the join conditions are built by {@link JoinOperator}.
+     * The join conditions are split into the equality keys and the residual conditions.
+     * @param leftChild left child operator.
+     * @param rightChild right child operator.
+     * @param comparisonAtoms the explicit join conditions provided by {@link ComparisonAtom} in query body.
+     * @param memoryBudget the maximum number of tuples of each child kept in memory while sorting.
+     */
+    public SortMergeJoinOperator(Operator leftChild, Operator rightChild, List<ComparisonAtom> comparisonAtoms,
+                                 int memoryBudget) {
+        this(leftChild, rightChild, comparisonAtoms, memoryBudget, false, false);
+    }
+
+    /**
+     * Initialise the operator, the variable mask and the join conditions are built by {@link JoinOperator}.
+     * The join conditions are split into the equality keys and the residual conditions.
+     * @param leftChild left child operator.
+     * @param rightChild right child operator.
+     * @param comparisonAtoms the explicit join conditions provided by {@link ComparisonAtom} in query body.
+     * @param memoryBudget the maximum number of tuples of each child kept in memory while sorting.
+     * @param leftOrdered whether the left child is already ordered on the join keys, and does not need to be sorted.
+     * @param rightOrdered whether the right child is already ordered on the join keys, and does not need to be sorted.
+     */
+    public SortMergeJoinOperator(Operator leftChild, Operator rightChild, List<ComparisonAtom> comparisonAtoms,
+                                 int memoryBudget, boolean leftOrdered, boolean rightOrdered) {
+        super(leftChild, rightChild, comparisonAtoms);
+        this.memoryBudget = memoryBudget;
+        this.leftOrdered = leftOrdered;
+        this.rightOrdered = rightOrdered;
+        for (Integer leftIndex : this.joinConditionIndices.keySet()) {
+            this.leftKeyIndices.add(leftIndex);
+            this.rightKeyIndices.add(this.joinConditionIndices.get(leftIndex));
+        }
+        for (JoinCondition condition : this.conditions) {
+            if (condition.isEquality()) {
+                this.leftKeyIndices.add(condition.getLeftIndex());
+                this.rightKeyIndices.add(condition.getRightIndex());
+            } else {
+                this.residualConditions.add(condition);
+            }
+        }
+    }
+
+    /**
+     * Reset the states of both child operators, and remove the sorted runs.
+     * The children that are not ordered will be sorted again on the next call of {@link #getNextTuple()}.
+     */
+    @Override
+    public void reset() {
+        super.reset();
+        this.closeSorters();
+        this.merging = false;
+        this.leftSorter = null;
+        this.rightSorter = null;
+    }
+
+    /**
+     * Release the resources of both child operators, and remove the sorted runs.
+     */
+    @Override
+    public void close() {
+        super.close();
+        this.closeSorters();
+    }
+
+    /**
+     * Remove the sorted runs of both children and forget the merge state,
+     * called by {@link #reset()}, by {@link #close()} and once the merge is exhausted.
+     * The sorters are kept until the next reset, so that an exhausted join keeps returning {@code null}.
+     */
+    private void closeSorters() {
+        if (this.leftSorter != null)
+            this.leftSorter.close();
+        if (this.rightSorter != null)
+            this.rightSorter.close();
+        this.leftTuple = null;
+        this.nextRightTuple = null;
+        this.rightGroup = new ArrayList<>();
+        this.groupIndex = 0;
+    }
+
+    /**
+     * Get the next joined tuple by merging the sorted (or already ordered) children.
+     * The left tuples are iterated one by one, the right tuples are consumed group by group:
+     *      (1) if the left key is smaller than the key of right group, move to the next left tuple;
+     *      (2) if the left key is greater, discard the right group and read the next one;
+     *      (3) if the keys are equal, join the left tuple with every tuple in the right group.
+     * @return the next joined tuple that satisfies the join conditions, or {@code null} if the join is exhausted.
+     */
+    @Override
+    public Tuple getNextTuple() {
+        if (!this.merging) {
+            this.merging = true;
+            if (!this.leftOrdered)
+                this.leftSorter = new ExternalSorter(this.leftChild, keyComparator(this.leftKeyIndices), this.memoryBudget);
+            if (!this.rightOrdered)
+                this.rightSorter = new ExternalSorter(this.rightChild, keyComparator(this.rightKeyIndices), this.memoryBudget);
+            this.leftTuple = this.readLeft();
+            this.nextRightTuple = this.readRight();
+            this.readRightGroup();
+        }
+
+        while (this.leftTuple != null && !this.rightGroup.isEmpty()) {
+            int cmp = compareKeys(this.leftTuple, this.leftKeyIndices, this.rightGroup.get(0), this.rightKeyIndices);
+            if (cmp < 0) {
+                this.leftTuple = this.readLeft();
+                this.groupIndex = 0;
+            } else if (cmp > 0) {
+                this.readRightGroup();
+            } else {
+                while (this.groupIndex < this.rightGroup.size()) {
+                    Tuple rightTuple = this.rightGroup.get(this.groupIndex++);
+                    boolean pass = true;
+                    for (JoinCondition condition : this.residualConditions) {
+                        if (!condition.check(this.leftTuple, rightTuple)) {
+                            pass = false;
+                            break;
+                        }
+                    }
+                    if (pass)
+                        return this.joinTuples(this.leftTuple, rightTuple);
+                }
+                // the group is kept, since the next left tuple may have the same key
+                this.leftTuple = this.readLeft();
+                this.groupIndex = 0;
+            }
+        }
+        // one side is exhausted, the remaining tuples of the other side cannot match
+        this.closeSorters();
+        return null;
+    }
+
+    /**
+     * The block nested loop inherited from {@link JoinOperator} is not used,
+     * the batches are collected from {@link #getNextTuple()} instead.
+     * @return the next batch of joined tuples, or {@code null} if the join is exhausted.
+     */
+    @Override
+    public TupleBatch getNextBatch() {
+        return this.collectBatch();
+    }
+
+    /**
+     * Replace the current right group by the next group of right tuples sharing the same key.
+     */
+    private void readRightGroup() {
+        this.rightGroup = new ArrayList<>();
+        this.groupIndex = 0;
+        if (this.nextRightTuple == null)
+            return;
+        this.rightGroup.add(this.nextRightTuple);
+        this.nextRightTuple = this.readRight();
+        while (this.nextRightTuple != null &&
+                compareKeys(this.rightGroup.get(0), this.rightKeyIndices, this.nextRightTuple, this.rightKeyIndices) == 0) {
+            this.rightGroup.add(this.nextRightTuple);
+            this.nextRightTuple = this.readRight();
+        }
+    }
+
+    /**
+     * Read the next left tuple in key order, from the sorter or directly from an ordered left child.
+     * @return the next left tuple, or {@code null} if the left side is exhausted.
+     */
+    private Tuple readLeft() {
+        if (this.leftSorter != null)
+            return this.leftSorter.getNextTuple();
+        return checkOrder(this.leftTuple, this.leftChild.getNextTuple(), this.leftKeyIndices);
+    }
+
+    /**
+     * Read the next right tuple in key order, from the sorter or directly from an ordered right child.
+     * @return the next right tuple, or {@code null} if the right side is exhausted.
+     */
+    private Tuple readRight() {
+        if (this.rightSorter != null)
+            return this.rightSorter.getNextTuple();
+        return checkOrder(this.nextRightTuple, this.rightChild.getNextTuple(), this.rightKeyIndices);
+    }
+
+    /**
+     * Check that a tuple read from an ordered child does not have a smaller key than the previous one,
+     * since the merge would silently miss matches otherwise.
+     * @param previous the previous tuple read from the child, or {@code null} if it is the first one.
+     * @param tuple the tuple just read from the child, or {@code null} if the child is exhausted.
+     * @param keyIndices the indices of key columns in the child tuples.
+     * @return the tuple just read.
+     */
+    private static Tuple checkOrder(Tuple previous, Tuple tuple, List<Integer> keyIndices) {
+        if (previous != null && tuple != null && compareKeys(previous, keyIndices, tuple, keyIndices) > 0)
+            throw new IllegalStateException("Input of sort-merge join is not ordered on the join keys: "
+                    + tuple + " is read after " + previous);
+        return tuple;
+    }
+
+    /**
+     * Build a comparator which orders tuples by the values of key columns.
+     * @param keyIndices the indices of key columns.
+     * @return the comparator.
+     */
+    private static Comparator<Tuple> keyComparator(List<Integer> keyIndices) {
+        return (t1, t2) -> compareKeys(t1, keyIndices, t2, keyIndices);
+    }
+
+    /**
+     * Compare the key columns of two tuples, column by column.
+     * @return a negative integer, zero, or a positive integer as the key of first tuple is
+     *      less than, equal to, or greater than the key of second tuple.
+     */
+    private static int compareKeys(Tuple tuple1, List<Integer> keyIndices1, Tuple tuple2, List<Integer> keyIndices2) {
+        for (int i = 0; i < keyIndices1.size(); i++) {
+            int index1 = keyIndices1.get(i);
+            int value1 = tuple1.getValue(index1);
+            int value2 = tuple2.getValue(keyIndices2.get(i));
+            int cmp;
+            if (tuple1.isString(index1))
+                cmp = DBCatalog.getInstance().getDictionary().compare(value1, value2);
+            else
+                cmp = Integer.compare(value1, value2);
+            if (cmp != 0)
+                return cmp;
+        }
+        return 0;
+    }
+
+    /**
+     * Unit test of SortMergeJoinOperator, output is printed to the console.
+     * A memory budget of 2 tuples is used, so that the sorted runs are spilled to disk.
+     * @param args Command line inputs, can be empty.
+     */
+    public static void main(String[] args) {
+        DBCatalog dbc = DBCatalog.getInstance();
+        dbc.init("data/evaluation/db");
+
+        // Test on query:   Q(x, y, z, w, t) :- R(x, y, z), S(x, w, t), y < t
+        System.out.println("Testing query: Q(x, y, z, w, t) :- R(x, y, z), S(x, w, t), y < t");
+
+        List<Term> queryAtomTerms1 = new ArrayList<>();
+        queryAtomTerms1.add( new Variable("x"));
+        queryAtomTerms1.add( new Variable("y"));
+        queryAtomTerms1.add( new Variable("z"));
+        RelationalAtom queryBodyAtomR = new RelationalAtom("R", queryAtomTerms1);
+
+        List<Term> queryAtomTerms2 = new ArrayList<>();
+        queryAtomTerms2.add( new Variable("x"));
+        queryAtomTerms2.add( new Variable("w"));
+        queryAtomTerms2.add( new Variable("t"));
+        RelationalAtom queryBodyAtomS = new RelationalAtom("S", queryAtomTerms2);
+
+        List<ComparisonAtom> compAtomList = new ArrayList<>();
+        compAtomList.add(new ComparisonAtom(
+                new Variable("y"), new Variable("t"), ComparisonOperator.fromString("<")));
+
+        SortMergeJoinOperator joinOp = new SortMergeJoinOperator(
+                new ScanOperator(queryBodyAtomR), new ScanOperator(queryBodyAtomS), compAtomList, 2);
+        System.out.println(joinOp.getVariableMask());
+        joinOp.dump(null);
+        joinOp.reset();
+        System.out.println("-----------------------------------");
+        joinOp.dump(null);
+
+        // the output of the merge is ordered on x, so it can be merged again without being sorted
+        System.out.println("Testing query: Q(x, y, z, w, t, u) :- R(x, y, z), S(x, w, t), T(x, u), y < t");
+        List<Term> queryAtomTerms3 = new ArrayList<>();
+        queryAtomTerms3.add( new Variable("x"));
+        queryAtomTerms3.add( new Variable("u"));
+        RelationalAtom queryBodyAtomT = new RelationalAtom("T", queryAtomTerms3);
+        SortMergeJoinOperator sortedJoin = new SortMergeJoinOperator(new SortMergeJoinOperator(
+                new ScanOperator(queryBodyAtomR), new ScanOperator(queryBodyAtomS), compAtomList, 2),
+                new ScanOperator(queryBodyAtomT), new ArrayList<>(), 2);
+        SortMergeJoinOperator streamedJoin = new SortMergeJoinOperator(new SortMergeJoinOperator(
+                new ScanOperator(queryBodyAtomR), new ScanOperator(queryBodyAtomS), compAtomList, 2),
+                new ScanOperator(queryBodyAtomT), new ArrayList<>(), 2, true, false);
+        List<String> sortedOutput = new ArrayList<>();
+        List<String> streamedOutput = new ArrayList<>();
+        for (Tuple tuple = sortedJoin.getNextTuple(); tuple != null; tuple = sortedJoin.getNextTuple())
+            sortedOutput.add(tuple.toString());
+        for (Tuple tuple = streamedJoin.getNextTuple(); tuple != null; tuple = streamedJoin.getNextTuple())
+            streamedOutput.add(tuple.toString());
+        // the tuples with the same key may come in another order
+        Collections.sort(sortedOutput);
+        Collections.sort(streamedOutput);
+        System.out.println("Same output when the ordered left child is not sorted: " + sortedOutput.equals(streamedOutput)
+                + " (" + streamedOutput.size() + " tuples)");
+        sortedJoin.close();
+        streamedJoin.close();
+
+        // the scan of R is not ordered on x, so the merge must fail instead of missing matches
+        SortMergeJoinOperator unorderedJoin = new SortMergeJoinOperator(
+                new ScanOperator(queryBodyAtomR), new ScanOperator(queryBodyAtomS), compAtomList, 2, true, false);
+        try {
+            int count = 0;
+            while (unorderedJoin.getNextTuple() != null)
+                count++;
+            System.out.println("Unordered left child not detected, " + count + " tuples joined");
+        } catch (IllegalStateException e) {
+            System.out.println("Unordered left child detected: " + e.getMessage());
+        } finally {
+            unorderedJoin.close();
+        }
+    }
+}
@@ -0,0 +1,254 @@
+package ed.inf.adbs.minibase.operator;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.CRC32;
+
+/**
+ * An ANALYZE tool collecting the {@link RelationStatistics} of relations, which are persisted by {@link DBCatalog}
+ * into {@code stats.txt} next to {@code schema.txt}.
+ *
+ * Each relation is scanned once: every column feeds a {@link HyperLogLog} sketch, the int columns also track min/max
+ * and keep a reservoir sample of {@link #SAMPLE_SIZE} values, from which the equi-depth histogram is built.
+ * When the data file has only been appended to since the last collection, {@link #refresh} scans the new tail only:
+ * the sketches are merged, and the histogram is rebuilt from the old buckets and the sample of the tail, weighted by their row counts.
+ *
+ * Usage: StatisticsCollector database_dir [relation_name ...]
+ * If no relation name is given, all relations in the schema are analyzed.
+ */
+public class StatisticsCollector {
+
+    public static final int HISTOGRAM_BUCKETS = 32;
+    public static final int SAMPLE_SIZE = 10000;
+    private static final int TAIL_CHECKSUM_BYTES = 64;
+    private static final int POINTS_PER_BUCKET = 8;
+    // the old histogram is approximated by this number of evenly spread values per bucket when merged with a new sample
+
+    public static void main(String[] args) {
+        if (args.length < 1) {
+            System.err.println("Usage: StatisticsCollector database_dir [relation_name ...]");
+            return;
+        }
+        DBCatalog dbc = DBCatalog.getInstance();
+        dbc.init(args[0]);
+
+        List<String> relations = new ArrayList<>();
+        if (args.length > 1)
+            relations.addAll(Arrays.asList(args).subList(1, args.length));
+        else
+            relations.addAll(dbc.getRelationNames());
+
+        for (String relationName : relations) {
+            try {
+                long start = System.currentTimeMillis();
+                RelationStatistics statistics = collect(relationName);
+                dbc.putStatistics(statistics);
+                System.out.println("Analyzed " + relationName + ": " + statistics.rowCount + " tuples in "
+                        + (System.currentTimeMillis() - start) + " ms");
+            } catch (IOException e) {
+                System.err.println("Failed to analyze relation " + relationName);
+                e.printStackTrace();
+            }
+        }
+        dbc.saveStatistics();
+    }
+
+    /**
+     * Collect the statistics of a relation by a full scan of its data file.
+     * @param relationName the name of relation.
+     * @return the statistics.
+     */
+    public static RelationStatistics collect(String relationName) throws IOException {
+        return scan(relationName, null);
+    }
+
+    /**
+     * Bring the statistics of a relation up to date with its data file.
+     * If the file has grown and its bytes up to the old size look unchanged (same checksum of the last bytes, ending with a line break),
+     * only the appended lines are scanned; otherwise the relation is collected again.
+     * @param statistics the previous statistics of the relation.
+     * @return the refreshed statistics, a new instance.
+     */
+    public static RelationStatistics refresh(RelationStatistics statistics) throws IOException {
+        File file = new File(DBCatalog.getInstance().getRelationPath(statistics.relationName));
+        if (file.length() > statistics.fileSize && statistics.fileSize > 0
+                && tailChecksum(file, statistics.fileSize) == statistics.tailChecksum
+                && endsWithLineBreak(file, statistics.fileSize))
+            return scan(statistics.relationName, statistics);
+        return collect(statistics.relationName);
+    }
+
+    /**
+     * Scan the data file of a relation, from the beginning or from the end of the part described by {@code base}.
+     * @param relationName the name of relation.
+     * @param base the statistics of the beginning of file, or {@code null} to scan the whole file.
+     * @return the statistics of the whole file.
+     */
+    private static RelationStatistics scan(String relationName, RelationStatistics base) throws IOException {
+        DBCatalog dbc = DBCatalog.getInstance();
+        List<String> schema = dbc.getSchema(relationName);
+        File file = new File(dbc.getRelationPath(relationName));
+        // the file may change while being scanned, the recorded size and time are taken before reading
+        long fileSize = file.length();
+        long lastModified = file.lastModified();
+
+        int columnCount = schema.size();
+        RelationStatistics.Column[] columns = new RelationStatistics.Column[columnCount];
+        int[][] samples = new int[columnCount][];
+        for (int c = 0; c < columnCount; c++) {
+            columns[c] = new RelationStatistics.Column(schema.get(c).equals("int"));
+            columns[c].sketch = new HyperLogLog();
+            columns[c].min = Integer.MAX_VALUE;
+            columns[c].max = Integer.MIN_VALUE;
+            if (columns[c].isInt)
+                samples[c] = new int[SAMPLE_SIZE];
+        }
+
+        Random random = new Random(relationName.hashCode());
+        long rows = 0;
+        try (InputStream in = new FileInputStream(file)) {
+            long skip = base == null ? 0 : base.fileSize;
+            while (skip > 0) {
+                long skipped = in.skip(skip);
+                if (skipped <= 0)
+                    throw new EOFException("Data file is shorter than its statistics: " + file);
+                skip -= skipped;
+            }
+            BufferedReader reader = new BufferedReader(new InputStreamReader(in));
+            String line = reader.readLine();
+            while (line != null) {
+                String[] fields = ColumnarLoader.splitFields(line);
+                if (fields.length >= columnCount) {
+                    // reservoir sampling: the i-th row replaces a random sampled row with probability SAMPLE_SIZE / i
+                    long slot = rows < SAMPLE_SIZE ? rows : (long) (random.nextDouble() * (rows + 1));
+                    for (int c = 0; c < columnCount; c++) {
+                        RelationStatistics.Column column = columns[c];
+                        if (column.isInt) {
+                            int value = Integer.parseInt(fields[c]);
+                            column.sketch.addInt(value);
+                            column.min = Math.min(column.min, value);
+                            column.max = Math.max(column.max, value);
+                            if (slot < SAMPLE_SIZE)
+                                samples[c][(int) slot] = value;
+                        } else {
+                            column.sketch.addString(fields[c]);
+                        }
+                    }
+                    rows++;
+                }
+                line = reader.readLine();
+            }
+        }
+
+        int sampleSize = (int) Math.min(rows, SAMPLE_SIZE);
+        for (int c = 0; c < columnCount; c++) {
+            RelationStatistics.Column column = columns[c];
+            if (column.isInt) {
+                int[] sample = Arrays.copyOf(samples[c], sampleSize);
+                Arrays.sort(sample);
+                if (base != null && base.rowCount > 0) {
+                    RelationStatistics.Column baseColumn = base.columns[c];
+                    column.min = Math.min(column.min, baseColumn.min);
+                    column.max = Math.max(column.max, baseColumn.max);
+                    column.histogram = equiDepthBounds(histogramPoints(baseColumn.histogram), (double) base.rowCount,
+                            sample, (double) rows, column.min, column.max);
+                } else {
+                    column.histogram = equiDepthBounds(new int[0], 0, sample, rows, column.min, column.max);
+                }
+            }
+            if (base != null)
+                column.sketch.merge(base.columns[c].sketch);
+        }
+
+        long totalRows = rows + (base == null ? 0 : base.rowCount);
+        for (RelationStatistics.Column column : columns) {
+            column.distinctValues = Math.max(totalRows == 0 ? 0 : 1, Math.min(totalRows, column.sketch.estimate()));
+            if (totalRows == 0) {
+                column.min = 0;
+                column.max = 0;
+            }
+        }
+        RelationStatistics statistics = new RelationStatistics(relationName, columns);
+        statistics.rowCount = totalRows;
+        statistics.fileSize = fileSize;
+        statistics.lastModified = lastModified;
+        statistics.tailChecksum = tailChecksum(file, fileSize);
+        return statistics;
+    }
+
+    /**
+     * Approximate the values described by a histogram as evenly spread points within each bucket, in ascending order.
+     */
+    private static int[] histogramPoints(int[] histogram) {
+        if (histogram == null || histogram.length < 2)
+            return new int[0];
+        int buckets = histogram.length - 1;
+        int[] points = new int[buckets * POINTS_PER_BUCKET];
+        for (int b = 0; b < buckets; b++) {
+            long low = histogram[b];
+            long high = histogram[b + 1];
+            for (int k = 0; k < POINTS_PER_BUCKET; k++)
+                points[b * POINTS_PER_BUCKET + k] = (int) (low + (high - low) * (2 * k + 1) / (2 * POINTS_PER_BUCKET));
+        }
+        return points;
+    }
+
+    /**
+     * Build the bounds of an equi-depth histogram from two sorted samples, representing {@code rows1} and {@code rows2} rows.
+     * @return {@link #HISTOGRAM_BUCKETS} + 1 bounds from {@code min} to {@code max}, or {@code null} if both samples are empty.
+     */
+    private static int[] equiDepthBounds(int[] sample1, double rows1, int[] sample2, double rows2, int min, int max) {
+        if (sample1.length == 0 && sample2.length == 0)
+            return null;
+        double weight1 = sample1.length == 0 ? 0 : rows1 / sample1.length;
+        double weight2 = sample2.length == 0 ? 0 : rows2 / sample2.length;
+        double total = weight1 * sample1.length + weight2 * sample2.length;
+
+        int[] bounds = new int[HISTOGRAM_BUCKETS + 1];
+        bounds[0] = min;
+        bounds[HISTOGRAM_BUCKETS] = max;
+        // merge both samples in ascending order, and cut a bucket each time the accumulated weight reaches total / B
+        int i = 0, j = 0, b = 1;
+        double accumulated = 0;
+        int last = min;
+        while (b < HISTOGRAM_BUCKETS && (i < sample1.length || j < sample2.length)) {
+            if (j >= sample2.length || (i < sample1.length && sample1[i] <= sample2[j])) {
+                last = sample1[i++];
+                accumulated += weight1;
+            } else {
+                last = sample2[j++];
+                accumulated += weight2;
+            }
+            while (b < HISTOGRAM_BUCKETS && accumulated >= total * b / HISTOGRAM_BUCKETS)
+                bounds[b++] = last;
+        }
+        while (b < HISTOGRAM_BUCKETS)
+            bounds[b++] = last;
+        return bounds;
+    }
+
+    /**
+     * @return the CRC32 of the last bytes before {@code end} in a file.
+     */
+    private static long tailChecksum(File file, long end) throws IOException {
+        int length = (int) Math.min(end, TAIL_CHECKSUM_BYTES);
+        byte[] bytes = new byte[length];
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            raf.seek(end - length);
+            raf.readFully(bytes);
+        }
+        CRC32 crc = new CRC32();
+        crc.update(bytes);
+        return crc.getValue();
+    }
+
+    private static boolean endsWithLineBreak(File file, long end) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            raf.seek(end - 1);
+            return raf.read() == '\n';
+        }
+    }
+}
@@ -0,0 +1,146 @@
+package ed.inf.adbs.minibase.operator;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * A global dictionary mapping each distinct string value of the database to an int code.
+ * {@link Tuple} and {@link TupleBatch} store string columns as these codes, so that every column is a primitive int:
+ *      (1) two string values are equal if and only if their codes are equal;
+ *      (2) the order of strings is not preserved by the codes, ordering comparisons have to {@link #decode} both values.
+ * The code {@link #NULL_CODE} represents a missing value (e.g. a string field skipped by {@link MappedScanOperator}).
+ *
+ * The dictionary is an open-addressing hash table over the strings, so that a field can be encoded
+ * directly from the bytes of a data file without creating a String (see {@link #encode(byte[], int, int)}).
+ * Encoding is synchronized, decoding reads a volatile snapshot of the code table and needs no lock.
+ * Owned by {@link DBCatalog}, see {@link DBCatalog#getDictionary()}.
+ */
+public class StringDictionary {
+
+    public static final int NULL_CODE = -1;
+
+    private volatile String[] values = new String[1024];
+    // values[code] is the string of a code
+    private int size = 0;
+    private int[] slots = new int[2048];
+    // the hash table, each slot stores (code + 1), 0 means empty
+    private int[] hashes = new int[1024];
+    // hashes[code] is the hash of values[code], used to rehash without recomputation
+
+    /**
+     * @param value a string value, may be {@code null}.
+     * @return the code of the value, a new code is assigned if the value has not been seen before.
+     */
+    public synchronized int encode(String value) {
+        if (value == null)
+            return NULL_CODE;
+        int hash = hash(value);
+        int mask = this.slots.length - 1;
+        String[] values = this.values;
+        for (int slot = hash & mask; ; slot = (slot + 1) & mask) {
+            int entry = this.slots[slot];
+            if (entry == 0)
+                return this.insert(value, hash, slot);
+            if (this.hashes[entry - 1] == hash && values[entry - 1].equals(value))
+                return entry - 1;
+        }
+    }
+
+    /**
+     * Encode an ASCII string given as a range of bytes, the String is only created if the value is new.
+     * @param bytes the buffer containing the value.
+     * @param offset the start of the value in the buffer.
+     * @param length the number of bytes of the value.
+     * @return the code of the value.
+     */
+    public synchronized int encode(byte[] bytes, int offset, int length) {
+        int hash = 0;
+        for (int i = 0; i < length; i++)
+            hash = 31 * hash + bytes[offset + i];
+        hash = spread(hash);
+        int mask = this.slots.length - 1;
+        String[] values = this.values;
+        for (int slot = hash & mask; ; slot = (slot + 1) & mask) {
+            int entry = this.slots[slot];
+            if (entry == 0)
+                return this.insert(new String(bytes, offset, length, StandardCharsets.US_ASCII), hash, slot);
+            if (this.hashes[entry - 1] == hash && equalsBytes(values[entry - 1], bytes, offset, length))
+                return entry - 1;
+        }
+    }
+
+    /**
+     * @param code a code returned by {@code encode}.
+     * @return the string value of the code, or {@code null} for {@link #NULL_CODE}.
+     */
+    public String decode(int code) {
+        return code == NULL_CODE ? null : this.values[code];
+    }
+
+    /**
+     * Compare the strings represented by two codes.
+     * @return a negative integer, zero, or a positive integer as the first string is less than, equal to, or greater than the second.
+     */
+    public int compare(int code1, int code2) {
+        if (code1 == code2)
+            return 0;
+        return this.decode(code1).compareTo(this.decode(code2));
+    }
+
+    /**
+     * @return the number of distinct strings in the dictionary.
+     */
+    public synchronized int size() {
+        return this.size;
+    }
+
+    private int insert(String value, int hash, int slot) {
+        int code = this.size;
+        if (code == this.values.length) {
+            this.hashes = Arrays.copyOf(this.hashes, code * 2);
+            String[] grown = Arrays.copyOf(this.values, code * 2);
+            grown[code] = value;
+            this.values = grown;
+        } else {
+            this.values[code] = value;
+        }
+        this.hashes[code] = hash;
+        this.slots[slot] = code + 1;
+        this.size++;
+        if (this.size * 2 > this.slots.length)
+            this.rehash();
+        return code;
+    }
+
+    private void rehash() {
+        int[] slots = new int[this.slots.length * 2];
+        int mask = slots.length - 1;
+        for (int code = 0; code < this.size; code++) {
+            int slot = this.hashes[code] & mask;
+            while (slots[slot] != 0)
+                slot = (slot + 1) & mask;
+            slots[slot] = code + 1;
+        }
+        this.slots = slots;
+    }
+
+    private static int hash(String value) {
+        int hash = 0;
+        for (int i = 0; i < value.length(); i++)
+            hash = 31 * hash + value.charAt(i);
+        return spread(hash);
+    }
+
+    private static int spread(int hash) {
+        return hash ^ (hash >>> 16);
+    }
+
+    private static boolean equalsBytes(String value, byte[] bytes, int offset, int length) {
+        if (value.length() != length)
+            return false;
+        for (int i = 0; i < length; i++)
+            if (value.charAt(i) != bytes[offset + i])
+                return false;
+        return true;
+    }
+}
@@ -17,6 +17,16 @@ public class SumOperator extends AggregateOperator {
         super(childOperator, queryHead);
     }
 
+    /**
+     * Call super class constructor to initialise the operator.
+     * @param childOperator the child operator.
+     * @param queryHead the relational atom in query head.
+     * @param memoryBudget the number of groups each worker keeps in memory when the child is a {@link ParallelOperator}.
+     */
+    public SumOperator(Operator childOperator, RelationalAtom queryHead, int memoryBudget) {
+        super(childOperator, queryHead, memoryBudget);
+    }
+
     /**
      * First call {@link #aggregate()} to iterate over all child operator tuples and do aggregation.
      * After the blocking operation travel through all the child output tuples,
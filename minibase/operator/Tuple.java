@@ -1,27 +1,110 @@
 package ed.inf.adbs.minibase.operator;
 
-import ed.inf.adbs.minibase.Utils;
-import ed.inf.adbs.minibase.base.Term;
+import ed.inf.adbs.minibase.base.*;
 
+import java.util.ArrayList;
 import java.util.List;
 
 /**
  * A class for storing a row/record from a relation in database.
+ * The row is stored as a primitive {@code int[]}: int columns hold their values,
+ * string columns hold the codes of their values in the {@link StringDictionary} of {@link DBCatalog}.
+ * The column types are given by a {@code boolean[]} which is shared by all tuples produced by the same operator.
+ * The {@link Term} representation is only built on demand by {@link #getTerms()}, e.g. when printing results.
  */
 public class Tuple {
     private String relationName;
-    private List<Term> terms;
+    private int[] values;
+    private boolean[] stringColumns;
+    // stringColumns[c] is true if values[c] is a dictionary code
 
+    /**
+     * Create a tuple from primitive values, the arrays are not copied.
+     * @param relationName the name of tuple.
+     * @param values the values of columns, string columns as dictionary codes.
+     * @param stringColumns the column types, shared among tuples of the same operator.
+     */
+    public Tuple(String relationName, int[] values, boolean[] stringColumns) {
+        this.relationName = relationName;
+        this.values = values;
+        this.stringColumns = stringColumns;
+    }
+
+    /**
+     * Create a tuple from a list of {@link IntegerConstant} / {@link StringConstant} terms ({@code null} for missing values).
+     * @param relationName the name of tuple.
+     * @param terms the values of columns.
+     */
     public Tuple(String relationName, List<Term> terms) {
+        StringDictionary dictionary = DBCatalog.getInstance().getDictionary();
         this.relationName = relationName;
-        this.terms = terms;
+        this.values = new int[terms.size()];
+        this.stringColumns = new boolean[terms.size()];
+        for (int c = 0; c < terms.size(); c++) {
+            Term term = terms.get(c);
+            if (term instanceof IntegerConstant) {
+                this.values[c] = ((IntegerConstant) term).getValue();
+            } else {
+                this.stringColumns[c] = true;
+                this.values[c] = term == null ? StringDictionary.NULL_CODE : dictionary.encode(((StringConstant) term).getValue());
+            }
+        }
     }
 
     public String getName() {
         return relationName;
     }
 
+    /**
+     * @return the number of columns.
+     */
+    public int size() {
+        return values.length;
+    }
+
+    /**
+     * @return the value of a column, the dictionary code for string columns.
+     */
+    public int getValue(int column) {
+        return values[column];
+    }
+
+    /**
+     * @return {@code true} if the column is a string column.
+     */
+    public boolean isString(int column) {
+        return stringColumns[column];
+    }
+
+    /**
+     * @return the underlying array of values, which must not be modified.
+     */
+    public int[] getValues() {
+        return values;
+    }
+
+    /**
+     * @return the column types, which must not be modified.
+     */
+    public boolean[] getStringColumns() {
+        return stringColumns;
+    }
+
+    /**
+     * Convert the row into {@link Term} instances, a new list is created on each call.
+     * @return the values of columns as a list of terms.
+     */
     public List<Term> getTerms() {
+        StringDictionary dictionary = DBCatalog.getInstance().getDictionary();
+        List<Term> terms = new ArrayList<>(values.length);
+        for (int c = 0; c < values.length; c++) {
+            if (!stringColumns[c])
+                terms.add(new IntegerConstant(values[c]));
+            else if (values[c] == StringDictionary.NULL_CODE)
+                terms.add(null);
+            else
+                terms.add(new StringConstant(dictionary.decode(values[c])));
+        }
         return terms;
     }
 
@@ -31,6 +114,28 @@ public class Tuple {
      */
     @Override
     public String toString() {
-        return Utils.join(terms, ", ");
+        return format(values, stringColumns);
+    }
+
+    /**
+     * Convert a row into print style, integers as they are and strings in quotes.
+     * @param values the values of columns, string columns as dictionary codes.
+     * @param stringColumns the column types.
+     * @return a String represent the row, columns split by ', '
+     */
+    static String format(int[] values, boolean[] stringColumns) {
+        StringDictionary dictionary = DBCatalog.getInstance().getDictionary();
+        StringBuilder builder = new StringBuilder();
+        for (int c = 0; c < values.length; c++) {
+            if (c > 0)
+                builder.append(", ");
+            if (!stringColumns[c])
+                builder.append(values[c]);
+            else if (values[c] == StringDictionary.NULL_CODE)
+                builder.append("null");
+            else
+                builder.append('\'').append(dictionary.decode(values[c])).append('\'');
+        }
+        return builder.toString();
     }
 }
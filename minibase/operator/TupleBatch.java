@@ -0,0 +1,241 @@
+package ed.inf.adbs.minibase.operator;
+
+import ed.inf.adbs.minibase.base.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A column-oriented batch of up to {@code capacity} tuples, the unit of data returned by {@link Operator#getNextBatch()}.
+ * Each column is stored as a primitive {@code int[]}: int columns hold their values,
+ * string columns hold the codes of their values in the {@link StringDictionary} (same as {@link Tuple}).
+ * The row {@code r} of the batch consists of the r-th element of every column.
+ *
+ * A batch also has a selection vector: the indices of the rows that are still alive.
+ * Filtering operators (e.g. {@link SelectOperator}) only replace the selection vector instead of copying columns,
+ * and {@link ProjectOperator} may share the column arrays of its child batch.
+ * Operators should always iterate over the selected rows: {@code for (i < size()) row = getRowIndex(i)}.
+ */
+public class TupleBatch {
+
+    /**
+     * The default number of rows in a batch.
+     */
+    public static final int DEFAULT_CAPACITY = 1024;
+
+    private final int capacity;
+    private final int[][] columns;
+    private final boolean[] stringColumns;
+    // stringColumns[c] is true if columns[c] holds dictionary codes
+
+    private int rowCount = 0;
+    private int[] selection = null;
+    private int selectedCount = 0;
+    // selection == null means all rows in [0, rowCount) are selected
+
+    /**
+     * Create an empty batch.
+     * @param columnCount the number of columns, usually the size of the variable mask of operator.
+     * @param capacity the maximum number of rows.
+     */
+    public TupleBatch(int columnCount, int capacity) {
+        this.capacity = capacity;
+        this.columns = new int[columnCount][];
+        this.stringColumns = new boolean[columnCount];
+    }
+
+    public int getColumnCount() {
+        return this.columns.length;
+    }
+
+    public int getCapacity() {
+        return this.capacity;
+    }
+
+    /**
+     * @return the number of rows stored in the batch, including the rows filtered out by the selection vector.
+     */
+    public int getRowCount() {
+        return this.rowCount;
+    }
+
+    /**
+     * @return the number of selected rows.
+     */
+    public int size() {
+        return this.selection == null ? this.rowCount : this.selectedCount;
+    }
+
+    /**
+     * @param i the position in the selection vector, in [0, {@link #size()}).
+     * @return the row index of the i-th selected row.
+     */
+    public int getRowIndex(int i) {
+        return this.selection == null ? i : this.selection[i];
+    }
+
+    /**
+     * Replace the selection vector.
+     * @param selection the selected row indices in ascending order, the array may be longer than {@code count}.
+     * @param count the number of selected rows.
+     */
+    public void setSelection(int[] selection, int count) {
+        this.selection = selection;
+        this.selectedCount = count;
+    }
+
+    public boolean isFull() {
+        return this.rowCount >= this.capacity;
+    }
+
+    public boolean isStringColumn(int column) {
+        return this.stringColumns[column];
+    }
+
+    /**
+     * @return the column types, {@code true} for string columns.
+     */
+    public boolean[] getStringColumns() {
+        return this.stringColumns;
+    }
+
+    /**
+     * @return the values (or dictionary codes) of a column, the array may be longer than the row count.
+     */
+    public int[] getColumn(int column) {
+        return this.columns[column];
+    }
+
+    /**
+     * @return the value of an int column, or the dictionary code of a string column.
+     */
+    public int getValue(int column, int row) {
+        return this.columns[column][row];
+    }
+
+    /**
+     * Use an existing array as a column, the array is shared and not copied.
+     * @param column the column index.
+     * @param values the values, or dictionary codes if {@code isString}.
+     * @param isString the type of column.
+     */
+    public void setColumn(int column, int[] values, boolean isString) {
+        this.columns[column] = values;
+        this.stringColumns[column] = isString;
+    }
+
+    /**
+     * Set the number of rows, used by producers that fill the column arrays directly.
+     * The selection vector is cleared, i.e. all rows are selected.
+     */
+    public void setRowCount(int rowCount) {
+        this.rowCount = rowCount;
+        this.selection = null;
+    }
+
+    /**
+     * Append an empty row, whose values are then set by {@link #setValue} or {@link #copyValue}.
+     * @return the index of the new row.
+     */
+    public int addRow() {
+        this.selection = null;
+        return this.rowCount++;
+    }
+
+    /**
+     * Set a value of a row, allocating the column on first use.
+     * @param isString the type of column, {@code value} is a dictionary code if {@code true}.
+     */
+    public void setValue(int column, int row, int value, boolean isString) {
+        if (this.columns[column] == null) {
+            this.columns[column] = new int[this.capacity];
+            this.stringColumns[column] = isString;
+        }
+        this.columns[column][row] = value;
+    }
+
+    /**
+     * Copy a value from a row of another batch into a row of this batch.
+     */
+    public void copyValue(int column, int row, TupleBatch source, int sourceColumn, int sourceRow) {
+        this.setValue(column, row, source.columns[sourceColumn][sourceRow], source.stringColumns[sourceColumn]);
+    }
+
+    /**
+     * Append a tuple as a new row.
+     * @param tuple the tuple to be appended, it has the same number of columns as this batch.
+     */
+    public void addTuple(Tuple tuple) {
+        int row = this.addRow();
+        for (int c = 0; c < tuple.size(); c++)
+            this.setValue(c, row, tuple.getValue(c), tuple.isString(c));
+    }
+
+    /**
+     * Build a {@link Tuple} from a row of the batch.
+     * @param row the row index (not the position in selection vector).
+     * @param relationName the name of the tuple.
+     * @return the tuple.
+     */
+    public Tuple getTuple(int row, String relationName) {
+        int[] values = new int[this.columns.length];
+        for (int c = 0; c < values.length; c++)
+            values[c] = this.columns[c][row];
+        return new Tuple(relationName, values, this.stringColumns);
+    }
+
+    /**
+     * @return the value at the given position as a {@link Term}.
+     */
+    public Term getTerm(int column, int row) {
+        int value = this.columns[column][row];
+        if (!this.stringColumns[column])
+            return new IntegerConstant(value);
+        if (value == StringDictionary.NULL_CODE)
+            return null;
+        return new StringConstant(DBCatalog.getInstance().getDictionary().decode(value));
+    }
+
+    /**
+     * @return the values of a row as a list of {@link Term}.
+     */
+    public List<Term> getTerms(int row) {
+        List<Term> terms = new ArrayList<>(this.columns.length);
+        for (int c = 0; c < this.columns.length; c++)
+            terms.add(this.getTerm(c, row));
+        return terms;
+    }
+
+    /**
+     * Check whether a value of this batch equals a value of another batch (or the same batch).
+     * Both values are compared as primitives, since equal strings have equal dictionary codes.
+     */
+    public boolean valueEquals(int column, int row, TupleBatch other, int otherColumn, int otherRow) {
+        return this.stringColumns[column] == other.stringColumns[otherColumn]
+                && this.columns[column][row] == other.columns[otherColumn][otherRow];
+    }
+
+    /**
+     * Compare a value of this batch with a value of another batch (or the same batch), both must have the same type.
+     * @return a negative integer, zero, or a positive integer as the first value is less than, equal to, or greater than the second.
+     */
+    public int compareValues(int column, int row, TupleBatch other, int otherColumn, int otherRow) {
+        int value1 = this.columns[column][row];
+        int value2 = other.columns[otherColumn][otherRow];
+        if (this.stringColumns[column])
+            return DBCatalog.getInstance().getDictionary().compare(value1, value2);
+        return Integer.compare(value1, value2);
+    }
+
+    /**
+     * Convert a row into print style, in the same format as {@link Tuple#toString()}.
+     * @param row the row index (not the position in selection vector).
+     * @return a String represent the row, columns split by ', '
+     */
+    public String rowToString(int row) {
+        int[] values = new int[this.columns.length];
+        for (int c = 0; c < values.length; c++)
+            values[c] = this.columns[c][row];
+        return Tuple.format(values, this.stringColumns);
+    }
+}
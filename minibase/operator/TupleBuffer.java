@@ -0,0 +1,125 @@
+package ed.inf.adbs.minibase.operator;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The output rows of an operator, materialized once and then scanned any number of times.
+ * Used by {@link JoinOperator} for its inner (right) child, which would otherwise be reset and re-evaluated
+ * (re-opening and re-parsing its data files) for every block of the outer child.
+ *
+ * The selected rows of the child batches are copied into compact batches of {@link Operator#batchSize} rows.
+ * At most {@code memoryBudget} rows are kept in memory, the following rows are written into a {@link TupleSpillFile}
+ * and read back (as batches) at the end of each scan.
+ */
+public class TupleBuffer {
+
+    private final Operator child;
+    private final int memoryBudget;
+
+    private List<TupleBatch> memoryBatches = null;
+    // the in-memory part of the rows, null until the child is materialized by the first rewind()
+    private int memoryRows = 0;
+    private TupleSpillFile spillFile = null;
+    // the rows beyond the memory budget, null if nothing has been spilled
+
+    private int batchIndex = 0;
+    private boolean readingSpill = false;
+    // the position of the current scan
+
+    /**
+     * @param child the operator whose output is materialized, it is consumed by the first {@link #rewind()}.
+     * @param memoryBudget the maximum number of rows kept in memory.
+     */
+    public TupleBuffer(Operator child, int memoryBudget) {
+        this.child = child;
+        this.memoryBudget = Math.max(1, memoryBudget);
+    }
+
+    /**
+     * Start a new scan from the first row, the child operator is materialized on the first call.
+     */
+    public void rewind() {
+        if (this.memoryBatches == null)
+            this.materialize();
+        this.batchIndex = 0;
+        this.readingSpill = false;
+    }
+
+    /**
+     * @return the next batch of the current scan, or {@code null} if all rows have been returned.
+     */
+    public TupleBatch nextBatch() {
+        if (!this.readingSpill) {
+            if (this.batchIndex < this.memoryBatches.size())
+                return this.memoryBatches.get(this.batchIndex++);
+            if (this.spillFile == null)
+                return null;
+            this.spillFile.openReader();
+            this.readingSpill = true;
+        }
+        Tuple tuple = this.spillFile.read();
+        if (tuple == null)
+            return null;
+        TupleBatch batch = new TupleBatch(tuple.size(), Operator.batchSize);
+        batch.addTuple(tuple);
+        while (!batch.isFull() && (tuple = this.spillFile.read()) != null)
+            batch.addTuple(tuple);
+        return batch;
+    }
+
+    /**
+     * @return the number of rows kept in memory.
+     */
+    public int getMemoryRows() {
+        return this.memoryRows;
+    }
+
+    /**
+     * @return the number of rows spilled to disk.
+     */
+    public int getSpilledRows() {
+        return this.spillFile == null ? 0 : this.spillFile.size();
+    }
+
+    /**
+     * Remove the spill file and forget the materialized rows, the next {@link #rewind()} materializes the child again
+     * (the child operator must have been reset before).
+     */
+    public void clear() {
+        if (this.spillFile != null)
+            this.spillFile.delete();
+        this.spillFile = null;
+        this.memoryBatches = null;
+        this.memoryRows = 0;
+    }
+
+    /**
+     * Consume the child operator, copying its selected rows into compact batches or into the spill file.
+     */
+    private void materialize() {
+        this.memoryBatches = new ArrayList<>();
+        TupleBatch current = null;
+        TupleBatch childBatch = this.child.getNextBatch();
+        while (childBatch != null) {
+            for (int i = 0; i < childBatch.size(); i++) {
+                int row = childBatch.getRowIndex(i);
+                if (this.memoryRows >= this.memoryBudget) {
+                    if (this.spillFile == null)
+                        this.spillFile = new TupleSpillFile("Buffer");
+                    this.spillFile.write(childBatch.getTuple(row, "Buffer"));
+                    continue;
+                }
+                if (current == null || current.isFull()) {
+                    current = new TupleBatch(childBatch.getColumnCount(), Operator.batchSize);
+                    this.memoryBatches.add(current);
+                }
+                int copied = current.addRow();
+                for (int c = 0; c < childBatch.getColumnCount(); c++)
+                    current.copyValue(c, copied, childBatch, c, row);
+                this.memoryRows++;
+            }
+            childBatch = this.child.getNextBatch();
+        }
+    }
+}
@@ -0,0 +1,126 @@
+package ed.inf.adbs.minibase.operator;
+
+import java.io.*;
+
+/**
+ * A temporary file storing a sequence of {@link Tuple} instances in binary form.
+ * Used by the operators which may hold more tuples than the memory budget allows (e.g. the sorted runs of {@link ExternalSorter}).
+ * The tuples are first appended by {@link #write(Tuple)}, then the file is switched to read mode by {@link #openReader()},
+ * and read back sequentially by {@link #read()}. The file is removed by {@link #delete()}, which its owner must call
+ * once the tuples are no longer needed (also when a query plan is abandoned, see {@link Operator#close()}).
+ * The file is also registered for deletion on JVM exit, as a backstop for a plan that is never closed.
+ *
+ * Each tuple is stored as its number of columns, followed by each column as a type flag and the primitive value.
+ * The string values are stored as {@link StringDictionary} codes, which stay valid since the file never outlives the process.
+ */
+public class TupleSpillFile {
+
+    private static final byte INT_FLAG = 0;
+    private static final byte STRING_FLAG = 1;
+
+    private final File file;
+    private final String relationName;
+    private DataOutputStream writer;
+    private DataInputStream reader = null;
+    private int tupleCount = 0;
+    private boolean[] stringColumns = null;
+    // the column types of tuples read back, shared by these tuples (all tuples in a file have the same types)
+
+    /**
+     * Create a new temporary file in the default temporary directory, ready for writing.
+     * @param relationName the name of tuples read back from this file.
+     */
+    public TupleSpillFile(String relationName) {
+        this.relationName = relationName;
+        try {
+            this.file = File.createTempFile("minibase-spill", ".bin");
+            this.file.deleteOnExit();
+            this.writer = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(this.file)));
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to create spill file", e);
+        }
+    }
+
+    /**
+     * Append a tuple to the end of file.
+     * @param tuple the tuple to be written.
+     */
+    public void write(Tuple tuple) {
+        try {
+            this.writer.writeInt(tuple.size());
+            for (int c = 0; c < tuple.size(); c++) {
+                this.writer.writeByte(tuple.isString(c) ? STRING_FLAG : INT_FLAG);
+                this.writer.writeInt(tuple.getValue(c));
+            }
+            this.tupleCount++;
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to write spill file " + this.file, e);
+        }
+    }
+
+    /**
+     * Finish writing (if not yet) and (re)start reading from the beginning of file.
+     */
+    public void openReader() {
+        try {
+            if (this.writer != null) {
+                this.writer.close();
+                this.writer = null;
+            }
+            if (this.reader != null)
+                this.reader.close();
+            this.reader = new DataInputStream(new BufferedInputStream(new FileInputStream(this.file)));
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to open spill file " + this.file, e);
+        }
+    }
+
+    /**
+     * Read the next tuple, {@link #openReader()} must be called before.
+     * @return the next tuple in file, or {@code null} if the end of file is reached.
+     */
+    public Tuple read() {
+        try {
+            int size;
+            try {
+                size = this.reader.readInt();
+            } catch (EOFException e) {
+                return null;
+            }
+            if (this.stringColumns == null || this.stringColumns.length != size)
+                this.stringColumns = new boolean[size];
+            int[] values = new int[size];
+            for (int i = 0; i < size; i++) {
+                this.stringColumns[i] = this.reader.readByte() == STRING_FLAG;
+                values[i] = this.reader.readInt();
+            }
+            return new Tuple(this.relationName, values, this.stringColumns);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to read spill file " + this.file, e);
+        }
+    }
+
+    /**
+     * @return the number of tuples written into this file.
+     */
+    public int size() {
+        return this.tupleCount;
+    }
+
+    /**
+     * Close the streams and remove the file.
+     */
+    public void delete() {
+        try {
+            if (this.writer != null)
+                this.writer.close();
+            if (this.reader != null)
+                this.reader.close();
+        } catch (IOException e) {
+            // the file is removed anyway
+        }
+        this.writer = null;
+        this.reader = null;
+        this.file.delete();
+    }
+}